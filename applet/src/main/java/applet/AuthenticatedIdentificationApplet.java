@@ -2,11 +2,14 @@ package applet;
 
 import javacard.framework.*;
 import javacard.security.AESKey;
+import javacard.security.CryptoException;
 import javacard.security.KeyBuilder;
 import javacard.security.RandomData;
+import javacard.security.Signature;
+import javacardx.apdu.ExtendedLength;
 import javacardx.crypto.Cipher;
 
-public class AuthenticatedIdentificationApplet extends Applet
+public class AuthenticatedIdentificationApplet extends Applet implements ExtendedLength, MultiSelectable
 {
 
 	// ===== APDU constants =====
@@ -14,29 +17,109 @@ public class AuthenticatedIdentificationApplet extends Applet
 	private static final byte INS_AUTH_INIT   = (byte) 0x10;
 	private static final byte INS_AUTH        = (byte) 0x11;
 	private static final byte INS_GET_ID      = (byte) 0x12;
+	private static final byte INS_AUTH_AND_GET_ID = (byte) 0x13;
+	private static final byte INS_RESUME      = (byte) 0x14;
+	private static final byte INS_GET_CREDENTIAL = (byte) 0x15;
+	private static final byte INS_PUT_CREDENTIAL = (byte) 0x16;
+	private static final byte INS_GET_STATS   = (byte) 0x17;
+	private static final byte INS_UPDATE_CREDENTIALS = (byte) 0x18;
+	private static final byte INS_GET_RESPONSE  = (byte) 0xC0;	// ISO 7816-4, CLA 0x00
+	private static final byte CLA_CHANNEL_MASK = (byte) 0xFC;	// Clears the logical channel number (b1-b2) from a CLA byte
+	private static final byte P1_WITH_DIVERSIFIER = (byte) 0x01;	// AUTH_INIT: append the key diversifier
+
+	// ===== Install options (optional byte following the PSK and the ID) =====
+	private static final byte OPT_CHALLENGE_POOL = (byte) 0x01;	// Precompute AUTH_INIT challenges after GET_ID
+	private static final byte OPT_RESUMPTION     = (byte) 0x02;	// Issue a resumption ticket after each full session
+	private static final byte OPT_DIVERSIFIER    = (byte) 0x04;	// An 8-byte key diversifier follows the options byte
+	private static final byte OPT_CREDENTIAL     = (byte) 0x08;	// Allocate the credential store
+	private static final byte OPT_STATISTICS     = (byte) 0x10;	// Count protocol events for GET_STATS
 
 	// ===== Keys & crypto =====
 	private final AESKey preSharedKey;              // Pre-shared long-term AES-128 key
-	private final AESKey ephemeralKey;              // Ephemeral AES-128 (rc || rt')
+	private final AESKey[] ephemeralKeys;           // Ephemeral AES-128 (rc || rt'), one per logical channel
 	private final Cipher aesEcb;      				// AES/ECB/NOPAD for both keys
 	private final RandomData rng;
 
 	// ===== Persistent data =====
 	private final byte[] id = new byte[16]; 		// Card's identifier (ciphertext payload for GET_ID)
-
-	// ===== Session state =====
-	private final byte[] rc = new byte[8];       	// Card nonce (64-bit)
-	private final byte[] rt = new byte[8];       	// Decrypted terminal nonce (64-bit)
-	private final byte[] cipherIn = new byte[16];   // AES input
-	private final byte[] cipherOut = new byte[16];  // AES output
-	private final byte[] tmpBuffer = new byte[16];  // Temporary scratch buffer used for ephemeral key construction
-	private boolean ephemeralKeyReady = false;      // Has AUTH set the ephemeral key?
-	private boolean authSuccess = false;         	// Does rc' match rc?
+	private final byte[] diversifier;				// Public value the terminal derives the PSK from (only with OPT_DIVERSIFIER)
+
+	// ===== Challenge pool (persistent, only allocated with OPT_CHALLENGE_POOL) =====
+	private static final short POOL_SIZE = 4;
+	private static final short SCRATCH_OFFSET = 32;	// APDU buffer area for intermediate blocks, behind any command or response data
+	private final byte[] poolRc;					// Pre-generated card nonces, 8 bytes per entry
+	private final byte[] poolCt;					// AES_psk(rc || 0^64) for each nonce, 16 bytes per entry
+	private final byte[] poolValid;					// Entry state: cleared before use or refill, set once an entry is complete
+
+	// ===== Credential rotation =====
+	private static final short UPDATE_LENGTH = 48;			// E_eph(psk') || E_eph(id') || E_eph(AES_psk'(id'))
+	private static final short UPDATE_SCRATCH_OFFSET = 64;	// Behind the UPDATE_CREDENTIALS command data
+
+	// ===== Resumption ticket (persistent, only allocated with OPT_RESUMPTION) =====
+	private static final short TICKET_MAX_USES = 8;
+	private final AESKey resumptionKey;				// k_res = AES_eph(LABEL_TICKET) of the last full session
+	private boolean ticketValid = false;			// Is resumptionKey usable?
+	private short ticketCounter = 0;				// Highest counter accepted for the current ticket
+
+	// ===== Credential store (persistent, only allocated with OPT_CREDENTIAL) =====
+	// Both directions transfer the stream AES-CBC_eph(plaintext) || AES-CMAC_mac(ciphertext), k_mac = AES_eph(LABEL_CREDENTIAL_MAC)
+	private static final short CREDENTIAL_CAPACITY = 1024;	// Plaintext: length (2) || credential || zero padding to whole blocks
+	private static final short MAC_LENGTH = 16;
+	private final byte[] credential;
+	private short credentialLength = 0;				// Padded plaintext length of the complete credential, 0 while none is stored
+	private final Cipher[] aesCbc;					// AES/CBC/NOPAD under the session key, one per logical channel, keeps its chaining state across APDUs
+	private final Signature[] aesCmac;				// AES-CMAC under k_mac, one per logical channel, keeps its state across APDUs
+	private final AESKey[] macKeys;					// k_mac of the stream, one per logical channel
+	private final byte[] macKeyScratch;				// Transient, k_mac between derivation and setKey (the APDU buffer may hold command data)
+	private final short[] credentialState;			// Transient stream positions, CRED_STATE_SIZE per logical channel, indexed by the CRED_* constants below
+
+	private static final short CRED_READ_OFFSET  = 0;	// Next stream byte to send
+	private static final short CRED_READ_END     = 1;	// End of a pending read, 0 if there is nothing left for GET RESPONSE
+	private static final short CRED_WRITE_OFFSET = 2;	// Next stream byte expected from PUT_CREDENTIAL
+	private static final short CRED_WRITE_END    = 3;	// Stream offset of the MAC of a pending write, 0 until its first block is decrypted
+	private static final short CRED_STATE_SIZE   = 4;
+
+	// ===== Usage statistics (persistent, only allocated with OPT_STATISTICS) =====
+	// 32-bit big-endian counters, incremented without transaction: an event costs a single-byte write, and only
+	// every 256th event carries into the higher bytes. A power loss during a carry may lose counts, never corrupt keys.
+	// Persistent writes are counted right where they happen, one per field, key, or array range written.
+	private static final byte STATS_VERSION = 1;
+	private static final short STATS_COUNTERS = 8;
+	private static final short STATS_RESPONSE_LENGTH = 48;	// version (1) || count (1) || counters || zero padding
+	private final byte[] stats;
+
+	private static final short STAT_AUTH_INIT         = 0;	// AUTH_INIT commands
+	private static final short STAT_AUTH_ATTEMPT      = 1;	// AUTH and AUTH_AND_GET_ID commands with a well-formed payload
+	private static final short STAT_AUTH_SUCCESS      = 2;	// ... of which the terminal proved knowledge of the PSK
+	private static final short STAT_ID_REFUSED        = 3;	// GET_ID refused without authenticated session
+	private static final short STAT_ID_RELEASED       = 4;	// IDs returned by GET_ID, AUTH_AND_GET_ID, and RESUME
+	private static final short STAT_RESUME_ACCEPTED   = 5;
+	private static final short STAT_RESUME_REJECTED   = 6;
+	private static final short STAT_PERSISTENT_WRITES = 7;	// Persistent updates of pool, ticket, credential, and PSK/ID (not counting statistics)
+
+	// ===== Session state (transient, one independent session per logical channel) =====
+	// All cryptographic operations work in place in the APDU buffer, only the card nonce has to outlive a command.
+	// The runtime clears transient memory only once the applet is deselected on every channel, so a channel's
+	// session is also reset in select(boolean) and deselect(boolean).
+	private static final short MAX_CHANNELS = 4;	// Basic channel and the three channels of the first interindustry CLA range
+	private final byte[] rc;       					// Card nonce (64-bit), 8 bytes per channel
+	private final boolean[] sessionFlags;			// Session flags, FLAG_COUNT per channel, indexed by the FLAG_* constants below
+
+	private static final short FLAG_EPHEMERAL_KEY_READY = 0;	// Has AUTH set the ephemeral key?
+	private static final short FLAG_AUTH_SUCCESS        = 1;	// Does rc' match rc?
+	private static final short FLAG_RESUMED             = 2;	// Was the session established with RESUME?
+	private static final short FLAG_COUNT               = 3;
 
 	// ===== 16-byte status messages returned after AUTH =====
 	private final byte[] MSG_SUCCESS = {'A','U','T','H','_','S','U','C','C','E','S','S', 0, 0, 0, 0};
 	private final byte[] MSG_FAILURE = {'A','U','T','H','_','F','A','I','L','U','R','E', 0, 0, 0, 0};
 
+	// ===== 16-byte labels for resumption key derivation and proof of possession =====
+	private final byte[] LABEL_TICKET = {'T','I','C','K','E','T', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+	private final byte[] LABEL_RESUME = {'R','E','S','U','M','E', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+	private final byte[] LABEL_CREDENTIAL = {'C','R','E','D','E','N','T','I','A','L', 0, 0, 0, 0, 0, 0};	// CBC IV of the credential stream
+	private final byte[] LABEL_CREDENTIAL_MAC = {'C','R','E','D','E','N','T','I','A','L','_','M','A','C', 0, 0};
+
 	public static void install(byte[] bArray, short bOffset, byte bLength) 
 	{
 		new AuthenticatedIdentificationApplet(bArray, bOffset, bLength);
@@ -45,21 +128,41 @@ public class AuthenticatedIdentificationApplet extends Applet
 	public AuthenticatedIdentificationApplet(byte[] bArray, short bOffset, byte bLength)
 	{
 		// bArray starts with length of instance AID, followed by the instance AID itself
-		short li = (short) bArray[bOffset];
+		// All lengths are unsigned, and every offset is checked against the end of the parameters before it is read
+		short end = (short) (bOffset + (bLength & 0xff));
+		short li = (short) (bArray[bOffset] & 0xff);
 		// Then: Length of control info, followed by control info
-		short lc = (short) bArray[(short) ((bOffset + li + 1) & 0xff)];
+		short lcOffset = (short) (bOffset + li + 1);
+		if (lcOffset >= end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short lc = (short) (bArray[lcOffset] & 0xff);
 		// Afterward: Length of applet data, followed by applet data itself
-		short appletDataLength = (short) bArray[(short) ((bOffset + li + lc + 2) & 0xff)];
-		short appletDataOffset = (short) ((bOffset + li + lc + 3) & 0xff);
+		short appletDataLengthOffset = (short) (lcOffset + lc + 1);
+		if (appletDataLengthOffset >= end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short appletDataLength = (short) (bArray[appletDataLengthOffset] & 0xff);
+		short appletDataOffset = (short) (appletDataLengthOffset + 1);
+		if ((short) (appletDataOffset + appletDataLength) > end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
 
 		// The applet data needs to contain the 16-byte pre-shared key and the 16-byte card ID
 		if (appletDataLength < 32) {
 			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 		}
 
+		// Allocate session state in RAM, so that a transaction does not write to persistent memory
+		rc = JCSystem.makeTransientByteArray((short) (MAX_CHANNELS * 8), JCSystem.CLEAR_ON_DESELECT);
+		sessionFlags = JCSystem.makeTransientBooleanArray((short) (MAX_CHANNELS * FLAG_COUNT), JCSystem.CLEAR_ON_DESELECT);
+
 		// Build keys / cipher objects
 		preSharedKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
-		ephemeralKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+		ephemeralKeys = new AESKey[MAX_CHANNELS];
+		for (short i = 0; i < MAX_CHANNELS; i++) {
+			ephemeralKeys[i] = buildEphemeralKey();
+		}
 		aesEcb = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
 		rng = RandomData.getInstance(RandomData.ALG_TRNG);
 
@@ -67,26 +170,126 @@ public class AuthenticatedIdentificationApplet extends Applet
 		preSharedKey.setKey(bArray, appletDataOffset);
 
 		// Load ID (next 16 bytes)
-		Util.arrayCopyNonAtomic(bArray, (short) ((appletDataOffset + 16) & 0xff), id, (short) 0, (short) 16);
+		Util.arrayCopyNonAtomic(bArray, (short) (appletDataOffset + 16), id, (short) 0, (short) 16);
+
+		// Optional options byte (next byte)
+		byte options = 0;
+		if (appletDataLength > 32) {
+			options = bArray[(short) (appletDataOffset + 32)];
+		}
+
+		// Diversifier (next 8 bytes), which lets the terminal derive the PSK from its master key
+		if ((options & OPT_DIVERSIFIER) != 0) {
+			if (appletDataLength < 41) {
+				ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+			}
+			diversifier = new byte[8];
+			Util.arrayCopyNonAtomic(bArray, (short) (appletDataOffset + 33), diversifier, (short) 0, (short) 8);
+		} else {
+			diversifier = null;
+		}
+
+		// Counters start at zero with the installation
+		stats = (options & OPT_STATISTICS) != 0 ? new byte[(short) (STATS_COUNTERS * 4)] : null;
+
+		// The credential store starts out empty and is written with PUT_CREDENTIAL
+		if ((options & OPT_CREDENTIAL) != 0) {
+			credential = new byte[CREDENTIAL_CAPACITY];
+			aesCbc = new Cipher[MAX_CHANNELS];
+			aesCmac = new Signature[MAX_CHANNELS];
+			macKeys = new AESKey[MAX_CHANNELS];
+			for (short i = 0; i < MAX_CHANNELS; i++) {
+				aesCbc[i] = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+				aesCmac[i] = Signature.getInstance(Signature.ALG_AES_CMAC_128, false);
+				macKeys[i] = buildEphemeralKey();
+			}
+			macKeyScratch = JCSystem.makeTransientByteArray((short) 16, JCSystem.CLEAR_ON_DESELECT);
+			credentialState = JCSystem.makeTransientShortArray((short) (MAX_CHANNELS * CRED_STATE_SIZE), JCSystem.CLEAR_ON_DESELECT);
+		} else {
+			credential = null;
+			aesCbc = null;
+			aesCmac = null;
+			macKeys = null;
+			macKeyScratch = null;
+			credentialState = null;
+		}
+
+		// The pool starts out empty and is filled after the first completed GET_ID
+		if ((options & OPT_CHALLENGE_POOL) != 0) {
+			poolRc = new byte[(short) (POOL_SIZE * 8)];
+			poolCt = new byte[(short) (POOL_SIZE * 16)];
+			poolValid = new byte[POOL_SIZE];
+		} else {
+			poolRc = null;
+			poolCt = null;
+			poolValid = null;
+		}
+
+		// A fresh installation has no valid ticket, so reinstalling invalidates all tickets
+		if ((options & OPT_RESUMPTION) != 0) {
+			resumptionKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+		} else {
+			resumptionKey = null;
+		}
 
 		register();
 	}
 
+	public boolean select()
+	{
+		// Reset session on (re-)select. The JCRE also calls select() without a SELECT command when the applet is
+		// implicitly selected after card activation, in which case process() never sees selectingApplet().
+		// The channel being selected is the assigned one, the SELECT or MANAGE CHANNEL may arrive on another.
+		byte channel = JCSystem.getAssignedChannel();
+		if (channel >= MAX_CHANNELS) {
+			return false;
+		}
+		resetSession(channel);
+		return true;
+	}
+
+	public boolean select(boolean appInstAlreadyActive)
+	{
+		// Called instead of select() while the applet (or another one of the package) is active on another
+		// channel, whose session must stay untouched
+		return select();
+	}
+
+	public void deselect(boolean appInstAlreadyActive)
+	{
+		// Transient memory survives as long as the applet is active on any channel, so clear this channel's
+		// session and key right away
+		byte channel = JCSystem.getAssignedChannel();
+		if (channel < MAX_CHANNELS) {
+			resetSession(channel);
+			ephemeralKeys[channel].clearKey();
+			if (macKeys != null) {
+				macKeys[channel].clearKey();
+			}
+		}
+	}
+
 	public void process(APDU apdu)
 	{
 
-		// Reset session on (re-)select and return a success message
+		// Session was already reset in select(), just return a success message
 		if (selectingApplet()) {
-			ephemeralKeyReady = false;
-			authSuccess = false;
-			Util.arrayFillNonAtomic(rc, (short) 0, (short) rc.length, (byte) 0);
 			ISOException.throwIt(ISO7816.SW_NO_ERROR);
 		}
 
 		byte[] apduBuffer = apdu.getBuffer();
-		byte cla = apduBuffer[ISO7816.OFFSET_CLA];
+		byte cla = (byte) (apduBuffer[ISO7816.OFFSET_CLA] & CLA_CHANNEL_MASK);
 		byte ins = apduBuffer[ISO7816.OFFSET_INS];
 
+		// GET RESPONSE continues a chained credential response, any other command on the channel ends it
+		if (cla == ISO7816.CLA_ISO7816 && ins == INS_GET_RESPONSE) {
+			handleGetResponse(apdu);
+			return;
+		}
+		if (credentialState != null) {
+			credentialState[cred(CRED_READ_END)] = 0;
+		}
+
 		// Verify that class byte corresponds to "proprietary"
 		if (cla != CLA_PROPRIETARY) {
 			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
@@ -103,100 +306,625 @@ public class AuthenticatedIdentificationApplet extends Applet
 			case INS_GET_ID:
 				handleGetId(apdu);
 				break;
+			case INS_AUTH_AND_GET_ID:
+				handleAuthAndGetId(apdu);
+				break;
+			case INS_RESUME:
+				handleResume(apdu);
+				break;
+			case INS_GET_CREDENTIAL:
+				handleGetCredential(apdu);
+				break;
+			case INS_PUT_CREDENTIAL:
+				handlePutCredential(apdu);
+				break;
+			case INS_GET_STATS:
+				handleGetStats(apdu);
+				break;
+			case INS_UPDATE_CREDENTIALS:
+				handleUpdateCredentials(apdu);
+				break;
 			default:
 				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
 		}
 	}
 
 	private void handleAuthInit(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+
+		// P1 has to be read before the response overwrites the header
+		boolean withDiversifier = apduBuffer[ISO7816.OFFSET_P1] == P1_WITH_DIVERSIFIER;
+		if (withDiversifier && diversifier == null) {
+			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+		}
+
 		// Reset previous session state
 		// => Relevant in case several subsequent authentication attempts occur within the same session
-		ephemeralKeyReady = false;
-		authSuccess = false;
+		resetSession(APDU.getCLAChannel());
+		count(STAT_AUTH_INIT);
 
-		// Sample a new 64-bit random nonce
-		rng.nextBytes(rc, (short) 0, (short) 8);
+		// Answer from a precomputed challenge if one is available
+		if (takeFromPool(apduBuffer)) {
+			apdu.setOutgoingAndSend((short) 0, appendDiversifier(apduBuffer, withDiversifier));
+			return;
+		}
 
-		// Construct plaintext block pt = rc || 0^64
-		Util.arrayCopyNonAtomic(rc, (short) 0, cipherIn, (short) 0, (short) 8);
-		Util.arrayFillNonAtomic(cipherIn, (short) 8, (short) 8, (byte) 0);
+		// Sample a new 64-bit random nonce and construct plaintext block pt = rc || 0^64 in the APDU buffer
+		rng.nextBytes(apduBuffer, (short) 0, (short) 8);
+		Util.arrayFillNonAtomic(apduBuffer, (short) 8, (short) 8, (byte) 0);
+		Util.arrayCopyNonAtomic(apduBuffer, (short) 0, rc, nonceOffset(), (short) 8);
 
-		// Encrypt under the pre-shared key
+		// Encrypt in place under the pre-shared key
 		aesEcb.init(preSharedKey, Cipher.MODE_ENCRYPT);
-		aesEcb.doFinal(cipherIn, (short) 0, (short) 16, cipherOut, (short) 0);
+		aesEcb.doFinal(apduBuffer, (short) 0, (short) 16, apduBuffer, (short) 0);
 
 		// Send response
-		apdu.setOutgoing();
-		apdu.setOutgoingLength((short) 16);
-		apdu.sendBytesLong(cipherOut, (short) 0, (short) 16);
+		apdu.setOutgoingAndSend((short) 0, appendDiversifier(apduBuffer, withDiversifier));
+	}
+
+	/**
+	 * Appends the diversifier to the AUTH_INIT ciphertext if requested and returns the response length.
+	 */
+	private short appendDiversifier(byte[] apduBuffer, boolean withDiversifier) {
+		if (!withDiversifier) {
+			return (short) 16;
+		}
+		Util.arrayCopyNonAtomic(diversifier, (short) 0, apduBuffer, (short) 16, (short) 8);
+		return (short) 24;
 	}
 
 	private void handleAuth(APDU apdu) {
+		// Verify the terminal's response and encrypt the status message into the APDU buffer
+		authenticate(apdu);
+
+		// Send response
+		apdu.setOutgoingAndSend((short) 0, (short) 16);
+	}
+
+	private void handleAuthAndGetId(APDU apdu) {
+		// Same as AUTH, the encrypted status message ends up at the start of the APDU buffer
+		authenticate(apdu);
+
+		// On failure, only the status message is returned (identical to AUTH)
+		if (!sessionFlags[flag(FLAG_AUTH_SUCCESS)]) {
+			apdu.setOutgoingAndSend((short) 0, (short) 16);
+			return;
+		}
+
+		// On success, append the identifier encrypted under the ephemeral key: status || E_eph(id)
+		aesEcb.doFinal(id, (short) 0, (short) 16, apdu.getBuffer(), (short) 16);
+		count(STAT_ID_RELEASED);
+
+		// Session completed, prepare ticket and challenges for the next ones
+		issueTicket(apdu.getBuffer());
+		refillPool(apdu.getBuffer());
+
+		// Send response
+		apdu.setOutgoingAndSend((short) 0, (short) 32);
+	}
+
+	private void authenticate(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+
+		// Check that length of data corresponds to 16 bytes, which always fit into the APDU buffer in one go
+		short read = apdu.setIncomingAndReceive();
+		if (apdu.getIncomingLength() != 16 || read != 16) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		// Decrypt ciphertext in place with pre-shared key to get: m = rt || rc'
+		// (the data starts behind Lc, which takes three bytes in the extended format)
+		final short rtOffset = apdu.getOffsetCdata();
+		final short rcOffset = (short) (rtOffset + 8);
+		aesEcb.init(preSharedKey, Cipher.MODE_DECRYPT);
+		aesEcb.doFinal(apduBuffer, rtOffset, (short) 16, apduBuffer, rtOffset);
+
+		// Authentication is successful, if the recovered card nonce matches the originally chosen value rc
+		sessionFlags[flag(FLAG_AUTH_SUCCESS)] = equals(apduBuffer, rcOffset, rc, nonceOffset(), (short) 8);
+		count(STAT_AUTH_ATTEMPT);
+		if (sessionFlags[flag(FLAG_AUTH_SUCCESS)]) {
+			count(STAT_AUTH_SUCCESS);
+		}
+
+		// Derive ephemeral key: k_eph = rc || rt, rearranged in place over rt || rc'
+		Util.arrayCopyNonAtomic(apduBuffer, rtOffset, apduBuffer, rcOffset, (short) 8);
+		Util.arrayCopyNonAtomic(rc, nonceOffset(), apduBuffer, rtOffset, (short) 8);
+		ephemeralKey().setKey(apduBuffer, rtOffset);
+		Util.arrayFillNonAtomic(apduBuffer, rtOffset, (short) 16, (byte) 0);
+		sessionFlags[flag(FLAG_EPHEMERAL_KEY_READY)] = true;
+
+		// Encrypt the corresponding response message (cipher stays initialized with the ephemeral key)
+		byte[] responseMessage = sessionFlags[flag(FLAG_AUTH_SUCCESS)] ? MSG_SUCCESS : MSG_FAILURE;
+		aesEcb.init(ephemeralKey(), Cipher.MODE_ENCRYPT);
+		aesEcb.doFinal(responseMessage, (short) 0, (short) 16, apduBuffer, (short) 0);
+	}
+
+	private void handleGetId(APDU apdu) {
+		// Ensure that authentication was already performed
+		if (!sessionFlags[flag(FLAG_AUTH_SUCCESS)] || !sessionFlags[flag(FLAG_EPHEMERAL_KEY_READY)]) {
+			count(STAT_ID_REFUSED);
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+
+		// Encrypt the identifier stored on the card directly into the APDU buffer
+		aesEcb.init(ephemeralKey(), Cipher.MODE_ENCRYPT);
+		aesEcb.doFinal(id, (short) 0, (short) 16, apdu.getBuffer(), (short) 0);
+		count(STAT_ID_RELEASED);
+
+		// Session completed, prepare ticket and challenges for the next ones
+		issueTicket(apdu.getBuffer());
+		refillPool(apdu.getBuffer());
+
+		// Send response
+		apdu.setOutgoingAndSend((short) 0, (short) 16);
+	}
+
+	private void handleResume(APDU apdu) {
 		byte[] apduBuffer = apdu.getBuffer();
 
-		// Check that length of data corresponds to 16 bytes
-		short lc = (short) (apduBuffer[ISO7816.OFFSET_LC] & 0xff);
-		if (lc != 16) {
+		// Reset previous session state
+		resetSession(APDU.getCLAChannel());
+
+		if (resumptionKey == null) {
+			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+		}
+
+		// The counter in P1P2 has to be larger than any counter accepted before for this ticket
+		short counter = Util.getShort(apduBuffer, ISO7816.OFFSET_P1);
+		if (!ticketValid || counter <= ticketCounter || counter > TICKET_MAX_USES) {
+			count(STAT_RESUME_REJECTED);
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+
+		// Check that length of data corresponds to 16 bytes and receive it
+		short read = apdu.setIncomingAndReceive();
+		if (apdu.getIncomingLength() != 16 || read != 16) {
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 		}
+		final short proofOffset = apdu.getOffsetCdata();
+
+		// Derive the counter-bound key: k_c = AES_res(counter || 0^112)
+		Util.setShort(apduBuffer, SCRATCH_OFFSET, counter);
+		Util.arrayFillNonAtomic(apduBuffer, (short) (SCRATCH_OFFSET + 2), (short) 14, (byte) 0);
+		aesEcb.init(resumptionKey, Cipher.MODE_ENCRYPT);
+		aesEcb.doFinal(apduBuffer, SCRATCH_OFFSET, (short) 16, apduBuffer, SCRATCH_OFFSET);
+		ephemeralKey().setKey(apduBuffer, SCRATCH_OFFSET);
+		Util.arrayFillNonAtomic(apduBuffer, SCRATCH_OFFSET, (short) 16, (byte) 0);
+
+		// The terminal proves possession of the ticket by sending AES_kc(LABEL_RESUME)
+		aesEcb.init(ephemeralKey(), Cipher.MODE_DECRYPT);
+		aesEcb.doFinal(apduBuffer, proofOffset, (short) 16, apduBuffer, proofOffset);
+		if (!equals(apduBuffer, proofOffset, LABEL_RESUME, (short) 0, (short) 16)) {
+			count(STAT_RESUME_REJECTED);
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+
+		// Consume the counter before answering, so that the command cannot be replayed
+		ticketCounter = counter;
+		count(STAT_PERSISTENT_WRITES);
+		count(STAT_RESUME_ACCEPTED);
+		sessionFlags[flag(FLAG_EPHEMERAL_KEY_READY)] = true;
+		sessionFlags[flag(FLAG_AUTH_SUCCESS)] = true;
+		sessionFlags[flag(FLAG_RESUMED)] = true;
+
+		// Return the identifier encrypted under k_c
+		aesEcb.init(ephemeralKey(), Cipher.MODE_ENCRYPT);
+		aesEcb.doFinal(id, (short) 0, (short) 16, apduBuffer, (short) 0);
+		count(STAT_ID_RELEASED);
+
+		// Send response
+		apdu.setOutgoingAndSend((short) 0, (short) 16);
+	}
+
+	private void handleUpdateCredentials(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+
+		// Only a full session proves knowledge of the current PSK, a resumption ticket is not enough
+		if (!sessionFlags[flag(FLAG_AUTH_SUCCESS)] || !sessionFlags[flag(FLAG_EPHEMERAL_KEY_READY)] || sessionFlags[flag(FLAG_RESUMED)]) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
 
-		// Receive 16 bytes and store them into cipherIn
+		// Check that length of data corresponds to 48 bytes and receive it
 		short read = apdu.setIncomingAndReceive();
-		short copied = 0;
-		while (read > 0 && ((short) ((copied + read) & 0xff)) <= ((short) 16)) {
-			Util.arrayCopyNonAtomic(apduBuffer, ISO7816.OFFSET_CDATA, cipherIn, copied, read);
-			copied += read;
-			read = apdu.receiveBytes(ISO7816.OFFSET_CDATA);
+		if (apdu.getIncomingLength() != UPDATE_LENGTH || read != UPDATE_LENGTH) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+
+		// Decrypt in place under the session key: psk' || id' || check
+		final short pskOffset = apdu.getOffsetCdata();
+		final short idOffset = (short) (pskOffset + 16);
+		final short checkOffset = (short) (pskOffset + 32);
+		aesEcb.init(ephemeralKey(), Cipher.MODE_DECRYPT);
+		aesEcb.doFinal(apduBuffer, pskOffset, UPDATE_LENGTH, apduBuffer, pskOffset);
+
+		// The session ends here either way, so the ephemeral key object is free to hold psk' for the check
+		// AES_psk'(id'), which rejects a garbled or spliced payload before anything is written
+		ephemeralKey().setKey(apduBuffer, pskOffset);
+		aesEcb.init(ephemeralKey(), Cipher.MODE_ENCRYPT);
+		aesEcb.doFinal(apduBuffer, idOffset, (short) 16, apduBuffer, UPDATE_SCRATCH_OFFSET);
+		ephemeralKey().clearKey();
+		resetSession(APDU.getCLAChannel());
+		boolean valid = equals(apduBuffer, UPDATE_SCRATCH_OFFSET, apduBuffer, checkOffset, (short) 16);
+		Util.arrayFillNonAtomic(apduBuffer, UPDATE_SCRATCH_OFFSET, (short) 16, (byte) 0);
+		if (!valid) {
+			Util.arrayFillNonAtomic(apduBuffer, pskOffset, UPDATE_LENGTH, (byte) 0);
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+
+		// Replace key and ID together, and drop everything derived from the old key: pool entries are encrypted
+		// under it, and the ticket would let a holder of the old key resume. The pool is cleared entry by entry,
+		// as arrayFillNonAtomic would bypass the transaction.
+		JCSystem.beginTransaction();
+		preSharedKey.setKey(apduBuffer, pskOffset);
+		count(STAT_PERSISTENT_WRITES);
+		Util.arrayCopy(apduBuffer, idOffset, id, (short) 0, (short) 16);
+		count(STAT_PERSISTENT_WRITES);
+		ticketValid = false;
+		count(STAT_PERSISTENT_WRITES);
+		if (poolValid != null) {
+			for (short i = 0; i < POOL_SIZE; i++) {
+				if (poolValid[i] != 0) {
+					poolValid[i] = 0;
+					count(STAT_PERSISTENT_WRITES);
+				}
+			}
+		}
+		JCSystem.commitTransaction();
+
+		// Sessions on other channels were established under the old key, end them as well
+		for (byte channel = 0; channel < MAX_CHANNELS; channel++) {
+			resetSession(channel);
+			ephemeralKeys[channel].clearKey();
+		}
+
+		// Leave no key material in the APDU buffer, the response carries no data
+		Util.arrayFillNonAtomic(apduBuffer, pskOffset, UPDATE_LENGTH, (byte) 0);
+	}
+
+	private void resetSession(byte channel) {
+		short flags = (short) (channel * FLAG_COUNT);
+		sessionFlags[(short) (flags + FLAG_EPHEMERAL_KEY_READY)] = false;
+		sessionFlags[(short) (flags + FLAG_AUTH_SUCCESS)] = false;
+		sessionFlags[(short) (flags + FLAG_RESUMED)] = false;
+		Util.arrayFillNonAtomic(rc, (short) (channel * 8), (short) 8, (byte) 0);
+		if (credentialState != null) {
+			short state = (short) (channel * CRED_STATE_SIZE);
+			credentialState[(short) (state + CRED_READ_END)] = 0;
+			credentialState[(short) (state + CRED_WRITE_OFFSET)] = 0;
+			credentialState[(short) (state + CRED_WRITE_END)] = 0;
+		}
+	}
+
+	// ===== Per-channel session slots, for the channel of the current command =====
+	private static short flag(short flag) {
+		return (short) (APDU.getCLAChannel() * FLAG_COUNT + flag);
+	}
+
+	private static short nonceOffset() {
+		return (short) (APDU.getCLAChannel() * 8);
+	}
+
+	private static short cred(short field) {
+		return (short) (APDU.getCLAChannel() * CRED_STATE_SIZE + field);
+	}
+
+	private AESKey ephemeralKey() {
+		return ephemeralKeys[APDU.getCLAChannel()];
+	}
+
+	private Cipher credentialCipher() {
+		return aesCbc[APDU.getCLAChannel()];
+	}
+
+	private Signature credentialMac() {
+		return aesCmac[APDU.getCLAChannel()];
+	}
+
+	// ===== Credential store =====
+	private void handleGetCredential(APDU apdu) {
+		checkCredentialAccess();
+		if (credentialLength == 0) {
+			ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		}
+
+		// The credential is encrypted as one CBC stream under the session key, however many responses it takes, and
+		// the MAC over the ciphertext closes the stream. It replaces the state of an unfinished write, which therefore
+		// has to start over.
+		credentialState[cred(CRED_WRITE_OFFSET)] = 0;
+		credentialCipher().init(ephemeralKey(), Cipher.MODE_ENCRYPT, LABEL_CREDENTIAL, (short) 0, (short) 16);
+		initCredentialMac(Signature.MODE_SIGN);
+		credentialState[cred(CRED_READ_OFFSET)] = 0;
+		credentialState[cred(CRED_READ_END)] = (short) (credentialLength + MAC_LENGTH);
+		sendCredential(apdu);
+	}
+
+	private void handleGetResponse(APDU apdu) {
+		if (credentialState == null || credentialState[cred(CRED_READ_END)] == 0) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
+		sendCredential(apdu);
+	}
+
+	private void sendCredential(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		short offset = credentialState[cred(CRED_READ_OFFSET)];
+		short end = credentialState[cred(CRED_READ_END)];
 
-		// Double-check that the correct amount of data was copied
-		if (copied != 16) {
+		// An extended Le takes the whole credential at once, a short Le at most 256 bytes per response
+		short length = apdu.setOutgoing();
+		if (length > (short) (end - offset)) {
+			length = (short) (end - offset);
+		}
+		length = (short) (length & ~15);
+		if (length == 0) {
 			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 		}
+		apdu.setOutgoingLength(length);
+
+		// Encrypt and send whole blocks in pieces that fit into the APDU buffer, then the MAC
+		short piece = apduBuffer.length < 256 ? (short) (apduBuffer.length & ~15) : (short) 256;
+		short stop = (short) (offset + length);
+		while (offset < stop) {
+			short size;
+			if (offset < credentialLength) {
+				size = (short) (stop - offset) < piece ? (short) (stop - offset) : piece;
+				if (size > (short) (credentialLength - offset)) {
+					size = (short) (credentialLength - offset);
+				}
+				credentialCipher().update(credential, offset, size, apduBuffer, (short) 0);
+				credentialMac().update(apduBuffer, (short) 0, size);
+			} else {
+				size = credentialMac().sign(apduBuffer, (short) 0, (short) 0, apduBuffer, (short) 0);
+			}
+			apdu.sendBytes((short) 0, size);
+			offset += size;
+		}
+		credentialState[cred(CRED_READ_OFFSET)] = offset;
 
-		// Decrypt ciphertext with pre-shared key to get: m = rt || rc'
-		aesEcb.init(preSharedKey, Cipher.MODE_DECRYPT);
-		aesEcb.doFinal(cipherIn, (short) 0, (short) 16, cipherOut, (short) 0);
+		// Announce the rest for GET RESPONSE, 0x6100 stands for 256 bytes or more
+		short remaining = (short) (end - offset);
+		if (remaining > 0) {
+			ISOException.throwIt((short) (ISO7816.SW_BYTES_REMAINING_00 | (remaining > 255 ? 0 : remaining)));
+		}
+		credentialState[cred(CRED_READ_END)] = 0;
+	}
 
-		// Copy recovered rt to an internal buffer
-		Util.arrayCopyNonAtomic(cipherOut, (short) 0, rt, (short) 0, (short) 8);
-		// Authentication is successful, if the recovered card nonce matches the originally chosen value rc
-		authSuccess = equals(cipherOut, (short) 8, rc, (short) 0, (short) 8);
+	private void handlePutCredential(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		checkCredentialAccess();
+
+		// P1P2 is the stream offset of this chunk, chunks are whole blocks and arrive in order
+		short offset = Util.getShort(apduBuffer, ISO7816.OFFSET_P1);
+		short read = apdu.setIncomingAndReceive();
+		short total = apdu.getIncomingLength();
+		if (total == 0 || (total & 15) != 0 || offset < 0 || total > (short) (CREDENTIAL_CAPACITY + MAC_LENGTH - offset)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
 
-		// Derive ephemeral key: k_eph = rc || rt
-		Util.arrayCopyNonAtomic(rc, (short) 0, tmpBuffer, (short) 0, (short) 8);
-		Util.arrayCopyNonAtomic(rt, (short) 0, tmpBuffer, (short) 8, (short) 8);
-		ephemeralKey.setKey(tmpBuffer, (short) 0);
-		ephemeralKeyReady = true;
+		// The first chunk invalidates the stored credential, it only becomes readable again once complete and verified
+		if (offset == 0) {
+			credentialLength = 0;
+			count(STAT_PERSISTENT_WRITES);
+			endCredentialStreams();
+			credentialCipher().init(ephemeralKey(), Cipher.MODE_DECRYPT, LABEL_CREDENTIAL, (short) 0, (short) 16);
+			initCredentialMac(Signature.MODE_VERIFY);
+			credentialState[cred(CRED_WRITE_END)] = 0;
+		} else if (offset != credentialState[cred(CRED_WRITE_OFFSET)]) {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
 
-		// Encrypt the corresponding response message
-		byte[] responseMessage = authSuccess ? MSG_SUCCESS : MSG_FAILURE;
-		aesEcb.init(ephemeralKey, Cipher.MODE_ENCRYPT);
-		aesEcb.doFinal(responseMessage, (short) 0, (short) 16, cipherOut, (short) 0);
+		// Take whole blocks as they arrive, a partial block is carried over to the next read
+		short cdata = apdu.getOffsetCdata();
+		short pending = 0;
+		short written = offset;
+		while (read > 0) {
+			pending += read;
+			short used = 0;
+			while ((short) (pending - used) >= 16) {
+				short size = putCredential(apduBuffer, (short) (cdata + used), (short) ((short) (pending - used) & ~15), written);
+				used += size;
+				written += size;
+			}
+			pending -= used;
+			Util.arrayCopyNonAtomic(apduBuffer, (short) (cdata + used), apduBuffer, cdata, pending);
+			read = apdu.receiveBytes((short) (cdata + pending));
+		}
+		credentialState[cred(CRED_WRITE_OFFSET)] = written;
+	}
 
-		// Send response
-		apdu.setOutgoing();
-		apdu.setOutgoingLength((short) 16);
-		apdu.sendBytesLong(cipherOut, (short) 0, (short) 16);
+	/**
+	 * Takes whole blocks of the PUT_CREDENTIAL stream, starting at stream offset position, and returns the number of
+	 * bytes taken. Ciphertext is decrypted into the store; the MAC behind it publishes the credential if it verifies.
+	 */
+	private short putCredential(byte[] buffer, short offset, short length, short position) {
+		short end = credentialState[cred(CRED_WRITE_END)];
+		if (end == 0 || position < end) {
+			// Until the first block is decrypted, its length prefix and thus the end of the ciphertext are unknown
+			short size = end == 0 ? 16 : (short) (end - position) < length ? (short) (end - position) : length;
+			credentialMac().update(buffer, offset, size);
+			credentialCipher().update(buffer, offset, size, credential, position);
+			count(STAT_PERSISTENT_WRITES);
+			if (end == 0) {
+				short declared = Util.getShort(credential, (short) 0);
+				if (declared < 0 || declared > (short) (CREDENTIAL_CAPACITY - 2)) {
+					abortCredentialWrite(ISO7816.SW_WRONG_DATA);
+				}
+				credentialState[cred(CRED_WRITE_END)] = (short) ((short) (declared + 17) & ~15);
+			}
+			return size;
+		}
+
+		// Nothing may follow the MAC, and the credential only becomes readable once the MAC verifies
+		if (position != end) {
+			abortCredentialWrite(ISO7816.SW_WRONG_DATA);
+		}
+		if (!credentialMac().verify(buffer, offset, (short) 0, buffer, offset, MAC_LENGTH)) {
+			abortCredentialWrite(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		credentialLength = end;
+		count(STAT_PERSISTENT_WRITES);
+		return MAC_LENGTH;
 	}
 
-	private void handleGetId(APDU apdu) {
-		// Ensure that authentication was already performed
-		if (!authSuccess || !ephemeralKeyReady) {
+	private void abortCredentialWrite(short sw) {
+		credentialState[cred(CRED_WRITE_OFFSET)] = 0;
+		credentialState[cred(CRED_WRITE_END)] = 0;
+		ISOException.throwIt(sw);
+	}
+
+	/**
+	 * Derives k_mac = AES_eph(LABEL_CREDENTIAL_MAC) and starts the MAC of a credential stream, so that the stream is
+	 * not encrypted and authenticated under the same key.
+	 */
+	private void initCredentialMac(byte mode) {
+		AESKey macKey = macKeys[APDU.getCLAChannel()];
+		aesEcb.init(ephemeralKey(), Cipher.MODE_ENCRYPT);
+		aesEcb.doFinal(LABEL_CREDENTIAL_MAC, (short) 0, (short) 16, macKeyScratch, (short) 0);
+		macKey.setKey(macKeyScratch, (short) 0);
+		Util.arrayFillNonAtomic(macKeyScratch, (short) 0, (short) 16, (byte) 0);
+		credentialMac().init(macKey, mode);
+	}
+
+	// ===== Usage statistics =====
+	private void handleGetStats(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+		if (stats == null) {
+			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+		}
+
+		// The counters are unique enough to track a card, so they are only released encrypted to an authenticated terminal
+		if (!sessionFlags[flag(FLAG_AUTH_SUCCESS)] || !sessionFlags[flag(FLAG_EPHEMERAL_KEY_READY)]) {
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 
-		// Encrypt the identifier stored on the card
-		aesEcb.init(ephemeralKey, Cipher.MODE_ENCRYPT);
-		aesEcb.doFinal(id, (short) 0, (short) 16, cipherOut, (short) 0);
+		apduBuffer[0] = STATS_VERSION;
+		apduBuffer[1] = (byte) STATS_COUNTERS;
+		Util.arrayCopyNonAtomic(stats, (short) 0, apduBuffer, (short) 2, (short) stats.length);
+		Util.arrayFillNonAtomic(apduBuffer, (short) (2 + stats.length), (short) (STATS_RESPONSE_LENGTH - 2 - stats.length), (byte) 0);
+		aesEcb.init(ephemeralKey(), Cipher.MODE_ENCRYPT);
+		aesEcb.doFinal(apduBuffer, (short) 0, STATS_RESPONSE_LENGTH, apduBuffer, (short) 0);
+		apdu.setOutgoingAndSend((short) 0, STATS_RESPONSE_LENGTH);
+	}
 
-		// Send response
-		apdu.setOutgoing();
-		apdu.setOutgoingLength((short) 16);
-		apdu.sendBytesLong(cipherOut, (short) 0, (short) 16);
+	/**
+	 * Increments a statistics counter, if statistics are enabled.
+	 */
+	private void count(short counter) {
+		if (stats == null) {
+			return;
+		}
+		short low = (short) (counter * 4);
+		short offset = (short) (low + 3);
+		// Only the lowest byte is written, except for every 256th event
+		while (++stats[offset] == 0 && offset > low) {
+			offset--;
+		}
+	}
+
+	/**
+	 * Ends reads and writes of the credential on all other channels, which would otherwise see it change under them.
+	 */
+	private void endCredentialStreams() {
+		byte current = APDU.getCLAChannel();
+		for (byte channel = 0; channel < MAX_CHANNELS; channel++) {
+			if (channel != current) {
+				short state = (short) (channel * CRED_STATE_SIZE);
+				credentialState[(short) (state + CRED_READ_END)] = 0;
+				credentialState[(short) (state + CRED_WRITE_OFFSET)] = 0;
+				credentialState[(short) (state + CRED_WRITE_END)] = 0;
+			}
+		}
+	}
+
+	private void checkCredentialAccess() {
+		if (credential == null) {
+			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+		}
+		if (!sessionFlags[flag(FLAG_AUTH_SUCCESS)] || !sessionFlags[flag(FLAG_EPHEMERAL_KEY_READY)]) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+	}
+
+	// ===== Resumption ticket =====
+	private void issueTicket(byte[] apduBuffer) {
+		// Only full sessions issue tickets, a resumed session keeps using the ticket it was derived from
+		if (resumptionKey == null || sessionFlags[flag(FLAG_RESUMED)]) {
+			return;
+		}
+
+		// Derive k_res = AES_eph(LABEL_TICKET), the terminal derives the same key from its copy of k_eph
+		aesEcb.init(ephemeralKey(), Cipher.MODE_ENCRYPT);
+		aesEcb.doFinal(LABEL_TICKET, (short) 0, (short) 16, apduBuffer, SCRATCH_OFFSET);
+
+		// Invalidate the old ticket before overwriting its key, and only enable the new one once it is complete
+		ticketValid = false;
+		count(STAT_PERSISTENT_WRITES);
+		resumptionKey.setKey(apduBuffer, SCRATCH_OFFSET);
+		count(STAT_PERSISTENT_WRITES);
+		Util.arrayFillNonAtomic(apduBuffer, SCRATCH_OFFSET, (short) 16, (byte) 0);
+		ticketCounter = 0;
+		count(STAT_PERSISTENT_WRITES);
+		ticketValid = true;
+		count(STAT_PERSISTENT_WRITES);
+	}
+
+	// ===== Challenge pool =====
+	private boolean takeFromPool(byte[] apduBuffer) {
+		if (poolValid == null) {
+			return false;
+		}
+
+		for (short i = 0; i < POOL_SIZE; i++) {
+			if (poolValid[i] != 0) {
+				// Invalidate first, so that an entry is never handed out twice (even if power is lost right after)
+				poolValid[i] = 0;
+				count(STAT_PERSISTENT_WRITES);
+				Util.arrayCopyNonAtomic(poolRc, (short) (i * 8), rc, nonceOffset(), (short) 8);
+				Util.arrayCopyNonAtomic(poolCt, (short) (i * 16), apduBuffer, (short) 0, (short) 16);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void refillPool(byte[] apduBuffer) {
+		if (poolValid == null) {
+			return;
+		}
+
+		for (short i = 0; i < POOL_SIZE; i++) {
+			if (poolValid[i] != 0) {
+				continue;
+			}
+
+			// Entry stays invalid until both values are written, a torn refill therefore leaves an unusable entry
+			short rcOffset = (short) (i * 8);
+			rng.nextBytes(poolRc, rcOffset, (short) 8);
+			count(STAT_PERSISTENT_WRITES);
+
+			// Construct plaintext block pt = rc || 0^64 behind the response data and encrypt it into the pool
+			Util.arrayCopyNonAtomic(poolRc, rcOffset, apduBuffer, SCRATCH_OFFSET, (short) 8);
+			Util.arrayFillNonAtomic(apduBuffer, (short) (SCRATCH_OFFSET + 8), (short) 8, (byte) 0);
+			aesEcb.init(preSharedKey, Cipher.MODE_ENCRYPT);
+			aesEcb.doFinal(apduBuffer, SCRATCH_OFFSET, (short) 16, poolCt, (short) (i * 16));
+			count(STAT_PERSISTENT_WRITES);
+			Util.arrayFillNonAtomic(apduBuffer, SCRATCH_OFFSET, (short) 16, (byte) 0);
+
+			poolValid[i] = 1;
+			count(STAT_PERSISTENT_WRITES);
+		}
 	}
 
 	// ===== Helper functions =====
+	private static AESKey buildEphemeralKey() {
+		// Prefer a key that lives in RAM and is cleared on deselect; fall back to a persistent key on cards without support
+		try {
+			return (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+		} catch (CryptoException e) {
+			return (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+		}
+	}
+
 	private static boolean equals(byte[] a, short aOffset, byte[] b, short bOffset, short length) {
 		short diff = 0;
 		for (short i = 0; i < length; i++) {
@@ -0,0 +1,155 @@
+package applet;
+
+import javacard.framework.*;
+import javacard.security.AESKey;
+import javacard.security.CryptoException;
+import javacard.security.KeyBuilder;
+import javacard.security.RandomData;
+import javacardx.crypto.Cipher;
+
+public class BenchmarkApplet extends Applet
+{
+
+	// ===== APDU constants =====
+	private static final byte CLA_PROPRIETARY = (byte) 0x80;
+	private static final byte INS_RUN         = (byte) 0x20;	// P1 = primitive, data = 2-byte iteration count
+
+	// ===== Primitives (P1 of RUN) =====
+	private static final byte PRIM_NONE               = (byte) 0x00;	// Empty loop, baseline for the loop overhead
+	private static final byte PRIM_AES_INIT           = (byte) 0x01;	// Cipher.init with the pre-shared key type
+	private static final byte PRIM_AES_BLOCK          = (byte) 0x02;	// Cipher.doFinal on one 16-byte block
+	private static final byte PRIM_TRNG               = (byte) 0x03;	// RandomData.nextBytes for an 8-byte nonce
+	private static final byte PRIM_SET_KEY_TRANSIENT  = (byte) 0x04;	// AESKey.setKey on a transient key
+	private static final byte PRIM_SET_KEY_PERSISTENT = (byte) 0x05;	// AESKey.setKey on a persistent key
+	private static final byte PRIM_PERSISTENT_WRITE   = (byte) 0x06;	// 16-byte non-atomic copy into persistent memory
+
+	// ===== Keys & crypto (same algorithms as AuthenticatedIdentificationApplet) =====
+	private final AESKey persistentKey;
+	private final AESKey transientKey;
+	private final Cipher aesEcb;
+	private final RandomData rng;
+
+	// ===== Persistent data =====
+	private final byte[] persistentBuffer = new byte[16];	// Target of PRIM_PERSISTENT_WRITE
+
+	public static void install(byte[] bArray, short bOffset, byte bLength)
+	{
+		new BenchmarkApplet(bArray, bOffset, bLength);
+	}
+
+	public BenchmarkApplet(byte[] bArray, short bOffset, byte bLength) {
+		// Build keys / cipher objects
+		persistentKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+		transientKey = buildTransientKey();
+		aesEcb = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
+		rng = RandomData.getInstance(RandomData.ALG_TRNG);
+
+		// The key values are irrelevant for timing, use an all-zero key
+		persistentKey.setKey(persistentBuffer, (short) 0);
+		transientKey.setKey(persistentBuffer, (short) 0);
+
+		// Register new applet instance
+		register();
+	}
+
+	public void process(APDU apdu)
+	{
+
+		// Do nothing on (re-)select and just return a success message
+		if (selectingApplet()) {
+			ISOException.throwIt(ISO7816.SW_NO_ERROR);
+		}
+
+		byte[] apduBuffer = apdu.getBuffer();
+		byte cla = apduBuffer[ISO7816.OFFSET_CLA];
+		byte ins = apduBuffer[ISO7816.OFFSET_INS];
+
+		// Verify that class byte corresponds to "proprietary"
+		if (cla != CLA_PROPRIETARY) {
+			ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
+		}
+
+		// Handle all supported instructions
+		switch (ins) {
+			case INS_RUN:
+				handleRun(apdu);
+				break;
+			default:
+				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+		}
+	}
+
+	private void handleRun(APDU apdu) {
+		byte[] apduBuffer = apdu.getBuffer();
+
+		// Receive the 2-byte iteration count
+		short lc = (short) (apduBuffer[ISO7816.OFFSET_LC] & 0xff);
+		if (lc != 2 || apdu.setIncomingAndReceive() != 2) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		short iterations = Util.getShort(apduBuffer, ISO7816.OFFSET_CDATA);
+		if (iterations < 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+
+		// The APDU buffer behind the command data serves as 16-byte input and output block
+		final short block = 16;
+
+		// Run the selected primitive N times, the terminal measures the APDU duration for different N
+		short i;
+		switch (apduBuffer[ISO7816.OFFSET_P1]) {
+			case PRIM_NONE:
+				for (i = 0; i < iterations; i++) {
+					// Loop overhead only
+				}
+				break;
+			case PRIM_AES_INIT:
+				for (i = 0; i < iterations; i++) {
+					aesEcb.init(persistentKey, Cipher.MODE_ENCRYPT);
+				}
+				break;
+			case PRIM_AES_BLOCK:
+				aesEcb.init(persistentKey, Cipher.MODE_ENCRYPT);
+				for (i = 0; i < iterations; i++) {
+					aesEcb.doFinal(apduBuffer, block, (short) 16, apduBuffer, block);
+				}
+				break;
+			case PRIM_TRNG:
+				for (i = 0; i < iterations; i++) {
+					rng.nextBytes(apduBuffer, block, (short) 8);
+				}
+				break;
+			case PRIM_SET_KEY_TRANSIENT:
+				for (i = 0; i < iterations; i++) {
+					transientKey.setKey(apduBuffer, block);
+				}
+				break;
+			case PRIM_SET_KEY_PERSISTENT:
+				for (i = 0; i < iterations; i++) {
+					persistentKey.setKey(apduBuffer, block);
+				}
+				break;
+			case PRIM_PERSISTENT_WRITE:
+				for (i = 0; i < iterations; i++) {
+					Util.arrayCopyNonAtomic(apduBuffer, block, persistentBuffer, (short) 0, (short) 16);
+				}
+				break;
+			default:
+				ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
+
+		// Echo the iteration count
+		apdu.setOutgoingAndSend(ISO7816.OFFSET_CDATA, (short) 2);
+	}
+
+	// ===== Helper functions =====
+	private static AESKey buildTransientKey() {
+		// Cards without transient AES keys fall back to a persistent key, which shows up in the timings
+		try {
+			return (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+		} catch (CryptoException e) {
+			return (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+		}
+	}
+
+}
@@ -2,16 +2,28 @@ package applet;
 
 import javacard.framework.*;
 
-public class IdentificationApplet extends Applet
+public class IdentificationApplet extends Applet implements MultiSelectable
 {
 
 	// ===== APDU constants =====
 	private static final byte CLA_PROPRIETARY = (byte) 0x80;
 	private static final byte INS_GET_ID      = (byte) 0x12;
+	private static final byte INS_GET_STATS   = (byte) 0x17;
+	private static final byte CLA_CHANNEL_MASK = (byte) 0xFC;	// Clears the logical channel number (b1-b2) from a CLA byte
+
+	// ===== Install options (optional byte following the ID) =====
+	private static final byte OPT_STATISTICS  = (byte) 0x10;	// Count GET_ID commands for GET_STATS (same bit as in the authenticated applet)
 
 	// ===== Persistent data =====
 	private final byte[] id = new byte[16]; 		// Card's identifier (ciphertext payload for GET_ID)
 
+	// ===== Usage statistics (persistent, only allocated with OPT_STATISTICS) =====
+	// Same layout as in the authenticated applet: 32-bit big-endian counters, updated without transaction
+	private static final byte STATS_VERSION = 1;
+	private static final short STATS_COUNTERS = 1;
+	private static final short STAT_ID_RELEASED = 0;	// GET_ID commands
+	private final byte[] stats;
+
 	public static void install(byte[] bArray, short bOffset, byte bLength)
 	{
 		new IdentificationApplet(bArray, bOffset, bLength);
@@ -19,12 +31,25 @@ public class IdentificationApplet extends Applet
 
 	public IdentificationApplet(byte[] bArray, short bOffset, byte bLength) {
 		// bArray starts with length of instance AID, followed by the instance AID itself
-		short li = (short) bArray[bOffset];
+		// All lengths are unsigned, and every offset is checked against the end of the parameters before it is read
+		short end = (short) (bOffset + (bLength & 0xff));
+		short li = (short) (bArray[bOffset] & 0xff);
 		// Then: Length of control info, followed by control info
-		short lc = (short) bArray[(short) ((bOffset + li + 1) & 0xff)];
+		short lcOffset = (short) (bOffset + li + 1);
+		if (lcOffset >= end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short lc = (short) (bArray[lcOffset] & 0xff);
 		// Afterward: Length of applet data, followed by applet data itself
-		short appletDataLength = (short) bArray[(short) ((bOffset + li + lc + 2) & 0xff)];
-		short appletDataOffset = (short) ((bOffset + li + lc + 3) & 0xff);
+		short appletDataLengthOffset = (short) (lcOffset + lc + 1);
+		if (appletDataLengthOffset >= end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		short appletDataLength = (short) (bArray[appletDataLengthOffset] & 0xff);
+		short appletDataOffset = (short) (appletDataLengthOffset + 1);
+		if ((short) (appletDataOffset + appletDataLength) > end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
 
 		// The applet data needs to contain the 16-byte card ID
 		if (appletDataLength < 16) {
@@ -34,10 +59,27 @@ public class IdentificationApplet extends Applet
 		// Load ID (16 bytes)
 		Util.arrayCopyNonAtomic(bArray, appletDataOffset, id, (short) 0, (short) 16);
 
+		// Optional options byte (next byte)
+		byte options = 0;
+		if (appletDataLength > 16) {
+			options = bArray[(short) (appletDataOffset + 16)];
+		}
+		stats = (options & OPT_STATISTICS) != 0 ? new byte[(short) (STATS_COUNTERS * 4)] : null;
+
 		// Register new applet instance
 		register();
 	}
 
+	public boolean select(boolean appInstAlreadyActive)
+	{
+		// There is no session state, so the applet can be active on several channels at once
+		return true;
+	}
+
+	public void deselect(boolean appInstAlreadyActive)
+	{
+	}
+
 	public void process(APDU apdu)
 	{
 
@@ -47,7 +89,7 @@ public class IdentificationApplet extends Applet
 		}
 
 		byte[] apduBuffer = apdu.getBuffer();
-		byte cla = apduBuffer[ISO7816.OFFSET_CLA];
+		byte cla = (byte) (apduBuffer[ISO7816.OFFSET_CLA] & CLA_CHANNEL_MASK);
 		byte ins = apduBuffer[ISO7816.OFFSET_INS];
 
 		// Verify that class byte corresponds to "proprietary"
@@ -60,16 +102,47 @@ public class IdentificationApplet extends Applet
 			case INS_GET_ID:
 				handleGetId(apdu);
 				break;
+			case INS_GET_STATS:
+				handleGetStats(apdu);
+				break;
 			default:
 				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
 		}
 	}
 
 	private void handleGetId(APDU apdu) {
-		// Send response
-		apdu.setOutgoing();
-		apdu.setOutgoingLength((short) 16);
-		apdu.sendBytesLong(id, (short) 0, (short) 16);
+		// Place the identifier in the APDU buffer and send it
+		Util.arrayCopyNonAtomic(id, (short) 0, apdu.getBuffer(), (short) 0, (short) 16);
+		apdu.setOutgoingAndSend((short) 0, (short) 16);
+		count(STAT_ID_RELEASED);
+	}
+
+	private void handleGetStats(APDU apdu) {
+		if (stats == null) {
+			ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+		}
+
+		// This applet returns its ID in the clear anyway, so the counters are not protected either
+		byte[] apduBuffer = apdu.getBuffer();
+		apduBuffer[0] = STATS_VERSION;
+		apduBuffer[1] = (byte) STATS_COUNTERS;
+		Util.arrayCopyNonAtomic(stats, (short) 0, apduBuffer, (short) 2, (short) stats.length);
+		apdu.setOutgoingAndSend((short) 0, (short) (2 + stats.length));
+	}
+
+	/**
+	 * Increments a statistics counter, if statistics are enabled.
+	 */
+	private void count(short counter) {
+		if (stats == null) {
+			return;
+		}
+		short low = (short) (counter * 4);
+		short offset = (short) (low + 3);
+		// Only the lowest byte is written, except for every 256th event
+		while (++stats[offset] == 0 && offset > low) {
+			offset--;
+		}
 	}
 
 }
@@ -0,0 +1,659 @@
+package controller;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Access-control index of the door controller: decides whether a card ID returned by GET_ID may open the door.
+ * <p>
+ * Everything lives in one memory-mapped file, so opening the index only maps the file and validates its header.
+ * Allowed IDs are kept in an open-addressing hash table (linear probing), revoked IDs in a sorted array. Revocation
+ * takes precedence over the allowed IDs, so a revoked card stays locked out even if a later import allows it again.
+ * A Bloom filter over the revoked IDs sits in front of the revocation array, so the common case (a card that was
+ * never revoked) costs a few filter bits and one table probe.
+ * <p>
+ * Updates are written into the mapping in place. A region is only rebuilt, into a new file that atomically replaces
+ * the old one, when it runs out of space. File layout (big endian):
+ * <pre>
+ * header (64 bytes)  magic "OCDCACIX" | version | slot bits | count | tombstones | bloom words | generation |
+ *                    revoked count | revoked capacity | replaced | sequence
+ * bloom filter       bloom words * 8 bytes
+ * allowed slots      2^slot bits * 24 bytes: id (16) | state (1) | reserved (7)
+ * revoked IDs        revoked capacity * 16 bytes, sorted as unsigned big-endian numbers
+ * </pre>
+ * Several processes may open the same index, e.g., the controller and {@code tools.AccessIndexTool}. Updates are
+ * serialized across processes by a lock on the file {@code <index>.lock}, which is never replaced. Lookups are
+ * lock-free and may run on any number of threads: the sequence in the header is odd while an update is written, and a
+ * lookup that saw it odd or changed is repeated. A rebuild marks the replaced file, so that every process that still
+ * maps it switches to the new one on its next lookup.
+ */
+public final class AccessIndex implements Closeable {
+
+    public enum Decision { ALLOWED, REVOKED, UNKNOWN }
+
+    public static final int ID_LENGTH = 16;
+
+    private static final long MAGIC = 0x4f43444341434958L;     // "OCDCACIX"
+    private static final int VERSION = 1;
+
+    // ===== Header offsets =====
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 8;
+    private static final int OFFSET_SLOT_BITS = 12;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_TOMBSTONES = 20;
+    private static final int OFFSET_BLOOM_WORDS = 24;
+    private static final int OFFSET_GENERATION = 32;
+    private static final int OFFSET_REVOKED_COUNT = 40;
+    private static final int OFFSET_REVOKED_CAPACITY = 44;
+    private static final int OFFSET_REPLACED = 48;      // Nonzero once a rebuild replaced this file
+    private static final int OFFSET_SEQUENCE = 56;      // Odd while an update is written
+    private static final int HEADER_SIZE = 64;
+
+    // Ordered access to the replaced flag and the sequence, which other processes write as well
+    private static final VarHandle HEADER_LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // A lookup gives up (and fails closed) if an update does not finish within this time, e.g., after a crash
+    private static final long UPDATE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // File locks are held per JVM, so the instances within one JVM have to be serialized as well
+    private static final Map<Path, ReentrantLock> WRITERS = new ConcurrentHashMap<>();
+
+    // ===== Allowed slots =====
+    private static final int SLOT_SIZE = 24;
+    private static final int OFFSET_STATE = 16;
+    private static final byte STATE_EMPTY = 0;
+    private static final byte STATE_ALLOWED = 1;
+    private static final byte STATE_DELETED = 2;    // Tombstone, keeps probe sequences intact
+
+    private static final double MAX_LOAD = 0.7;
+    private static final int MIN_SLOT_BITS = 10;
+    private static final int MIN_REVOKED_CAPACITY = 1024;
+    private static final int BLOOM_BITS_PER_ID = 10;
+    private static final int BLOOM_HASHES = 7;
+
+    /**
+     * One mapping of the index file. Replaced as a whole when the file is rebuilt, so that an optimistic reader
+     * always sees a consistent set of offsets and masks.
+     */
+    private static final class Table {
+        final FileChannel channel;
+        final MappedByteBuffer map;
+        final int slotBits;
+        final int mask;
+        final long bloomMask;
+        final int slotsOffset;
+        final int revokedOffset;
+        final int revokedCapacity;
+
+        Table(FileChannel channel, MappedByteBuffer map) {
+            this.channel = channel;
+            this.map = map;
+            this.slotBits = map.getInt(OFFSET_SLOT_BITS);
+            this.mask = (1 << slotBits) - 1;
+            final int bloomWords = map.getInt(OFFSET_BLOOM_WORDS);
+            this.bloomMask = (long) bloomWords * 64 - 1;
+            this.slotsOffset = HEADER_SIZE + bloomWords * 8;
+            this.revokedOffset = slotsOffset + (mask + 1) * SLOT_SIZE;
+            this.revokedCapacity = map.getInt(OFFSET_REVOKED_CAPACITY);
+        }
+
+        int slot(int index) {
+            return slotsOffset + index * SLOT_SIZE;
+        }
+
+        int revoked(int index) {
+            return revokedOffset + index * ID_LENGTH;
+        }
+
+        long size() {
+            return (long) revokedOffset + (long) revokedCapacity * ID_LENGTH;
+        }
+    }
+
+    /**
+     * Modification of the index under the writer locks.
+     */
+    private interface Update<T> {
+        T apply(Table t) throws IOException;
+    }
+
+    private final Path path;
+    private final ReentrantLock writer;
+    private final FileChannel lockChannel;
+    private volatile Table table;
+
+    private AccessIndex(Path path, Table table) throws IOException {
+        this.path = path;
+        this.writer = WRITERS.computeIfAbsent(lockPath(path), p -> new ReentrantLock());
+        this.lockChannel = FileChannel.open(lockPath(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.table = table;
+    }
+
+    /**
+     * Creates an empty index sized for the expected number of allowed and revoked IDs, replacing any existing file.
+     * Processes that have the replaced file open switch to the new one.
+     */
+    public static AccessIndex create(Path path, int expectedIds, int expectedRevocations) throws IOException {
+        final ReentrantLock writer = WRITERS.computeIfAbsent(lockPath(path), p -> new ReentrantLock());
+        writer.lock();
+        try (FileChannel lockChannel = FileChannel.open(lockPath(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock ignored = lockChannel.lock()) {
+            Table old = null;
+            try {
+                old = mapTable(path);
+            } catch (IOException e) {
+                // No index that anyone could have open
+            }
+            final Table fresh = createTable(temporaryPath(path), slotBitsFor(expectedIds),
+                    Math.max(MIN_REVOKED_CAPACITY, expectedRevocations));
+            replace(path, old, fresh);
+            if (old != null) {
+                old.channel.close();
+            }
+            return new AccessIndex(path, fresh);
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /**
+     * Opens an existing index. Only the header is read, the rest is paged in on demand.
+     */
+    public static AccessIndex open(Path path) throws IOException {
+        final Table table = mapTable(path);
+        try {
+            return new AccessIndex(path, table);
+        } catch (IOException | RuntimeException e) {
+            table.channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Looks up the 16-byte ID at the given offset, e.g., directly in a GET_ID response buffer. Fails with an
+     * {@link IllegalStateException} if an update is in progress for longer than a second, which only happens if the
+     * updating process died.
+     */
+    public Decision lookup(byte[] id, int offset) {
+        final long hi = readLong(id, offset);
+        final long lo = readLong(id, offset + 8);
+        final long hash = hash(hi, lo);
+
+        Table t = table;
+        long deadline = 0;
+        while (true) {
+            final long sequence = (long) HEADER_LONG.getAcquire(t.map, OFFSET_SEQUENCE);
+            if ((long) HEADER_LONG.getAcquire(t.map, OFFSET_REPLACED) != 0) {
+                t = remap(t);
+                continue;
+            }
+            if ((sequence & 1) == 0) {
+                final Decision decision = lookup(t, hi, lo, hash);
+                // The entries must be read before the sequence is checked again
+                VarHandle.loadLoadFence();
+                if ((long) HEADER_LONG.getOpaque(t.map, OFFSET_SEQUENCE) == sequence) {
+                    return decision;
+                }
+            } else if (deadline == 0) {
+                deadline = System.nanoTime() + UPDATE_TIMEOUT_NANOS;
+            } else if (System.nanoTime() - deadline > 0) {
+                throw new IllegalStateException(path + " was left inconsistent by an interrupted update");
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    public Decision lookup(byte[] id) {
+        checkId(id);
+        return lookup(id, 0);
+    }
+
+    /**
+     * Adds the ID to the allowed IDs. Has no effect on a revocation of the same ID.
+     */
+    public void allow(byte[] id) throws IOException {
+        checkId(id);
+        final long hi = readLong(id, 0);
+        final long lo = readLong(id, 8);
+        final long hash = hash(hi, lo);
+        update(t -> {
+            if (find(t, hi, lo, hash) < 0) {
+                final int count = t.map.getInt(OFFSET_COUNT);
+                if (count + t.map.getInt(OFFSET_TOMBSTONES) + 1 > MAX_LOAD * (t.mask + 1)) {
+                    // Grow if the live entries need it, otherwise just drop the tombstones
+                    final int slotBits = count + 1 > MAX_LOAD * (t.mask + 1) / 2 ? t.slotBits + 1 : t.slotBits;
+                    t = rebuild(t, slotBits, t.revokedCapacity);
+                }
+                final long sequence = beginWrite(t);
+                insert(t, hi, lo, hash);
+                t.map.putInt(OFFSET_COUNT, t.map.getInt(OFFSET_COUNT) + 1);
+                bumpGeneration(t);
+                endWrite(t, sequence);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Removes the ID from the allowed IDs. Returns false if it was not allowed.
+     */
+    public boolean remove(byte[] id) throws IOException {
+        checkId(id);
+        final long hi = readLong(id, 0);
+        final long lo = readLong(id, 8);
+        return update(t -> {
+            final int index = find(t, hi, lo, hash(hi, lo));
+            if (index < 0) {
+                return false;
+            }
+            final long sequence = beginWrite(t);
+            t.map.put(t.slot(index) + OFFSET_STATE, STATE_DELETED);
+            t.map.putInt(OFFSET_COUNT, t.map.getInt(OFFSET_COUNT) - 1);
+            t.map.putInt(OFFSET_TOMBSTONES, t.map.getInt(OFFSET_TOMBSTONES) + 1);
+            bumpGeneration(t);
+            endWrite(t, sequence);
+            return true;
+        });
+    }
+
+    /**
+     * Revokes the ID. It is denied from now on, whether it is allowed or not.
+     */
+    public void revoke(byte[] id) throws IOException {
+        checkId(id);
+        final long hi = readLong(id, 0);
+        final long lo = readLong(id, 8);
+        update(t -> {
+            int position = findRevoked(t, hi, lo);
+            if (position >= 0) {
+                return null;
+            }
+            position = -position - 1;
+            final int count = t.map.getInt(OFFSET_REVOKED_COUNT);
+            if (count == t.revokedCapacity) {
+                t = rebuild(t, t.slotBits, 2 * t.revokedCapacity);
+            }
+            final long sequence = beginWrite(t);
+            // Shift the tail back by one entry, starting at the end
+            for (int i = count; i > position; i--) {
+                t.map.putLong(t.revoked(i), t.map.getLong(t.revoked(i - 1)));
+                t.map.putLong(t.revoked(i) + 8, t.map.getLong(t.revoked(i - 1) + 8));
+            }
+            t.map.putLong(t.revoked(position), hi);
+            t.map.putLong(t.revoked(position) + 8, lo);
+            t.map.putInt(OFFSET_REVOKED_COUNT, count + 1);
+            addToBloom(t, hash(hi, lo));
+            bumpGeneration(t);
+            endWrite(t, sequence);
+            return null;
+        });
+    }
+
+    /**
+     * Lifts the revocation of the ID. Returns false if it was not revoked.
+     */
+    public boolean unrevoke(byte[] id) throws IOException {
+        checkId(id);
+        final long hi = readLong(id, 0);
+        final long lo = readLong(id, 8);
+        return update(t -> {
+            final int position = findRevoked(t, hi, lo);
+            if (position < 0) {
+                return false;
+            }
+            final long sequence = beginWrite(t);
+            final int count = t.map.getInt(OFFSET_REVOKED_COUNT);
+            for (int i = position; i < count - 1; i++) {
+                t.map.putLong(t.revoked(i), t.map.getLong(t.revoked(i + 1)));
+                t.map.putLong(t.revoked(i) + 8, t.map.getLong(t.revoked(i + 1) + 8));
+            }
+            t.map.putInt(OFFSET_REVOKED_COUNT, count - 1);
+            // The filter cannot forget the ID, a false positive only costs a binary search
+            bumpGeneration(t);
+            endWrite(t, sequence);
+            return true;
+        });
+    }
+
+    /**
+     * Number of allowed IDs.
+     */
+    public int size() {
+        return current().map.getInt(OFFSET_COUNT);
+    }
+
+    /**
+     * Number of revoked IDs.
+     */
+    public int revokedSize() {
+        return current().map.getInt(OFFSET_REVOKED_COUNT);
+    }
+
+    /**
+     * Counter incremented by every update, e.g., to tell whether a controller has seen the latest changes.
+     */
+    public long generation() {
+        return current().map.getLong(OFFSET_GENERATION);
+    }
+
+    /**
+     * Writes all updates to the storage device.
+     */
+    public void flush() {
+        current().map.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.lock();
+        try {
+            table.map.force();
+            table.channel.close();
+            lockChannel.close();
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /**
+     * Runs an update with the writer lock of this JVM and the file lock held, on the latest version of the file.
+     */
+    private <T> T update(Update<T> update) throws IOException {
+        writer.lock();
+        try (FileLock ignored = lockChannel.lock()) {
+            final Table t = current();
+            if (((long) HEADER_LONG.getAcquire(t.map, OFFSET_SEQUENCE) & 1) != 0) {
+                throw new IOException(path + " was left inconsistent by an interrupted update, recreate it");
+            }
+            return update.apply(t);
+        } finally {
+            writer.unlock();
+        }
+    }
+
+    /**
+     * Marks the start of an in-place update, so that concurrent lookups repeat. Returns the sequence to end it with.
+     */
+    private static long beginWrite(Table t) {
+        final long sequence = (long) HEADER_LONG.getOpaque(t.map, OFFSET_SEQUENCE) + 1;
+        HEADER_LONG.setOpaque(t.map, OFFSET_SEQUENCE, sequence);
+        // The odd sequence must be visible before any entry changes
+        VarHandle.storeStoreFence();
+        return sequence;
+    }
+
+    private static void endWrite(Table t, long sequence) {
+        HEADER_LONG.setRelease(t.map, OFFSET_SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * Returns the table, switching to the file that replaced it first if another process (or instance) rebuilt it.
+     */
+    private Table current() {
+        final Table t = table;
+        return (long) HEADER_LONG.getAcquire(t.map, OFFSET_REPLACED) != 0 ? remap(t) : t;
+    }
+
+    private synchronized Table remap(Table stale) {
+        if (table == stale) {
+            try {
+                table = mapTable(path);
+                // The old mapping stays valid for lookups still running on it
+                stale.channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot reopen " + path, e);
+            }
+        }
+        return table;
+    }
+
+    private static Decision lookup(Table t, long hi, long lo, long hash) {
+        // Only IDs in the revocation filter need the binary search over the revoked IDs
+        if (inBloom(t, hash) && findRevoked(t, hi, lo) >= 0) {
+            return Decision.REVOKED;
+        }
+        return find(t, hi, lo, hash) >= 0 ? Decision.ALLOWED : Decision.UNKNOWN;
+    }
+
+    /**
+     * Returns the slot holding the allowed ID, or -1.
+     */
+    private static int find(Table t, long hi, long lo, long hash) {
+        int index = (int) hash & t.mask;
+        for (int probes = 0; probes <= t.mask; probes++) {
+            final int slot = t.slot(index);
+            final byte state = t.map.get(slot + OFFSET_STATE);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            if (state == STATE_ALLOWED && t.map.getLong(slot) == hi && t.map.getLong(slot + 8) == lo) {
+                return index;
+            }
+            index = (index + 1) & t.mask;
+        }
+        return -1;
+    }
+
+    private static void insert(Table t, long hi, long lo, long hash) {
+        int index = (int) hash & t.mask;
+        while (true) {
+            final int slot = t.slot(index);
+            final byte state = t.map.get(slot + OFFSET_STATE);
+            if (state != STATE_ALLOWED) {
+                if (state == STATE_DELETED) {
+                    t.map.putInt(OFFSET_TOMBSTONES, t.map.getInt(OFFSET_TOMBSTONES) - 1);
+                }
+                // The state is written last, a slot becomes visible only once the ID is complete
+                t.map.putLong(slot, hi);
+                t.map.putLong(slot + 8, lo);
+                t.map.put(slot + OFFSET_STATE, STATE_ALLOWED);
+                return;
+            }
+            index = (index + 1) & t.mask;
+        }
+    }
+
+    /**
+     * Binary search over the revoked IDs. Returns the position of the ID, or (-(insertion point) - 1).
+     */
+    private static int findRevoked(Table t, long hi, long lo) {
+        // An optimistic reader may see a count from a concurrent update, it must not leave the array
+        int low = 0;
+        int high = Math.min(t.map.getInt(OFFSET_REVOKED_COUNT), t.revokedCapacity) - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int entry = t.revoked(mid);
+            int cmp = Long.compareUnsigned(t.map.getLong(entry), hi);
+            if (cmp == 0) {
+                cmp = Long.compareUnsigned(t.map.getLong(entry + 8), lo);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Copies all entries into a new file with the given region sizes, replaces the index file with it, and returns
+     * the new table. Must be called with the writer locks held.
+     */
+    private Table rebuild(Table old, int slotBits, int revokedCapacity) throws IOException {
+        final Table fresh = createTable(temporaryPath(path), slotBits, revokedCapacity);
+        int count = 0;
+        for (int index = 0; index <= old.mask; index++) {
+            final int slot = old.slot(index);
+            if (old.map.get(slot + OFFSET_STATE) == STATE_ALLOWED) {
+                final long hi = old.map.getLong(slot);
+                final long lo = old.map.getLong(slot + 8);
+                insert(fresh, hi, lo, hash(hi, lo));
+                count++;
+            }
+        }
+        final int revokedCount = old.map.getInt(OFFSET_REVOKED_COUNT);
+        for (int i = 0; i < revokedCount; i++) {
+            final long hi = old.map.getLong(old.revoked(i));
+            final long lo = old.map.getLong(old.revoked(i) + 8);
+            fresh.map.putLong(fresh.revoked(i), hi);
+            fresh.map.putLong(fresh.revoked(i) + 8, lo);
+            addToBloom(fresh, hash(hi, lo));
+        }
+        fresh.map.putInt(OFFSET_COUNT, count);
+        fresh.map.putInt(OFFSET_REVOKED_COUNT, revokedCount);
+        fresh.map.putLong(OFFSET_GENERATION, old.map.getLong(OFFSET_GENERATION));
+        replace(path, old, fresh);
+        old.channel.close();
+        table = fresh;
+        return fresh;
+    }
+
+    /**
+     * Moves the new file in place of the old one and then marks the old one as replaced, so that lookups in other
+     * processes switch to the new file. Must be called with the writer locks held.
+     */
+    private static void replace(Path path, Table old, Table fresh) throws IOException {
+        fresh.map.force();
+        Files.move(temporaryPath(path), path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (old != null) {
+            HEADER_LONG.setRelease(old.map, OFFSET_REPLACED, 1L);
+            old.map.force();
+        }
+    }
+
+    private static Table mapTable(Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is not an access index");
+            }
+            final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (map.getLong(OFFSET_MAGIC) != MAGIC) {
+                throw new IOException(path + " is not an access index");
+            }
+            if (map.getInt(OFFSET_VERSION) != VERSION) {
+                throw new IOException("Unsupported access index version " + map.getInt(OFFSET_VERSION));
+            }
+            final Table table = new Table(channel, map);
+            if (channel.size() != table.size()) {
+                throw new IOException(path + " is truncated");
+            }
+            return table;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static Path lockPath(Path path) {
+        return path.toAbsolutePath().normalize().resolveSibling(path.getFileName() + ".lock");
+    }
+
+    private static Path temporaryPath(Path path) {
+        return path.resolveSibling(path.getFileName() + ".rebuild");
+    }
+
+    private static Table createTable(Path path, int slotBits, int revokedCapacity) throws IOException {
+        // Power of two, so that filter positions can be masked
+        int bloomWords = 16;
+        while ((long) bloomWords * 64 < (long) revokedCapacity * BLOOM_BITS_PER_ID) {
+            bloomWords <<= 1;
+        }
+        final long size = HEADER_SIZE + (long) bloomWords * 8 + ((long) SLOT_SIZE << slotBits) + (long) revokedCapacity * ID_LENGTH;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Access index too large: " + size + " bytes");
+        }
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // A fresh mapping of the extended file reads as zeros, i.e., empty slots and an empty filter
+        final MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        map.putLong(OFFSET_MAGIC, MAGIC);
+        map.putInt(OFFSET_VERSION, VERSION);
+        map.putInt(OFFSET_SLOT_BITS, slotBits);
+        map.putInt(OFFSET_BLOOM_WORDS, bloomWords);
+        map.putInt(OFFSET_REVOKED_CAPACITY, revokedCapacity);
+        return new Table(channel, map);
+    }
+
+    private static int slotBitsFor(int expectedIds) {
+        int slotBits = MIN_SLOT_BITS;
+        while (expectedIds > MAX_LOAD * (1 << slotBits)) {
+            slotBits++;
+        }
+        return slotBits;
+    }
+
+    private static void bumpGeneration(Table t) {
+        t.map.putLong(OFFSET_GENERATION, t.map.getLong(OFFSET_GENERATION) + 1);
+    }
+
+    private static void addToBloom(Table t, long hash) {
+        final long h1 = hash >>> 32;
+        final long h2 = (hash & 0xffffffffL) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final long bit = (h1 + i * h2) & t.bloomMask;
+            final int word = HEADER_SIZE + (int) (bit >>> 6) * 8;
+            t.map.putLong(word, t.map.getLong(word) | (1L << bit));
+        }
+    }
+
+    private static boolean inBloom(Table t, long hash) {
+        final long h1 = hash >>> 32;
+        final long h2 = (hash & 0xffffffffL) | 1;
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            final long bit = (h1 + i * h2) & t.bloomMask;
+            if ((t.map.getLong(HEADER_SIZE + (int) (bit >>> 6) * 8) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3 over both halves of the ID. IDs may be sequential, so they are mixed before
+     * being used as slot index and filter positions.
+     */
+    private static long hash(long hi, long lo) {
+        long h = hi * 0x9e3779b97f4a7c15L ^ lo;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long readLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static void checkId(byte[] id) {
+        if (id.length != ID_LENGTH) {
+            throw new IllegalArgumentException("ID must be 16 bytes, got " + id.length);
+        }
+    }
+}
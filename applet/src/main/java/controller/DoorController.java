@@ -0,0 +1,393 @@
+package controller;
+
+import terminal.AuthenticatedIdentificationClient;
+import terminal.LatencyHistogram;
+import terminal.ProtocolException;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Door-controller runtime: serves any number of readers at once, runs the authenticated flow on every presented card,
+ * and decides with the {@link AccessIndex} whether the door opens.
+ * <p>
+ * Each reader is served by its own task that waits for a card, runs SELECT (unless the applet is implicitly
+ * selected), AUTH_INIT and AUTH_AND_GET_ID, and reports the decision to the {@link Listener}. On Java 21 and later
+ * the tasks run on virtual threads, so a controller for a whole floor costs a few kilobytes per reader; on older
+ * runtimes they fall back to one platform thread per reader. Readers must not block their thread in native calls
+ * while waiting for cards (see {@link PcscReaders}), as that would pin the carrier of a virtual thread. Neither are
+ * virtual threads preempted, so a reader that returns cards without ever blocking has to yield instead.
+ * <p>
+ * Before a reader accepts taps, its thread creates the client's ciphers and buffers and runs a number of sessions
+ * against a warm-up card, so that the first real tap does not pay for class loading, key schedules, and the JIT.
+ * Throughput, decisions, and tap latencies are counted for {@link #report()}. Failures that the controller survives
+ * are passed to the {@link ErrorHandler}, which prints them to standard error unless replaced.
+ */
+public final class DoorController implements Closeable {
+
+    /** How long a reader waits for a card before checking whether the controller is still running. */
+    private static final long POLL_MILLIS = 200;
+
+    public enum Outcome {
+        /** The card authenticated and its ID is allowed. */
+        GRANTED,
+        /** The card authenticated, but its ID is revoked. */
+        REVOKED,
+        /** The card authenticated, but its ID is not in the index. */
+        UNKNOWN,
+        /** The card did not prove knowledge of the PSK (or runs another applet). */
+        AUTH_FAILED,
+        /** The exchange broke off, e.g. because the card left the field. */
+        ERROR
+    }
+
+    /**
+     * A reader that delivers one card channel per presentation.
+     */
+    public interface Reader {
+        String getName();
+
+        /**
+         * Waits for a newly presented card and returns its channel, or null if none arrives within the timeout.
+         */
+        CardChannel awaitCard(long timeoutMillis) throws CardException, InterruptedException;
+
+        /**
+         * Ends the exchange with the card returned by the last {@link #awaitCard(long)}.
+         */
+        void release() throws CardException;
+    }
+
+    /**
+     * Receives the decision for every tap, on the thread of the reader. This is where the door relay is driven.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * @param id    the verified card ID, or null if the card did not authenticate. The array is reused for the
+         *              next tap of the same reader and must be copied to be kept.
+         * @param nanos time from card presentation to the decision
+         */
+        void onDecision(String reader, byte[] id, Outcome outcome, long nanos);
+    }
+
+    /**
+     * Receives the failures that a reader survives, on the thread of the reader. Exceptions thrown by the handler are
+     * ignored, so that it cannot stop the reader either.
+     */
+    @FunctionalInterface
+    public interface ErrorHandler {
+        /**
+         * @param reader  the reader whose thread survived the failure
+         * @param context what failed, e.g. "listener failed"
+         */
+        void onError(String reader, String context, Throwable error);
+    }
+
+    private final AuthenticatedIdentificationClient client;
+    private final AccessIndex index;
+    private final Listener listener;
+    private ErrorHandler errorHandler = (reader, context, error) -> System.err.println(reader + ": " + context + ": " + error);
+    private boolean implicitSelection = false;
+    private boolean grantAuthenticated = false;
+    private Supplier<CardChannel> warmUpCard = null;
+    private int warmUpSessions = 0;
+
+    private final ExecutorService executor;
+    private final boolean virtualThreads;
+    private final List<Reader> readers = new ArrayList<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile boolean running = false;
+    private CountDownLatch stopped = new CountDownLatch(0);
+
+    private final Map<Outcome, LongAdder> outcomes = new EnumMap<>(Outcome.class);
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram warmUpLatency = new LatencyHistogram();
+    private long lastReportNanos = System.nanoTime();
+    private long lastReportTaps = 0;
+
+    /**
+     * @param index access index, or null to deny every card (see {@link #setGrantAuthenticated(boolean)})
+     */
+    public DoorController(AuthenticatedIdentificationClient client, AccessIndex index, Listener listener) {
+        this.client = client;
+        this.index = index;
+        this.listener = listener;
+        for (Outcome outcome : Outcome.values()) {
+            outcomes.put(outcome, new LongAdder());
+        }
+        ExecutorService virtual = null;
+        try {
+            virtual = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Java 17-20: one platform thread per reader
+        }
+        this.virtualThreads = virtual != null;
+        this.executor = virtual != null ? virtual : Executors.newCachedThreadPool(task -> {
+            final Thread thread = new Thread(task);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Replaces the default handler, which prints failures to standard error.
+     */
+    public DoorController setErrorHandler(ErrorHandler errorHandler) {
+        this.errorHandler = errorHandler;
+        return this;
+    }
+
+    /**
+     * Skips SELECT, for cards with the applet installed as implicitly selected.
+     */
+    public DoorController setImplicitSelection(boolean implicitSelection) {
+        this.implicitSelection = implicitSelection;
+        return this;
+    }
+
+    /**
+     * Grants every card that authenticates instead of looking its ID up, e.g. for commissioning or dry runs with
+     * simulated cards. Only takes effect without an index; without an index and this flag, every card is denied.
+     */
+    public DoorController setGrantAuthenticated(boolean grantAuthenticated) {
+        this.grantAuthenticated = grantAuthenticated;
+        return this;
+    }
+
+    /**
+     * Runs the given number of sessions on every reader thread before it accepts taps. The supplier is called once
+     * per reader and must return a card that authenticates with the client; each reader gets its own card, as card
+     * channels (in particular simulated ones) are not shared between threads.
+     */
+    public DoorController setWarmUp(Supplier<CardChannel> warmUpCard, int sessions) {
+        this.warmUpCard = warmUpCard;
+        this.warmUpSessions = sessions;
+        return this;
+    }
+
+    public boolean usesVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Starts serving the readers and returns once all of them are warmed up and accept taps.
+     */
+    public void start(List<? extends Reader> readers) throws InterruptedException {
+        synchronized (this) {
+            if (running) {
+                throw new IllegalStateException("Controller is already running");
+            }
+            running = true;
+        }
+        this.readers.clear();
+        this.readers.addAll(readers);
+        final CountDownLatch ready = new CountDownLatch(readers.size());
+        stopped = new CountDownLatch(readers.size());
+        for (Reader reader : readers) {
+            executor.execute(() -> serve(reader, ready));
+        }
+        ready.await();
+        synchronized (this) {
+            lastReportNanos = System.nanoTime();
+            lastReportTaps = getTaps();
+        }
+    }
+
+    /**
+     * Stops all readers and waits for their current taps to complete.
+     */
+    public void stop() throws InterruptedException {
+        running = false;
+        stopped.await();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getTaps() {
+        long taps = 0;
+        for (LongAdder count : outcomes.values()) {
+            taps += count.sum();
+        }
+        return taps;
+    }
+
+    public long getCount(Outcome outcome) {
+        return outcomes.get(outcome).sum();
+    }
+
+    /**
+     * Returns the latency from card presentation to decision of all taps since the start.
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Returns the latency of the warm-up sessions, whose first entries show the cold-start cost that taps avoid.
+     */
+    public LatencyHistogram getWarmUpLatency() {
+        return warmUpLatency;
+    }
+
+    /**
+     * Number of readers whose thread is currently handling a card.
+     */
+    public int getActiveTaps() {
+        return active.get();
+    }
+
+    /**
+     * One-line report: throughput since the previous report, decisions and latency since the start.
+     */
+    public synchronized String report() {
+        final long now = System.nanoTime();
+        final long taps = getTaps();
+        final double rate = (taps - lastReportTaps) * 1e9 / Math.max(1, now - lastReportNanos);
+        lastReportNanos = now;
+        lastReportTaps = taps;
+        return String.format("%d readers, %.1f taps/s, granted=%d revoked=%d unknown=%d auth_failed=%d errors=%d, latency %s",
+                readers.size(), rate, getCount(Outcome.GRANTED), getCount(Outcome.REVOKED), getCount(Outcome.UNKNOWN),
+                getCount(Outcome.AUTH_FAILED), getCount(Outcome.ERROR), latency.summary());
+    }
+
+    // ===== Reader tasks =====
+
+    private void serve(Reader reader, CountDownLatch ready) {
+        final byte[] id = new byte[AccessIndex.ID_LENGTH];
+        try {
+            try {
+                warmUp(reader.getName(), id);
+            } finally {
+                ready.countDown();
+            }
+            while (running) {
+                final CardChannel channel;
+                try {
+                    channel = reader.awaitCard(POLL_MILLIS);
+                } catch (CardException | RuntimeException e) {
+                    error(reader.getName(), "waiting for a card failed", e);
+                    Thread.sleep(POLL_MILLIS);
+                    continue;
+                }
+                if (channel == null) {
+                    continue;
+                }
+                final long start = System.nanoTime();
+                active.incrementAndGet();
+                try {
+                    handle(reader.getName(), channel, id, start);
+                } finally {
+                    active.decrementAndGet();
+                    try {
+                        reader.release();
+                    } catch (CardException e) {
+                        // Card already gone
+                    } catch (RuntimeException e) {
+                        error(reader.getName(), "release failed", e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stopped.countDown();
+        }
+    }
+
+    private void handle(String reader, CardChannel channel, byte[] id, long start) {
+        Outcome outcome;
+        boolean authenticated = false;
+        try {
+            if (!implicitSelection) {
+                client.select(channel);
+            }
+            client.readIdFast(channel, id, 0);
+            authenticated = true;
+            outcome = decide(id);
+        } catch (ProtocolException e) {
+            outcome = Outcome.AUTH_FAILED;
+        } catch (CardException e) {
+            outcome = Outcome.ERROR;
+        } catch (RuntimeException e) {
+            // A broken card or client must not stop the reader
+            error(reader, "exchange failed", e);
+            outcome = Outcome.ERROR;
+        }
+        final long nanos = System.nanoTime() - start;
+        latency.record(nanos);
+        outcomes.get(outcome).increment();
+        try {
+            listener.onDecision(reader, authenticated ? id : null, outcome, nanos);
+        } catch (RuntimeException e) {
+            error(reader, "listener failed", e);
+        }
+    }
+
+    private void error(String reader, String context, Throwable error) {
+        try {
+            errorHandler.onError(reader, context, error);
+        } catch (RuntimeException e) {
+            // See ErrorHandler
+        }
+    }
+
+    private Outcome decide(byte[] id) {
+        if (index == null) {
+            return grantAuthenticated ? Outcome.GRANTED : Outcome.UNKNOWN;
+        }
+        switch (index.lookup(id, 0)) {
+            case ALLOWED: return Outcome.GRANTED;
+            case REVOKED: return Outcome.REVOKED;
+            default: return Outcome.UNKNOWN;
+        }
+    }
+
+    /**
+     * Creates the client's per-thread state and runs the warm-up sessions, including the index lookup.
+     */
+    private void warmUp(String reader, byte[] id) {
+        client.warmUp();
+        if (warmUpCard == null || warmUpSessions <= 0) {
+            return;
+        }
+        final CardChannel channel = warmUpCard.get();
+        try {
+            if (!implicitSelection) {
+                client.select(channel);
+            }
+            for (int i = 0; i < warmUpSessions; i++) {
+                final long start = System.nanoTime();
+                client.readIdFast(channel, id, 0);
+                decide(id);
+                warmUpLatency.record(System.nanoTime() - start);
+            }
+        } catch (CardException | RuntimeException e) {
+            error(reader, "warm-up failed, the first taps will be slower", e);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package controller;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PC/SC readers for the {@link DoorController}. Waiting for cards is a blocking native call (SCardGetStatusChange),
+ * which would pin a virtual thread to its carrier, so a single platform thread watches all readers at once with
+ * {@link CardTerminals#waitForChange(long)} and wakes the task of each reader a card was inserted into. The reader
+ * tasks only block on a queue, and connect once their card is there.
+ */
+public final class PcscReaders implements Closeable {
+
+    private static final long MONITOR_MILLIS = 500;
+
+    private final CardTerminals terminals;
+    private final Map<String, PcscReader> readers = new HashMap<>();
+    private final Thread monitor;
+    private volatile boolean running = true;
+
+    /**
+     * Watches the readers of the default terminal factory.
+     *
+     * @param names "all", or a comma-separated list of reader names
+     */
+    public static PcscReaders open(String names) throws CardException {
+        final CardTerminals terminals = TerminalFactory.getDefault().terminals();
+        final List<CardTerminal> selected = new ArrayList<>();
+        for (CardTerminal terminal : terminals.list()) {
+            if (names.equals("all") || Arrays.asList(names.split(",")).contains(terminal.getName())) {
+                selected.add(terminal);
+            }
+        }
+        if (selected.isEmpty()) {
+            throw new IllegalArgumentException("No matching readers found");
+        }
+        return new PcscReaders(terminals, selected);
+    }
+
+    public PcscReaders(CardTerminals terminals, List<CardTerminal> selected) {
+        this.terminals = terminals;
+        for (CardTerminal terminal : selected) {
+            readers.put(terminal.getName(), new PcscReader(terminal));
+        }
+        monitor = new Thread(this::watch, "pcsc-monitor");
+        monitor.setDaemon(true);
+        monitor.start();
+    }
+
+    public List<DoorController.Reader> getReaders() {
+        return Collections.unmodifiableList(new ArrayList<>(readers.values()));
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        monitor.interrupt();
+    }
+
+    private void watch() {
+        try {
+            // The first call reports the cards that are already present as inserted
+            while (running) {
+                if (!terminals.waitForChange(MONITOR_MILLIS)) {
+                    continue;
+                }
+                for (CardTerminal terminal : terminals.list(CardTerminals.State.CARD_INSERTION)) {
+                    final PcscReader reader = readers.get(terminal.getName());
+                    if (reader != null) {
+                        // At most one pending presentation per reader, the card can only be handled once anyway
+                        reader.inserted.offer(Boolean.TRUE);
+                    }
+                }
+            }
+        } catch (CardException e) {
+            if (running) {
+                System.err.println("Reader monitor stopped: " + e.getMessage());
+            }
+        }
+    }
+
+    private static final class PcscReader implements DoorController.Reader {
+        private final CardTerminal terminal;
+        private final BlockingQueue<Boolean> inserted = new ArrayBlockingQueue<>(1);
+        private Card card = null;
+
+        PcscReader(CardTerminal terminal) {
+            this.terminal = terminal;
+        }
+
+        @Override
+        public String getName() {
+            return terminal.getName();
+        }
+
+        @Override
+        public CardChannel awaitCard(long timeoutMillis) throws CardException, InterruptedException {
+            if (inserted.poll(timeoutMillis, TimeUnit.MILLISECONDS) == null) {
+                return null;
+            }
+            try {
+                card = terminal.connect("*");
+            } catch (CardNotPresentException e) {
+                // Removed before we got to it
+                return null;
+            }
+            return card.getBasicChannel();
+        }
+
+        @Override
+        public void release() throws CardException {
+            if (card != null) {
+                final Card current = card;
+                card = null;
+                current.disconnect(false);
+            }
+        }
+    }
+}
@@ -1,28 +1,147 @@
 package main;
 
-import applet.AuthenticatedIdentificationApplet;
-import com.licel.jcardsim.smartcardio.CardSimulator;
-import com.licel.jcardsim.utils.AIDUtil;
-import javacard.framework.AID;
-import javax.smartcardio.*;
+import controller.AccessIndex;
+import controller.DoorController;
+import controller.PcscReaders;
+import sim.SimulatedReader;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.KeyDiversifier;
 
+import javax.smartcardio.CardChannel;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Door-controller daemon: serves PC/SC readers (or simulated ones) with a {@link DoorController} and prints a status
+ * report at a fixed interval until it is stopped.
+ * <pre>
+ * ./gradlew run --args="--readers all --master-key 0001...0F --index /var/lib/ocdc/ids.idx"
+ * ./gradlew run --args="--simulate 200 --cards 20 --tap-interval 500 --seconds 60 --quiet --grant-all-authenticated"
+ * </pre>
+ */
 public class Run {
-    public static void main(String[] args){
-        // 1. create simulator
-        CardSimulator simulator = new CardSimulator();
 
-        // 2. install applet
-        AID appletAID = AIDUtil.create("f0baaaaaad01");
-        simulator.installApplet(appletAID, AuthenticatedIdentificationApplet.class);
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
 
-        // 3. select applet
-        simulator.selectApplet(appletAID);
+    public static void main(String[] args) throws Exception {
+        String readerNames = "all";
+        int simulate = 0;
+        int cardsPerReader = 20;
+        double tapInterval = 1000;
+        byte[] psk = null;
+        byte[] masterKey = null;
+        String indexFile = null;
+        boolean implicitSelection = false;
+        boolean grantAuthenticated = false;
+        int warmUp = 50;
+        int reportSeconds = 10;
+        long seconds = 0;
+        boolean quiet = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--readers": readerNames = args[++i]; break;
+                case "--simulate": simulate = Integer.parseInt(args[++i]); break;
+                case "--cards": cardsPerReader = Integer.parseInt(args[++i]); break;
+                case "--tap-interval": tapInterval = Double.parseDouble(args[++i]); break;
+                case "--psk": psk = HEX.parseHex(args[++i]); break;
+                case "--master-key": masterKey = HEX.parseHex(args[++i]); break;
+                case "--index": indexFile = args[++i]; break;
+                case "--implicit-select": implicitSelection = true; break;
+                case "--grant-all-authenticated": grantAuthenticated = true; break;
+                case "--warm-up": warmUp = Integer.parseInt(args[++i]); break;
+                case "--report": reportSeconds = Integer.parseInt(args[++i]); break;
+                case "--seconds": seconds = Long.parseLong(args[++i]); break;
+                case "--quiet": quiet = true; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if (simulate == 0 && indexFile == null) {
+            throw new IllegalArgumentException("--index is required when serving PC/SC readers");
+        }
+        if (grantAuthenticated && (simulate == 0 || indexFile != null)) {
+            throw new IllegalArgumentException("--grant-all-authenticated is only allowed with --simulate and without --index");
+        }
+        if (psk != null && masterKey != null) {
+            throw new IllegalArgumentException("Only one of --psk and --master-key may be given");
+        }
+        if (psk == null && masterKey == null) {
+            if (simulate == 0) {
+                throw new IllegalArgumentException("Either --psk or --master-key is required");
+            }
+            psk = new byte[16];
+            new SecureRandom().nextBytes(psk);
+        }
 
-        // 4. send APDU
-        CommandAPDU commandAPDU = new CommandAPDU(0x00, 0x90, 0x00, 0x00);
-        ResponseAPDU response = simulator.transmitCommand(commandAPDU);
+        final KeyDiversifier diversifier = masterKey == null ? null : new KeyDiversifier(masterKey);
+        final AuthenticatedIdentificationClient client = diversifier == null
+                ? new AuthenticatedIdentificationClient(psk)
+                : new AuthenticatedIdentificationClient(diversifier, 1024);
+        final AccessIndex index = indexFile == null ? null : AccessIndex.open(Paths.get(indexFile));
+        final boolean verbose = !quiet;
+        final DoorController controller = new DoorController(client, index, (reader, id, outcome, nanos) -> {
+            if (verbose) {
+                System.out.printf("%s: %s %s (%.1f ms)%n", reader, outcome, id == null ? "-" : HEX.formatHex(id), nanos / 1e6);
+            }
+        });
+        controller.setImplicitSelection(implicitSelection).setGrantAuthenticated(grantAuthenticated);
 
-        System.out.println(new String(response.getData()));
-    }
+        // Warm up against a simulated card holding the same key as the real ones
+        final byte[] warmUpPsk = psk;
+        final Supplier<CardChannel> warmUpCard = diversifier == null
+                ? () -> SimulatedReader.card(warmUpPsk, new byte[16], null)
+                : () -> SimulatedReader.card(diversifier.derivePsk(new byte[KeyDiversifier.DIVERSIFIER_LENGTH]),
+                        new byte[16], new byte[KeyDiversifier.DIVERSIFIER_LENGTH]);
+        controller.setWarmUp(warmUpCard, warmUp);
+
+        PcscReaders pcsc = null;
+        final List<DoorController.Reader> readers = new ArrayList<>();
+        if (simulate > 0) {
+            for (int r = 0; r < simulate; r++) {
+                final List<CardChannel> cards = new ArrayList<>();
+                for (int c = 0; c < cardsPerReader; c++) {
+                    final long number = (long) r * cardsPerReader + c + 1;
+                    final byte[] id = new byte[16];
+                    final byte[] cardDiversifier = new byte[KeyDiversifier.DIVERSIFIER_LENGTH];
+                    for (int b = 0; b < 8; b++) {
+                        id[15 - b] = (byte) (number >>> (8 * b));
+                        cardDiversifier[7 - b] = id[15 - b];
+                    }
+                    cards.add(diversifier == null
+                            ? SimulatedReader.card(psk, id, null)
+                            : SimulatedReader.card(diversifier.derivePsk(cardDiversifier), id, cardDiversifier));
+                }
+                readers.add(new SimulatedReader("sim-" + r, cards, tapInterval, r));
+            }
+        } else {
+            pcsc = PcscReaders.open(readerNames);
+            readers.addAll(pcsc.getReaders());
+        }
 
-}
\ No newline at end of file
+        final long start = System.nanoTime();
+        controller.start(readers);
+        System.out.printf("Serving %d readers on %s threads, ready after %.0f ms (warm-up %s)%n", readers.size(),
+                controller.usesVirtualThreads() ? "virtual" : "platform", (System.nanoTime() - start) / 1e6,
+                controller.getWarmUpLatency().summary());
+
+        final PcscReaders monitor = pcsc;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            controller.close();
+            if (monitor != null) {
+                monitor.close();
+            }
+            System.out.println("Final: " + controller.report());
+        }));
+
+        final long end = seconds > 0 ? System.nanoTime() + seconds * 1_000_000_000L : Long.MAX_VALUE;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(reportSeconds * 1000L, Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            System.out.println(controller.report());
+        }
+        controller.stop();
+        System.exit(0);
+    }
+}
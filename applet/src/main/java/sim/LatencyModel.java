@@ -0,0 +1,122 @@
+package sim;
+
+/**
+ * Timing model that predicts how long an APDU exchange takes on a real card behind a contactless reader.
+ * <p>
+ * The prediction consists of the transport time, derived from the number of bytes, the frame overhead, and the baud
+ * rate, plus the on-card time, derived from the operations that the applet performed during the exchange (AES init and
+ * blocks, TRNG draws, key setup, persistent writes, as counted by an {@link OperationCounter}) and a fixed dispatch
+ * cost. The default costs are ballpark figures for contactless secure elements, calibrate them with the numbers from
+ * {@code PrimitiveTimingTest} for a specific card.
+ */
+public final class LatencyModel {
+
+    // ===== Transport =====
+    private int baudRate = 106_000;            // ISO/IEC 14443 default bit rate
+    private int bitsPerByte = 9;               // 8 data bits + parity (Type A)
+    private int frameOverheadBytes = 3;        // PCB + CRC per ISO/IEC 14443-4 block
+    private int maxFramePayload = 250;         // Larger APDUs are chained into several blocks
+    private long turnaroundNanos = 300_000;    // Reader processing and frame delay per block exchange
+
+    // ===== On-card costs =====
+    private long dispatchNanos = 1_000_000;    // JCRE APDU dispatch and applet invocation
+    private long aesInitNanos = 200_000;
+    private long aesBlockNanos = 300_000;
+    private long trngNanos = 1_500_000;        // TRNG draw of 8 bytes
+    private long keySetupNanos = 150_000;      // Key setup (transient), persistent keys count as persistent writes
+    private long persistentWriteNanos = 2_500_000;     // One EEPROM page
+
+    public static LatencyModel defaults() {
+        return new LatencyModel();
+    }
+
+    public LatencyModel setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+        return this;
+    }
+
+    public LatencyModel setBitsPerByte(int bitsPerByte) {
+        this.bitsPerByte = bitsPerByte;
+        return this;
+    }
+
+    public LatencyModel setFrameOverheadBytes(int frameOverheadBytes) {
+        this.frameOverheadBytes = frameOverheadBytes;
+        return this;
+    }
+
+    public LatencyModel setMaxFramePayload(int maxFramePayload) {
+        this.maxFramePayload = maxFramePayload;
+        return this;
+    }
+
+    public LatencyModel setTurnaroundMicros(long micros) {
+        this.turnaroundNanos = micros * 1000;
+        return this;
+    }
+
+    public LatencyModel setDispatchMicros(long micros) {
+        this.dispatchNanos = micros * 1000;
+        return this;
+    }
+
+    public LatencyModel setAesInitMicros(long micros) {
+        this.aesInitNanos = micros * 1000;
+        return this;
+    }
+
+    public LatencyModel setAesBlockMicros(long micros) {
+        this.aesBlockNanos = micros * 1000;
+        return this;
+    }
+
+    public LatencyModel setTrngMicros(long micros) {
+        this.trngNanos = micros * 1000;
+        return this;
+    }
+
+    public LatencyModel setKeySetupMicros(long micros) {
+        this.keySetupNanos = micros * 1000;
+        return this;
+    }
+
+    public LatencyModel setPersistentWriteMicros(long micros) {
+        this.persistentWriteNanos = micros * 1000;
+        return this;
+    }
+
+    /**
+     * Predicted time on the wire for a command and its response (both including header, data, and status word).
+     */
+    public long transportNanos(int commandBytes, int responseBytes) {
+        final int commandFrames = frames(commandBytes);
+        final int responseFrames = frames(responseBytes);
+        final long bytes = commandBytes + responseBytes + (long) (commandFrames + responseFrames) * frameOverheadBytes;
+        final long bitNanos = bytes * bitsPerByte * 1_000_000_000L / baudRate;
+        return bitNanos + (long) Math.max(commandFrames, responseFrames) * turnaroundNanos;
+    }
+
+    /**
+     * Predicted on-card processing time of an exchange in which the applet performed the given operations. Random
+     * bytes are charged in 8-byte draws, rounded up.
+     */
+    public long processingNanos(OperationCounter.Operations operations) {
+        return dispatchNanos
+                + operations.cipherInits * aesInitNanos
+                + operations.cipherBlocks * aesBlockNanos
+                + (operations.randomBytes + 7) / 8 * trngNanos
+                + (operations.keySetups - operations.persistentKeySetups) * keySetupNanos
+                + operations.persistentWrites * persistentWriteNanos;
+    }
+
+    /**
+     * Predicted duration of one complete exchange.
+     */
+    public long predictNanos(int commandBytes, int responseBytes, OperationCounter.Operations operations) {
+        return transportNanos(commandBytes, responseBytes) + processingNanos(operations);
+    }
+
+    private int frames(int bytes) {
+        return Math.max(1, (bytes + maxFramePayload - 1) / maxFramePayload);
+    }
+}
@@ -0,0 +1,88 @@
+package sim;
+
+import terminal.ApduLatencyRecorder;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link CardChannel} decorator for simulated cards that records the latency predicted by a {@link LatencyModel}
+ * instead of the wall-clock time. The on-card part of the prediction is based on the operations that the counter of
+ * the card's applet saw during the exchange. Optionally, the predicted time is also injected as a delay, so that code
+ * driving the channel experiences field-like timing.
+ */
+public final class LatencyModelChannel extends CardChannel {
+
+    private final CardChannel delegate;
+    private final LatencyModel model;
+    private final OperationCounter operations;
+    private final ApduLatencyRecorder recorder;
+    private final boolean inject;
+
+    public LatencyModelChannel(CardChannel delegate, LatencyModel model, OperationCounter operations,
+                               ApduLatencyRecorder recorder, boolean inject) {
+        this.delegate = delegate;
+        this.model = model;
+        this.operations = operations;
+        this.recorder = recorder;
+        this.inject = inject;
+    }
+
+    @Override
+    public Card getCard() {
+        return delegate.getCard();
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return delegate.getChannelNumber();
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        final OperationCounter.Operations before = operations.read();
+        final long start = System.nanoTime();
+        final ResponseAPDU response = delegate.transmit(command);
+        final byte[] bytes = command.getBytes();
+        final int responseBytes = response.getBytes().length;
+        account(bytes[1], start, before, bytes.length, responseBytes, response.getSW());
+        return response;
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        final byte ins = command.get(command.position() + 1);
+        final int commandBytes = command.remaining();
+        final int responseStart = response.position();
+        final OperationCounter.Operations before = operations.read();
+        final long start = System.nanoTime();
+        final int length = delegate.transmit(command, response);
+        final int sw = length >= 2
+                ? ((response.get(responseStart + length - 2) & 0xff) << 8) | (response.get(responseStart + length - 1) & 0xff)
+                : 0;
+        account(ins, start, before, commandBytes, length, sw);
+        return length;
+    }
+
+    @Override
+    public void close() throws CardException {
+        delegate.close();
+    }
+
+    private void account(byte ins, long start, OperationCounter.Operations before, int commandBytes, int responseBytes, int sw) {
+        final long predicted = model.predictNanos(commandBytes, responseBytes, operations.read().minus(before));
+        recorder.record(ins, start, predicted, commandBytes, responseBytes, sw);
+        if (inject) {
+            // Only wait for the part of the prediction that the simulator did not already take
+            final long remaining = start + predicted - System.nanoTime();
+            if (remaining > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package sim;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.LatencyHistogram;
+import terminal.RecordingCardChannel;
+import terminal.TraceWriter;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load and soak generator that runs the authenticated protocol continuously against many simulated cards.
+ * <p>
+ * Every card is a separate jCardSim instance with its own PSK and ID, derived from the card index and the seed.
+ * jCardSim instances are not thread-safe, so each card is created by and pinned to one worker thread, which drives
+ * its cards round-robin. With {@code --record}, all exchanges are written to an APDU trace for
+ * {@link TraceReplayer} (each card is buffered in memory until the end of the run). Usage:
+ * <pre>./gradlew loadTest -Pargs="--cards 2000 --threads 8 --seconds 60 --record load.trace"</pre>
+ */
+public final class LoadGenerator {
+
+    private static final String APPLET_ID = "f000000cdc01";
+
+    private final int cards;
+    private final int threads;
+    private final long seed;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sessions = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private TraceWriter trace = null;
+    private PrintStream out = System.out;
+
+    public LoadGenerator(int cards, int threads, long seed) {
+        this.cards = cards;
+        this.threads = threads;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int cards = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int seconds = 30;
+        long seed = 42;
+        String record = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--cards": cards = Integer.parseInt(args[i + 1]); break;
+                case "--threads": threads = Integer.parseInt(args[i + 1]); break;
+                case "--seconds": seconds = Integer.parseInt(args[i + 1]); break;
+                case "--seed": seed = Long.parseLong(args[i + 1]); break;
+                case "--record": record = args[i + 1]; break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        final LoadGenerator generator = new LoadGenerator(cards, threads, seed);
+        System.out.println("Running " + cards + " simulated cards on " + threads + " threads for " + seconds + " s");
+        if (record == null) {
+            generator.run(seconds, TimeUnit.SECONDS, 5);
+            return;
+        }
+        try (TraceWriter writer = new TraceWriter(Paths.get(record))) {
+            generator.recordTo(writer);
+            generator.run(seconds, TimeUnit.SECONDS, 5);
+        }
+    }
+
+    /**
+     * Records the exchanges of all cards created by subsequent runs into the given trace.
+     */
+    public LoadGenerator recordTo(TraceWriter trace) {
+        this.trace = trace;
+        return this;
+    }
+
+    /**
+     * Prints the progress and the final report to the given stream instead of standard output, or nowhere for null.
+     */
+    public LoadGenerator reportTo(PrintStream out) {
+        this.out = out;
+        return this;
+    }
+
+    /**
+     * Runs the load for the given duration and prints a report every reportSeconds and at the end, see
+     * {@link #reportTo}.
+     */
+    public void run(long duration, TimeUnit unit, int reportSeconds) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int worker = t;
+            executor.execute(() -> {
+                try {
+                    runWorker(worker, running, ready);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        // Cards are installed before the clock starts
+        ready.await();
+        final long start = System.nanoTime();
+        final long end = start + unit.toNanos(duration);
+        long lastSessions = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportSeconds), Math.max(1, (end - System.nanoTime()) / 1_000_000)));
+            final long total = sessions.sum();
+            if (out != null) {
+                out.printf("[%5.1fs] %d sessions (+%d), %s%n", (System.nanoTime() - start) / 1e9, total,
+                        total - lastSessions, latency.summary());
+            }
+            lastSessions = total;
+        }
+        running.set(false);
+        done.await();
+        executor.shutdown();
+
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getSessions() {
+        return sessions.sum();
+    }
+
+    public long getFailures() {
+        return failures.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    private void report(double seconds) {
+        if (out == null) {
+            return;
+        }
+        out.println("===== Load test results =====");
+        out.printf("Sessions:   %d (%.0f sessions/s)%n", sessions.sum(), sessions.sum() / seconds);
+        out.println("Latency:    " + latency.summary());
+        out.println("Failures:   " + getFailures());
+        failures.forEach((reason, count) -> out.println("  " + reason + ": " + count.sum()));
+    }
+
+    private void runWorker(int worker, AtomicBoolean running, CountDownLatch ready) {
+        final List<SimulatedCard> ownCards = new ArrayList<>();
+        try {
+            for (int index = worker; index < cards; index += threads) {
+                ownCards.add(new SimulatedCard(index, seed, trace));
+            }
+        } catch (CardException e) {
+            throw new IllegalStateException("Cannot connect to simulated card", e);
+        } finally {
+            ready.countDown();
+        }
+
+        while (running.get() && !ownCards.isEmpty()) {
+            for (SimulatedCard card : ownCards) {
+                if (!running.get()) {
+                    break;
+                }
+                final long start = System.nanoTime();
+                try {
+                    card.runSession();
+                    latency.record(System.nanoTime() - start);
+                    sessions.increment();
+                } catch (Exception e) {
+                    failures.computeIfAbsent(e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage(),
+                            k -> new LongAdder()).increment();
+                }
+            }
+        }
+        for (SimulatedCard card : ownCards) {
+            card.close();
+        }
+    }
+
+    /**
+     * One jCardSim instance with the authenticated applet and a terminal client holding its PSK.
+     */
+    private static final class SimulatedCard {
+        private final byte[] id = new byte[16];
+        private final byte[] readId = new byte[16];
+        private final AuthenticatedIdentificationClient client;
+        private final CardChannel channel;
+        private final TraceWriter.CardRecorder recorder;
+
+        SimulatedCard(int index, long seed, TraceWriter trace) throws CardException {
+            // Distinct PSK and ID per card, reproducible from seed and index
+            final SplittableRandom random = new SplittableRandom(seed * 31 + index);
+            final byte[] psk = new byte[16];
+            random.nextBytes(psk);
+            random.nextBytes(id);
+            client = new AuthenticatedIdentificationClient(psk);
+
+            // Install data: AID length = 0, Control data length = 0, Applet data = psk || id
+            final byte[] installData = new byte[3 + 32];
+            installData[2] = 32;
+            System.arraycopy(psk, 0, installData, 3, 16);
+            System.arraycopy(id, 0, installData, 19, 16);
+
+            final CardSimulator simulator = new CardSimulator();
+            final AID aid = AIDUtil.create(APPLET_ID);
+            simulator.installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+            final CardChannel simulatorChannel = CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+            recorder = trace == null ? null
+                    : trace.card(AuthenticatedIdentificationClient.APPLET_AID, AuthenticatedIdentificationApplet.class.getName(), installData, (byte) 0);
+            channel = recorder == null ? simulatorChannel : new RecordingCardChannel(simulatorChannel, recorder);
+            client.select(channel);
+        }
+
+        void close() {
+            if (recorder != null) {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Cannot write trace", e);
+                }
+            }
+        }
+
+        void runSession() throws CardException {
+            client.readId(channel, readId, 0);
+            if (!Arrays.equals(id, readId)) {
+                throw new IllegalStateException("GET_ID returned a wrong ID");
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package sim;
+
+import com.licel.jcardsim.base.Simulator;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.Applet;
+import javacard.security.AESKey;
+import javacard.security.Key;
+import javacard.security.KeyBuilder;
+import javacard.security.RandomData;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Counts the on-card operations of a simulated applet instance, as input for the {@link LatencyModel}. The ciphers,
+ * random number generators, and AES keys held by the applet's fields (directly or in arrays) are replaced with
+ * counting wrappers that delegate to the originals.
+ * <p>
+ * Persistent writes are taken from the applet's own statistics: the data writes counted in its
+ * {@code STAT_PERSISTENT_WRITES} counter, plus one write per increment of any statistics counter. Applets installed
+ * without statistics only report the setKey calls on persistent keys as writes.
+ */
+public final class OperationCounter {
+
+    private final byte[] stats;
+    private final int persistentWritesCounter;
+    private final long statsBaseline;
+
+    private long cipherInits = 0;
+    private long cipherBlocks = 0;
+    private long doFinals = 0;
+    private long keySetups = 0;
+    private long persistentKeySetups = 0;
+    private long randomBytes = 0;
+
+    private OperationCounter(byte[] stats, int persistentWritesCounter) {
+        this.stats = stats;
+        this.persistentWritesCounter = persistentWritesCounter;
+        this.statsBaseline = statsWrites();
+    }
+
+    /**
+     * Attaches a counter to the applet instance installed under the given AID.
+     */
+    public static OperationCounter attach(Simulator simulator, byte[] aid) {
+        try {
+            final Field field = Simulator.class.getDeclaredField("runtime");
+            field.setAccessible(true);
+            final SimulatorRuntime.ApplicationInstance instance = ((SimulatorRuntime) field.get(simulator)).lookupApplet(AIDUtil.create(aid));
+            if (instance == null) {
+                throw new IllegalArgumentException("No applet installed under the AID");
+            }
+            return attach(instance.getApplet());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access the jCardSim runtime", e);
+        }
+    }
+
+    /**
+     * Attaches a counter to an applet instance. Operations of other counters attached before are still counted by
+     * those as well.
+     */
+    public static OperationCounter attach(Applet applet) {
+        try {
+            byte[] stats = null;
+            int persistentWritesCounter = -1;
+            for (Class<?> type = applet.getClass(); type != Applet.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (field.getType().isPrimitive() || field.getType() == byte[].class) {
+                        if (field.getName().equals("stats") && !Modifier.isStatic(field.getModifiers())) {
+                            field.setAccessible(true);
+                            stats = (byte[]) field.get(applet);
+                        } else if (field.getName().equals("STAT_PERSISTENT_WRITES") && Modifier.isStatic(field.getModifiers())) {
+                            field.setAccessible(true);
+                            persistentWritesCounter = field.getShort(null);
+                        }
+                    }
+                }
+            }
+
+            final OperationCounter counter = new OperationCounter(stats, persistentWritesCounter);
+            // Fields may share an object, which must still be wrapped only once
+            final Map<Object, Object> wrapped = new IdentityHashMap<>();
+            for (Class<?> type = applet.getClass(); type != Applet.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+                        continue;
+                    }
+                    field.setAccessible(true);
+                    final Object value = field.get(applet);
+                    if (value instanceof Object[]) {
+                        final Object[] array = (Object[]) value;
+                        for (int i = 0; i < array.length; i++) {
+                            array[i] = wrapped.computeIfAbsent(array[i], counter::wrap);
+                        }
+                    } else if (value != null) {
+                        final Object wrapper = wrapped.computeIfAbsent(value, counter::wrap);
+                        if (wrapper != value) {
+                            field.set(applet, wrapper);
+                        }
+                    }
+                }
+            }
+            return counter;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot instrument " + applet.getClass().getName(), e);
+        }
+    }
+
+    /**
+     * Returns the operations counted since the counter was attached.
+     */
+    public Operations read() {
+        final long persistentWrites = stats == null ? persistentKeySetups : statsWrites() - statsBaseline;
+        return new Operations(cipherInits, cipherBlocks, doFinals, keySetups, persistentKeySetups, randomBytes, persistentWrites);
+    }
+
+    private long statsWrites() {
+        if (stats == null) {
+            return 0;
+        }
+        long writes = 0;
+        for (int counter = 0; counter < stats.length / 4; counter++) {
+            final long value = statsCounter(counter);
+            writes += counter == persistentWritesCounter ? 2 * value : value;
+        }
+        return writes;
+    }
+
+    private long statsCounter(int counter) {
+        long value = 0;
+        for (int i = counter * 4; i < counter * 4 + 4; i++) {
+            value = (value << 8) | (stats[i] & 0xff);
+        }
+        return value;
+    }
+
+    private Object wrap(Object target) {
+        if (target instanceof AESKey) {
+            return Proxy.newProxyInstance(AESKey.class.getClassLoader(), new Class<?>[] {AESKey.class}, new CountingKey((AESKey) target));
+        } else if (target instanceof javacardx.crypto.Cipher) {
+            return new CountingCipher((javacardx.crypto.Cipher) target);
+        } else if (target instanceof RandomData) {
+            return new CountingRandomData((RandomData) target);
+        }
+        return target;
+    }
+
+    private static Key unwrap(Key key) {
+        while (key != null && Proxy.isProxyClass(key.getClass()) && Proxy.getInvocationHandler(key) instanceof CountingKey) {
+            key = ((CountingKey) Proxy.getInvocationHandler(key)).key;
+        }
+        return key;
+    }
+
+    private static long blocks(short length) {
+        return (length + 15) / 16;
+    }
+
+    /**
+     * Operation counts, either the totals of a counter or the difference between two readings.
+     */
+    public static final class Operations {
+        public static final Operations NONE = new Operations(0, 0, 0, 0, 0, 0, 0);
+
+        public final long cipherInits;
+        public final long cipherBlocks;        // 16-byte blocks passed to update and doFinal
+        public final long doFinals;
+        public final long keySetups;           // All setKey calls, including those on persistent keys
+        public final long persistentKeySetups;
+        public final long randomBytes;
+        public final long persistentWrites;
+
+        Operations(long cipherInits, long cipherBlocks, long doFinals, long keySetups, long persistentKeySetups,
+                   long randomBytes, long persistentWrites) {
+            this.cipherInits = cipherInits;
+            this.cipherBlocks = cipherBlocks;
+            this.doFinals = doFinals;
+            this.keySetups = keySetups;
+            this.persistentKeySetups = persistentKeySetups;
+            this.randomBytes = randomBytes;
+            this.persistentWrites = persistentWrites;
+        }
+
+        public Operations plus(Operations other) {
+            return new Operations(cipherInits + other.cipherInits, cipherBlocks + other.cipherBlocks,
+                    doFinals + other.doFinals, keySetups + other.keySetups, persistentKeySetups + other.persistentKeySetups,
+                    randomBytes + other.randomBytes, persistentWrites + other.persistentWrites);
+        }
+
+        public Operations minus(Operations other) {
+            return new Operations(cipherInits - other.cipherInits, cipherBlocks - other.cipherBlocks,
+                    doFinals - other.doFinals, keySetups - other.keySetups, persistentKeySetups - other.persistentKeySetups,
+                    randomBytes - other.randomBytes, persistentWrites - other.persistentWrites);
+        }
+
+        @Override
+        public String toString() {
+            return cipherInits + " cipher inits, " + cipherBlocks + " blocks in " + doFinals + " doFinal, " + keySetups
+                    + " setKey (" + persistentKeySetups + " persistent), " + randomBytes + " random bytes, "
+                    + persistentWrites + " persistent writes";
+        }
+    }
+
+    private final class CountingKey implements InvocationHandler {
+        private final AESKey key;
+
+        CountingKey(AESKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getName().equals("setKey")) {
+                keySetups++;
+                persistentKeySetups += key.getType() == KeyBuilder.TYPE_AES ? 1 : 0;
+            }
+            try {
+                return method.invoke(key, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+
+    private final class CountingCipher extends javacardx.crypto.Cipher {
+        private final javacardx.crypto.Cipher cipher;
+
+        CountingCipher(javacardx.crypto.Cipher cipher) {
+            this.cipher = cipher;
+        }
+
+        @Override
+        public void init(Key key, byte mode) {
+            cipherInits++;
+            cipher.init(unwrap(key), mode);
+        }
+
+        @Override
+        public void init(Key key, byte mode, byte[] buffer, short offset, short length) {
+            cipherInits++;
+            cipher.init(unwrap(key), mode, buffer, offset, length);
+        }
+
+        @Override
+        public byte getAlgorithm() {
+            return cipher.getAlgorithm();
+        }
+
+        @Override
+        public byte getCipherAlgorithm() {
+            return cipher.getCipherAlgorithm();
+        }
+
+        @Override
+        public byte getPaddingAlgorithm() {
+            return cipher.getPaddingAlgorithm();
+        }
+
+        @Override
+        public short doFinal(byte[] in, short inOffset, short inLength, byte[] out, short outOffset) {
+            doFinals++;
+            cipherBlocks += blocks(inLength);
+            return cipher.doFinal(in, inOffset, inLength, out, outOffset);
+        }
+
+        @Override
+        public short update(byte[] in, short inOffset, short inLength, byte[] out, short outOffset) {
+            cipherBlocks += blocks(inLength);
+            return cipher.update(in, inOffset, inLength, out, outOffset);
+        }
+    }
+
+    private final class CountingRandomData extends RandomData {
+        private final RandomData rng;
+
+        CountingRandomData(RandomData rng) {
+            this.rng = rng;
+        }
+
+        // Abstract in the Java Card 3.0.5 API although deprecated, so it has to be forwarded as well
+        @Override
+        @SuppressWarnings("deprecation")
+        public void generateData(byte[] buffer, short offset, short length) {
+            randomBytes += length;
+            rng.generateData(buffer, offset, length);
+        }
+
+        @Override
+        public short nextBytes(byte[] buffer, short offset, short length) {
+            randomBytes += length;
+            return rng.nextBytes(buffer, offset, length);
+        }
+
+        @Override
+        public void setSeed(byte[] buffer, short offset, short length) {
+            rng.setSeed(buffer, offset, length);
+        }
+
+        @Override
+        public byte getAlgorithm() {
+            return rng.getAlgorithm();
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package sim;
+
+import applet.AuthenticatedIdentificationApplet;
+import applet.BenchmarkApplet;
+import applet.IdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+import terminal.InstallData;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Local stand-in for a remote card server: hosts a pool of jCardSim cards running the applets of this build and
+ * accepts batches of APDUs for many cards in one HTTP request, so that reader-gateway software and remote tests do not
+ * pay one round trip per APDU. The exchanges of one card are processed in order, different cards in parallel.
+ * <p>
+ * All bodies are binary (big-endian), see {@link terminal.RemoteCards} for the client side:
+ * <ul>
+ *     <li>{@code POST /v1/cards?class=<applet class>&aid=<hex>&count=<n>}, body install parameters: installs n cards,
+ *     responds with the first card number (4) and the count (4). Card numbers of one request are consecutive.</li>
+ *     <li>{@code POST /v1/transmit}, body count (4) followed by card (4) || command length (2) || command per entry:
+ *     responds with count (4) and card (4) || response length (2) || response (including SW) per entry, in request
+ *     order. Unknown cards get an empty response.</li>
+ *     <li>{@code POST /v1/reset?card=<n>} resets a card, {@code POST /v1/remove?card=<n>} removes it.</li>
+ *     <li>{@code GET /v1/stats} returns the number of cards, batches, and APDUs as text.</li>
+ * </ul>
+ * Usage: <pre>./gradlew remoteCardServer -Pargs="--port 9901 --cards 1000 --threads 8"</pre>
+ */
+public final class RemoteCardServer implements AutoCloseable {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final byte[] DEFAULT_APPLET_DATA = HEX.parseHex("00112233445566778899AABBCCDDEEFF00000000000000000000000000000001");
+
+    private final HttpServer server;
+    private final ExecutorService workers;
+    private final Map<Integer, VirtualCard> cards = new ConcurrentHashMap<>();
+    private final AtomicInteger nextCard = new AtomicInteger();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder apdus = new LongAdder();
+
+    /**
+     * One simulated card. jCardSim is not thread-safe, so every exchange holds the card's lock.
+     */
+    private static final class VirtualCard {
+        final CardSimulator simulator;
+        final AID aid;
+
+        VirtualCard(CardSimulator simulator, AID aid) {
+            this.simulator = simulator;
+            this.aid = aid;
+        }
+
+        synchronized byte[] transmit(byte[] command) {
+            return simulator.transmitCommand(command);
+        }
+
+        synchronized void reset() {
+            simulator.reset();
+            simulator.selectApplet(aid);
+        }
+    }
+
+    /**
+     * Starts the server on the given port (0 picks a free one) with the given number of worker threads.
+     */
+    public RemoteCardServer(String host, int port, int threads) throws IOException {
+        workers = Executors.newFixedThreadPool(threads);
+        server = HttpServer.create(new InetSocketAddress(host, port), 256);
+        // Requests are handled on their own pool, batches fan out to the workers
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/v1/cards", exchange -> handle(exchange, this::handleInstall));
+        server.createContext("/v1/transmit", exchange -> handle(exchange, this::handleTransmit));
+        server.createContext("/v1/reset", exchange -> handle(exchange, this::handleReset));
+        server.createContext("/v1/remove", exchange -> handle(exchange, this::handleRemove));
+        server.createContext("/v1/stats", exchange -> handle(exchange, this::handleStats));
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 9901;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int count = 0;
+        String appletClass = AuthenticatedIdentificationApplet.class.getName();
+        byte[] appletData = DEFAULT_APPLET_DATA;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--host": host = args[++i]; break;
+                case "--port": port = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--cards": count = Integer.parseInt(args[++i]); break;
+                case "--applet": appletClass = args[++i]; break;
+                case "--applet-data": appletData = HEX.parseHex(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        final RemoteCardServer server = new RemoteCardServer(host, port, threads);
+        if (count > 0) {
+            final Class<? extends Applet> applet = Class.forName(appletClass).asSubclass(Applet.class);
+            final byte[] parameters = new byte[3 + appletData.length];
+            parameters[2] = (byte) appletData.length;
+            System.arraycopy(appletData, 0, parameters, 3, appletData.length);
+            server.install(applet, defaultAid(applet), parameters, count);
+        }
+        System.out.println("Serving " + server.cards.size() + " cards on http://" + host + ":" + server.getPort());
+    }
+
+    /**
+     * Installs count cards with the same applet and install parameters and returns the number of the first one.
+     */
+    public int install(Class<? extends Applet> appletClass, byte[] aid, byte[] parameters, int count) {
+        final int first = nextCard.getAndAdd(count);
+        final AID appletAid = AIDUtil.create(aid);
+        // The cards are identical, so the applet is installed once and the others are forked from it
+        final SimulatorSnapshot snapshot = SimulatorSnapshot.install(appletClass, aid, parameters);
+        for (int i = 0; i < count; i++) {
+            cards.put(first + i, new VirtualCard(snapshot.fork(), appletAid));
+        }
+        return first;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        workers.shutdownNow();
+        ((ExecutorService) server.getExecutor()).shutdownNow();
+    }
+
+    // ===== Handlers =====
+
+    private interface Handler {
+        byte[] handle(HttpExchange exchange, Map<String, String> query) throws Exception;
+    }
+
+    private static void handle(HttpExchange exchange, Handler handler) throws IOException {
+        int status = 200;
+        byte[] body;
+        try {
+            body = handler.handle(exchange, query(exchange));
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            status = 400;
+            body = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            status = 500;
+            body = String.valueOf(e).getBytes(StandardCharsets.UTF_8);
+        }
+        // Empty bodies go out chunked (length 0): after a response without body (-1), the server may close the
+        // connection that the client has already put back into its pool
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private byte[] handleInstall(HttpExchange exchange, Map<String, String> query) throws Exception {
+        final Class<? extends Applet> appletClass = Class.forName(required(query, "class")).asSubclass(Applet.class);
+        final byte[] aid = query.containsKey("aid") ? HEX.parseHex(query.get("aid")) : defaultAid(appletClass);
+        final int count = Integer.parseInt(query.getOrDefault("count", "1"));
+        final byte[] parameters = readBody(exchange);
+        if (AuthenticatedIdentificationApplet.class.isAssignableFrom(appletClass)) {
+            InstallData.validate(InstallData.appletDataOf(parameters));
+        }
+        final int first = install(appletClass, aid, parameters, count);
+        final ByteArrayOutputStream response = new ByteArrayOutputStream(8);
+        final DataOutputStream out = new DataOutputStream(response);
+        out.writeInt(first);
+        out.writeInt(count);
+        return response.toByteArray();
+    }
+
+    private byte[] handleTransmit(HttpExchange exchange, Map<String, String> query) throws Exception {
+        final DataInputStream in = new DataInputStream(exchange.getRequestBody());
+        final int count = in.readInt();
+        final int[] entryCards = new int[count];
+        final byte[][] commands = new byte[count][];
+        final byte[][] responses = new byte[count][];
+        // Group the entries by card, keeping their order within each card
+        final Map<Integer, List<Integer>> byCard = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            entryCards[i] = in.readInt();
+            commands[i] = new byte[in.readUnsignedShort()];
+            in.readFully(commands[i]);
+            byCard.computeIfAbsent(entryCards[i], k -> new ArrayList<>()).add(i);
+        }
+        batches.increment();
+        apdus.add(count);
+
+        final List<Callable<Void>> tasks = new ArrayList<>(byCard.size());
+        for (Map.Entry<Integer, List<Integer>> entry : byCard.entrySet()) {
+            final VirtualCard card = cards.get(entry.getKey());
+            tasks.add(() -> {
+                for (int i : entry.getValue()) {
+                    responses[i] = card == null ? new byte[0] : card.transmit(commands[i]);
+                }
+                return null;
+            });
+        }
+        if (tasks.size() == 1) {
+            tasks.get(0).call();
+        } else {
+            for (Future<Void> task : workers.invokeAll(tasks)) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Card failed", e.getCause());
+                }
+            }
+        }
+
+        int length = 4;
+        for (byte[] response : responses) {
+            length += 6 + response.length;
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(length);
+        final DataOutputStream out = new DataOutputStream(body);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(entryCards[i]);
+            out.writeShort(responses[i].length);
+            out.write(responses[i]);
+        }
+        return body.toByteArray();
+    }
+
+    private byte[] handleReset(HttpExchange exchange, Map<String, String> query) {
+        card(query).reset();
+        return new byte[0];
+    }
+
+    private byte[] handleRemove(HttpExchange exchange, Map<String, String> query) {
+        if (cards.remove(Integer.parseInt(required(query, "card"))) == null) {
+            throw new IllegalArgumentException("Unknown card");
+        }
+        return new byte[0];
+    }
+
+    private byte[] handleStats(HttpExchange exchange, Map<String, String> query) {
+        return String.format("cards=%d batches=%d apdus=%d%n", cards.size(), batches.sum(), apdus.sum()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private VirtualCard card(Map<String, String> query) {
+        final VirtualCard card = cards.get(Integer.parseInt(required(query, "card")));
+        if (card == null) {
+            throw new IllegalArgumentException("Unknown card");
+        }
+        return card;
+    }
+
+    private static byte[] defaultAid(Class<? extends Applet> appletClass) {
+        if (IdentificationApplet.class.isAssignableFrom(appletClass)) {
+            return HEX.parseHex("f000000cdc00");
+        } else if (BenchmarkApplet.class.isAssignableFrom(appletClass)) {
+            return HEX.parseHex("f000000cdc02");
+        }
+        return HEX.parseHex("f000000cdc01");
+    }
+
+    private static String required(Map<String, String> query, String name) {
+        final String value = query.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return value;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        final Map<String, String> query = new HashMap<>();
+        final String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                final int split = pair.indexOf('=');
+                if (split > 0) {
+                    query.put(pair.substring(0, split), URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return in.readAllBytes();
+        }
+    }
+}
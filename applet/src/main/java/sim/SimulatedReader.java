@@ -0,0 +1,97 @@
+package sim;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import controller.DoorController;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.InstallData;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Simulated door reader for the {@link DoorController}: presents randomly chosen cards of its own set of simulated
+ * cards, with exponentially distributed pauses between taps (a Poisson arrival process per reader). jCardSim
+ * instances are not thread-safe, so a card belongs to exactly one reader.
+ */
+public final class SimulatedReader implements DoorController.Reader {
+
+    private final String name;
+    private final List<CardChannel> cards;
+    private final double meanIntervalMillis;
+    private final SplittableRandom random;
+    private long nextTapNanos;
+
+    /**
+     * @param meanIntervalMillis mean pause between taps, 0 for back-to-back taps
+     */
+    public SimulatedReader(String name, List<CardChannel> cards, double meanIntervalMillis, long seed) {
+        if (cards.isEmpty()) {
+            throw new IllegalArgumentException("A simulated reader needs at least one card");
+        }
+        this.name = name;
+        this.cards = new ArrayList<>(cards);
+        this.meanIntervalMillis = meanIntervalMillis;
+        this.random = new SplittableRandom(seed);
+        this.nextTapNanos = System.nanoTime() + pause();
+    }
+
+    /**
+     * Installs the authenticated applet on a new simulated card and returns its channel.
+     *
+     * @param diversifier the card's diversifier, or null for a card with a single PSK
+     */
+    public static CardChannel card(byte[] psk, byte[] id, byte[] diversifier) {
+        final byte[] appletData = diversifier == null
+                ? InstallData.appletData(psk, id, (byte) 0)
+                : InstallData.appletData(psk, id, InstallData.OPT_DIVERSIFIER, diversifier);
+        final byte[] params = InstallData.installParameters(appletData);
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(AIDUtil.create(AuthenticatedIdentificationClient.APPLET_AID),
+                AuthenticatedIdentificationApplet.class, params, (short) 0, (byte) params.length);
+        try {
+            return CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+        } catch (CardException e) {
+            throw new IllegalStateException("Cannot connect to simulated card", e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public CardChannel awaitCard(long timeoutMillis) throws InterruptedException {
+        final long wait = nextTapNanos - System.nanoTime();
+        if (wait > timeoutMillis * 1_000_000L) {
+            Thread.sleep(timeoutMillis);
+            return null;
+        }
+        if (wait > 0) {
+            Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+        } else {
+            // Back-to-back taps never block, and virtual threads are not preempted: without yielding, the readers
+            // on a carrier would starve each other
+            Thread.yield();
+        }
+        return cards.get(random.nextInt(cards.size()));
+    }
+
+    @Override
+    public void release() {
+        nextTapNanos = System.nanoTime() + pause();
+    }
+
+    private long pause() {
+        if (meanIntervalMillis <= 0) {
+            return 0;
+        }
+        return (long) (-Math.log(1 - random.nextDouble()) * meanIntervalMillis * 1_000_000L);
+    }
+}
@@ -0,0 +1,385 @@
+package sim;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+
+import javax.smartcardio.ATR;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Snapshot of a simulated card after applet installation, from which cheap independent copies are forked. Installing
+ * an applet runs the jCardSim loader and the applet constructor (key objects, ciphers, EEPROM arrays); forking copies
+ * the resulting object graph instead, so suites that need a fresh card per session pay for the install only once.
+ * <p>
+ * jCardSim has no snapshot API, so forks are deep copies of the simulator made with reflection. Copying covers the
+ * classes of jCardSim, Bouncy Castle, and the applets, arrays, immutable JDK values, and the common collections.
+ * Class loaders and reflection objects are shared, and forks start detached from any terminal. If the graph contains
+ * anything else (e.g. a thread or a lock of the JDK), the snapshot logs the reason and falls back to installing the
+ * applet into a new simulator for each fork, which is as slow as before but still correct. Note that forks also copy
+ * the state of the simulated random number generator, so with a fixed seed all forks draw the same challenges.
+ * <p>
+ * The template simulator is never used for exchanges after the snapshot, and forking only reads it, so forks can be
+ * created from many threads at once.
+ */
+public final class SimulatorSnapshot {
+
+    private static final Map<Class<?>, Field[]> FIELDS = new ConcurrentHashMap<>();
+    private static final Object UNSAFE;
+    private static final Method ALLOCATE_INSTANCE;
+
+    static {
+        Object unsafe = null;
+        Method allocate = null;
+        try {
+            final Class<?> type = Class.forName("sun.misc.Unsafe");
+            final Field field = type.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            allocate = type.getMethod("allocateInstance", Class.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Without Unsafe, every fork reinstalls the applet
+        }
+        UNSAFE = unsafe;
+        ALLOCATE_INSTANCE = allocate;
+    }
+
+    private final CardSimulator template;
+    private final Class<? extends Applet> appletClass;
+    private final AID aid;
+    private final byte[] installParameters;
+    private volatile boolean copying;
+
+    private SimulatorSnapshot(CardSimulator template, Class<? extends Applet> appletClass, AID aid, byte[] installParameters) {
+        this.template = template;
+        this.appletClass = appletClass;
+        this.aid = aid;
+        this.installParameters = installParameters;
+    }
+
+    /**
+     * Installs the applet into a new simulator and takes the snapshot. The first fork is made right away, to find
+     * out whether the simulator can be copied.
+     *
+     * @param installParameters li || instance AID || lc || control data || la || applet data, as for jCardSim
+     */
+    public static SimulatorSnapshot install(Class<? extends Applet> appletClass, byte[] aid, byte[] installParameters) {
+        final AID appletAid = AIDUtil.create(aid);
+        final SimulatorSnapshot snapshot = new SimulatorSnapshot(newSimulator(appletClass, appletAid, installParameters),
+                appletClass, appletAid, installParameters.clone());
+        snapshot.copying = UNSAFE != null;
+        if (!snapshot.copying) {
+            System.err.println("sun.misc.Unsafe is not available, forks reinstall the applet");
+        } else {
+            try {
+                snapshot.copy();
+            } catch (RuntimeException e) {
+                System.err.println("Cannot copy the simulator of " + appletClass.getName() + ", forks reinstall the applet: " + e);
+                snapshot.copying = false;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Takes a snapshot of a simulator in its current state, e.g. after test data was written to the card. The
+     * simulator must not be used afterwards. There is no fallback here, as the state cannot be rebuilt by installing.
+     *
+     * @throws UnsupportedOperationException if the simulator cannot be copied
+     */
+    public static SimulatorSnapshot capture(CardSimulator simulator, byte[] aid) {
+        if (UNSAFE == null) {
+            throw new UnsupportedOperationException("sun.misc.Unsafe is not available");
+        }
+        final SimulatorSnapshot snapshot = new SimulatorSnapshot(simulator, null, AIDUtil.create(aid), null);
+        snapshot.copying = true;
+        snapshot.copy();
+        return snapshot;
+    }
+
+    /**
+     * Returns a new simulator in the state of the snapshot, with the applet selected.
+     */
+    public CardSimulator fork() {
+        if (copying) {
+            final CardSimulator copy = copy();
+            copy.selectApplet(aid);
+            return copy;
+        }
+        return newSimulator(appletClass, aid, installParameters);
+    }
+
+    /**
+     * Returns whether forks are copies (true) or fresh installations (false).
+     */
+    public boolean isCopying() {
+        return copying;
+    }
+
+    private static CardSimulator newSimulator(Class<? extends Applet> appletClass, AID aid, byte[] installParameters) {
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(aid, appletClass, installParameters, (short) 0, (byte) installParameters.length);
+        simulator.selectApplet(aid);
+        return simulator;
+    }
+
+    private CardSimulator copy() {
+        return (CardSimulator) new GraphCopy().copy(template);
+    }
+
+    // ===== Deep copy =====
+
+    /**
+     * Copies one object graph, keeping shared references shared (and cycles intact). Objects are allocated when they
+     * are first reached and filled from a work list, so deep graphs do not overflow the stack. Collections are filled
+     * last, once the keys they hash are complete.
+     */
+    private static final class GraphCopy {
+        private final Map<Object, Object> copies = new IdentityHashMap<>();
+        private final Deque<Object> pending = new ArrayDeque<>();
+        private final List<Object> collections = new ArrayList<>();
+        // Modifiable collections behind the copies of unmodifiable ones
+        private final Map<Object, Object> backings = new IdentityHashMap<>();
+
+        Object copy(Object root) {
+            final Object result = reference(root);
+            while (!pending.isEmpty()) {
+                fill(pending.removeFirst());
+            }
+            // Inner collections were reached after outer ones, fill them first so that their hash codes are final
+            for (int i = collections.size() - 1; i >= 0; i--) {
+                fillCollection(collections.get(i));
+            }
+            return result;
+        }
+
+        /**
+         * Returns the copy of the referenced object, allocating it if needed.
+         */
+        private Object reference(Object original) {
+            if (original == null || isImmutable(original.getClass())) {
+                return original;
+            }
+            final Object known = copies.get(original);
+            if (known != null) {
+                return known;
+            }
+
+            final Class<?> type = original.getClass();
+            final Object copy;
+            if (type.isArray()) {
+                if (type.getComponentType().isPrimitive()) {
+                    copy = primitiveArrayClone(original);
+                    copies.put(original, copy);
+                    return copy;
+                }
+                copy = Array.newInstance(type.getComponentType(), Array.getLength(original));
+            } else if (type == Object.class) {
+                // Plain monitor objects
+                copy = new Object();
+                copies.put(original, copy);
+                return copy;
+            } else if (type == AtomicReference.class) {
+                // Only hold the terminal and thread a simulated card is attached to, copies start detached
+                copy = new AtomicReference<>();
+                copies.put(original, copy);
+                return copy;
+            } else if (type == ThreadLocal.class) {
+                // Only set while an applet is being installed
+                copy = new ThreadLocal<>();
+                copies.put(original, copy);
+                return copy;
+            } else if (type.getName().startsWith("java.util.Collections$Unmodifiable")) {
+                final Object backing = original instanceof List ? new ArrayList<>() : original instanceof Map
+                        ? new LinkedHashMap<>() : original instanceof Set ? new LinkedHashSet<>() : new ArrayList<>();
+                copy = unmodifiable(original, backing);
+                backings.put(original, backing);
+                copies.put(original, copy);
+                collections.add(original);
+                return copy;
+            } else if (isJdk(type)) {
+                copy = newCollection(original);
+                copies.put(original, copy);
+                collections.add(original);
+                return copy;
+            } else {
+                copy = allocate(type);
+            }
+            copies.put(original, copy);
+            pending.add(original);
+            return copy;
+        }
+
+        private void fill(Object original) {
+            final Object copy = copies.get(original);
+            if (original.getClass().isArray()) {
+                for (int i = 0, n = Array.getLength(original); i < n; i++) {
+                    Array.set(copy, i, reference(Array.get(original, i)));
+                }
+                return;
+            }
+            try {
+                for (Field field : fields(original.getClass())) {
+                    if (field.getType().isPrimitive()) {
+                        field.set(copy, field.get(original));
+                    } else {
+                        field.set(copy, reference(field.get(original)));
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new UnsupportedOperationException("Cannot copy " + original.getClass().getName(), e);
+            }
+        }
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private void fillCollection(Object original) {
+            final Object copy = backings.containsKey(original) ? backings.get(original) : copies.get(original);
+            if (original instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) original).entrySet()) {
+                    ((Map) copy).put(resolve(entry.getKey()), resolve(entry.getValue()));
+                }
+            } else {
+                for (Object element : (Collection<?>) original) {
+                    ((Collection) copy).add(resolve(element));
+                }
+            }
+        }
+
+        /**
+         * Like {@link #reference(Object)}, but completes the objects newly reached from a collection right away.
+         */
+        private Object resolve(Object original) {
+            final int known = collections.size();
+            final Object copy = reference(original);
+            while (!pending.isEmpty()) {
+                fill(pending.removeFirst());
+            }
+            for (int i = collections.size() - 1; i >= known; i--) {
+                fillCollection(collections.remove(i));
+            }
+            return copy;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Object unmodifiable(Object original, Object backing) {
+            if (original instanceof List) return Collections.unmodifiableList((List<Object>) backing);
+            if (original instanceof Map) return Collections.unmodifiableMap((Map<Object, Object>) backing);
+            if (original instanceof Set) return Collections.unmodifiableSet((Set<Object>) backing);
+            return Collections.unmodifiableCollection((Collection<Object>) backing);
+        }
+
+        private static Object newCollection(Object original) {
+            final Class<?> type = original.getClass();
+            if (type == ArrayList.class) return new ArrayList<>(((List<?>) original).size());
+            if (type == LinkedList.class) return new LinkedList<>();
+            if (type == Vector.class) return new Vector<>();
+            if (type == ArrayDeque.class) return new ArrayDeque<>();
+            if (type == HashMap.class) return new HashMap<>();
+            if (type == LinkedHashMap.class) return new LinkedHashMap<>();
+            if (type == Hashtable.class) return new Hashtable<>();
+            if (type == IdentityHashMap.class) return new IdentityHashMap<>();
+            if (type == ConcurrentHashMap.class) return new ConcurrentHashMap<>();
+            if (type == TreeMap.class) return new TreeMap<>(((TreeMap<?, ?>) original).comparator());
+            if (type == HashSet.class) return new HashSet<>();
+            if (type == LinkedHashSet.class) return new LinkedHashSet<>();
+            if (type == TreeSet.class) return new TreeSet<>(((TreeSet<?>) original).comparator());
+            throw new UnsupportedOperationException("Cannot copy " + type.getName());
+        }
+
+        private static Object allocate(Class<?> type) {
+            if (type.isHidden() || type.isSynthetic()) {
+                throw new UnsupportedOperationException("Cannot copy " + type.getName());
+            }
+            // The fields of JDK superclasses are not accessible, so only those without state can be extended
+            for (Class<?> c = type.getSuperclass(); c != Object.class; c = c.getSuperclass()) {
+                if (isJdk(c) && hasInstanceFields(c)) {
+                    throw new UnsupportedOperationException("Cannot copy " + type.getName() + ", it extends " + c.getName());
+                }
+            }
+            try {
+                return ALLOCATE_INSTANCE.invoke(UNSAFE, type);
+            } catch (ReflectiveOperationException e) {
+                throw new UnsupportedOperationException("Cannot allocate " + type.getName(), e);
+            }
+        }
+
+        private static Object primitiveArrayClone(Object array) {
+            final int length = Array.getLength(array);
+            final Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+            System.arraycopy(array, 0, copy, 0, length);
+            return copy;
+        }
+    }
+
+    /**
+     * Returns the instance fields of the class and its superclasses (up to, excluding, the first JDK class).
+     */
+    private static Field[] fields(Class<?> type) {
+        return FIELDS.computeIfAbsent(type, t -> {
+            final List<Field> fields = new ArrayList<>();
+            for (Class<?> c = t; c != null && !isJdk(c); c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        try {
+                            field.setAccessible(true);
+                        } catch (RuntimeException e) {
+                            throw new UnsupportedOperationException("Cannot access " + field, e);
+                        }
+                        fields.add(field);
+                    }
+                }
+            }
+            return fields.toArray(new Field[0]);
+        });
+    }
+
+    private static boolean hasInstanceFields(Class<?> type) {
+        for (Field field : type.getDeclaredFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isImmutable(Class<?> type) {
+        return type == String.class || type == Integer.class || type == Long.class || type == Short.class
+                || type == Byte.class || type == Character.class || type == Boolean.class || type == Double.class
+                || type == Float.class || type == BigInteger.class || type == BigDecimal.class || type == Class.class
+                || type == ATR.class || ClassLoader.class.isAssignableFrom(type) || Member.class.isAssignableFrom(type)
+                || type.isEnum() || (type.getSuperclass() != null && type.getSuperclass().isEnum());
+    }
+
+    private static boolean isJdk(Class<?> type) {
+        final String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.") || name.startsWith("sun.") || name.startsWith("jdk.");
+    }
+}
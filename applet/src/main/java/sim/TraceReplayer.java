@@ -0,0 +1,681 @@
+package sim;
+
+import applet.AuthenticatedIdentificationApplet;
+import applet.BenchmarkApplet;
+import applet.IdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import javacard.framework.Applet;
+import terminal.ApduLatencyRecorder;
+import terminal.CredentialMac;
+import terminal.InstallData;
+import terminal.TraceWriter;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays APDU traces written by {@link TraceWriter} against the applets of the current build and reports every
+ * response that differs from the recorded one.
+ * <p>
+ * Trace files are memory-mapped and indexed by card. Every card is installed into a fresh {@link CardSimulator} with
+ * its recorded install parameters and selected, and its exchanges are replayed in order; cards are distributed over
+ * a thread pool. Cards recorded with {@link TraceWriter#FLAG_EXACT} and cards of applets without randomness are
+ * compared byte by byte. Otherwise, the authenticated applet chooses a different challenge on replay, so the replayer
+ * acts like the original terminal: it takes the PSK from the install parameters, re-encrypts AUTH, RESUME, and
+ * PUT_CREDENTIAL payloads for the new session keys (recomputing the MACs of credential streams whose recorded MAC was
+ * valid), and compares the decrypted responses. Cards are replayed from
+ * installation, so traces of cards with a history before the recording (used tickets, counters) may differ. Usage:
+ * <pre>./gradlew replayTraces -Pargs="field-2024-05.trace lab.trace --threads 16"</pre>
+ */
+public final class TraceReplayer {
+
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+    private static final int CARDS_PER_TASK = 64;
+
+    /**
+     * One response that differs from the recording.
+     */
+    public static final class Mismatch {
+        public final Path file;
+        public final int card;
+        public final int exchange;
+        public final byte[] command;
+        public final byte[] expected;
+        public final byte[] actual;
+
+        Mismatch(Path file, int card, int exchange, byte[] command, byte[] expected, byte[] actual) {
+            this.file = file;
+            this.card = card;
+            this.exchange = exchange;
+            this.command = command;
+            this.expected = expected;
+            this.actual = actual;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s card %d exchange %d %s: %s expected %s, got %s", file.getFileName(), card, exchange,
+                    command.length > 1 ? ApduLatencyRecorder.instructionName(command[1]) : "?", HEX.formatHex(command),
+                    HEX.formatHex(expected), HEX.formatHex(actual));
+        }
+    }
+
+    /**
+     * Totals of a replay run, with the first mismatches as samples.
+     */
+    public static final class Result {
+        public final int cards;
+        public final long exchanges;
+        public final long mismatches;
+        public final List<Mismatch> samples;
+        public final long nanos;
+
+        Result(int cards, long exchanges, long mismatches, List<Mismatch> samples, long nanos) {
+            this.cards = cards;
+            this.exchanges = exchanges;
+            this.mismatches = mismatches;
+            this.samples = samples;
+            this.nanos = nanos;
+        }
+
+        public double exchangesPerSecond() {
+            return exchanges / (nanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d cards, %d exchanges, %d mismatches in %.2f s (%.0f exchanges/s)", cards, exchanges,
+                    mismatches, nanos / 1e9, exchangesPerSecond());
+        }
+    }
+
+    private final int threads;
+    private final int maxSamples;
+    private final Map<String, Class<? extends Applet>> appletsByAid = new ConcurrentHashMap<>();
+    private final Map<String, Class<? extends Applet>> appletsByName = new ConcurrentHashMap<>();
+
+    public TraceReplayer(int threads, int maxSamples) {
+        this.threads = threads;
+        this.maxSamples = maxSamples;
+        register(HEX.parseHex("F000000CDC00"), IdentificationApplet.class);
+        register(HEX.parseHex("F000000CDC01"), AuthenticatedIdentificationApplet.class);
+        register(HEX.parseHex("F000000CDC02"), BenchmarkApplet.class);
+    }
+
+    /**
+     * Installs the given class for cards recorded without applet class name.
+     */
+    public TraceReplayer register(byte[] aid, Class<? extends Applet> appletClass) {
+        appletsByAid.put(HEX.formatHex(aid), appletClass);
+        return this;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int samples = 20;
+        final List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--samples": samples = Integer.parseInt(args[++i]); break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    files.add(Paths.get(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("Usage: <trace>... [--threads n] [--samples n]");
+        }
+
+        final Result result = new TraceReplayer(threads, samples).replay(files);
+        result.samples.forEach(System.out::println);
+        System.out.println(result);
+        if (result.mismatches > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Replays all cards of the given trace files.
+     */
+    public Result replay(List<Path> files) throws IOException, InterruptedException {
+        final List<MappedTrace> traces = new ArrayList<>();
+        for (Path file : files) {
+            traces.add(MappedTrace.open(file));
+        }
+
+        final long start = System.nanoTime();
+        final AtomicLong exchanges = new AtomicLong();
+        final AtomicLong mismatches = new AtomicLong();
+        final List<Mismatch> samples = Collections.synchronizedList(new ArrayList<>());
+        final ThreadLocal<ProtocolSession> sessions = ThreadLocal.withInitial(ProtocolSession::new);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        int cards = 0;
+        try {
+            final List<Future<?>> tasks = new ArrayList<>();
+            for (MappedTrace trace : traces) {
+                cards += trace.cards;
+                for (int first = 0; first < trace.cards; first += CARDS_PER_TASK) {
+                    final int from = first;
+                    final int to = Math.min(trace.cards, first + CARDS_PER_TASK);
+                    tasks.add(executor.submit(() -> {
+                        final ProtocolSession session = sessions.get();
+                        long replayed = 0;
+                        for (int card = from; card < to; card++) {
+                            replayed += replayCard(trace, card, session, mismatches, samples);
+                        }
+                        exchanges.addAndGet(replayed);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Replay failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return new Result(cards, exchanges.get(), mismatches.get(), new ArrayList<>(samples), System.nanoTime() - start);
+    }
+
+    /**
+     * Installs and replays one card and returns the number of replayed exchanges.
+     */
+    private long replayCard(MappedTrace trace, int card, ProtocolSession session, AtomicLong mismatches,
+                            List<Mismatch> samples) throws ReflectiveOperationException {
+        final ByteBuffer buffer = trace.buffer.duplicate();
+        buffer.limit(trace.end(card)).position(trace.offsets[card] + 1);
+
+        final byte flags = buffer.get();
+        final byte[] aid = bytes(buffer, buffer.get() & 0xff);
+        final String className = new String(bytes(buffer, buffer.get() & 0xff), StandardCharsets.UTF_8);
+        final byte[] parameters = bytes(buffer, buffer.getShort() & 0xffff);
+        final Class<? extends Applet> appletClass = resolve(className, aid);
+
+        final CardSimulator simulator = new CardSimulator();
+        final AID appletAid = AIDUtil.create(aid);
+        simulator.installApplet(appletAid, appletClass, parameters, (short) 0, (byte) parameters.length);
+        simulator.selectApplet(appletAid);
+        final boolean translate = (flags & TraceWriter.FLAG_EXACT) == 0
+                && AuthenticatedIdentificationApplet.class.isAssignableFrom(appletClass);
+        if (translate) {
+            session.start(Arrays.copyOf(InstallData.appletDataOf(parameters), InstallData.PSK_LENGTH));
+        }
+
+        int exchange = 0;
+        while (buffer.hasRemaining()) {
+            if (buffer.get() == TraceWriter.RECORD_RESET) {
+                simulator.reset();
+                simulator.selectApplet(appletAid);
+                session.reset();
+                continue;
+            }
+            final byte[] command = bytes(buffer, buffer.getShort() & 0xffff);
+            final byte[] expected = bytes(buffer, buffer.getShort() & 0xffff);
+            final byte[] actual = simulator.transmitCommand(translate ? session.translate(command) : command);
+            final boolean same = translate ? session.matches(command, expected, actual) : Arrays.equals(expected, actual);
+            if (!same && mismatches.incrementAndGet() <= maxSamples) {
+                samples.add(new Mismatch(trace.file, card, exchange, command, expected, actual));
+            }
+            exchange++;
+        }
+        return exchange;
+    }
+
+    private Class<? extends Applet> resolve(String className, byte[] aid) throws ClassNotFoundException {
+        if (!className.isEmpty()) {
+            Class<? extends Applet> appletClass = appletsByName.get(className);
+            if (appletClass == null) {
+                appletClass = Class.forName(className).asSubclass(Applet.class);
+                appletsByName.put(className, appletClass);
+            }
+            return appletClass;
+        }
+        final Class<? extends Applet> appletClass = appletsByAid.get(HEX.formatHex(aid));
+        if (appletClass == null) {
+            throw new ClassNotFoundException("No applet class for AID " + HEX.formatHex(aid));
+        }
+        return appletClass;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int length) {
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * A memory-mapped trace file with the offsets of its card records.
+     */
+    private static final class MappedTrace {
+        final Path file;
+        final ByteBuffer buffer;
+        final int[] offsets;
+        final int cards;
+
+        private MappedTrace(Path file, ByteBuffer buffer, int[] offsets, int cards) {
+            this.file = file;
+            this.buffer = buffer;
+            this.offsets = offsets;
+            this.cards = cards;
+        }
+
+        int end(int card) {
+            return card + 1 < cards ? offsets[card + 1] : buffer.limit();
+        }
+
+        static MappedTrace open(Path file) throws IOException {
+            final ByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException(file + " exceeds 2 GiB, split the trace into several files");
+                }
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            final byte[] magic = new byte[TraceWriter.MAGIC.length];
+            for (int i = 0; i < magic.length && i < buffer.limit(); i++) {
+                magic[i] = buffer.get(i);
+            }
+            if (buffer.limit() < TraceWriter.HEADER_LENGTH || !Arrays.equals(magic, TraceWriter.MAGIC)) {
+                throw new IOException(file + " is not an APDU trace");
+            }
+            if (buffer.get(magic.length) != TraceWriter.VERSION) {
+                throw new IOException(file + " has an unsupported trace version");
+            }
+
+            // Index the card records, skipping everything else by its length fields
+            int[] offsets = new int[1024];
+            int cards = 0;
+            int position = TraceWriter.HEADER_LENGTH;
+            try {
+                while (position < buffer.limit()) {
+                    final byte type = buffer.get(position);
+                    if (type == TraceWriter.RECORD_CARD) {
+                        if (cards == offsets.length) {
+                            offsets = Arrays.copyOf(offsets, cards * 2);
+                        }
+                        offsets[cards++] = position;
+                        position += 2;
+                        position += 1 + (buffer.get(position) & 0xff);
+                        position += 1 + (buffer.get(position) & 0xff);
+                        position += 2 + (buffer.getShort(position) & 0xffff);
+                    } else if (type == TraceWriter.RECORD_APDU && cards > 0) {
+                        position += 1;
+                        position += 2 + (buffer.getShort(position) & 0xffff);
+                        position += 2 + (buffer.getShort(position) & 0xffff);
+                    } else if (type == TraceWriter.RECORD_RESET && cards > 0) {
+                        position += 1;
+                    } else {
+                        throw new IOException(file + " is corrupt at offset " + position);
+                    }
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new IOException(file + " is truncated");
+            }
+            if (position != buffer.limit()) {
+                throw new IOException(file + " is truncated");
+            }
+            return new MappedTrace(file, buffer, offsets, cards);
+        }
+    }
+
+    /**
+     * Terminal-side view of an authenticated session during replay: the session keys of the recording and of the
+     * replay, derived from the PSK and the challenges, so that encrypted payloads can be translated and compared.
+     * One instance per worker thread, reused for all its cards.
+     */
+    private static final class ProtocolSession {
+        private static final byte[] LABEL_TICKET = {'T','I','C','K','E','T', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        private static final byte[] LABEL_RESUME = {'R','E','S','U','M','E', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        private static final byte[] LABEL_CREDENTIAL = {'C','R','E','D','E','N','T','I','A','L', 0, 0, 0, 0, 0, 0};
+
+        private final Cipher ecb;
+        private final Cipher recordedCbc;
+        private final Cipher replayedCbc;
+        private final CredentialMac recordedMac = new CredentialMac();
+        private final CredentialMac replayedMac = new CredentialMac();
+        private int streamPosition;
+        private int streamEnd;
+        private SecretKeySpec psk;
+
+        private final byte[] recordedChallenge = new byte[8];
+        private final byte[] replayedChallenge = new byte[8];
+        private final byte[] recordedKey = new byte[16];
+        private final byte[] replayedKey = new byte[16];
+        private byte[] recordedTicket;
+        private byte[] replayedTicket;
+        private byte[] updatedPsk;
+        private boolean challenge;
+        private boolean keys;
+        private boolean resumed;
+        private boolean chaining;
+
+        ProtocolSession() {
+            try {
+                ecb = Cipher.getInstance("AES/ECB/NoPadding");
+                recordedCbc = Cipher.getInstance("AES/CBC/NoPadding");
+                replayedCbc = Cipher.getInstance("AES/CBC/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES not available", e);
+            }
+        }
+
+        void start(byte[] psk) {
+            this.psk = new SecretKeySpec(psk, "AES");
+            recordedTicket = null;
+            replayedTicket = null;
+            updatedPsk = null;
+            reset();
+        }
+
+        void reset() {
+            challenge = false;
+            keys = false;
+            resumed = false;
+            chaining = false;
+        }
+
+        /**
+         * Returns the command to send to the replayed card in place of the recorded one.
+         */
+        byte[] translate(byte[] command) {
+            if (command.length < 4) {
+                return command;
+            }
+            if (command[0] == 0x00 && command[1] == (byte) 0xA4) {
+                reset();
+                return command;
+            }
+            if (command[0] != (byte) 0x80) {
+                return command;
+            }
+            final int offset = dataOffset(command);
+            final int length = dataLength(command);
+            switch (command[1]) {
+                case 0x11:
+                case 0x13: {
+                    // AES_psk(rt || rc): put in the replayed challenge, unless the recorded terminal got it wrong
+                    if (length != 16) {
+                        return command;
+                    }
+                    final byte[] plain = block(Cipher.DECRYPT_MODE, psk, command, offset);
+                    final byte[] rc = challenge ? recordedChallenge : Arrays.copyOfRange(plain, 8, 16);
+                    System.arraycopy(rc, 0, recordedKey, 0, 8);
+                    System.arraycopy(challenge ? replayedChallenge : rc, 0, replayedKey, 0, 8);
+                    System.arraycopy(plain, 0, recordedKey, 8, 8);
+                    System.arraycopy(plain, 0, replayedKey, 8, 8);
+                    keys = true;
+                    resumed = false;
+                    chaining = false;
+                    if (challenge && Arrays.equals(plain, 8, 16, recordedChallenge, 0, 8)) {
+                        System.arraycopy(replayedChallenge, 0, plain, 8, 8);
+                    }
+                    return replace(command, offset, block(Cipher.ENCRYPT_MODE, psk, plain, 0));
+                }
+                case 0x14: {
+                    // AES_kc(LABEL_RESUME) with k_c = AES_res(counter || 0^112)
+                    reset();
+                    if (recordedTicket == null || length != 16) {
+                        return command;
+                    }
+                    final byte[] counter = new byte[16];
+                    counter[0] = command[2];
+                    counter[1] = command[3];
+                    System.arraycopy(block(Cipher.ENCRYPT_MODE, key(recordedTicket), counter, 0), 0, recordedKey, 0, 16);
+                    System.arraycopy(block(Cipher.ENCRYPT_MODE, key(replayedTicket), counter, 0), 0, replayedKey, 0, 16);
+                    keys = true;
+                    resumed = true;
+                    if (!Arrays.equals(block(Cipher.DECRYPT_MODE, key(recordedKey), command, offset), LABEL_RESUME)) {
+                        return command;
+                    }
+                    return replace(command, offset, block(Cipher.ENCRYPT_MODE, key(replayedKey), LABEL_RESUME, 0));
+                }
+                case 0x16: {
+                    // AES-CBC under the session key, restarted at offset 0
+                    if (!keys || length % 16 != 0) {
+                        return command;
+                    }
+                    if (command[2] == 0 && command[3] == 0) {
+                        initChaining(Cipher.DECRYPT_MODE, Cipher.ENCRYPT_MODE);
+                    }
+                    if (!chaining || length == 0) {
+                        return command;
+                    }
+                    final byte[] translated = new byte[length];
+                    for (int block = 0; block < length; block += 16) {
+                        translateStream(command, offset + block, translated, block);
+                    }
+                    return replace(command, offset, translated);
+                }
+                case 0x18: {
+                    // E_eph(psk' || id' || check): re-encrypt under the replayed session key, and remember psk'
+                    if (!keys || resumed || length != 48) {
+                        return command;
+                    }
+                    final byte[] plain = new byte[48];
+                    final byte[] encrypted = new byte[48];
+                    for (int block = 0; block < 48; block += 16) {
+                        System.arraycopy(block(Cipher.DECRYPT_MODE, key(recordedKey), command, offset + block), 0, plain, block, 16);
+                        System.arraycopy(block(Cipher.ENCRYPT_MODE, key(replayedKey), plain, block), 0, encrypted, block, 16);
+                    }
+                    updatedPsk = Arrays.copyOf(plain, 16);
+                    return replace(command, offset, encrypted);
+                }
+                default:
+                    return command;
+            }
+        }
+
+        /**
+         * Compares the replayed response with the recorded one, decrypting both where they are encrypted under
+         * different session keys.
+         */
+        boolean matches(byte[] command, byte[] expected, byte[] actual) {
+            if (expected.length != actual.length || expected.length < 2
+                    || expected[expected.length - 2] != actual[actual.length - 2]
+                    || expected[expected.length - 1] != actual[actual.length - 1]) {
+                return false;
+            }
+            final int length = expected.length - 2;
+            if (command.length < 4) {
+                return Arrays.equals(expected, actual);
+            }
+            if (command[0] == 0x00 && command[1] == (byte) 0xC0 && chaining) {
+                return matchesChained(expected, actual, length);
+            }
+            if (command[0] != (byte) 0x80) {
+                return Arrays.equals(expected, actual);
+            }
+            switch (command[1]) {
+                case 0x10: {
+                    // AES_psk(rc || 0^64), optionally followed by the diversifier
+                    if (length < 16) {
+                        return Arrays.equals(expected, actual);
+                    }
+                    final byte[] recorded = block(Cipher.DECRYPT_MODE, psk, expected, 0);
+                    final byte[] replayed = block(Cipher.DECRYPT_MODE, psk, actual, 0);
+                    if (!Arrays.equals(recorded, 8, 16, replayed, 8, 16)) {
+                        return false;
+                    }
+                    System.arraycopy(recorded, 0, recordedChallenge, 0, 8);
+                    System.arraycopy(replayed, 0, replayedChallenge, 0, 8);
+                    challenge = true;
+                    keys = false;
+                    resumed = false;
+                    chaining = false;
+                    return Arrays.equals(expected, 16, length, actual, 16, length);
+                }
+                case 0x11:
+                case 0x12:
+                case 0x13:
+                case 0x14:
+                case 0x17: {
+                    if (!keys || length % 16 != 0) {
+                        return Arrays.equals(expected, actual);
+                    }
+                    // A released ID ends a full session, for which the card issues a resumption ticket
+                    final boolean released = command[1] == 0x13 ? length == 32 : command[1] == 0x12 && length == 16;
+                    if (released && !resumed) {
+                        recordedTicket = block(Cipher.ENCRYPT_MODE, key(recordedKey), LABEL_TICKET, 0);
+                        replayedTicket = block(Cipher.ENCRYPT_MODE, key(replayedKey), LABEL_TICKET, 0);
+                    }
+                    for (int offset = 0; offset < length; offset += 16) {
+                        if (!Arrays.equals(block(Cipher.DECRYPT_MODE, key(recordedKey), expected, offset),
+                                block(Cipher.DECRYPT_MODE, key(replayedKey), actual, offset))) {
+                            return false;
+                        }
+                    }
+                    return true;
+                }
+                case 0x18:
+                    // The card ends the session, and later sessions of the trace use the new PSK
+                    if (length == 0 && expected[0] == (byte) 0x90 && expected[1] == 0x00 && updatedPsk != null) {
+                        start(updatedPsk);
+                    }
+                    updatedPsk = null;
+                    return Arrays.equals(expected, actual);
+                case 0x15:
+                    if (!keys) {
+                        return Arrays.equals(expected, actual);
+                    }
+                    initChaining(Cipher.DECRYPT_MODE, Cipher.DECRYPT_MODE);
+                    return matchesChained(expected, actual, length);
+                default:
+                    return Arrays.equals(expected, actual);
+            }
+        }
+
+        /**
+         * Compares the next blocks of the credential streams: ciphertext || MAC, where the ciphertext has to decrypt
+         * to the same plaintext, and the MACs have to be both valid or both invalid.
+         */
+        private boolean matchesChained(byte[] expected, byte[] actual, int length) {
+            if (length % 16 != 0) {
+                return Arrays.equals(expected, actual);
+            }
+            for (int block = 0; block < length; block += 16) {
+                if (streamEnd < 0 || streamPosition < streamEnd) {
+                    final byte[] recorded = recordedCbc.update(expected, block, 16);
+                    if (!Arrays.equals(recorded, replayedCbc.update(actual, block, 16))) {
+                        return false;
+                    }
+                    streamEnd(recorded);
+                    recordedMac.update(expected, block, 16);
+                    replayedMac.update(actual, block, 16);
+                } else if (streamPosition == streamEnd) {
+                    if (recordedMac.verify(expected, block) != replayedMac.verify(actual, block)) {
+                        return false;
+                    }
+                } else if (!Arrays.equals(expected, block, block + 16, actual, block, block + 16)) {
+                    return false;
+                }
+                streamPosition += 16;
+            }
+            return true;
+        }
+
+        /**
+         * Re-encrypts the next block of a PUT_CREDENTIAL stream, or replaces its MAC with the one of the replayed
+         * ciphertext. A recorded MAC that does not verify is passed on unchanged.
+         */
+        private void translateStream(byte[] in, int inOffset, byte[] out, int outOffset) {
+            if (streamEnd < 0 || streamPosition < streamEnd) {
+                final byte[] plain = recordedCbc.update(in, inOffset, 16);
+                streamEnd(plain);
+                recordedMac.update(in, inOffset, 16);
+                final byte[] replayed = replayedCbc.update(plain);
+                replayedMac.update(replayed, 0, 16);
+                System.arraycopy(replayed, 0, out, outOffset, 16);
+            } else if (streamPosition == streamEnd && recordedMac.verify(in, inOffset)) {
+                System.arraycopy(replayedMac.doFinal(), 0, out, outOffset, 16);
+            } else {
+                System.arraycopy(in, inOffset, out, outOffset, 16);
+            }
+            streamPosition += 16;
+        }
+
+        /**
+         * Takes the end of the ciphertext from the length prefix, once the first block is decrypted.
+         */
+        private void streamEnd(byte[] plain) {
+            if (streamPosition == 0) {
+                streamEnd = ((((plain[0] & 0xff) << 8) | (plain[1] & 0xff)) + 17) & ~15;
+            }
+        }
+
+        private void initChaining(int recordedMode, int replayedMode) {
+            try {
+                final IvParameterSpec iv = new IvParameterSpec(LABEL_CREDENTIAL);
+                recordedCbc.init(recordedMode, key(recordedKey), iv);
+                replayedCbc.init(replayedMode, key(replayedKey), iv);
+                recordedMac.init(recordedKey);
+                replayedMac.init(replayedKey);
+                streamPosition = 0;
+                streamEnd = -1;
+                chaining = true;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private byte[] block(int mode, SecretKeySpec key, byte[] data, int offset) {
+            try {
+                ecb.init(mode, key);
+                return ecb.doFinal(data, offset, 16);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static SecretKeySpec key(byte[] key) {
+            return new SecretKeySpec(key, "AES");
+        }
+
+        private static byte[] replace(byte[] command, int offset, byte[] data) {
+            final byte[] replaced = command.clone();
+            System.arraycopy(data, 0, replaced, offset, data.length);
+            return replaced;
+        }
+
+        private static int dataOffset(byte[] command) {
+            return command.length > 7 && command[4] == 0 ? 7 : 5;
+        }
+
+        private static int dataLength(byte[] command) {
+            if (command.length <= 5) {
+                return 0;
+            }
+            if (command.length > 7 && command[4] == 0) {
+                return ((command[5] & 0xff) << 8) | (command[6] & 0xff);
+            }
+            return command[4] & 0xff;
+        }
+    }
+}
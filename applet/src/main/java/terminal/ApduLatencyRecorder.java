@@ -0,0 +1,122 @@
+package terminal;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Collects per-instruction APDU latencies in {@link LatencyHistogram}s, indexed by the INS byte, and optionally
+ * writes every exchange to a CSV trace file.
+ * <p>
+ * Recording is thread-safe. Without a trace file, recording does not allocate.
+ */
+public final class ApduLatencyRecorder implements Closeable {
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[256];
+    private final long startNanos = System.nanoTime();
+    private volatile PrintWriter trace = null;
+
+    public ApduLatencyRecorder() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Writes every subsequently recorded exchange to the given file, one CSV line per APDU:
+     * {@code offset_ns,instruction,command_bytes,response_bytes,sw,latency_ns}.
+     */
+    public synchronized ApduLatencyRecorder traceTo(Path file) throws IOException {
+        close();
+        final BufferedWriter writer = Files.newBufferedWriter(file);
+        final PrintWriter printWriter = new PrintWriter(writer);
+        printWriter.println("offset_ns,instruction,command_bytes,response_bytes,sw,latency_ns");
+        trace = printWriter;
+        return this;
+    }
+
+    /**
+     * Records one command/response exchange.
+     */
+    public void record(byte ins, long startNanos, long latencyNanos, int commandBytes, int responseBytes, int sw) {
+        histograms[ins & 0xff].record(latencyNanos);
+        final PrintWriter writer = trace;
+        if (writer != null) {
+            synchronized (this) {
+                writer.printf("%d,%s,%d,%d,%04X,%d%n", startNanos - this.startNanos, instructionName(ins),
+                        commandBytes, responseBytes, sw, latencyNanos);
+            }
+        }
+    }
+
+    /**
+     * Histogram of the given instruction.
+     */
+    public LatencyHistogram histogram(byte ins) {
+        return histograms[ins & 0xff];
+    }
+
+    /**
+     * Sum of all recorded latencies over all instructions.
+     */
+    public long totalNanos() {
+        long total = 0;
+        for (LatencyHistogram histogram : histograms) {
+            total += histogram.getTotalNanos();
+        }
+        return total;
+    }
+
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * Table with one line per instruction that was recorded at least once.
+     */
+    public String report() {
+        final StringBuilder sb = new StringBuilder();
+        for (int ins = 0; ins < histograms.length; ins++) {
+            final LatencyHistogram histogram = histograms[ins];
+            if (histogram.getCount() > 0) {
+                sb.append(String.format("%-16s %s%n", instructionName((byte) ins), histogram.summary()));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public synchronized void close() {
+        final PrintWriter writer = trace;
+        trace = null;
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    /**
+     * Name of an instruction of the ISO 7816 SELECT command or of one of the applets in this project.
+     */
+    public static String instructionName(byte ins) {
+        switch (ins) {
+            case (byte) 0xA4: return "SELECT";
+            case (byte) 0xC0: return "GET_RESPONSE";
+            case (byte) 0x10: return "AUTH_INIT";
+            case (byte) 0x11: return "AUTH";
+            case (byte) 0x12: return "GET_ID";
+            case (byte) 0x13: return "AUTH_AND_GET_ID";
+            case (byte) 0x14: return "RESUME";
+            case (byte) 0x15: return "GET_CREDENTIAL";
+            case (byte) 0x16: return "PUT_CREDENTIAL";
+            case (byte) 0x17: return "GET_STATS";
+            case (byte) 0x18: return "UPDATE_CREDENTIALS";
+            case (byte) 0x20: return "RUN";
+            default: return String.format("INS_%02X", ins & 0xff);
+        }
+    }
+}
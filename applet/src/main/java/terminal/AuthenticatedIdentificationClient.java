@@ -0,0 +1,517 @@
+package terminal;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Terminal side of the AuthenticatedIdentificationApplet protocol.
+ * <p>
+ * Runs AUTH_INIT, AUTH, and GET_ID (or the AUTH_AND_GET_ID fast path) over any {@link CardChannel} and returns the
+ * card ID once the card has proven possession of the pre-shared key. A client instance holds either one PSK or a
+ * {@link KeyDiversifier} for cards installed with a diversifier, and may be shared between threads: every thread gets
+ * its own cipher instances and preallocated APDU buffers, so apart from the ephemeral key object (and PSK ciphers of
+ * cards missing in the thread's {@link PskCipherCache}) no allocations happen per session.
+ * <p>
+ * Cards installed with the credential store additionally carry a variable-size credential, which is read and written
+ * encrypted under the session key and authenticated with a {@link CredentialMac}, either with extended-length APDUs
+ * or, for cards and readers without extended length support, in short APDUs with response chaining (61xx / GET
+ * RESPONSE).
+ * <p>
+ * PSK and ID of a card can be replaced in an ordinary session with {@link #updateCredentials}, e.g. to rotate keys
+ * through door readers without reinstalling the applet.
+ */
+public final class AuthenticatedIdentificationClient {
+
+    public static final byte[] APPLET_AID = {(byte) 0xf0, 0x00, 0x00, 0x0c, (byte) 0xdc, 0x01};
+
+    // ===== APDU constants =====
+    private static final byte CLA_ISO7816     = (byte) 0x00;
+    private static final byte INS_SELECT      = (byte) 0xA4;
+    private static final byte CLA_PROPRIETARY = (byte) 0x80;
+    private static final byte INS_AUTH_INIT   = (byte) 0x10;
+    private static final byte INS_AUTH        = (byte) 0x11;
+    private static final byte INS_GET_ID      = (byte) 0x12;
+    private static final byte INS_AUTH_AND_GET_ID = (byte) 0x13;
+    private static final byte INS_GET_CREDENTIAL = (byte) 0x15;
+    private static final byte INS_PUT_CREDENTIAL = (byte) 0x16;
+    private static final byte INS_GET_STATS   = (byte) 0x17;
+    private static final byte INS_UPDATE_CREDENTIALS = (byte) 0x18;
+    private static final byte INS_GET_RESPONSE = (byte) 0xC0;
+    private static final byte P1_WITH_DIVERSIFIER = (byte) 0x01;
+
+    private static final int SW_BYTES_REMAINING_00 = 0x6100;
+    private static final int SHORT_CHUNK = 240;            // Largest multiple of the block size that fits into Lc
+    private static final int EXTENDED_BUFFER = 65546;      // Extended header (7) + Lc up to 65535 + Le (2) + 2
+
+    private static final int SW_NO_ERROR = 0x9000;
+
+    private static final byte[] MSG_SUCCESS = {'A','U','T','H','_','S','U','C','C','E','S','S', 0, 0, 0, 0};
+    private static final byte[] LABEL_CREDENTIAL = {'C','R','E','D','E','N','T','I','A','L', 0, 0, 0, 0, 0, 0};
+
+    private final boolean diversified;
+    private final ThreadLocal<Workspace> workspace;
+
+    /**
+     * Decides the new credentials of a card during {@link #updateCredentials(CardChannel, CredentialUpdate)}.
+     */
+    @FunctionalInterface
+    public interface CredentialUpdate {
+        /**
+         * Returns the new PSK (16) || new ID (16) for the card with the verified ID, or null to leave the card
+         * unchanged. The diversifier is the one the card was installed with, or null for clients with a single PSK.
+         */
+        byte[] newCredentials(byte[] id, byte[] diversifier) throws CardException;
+    }
+
+    public AuthenticatedIdentificationClient(byte[] psk) {
+        if (psk.length != 16) {
+            throw new IllegalArgumentException("PSK must be 16 bytes");
+        }
+        final byte[] key = psk.clone();
+        this.diversified = false;
+        this.workspace = ThreadLocal.withInitial(() -> new Workspace(new PskCiphers(key), null));
+    }
+
+    /**
+     * Creates a client for diversified cards: AUTH_INIT requests the card's diversifier, and the PSK ciphers are
+     * taken from a per-thread LRU cache holding up to cacheCapacity cards.
+     */
+    public AuthenticatedIdentificationClient(KeyDiversifier diversifier, int cacheCapacity) {
+        this.diversified = true;
+        this.workspace = ThreadLocal.withInitial(() -> new Workspace(null, new PskCipherCache(diversifier, cacheCapacity)));
+    }
+
+    /**
+     * Returns the PSK cipher cache of the calling thread, or null if the client holds a single PSK.
+     */
+    public PskCipherCache getCipherCache() {
+        return workspace.get().cache;
+    }
+
+    /**
+     * Creates the cipher instances and buffers of the calling thread ahead of the first session.
+     */
+    public void warmUp() {
+        workspace.get();
+    }
+
+    /**
+     * Selects the authenticated identification applet.
+     */
+    public void select(CardChannel channel) throws CardException {
+        final Workspace ws = workspace.get();
+        ws.command.clear();
+        ws.command.put(CLA_ISO7816).put(INS_SELECT).put((byte) 0x04).put((byte) 0x00)
+                .put((byte) APPLET_AID.length).put(APPLET_AID);
+        transmit(channel, ws, "SELECT", 0);
+    }
+
+    /**
+     * Runs AUTH_INIT, AUTH, and GET_ID and returns the verified card ID.
+     */
+    public byte[] readId(CardChannel channel) throws CardException {
+        final byte[] id = new byte[16];
+        readId(channel, id, 0);
+        return id;
+    }
+
+    /**
+     * Runs AUTH_INIT, AUTH, and GET_ID and writes the verified 16-byte card ID to the given buffer.
+     */
+    public void readId(CardChannel channel, byte[] id, int offset) throws CardException {
+        final Workspace ws = workspace.get();
+        authenticate(channel, ws, INS_AUTH, 16);
+
+        // ===== GET_ID =====
+        ws.command.clear();
+        ws.command.put(CLA_PROPRIETARY).put(INS_GET_ID).put((byte) 0x00).put((byte) 0x00).put((byte) 0x00);
+        transmit(channel, ws, "GET_ID", 16);
+        ws.decryptEphemeral(ws.response.array(), 0, id, offset);
+    }
+
+    /**
+     * Runs AUTH_INIT and AUTH_AND_GET_ID and returns the verified card ID.
+     */
+    public byte[] readIdFast(CardChannel channel) throws CardException {
+        final byte[] id = new byte[16];
+        readIdFast(channel, id, 0);
+        return id;
+    }
+
+    /**
+     * Runs AUTH_INIT and AUTH_AND_GET_ID and writes the verified 16-byte card ID to the given buffer.
+     */
+    public void readIdFast(CardChannel channel, byte[] id, int offset) throws CardException {
+        final Workspace ws = workspace.get();
+        authenticate(channel, ws, INS_AUTH_AND_GET_ID, 32);
+        ws.decryptEphemeral(ws.response.array(), 16, id, offset);
+    }
+
+    /**
+     * Authenticates with AUTH_INIT and AUTH_AND_GET_ID, writes the verified ID to id (if not null), and reads the
+     * usage counters with GET_STATS. Only cards installed with statistics support the command.
+     */
+    public CardStatistics readStatistics(CardChannel channel, byte[] id) throws CardException {
+        final Workspace ws = workspace.get();
+        authenticate(channel, ws, INS_AUTH_AND_GET_ID, 32);
+        if (id != null) {
+            ws.decryptEphemeral(ws.response.array(), 16, id, 0);
+        }
+
+        ws.command.clear();
+        ws.command.put(CLA_PROPRIETARY).put(INS_GET_STATS).put((byte) 0x00).put((byte) 0x00).put((byte) 0x00);
+        transmit(channel, ws, "GET_STATS", -1);
+        final int length = ws.response.position();
+        if (length == 0 || length % 16 != 0) {
+            throw new ProtocolException("GET_STATS returned " + length + " bytes");
+        }
+        final byte[] plaintext = new byte[length];
+        for (int offset = 0; offset < length; offset += 16) {
+            ws.decryptEphemeral(ws.response.array(), offset, plaintext, offset);
+        }
+        return CardStatistics.parse(plaintext, 0, length);
+    }
+
+    /**
+     * Authenticates with AUTH_INIT and AUTH_AND_GET_ID, writes the verified ID to id (if not null), and reads the
+     * credential with GET_CREDENTIAL.
+     *
+     * @param extendedLength read the credential in one extended-length response instead of chained short responses
+     */
+    public byte[] readCredential(CardChannel channel, byte[] id, boolean extendedLength) throws CardException {
+        final Workspace ws = workspace.get();
+        authenticate(channel, ws, INS_AUTH_AND_GET_ID, 32);
+        if (id != null) {
+            ws.decryptEphemeral(ws.response.array(), 16, id, 0);
+        }
+
+        final ByteBuffer command = extendedLength ? ws.bulkCommand() : ws.command;
+        final ByteBuffer response = extendedLength ? ws.bulkResponse() : ws.response;
+        final ByteBuffer ciphertext = ws.bulkData();
+        command.clear();
+        command.put(CLA_PROPRIETARY).put(INS_GET_CREDENTIAL).put((byte) 0x00).put((byte) 0x00).put((byte) 0x00);
+        if (extendedLength) {
+            // Extended Le = 0x7FFF, after the 0x00 that marks the extended format. Le = 0x0000 (65536) does not
+            // fit into the short that APDU.setOutgoing() returns, and jCardSim truncates it to 0.
+            command.put((byte) 0x7F).put((byte) 0xFF);
+        }
+        int sw = exchange(channel, command, response, "GET_CREDENTIAL");
+        ciphertext.put(response.array(), 0, response.position());
+        while ((sw & 0xff00) == SW_BYTES_REMAINING_00) {
+            command.clear();
+            command.put(CLA_ISO7816).put(INS_GET_RESPONSE).put((byte) 0x00).put((byte) 0x00).put((byte) sw);
+            sw = exchange(channel, command, response, "GET RESPONSE");
+            ciphertext.put(response.array(), 0, response.position());
+        }
+        if (sw != SW_NO_ERROR) {
+            throw new ProtocolException("GET_CREDENTIAL failed", sw);
+        }
+        final int length = ciphertext.position() - CredentialMac.LENGTH;
+        if (length < 16 || length % 16 != 0) {
+            throw new ProtocolException("GET_CREDENTIAL returned " + ciphertext.position() + " bytes");
+        }
+
+        // Stream: ciphertext || MAC, nothing is decrypted before the MAC verifies
+        final CredentialMac mac = ws.credentialMac();
+        mac.update(ciphertext.array(), 0, length);
+        if (!mac.verify(ciphertext.array(), length)) {
+            throw new ProtocolException("Credential MAC does not verify under the session key");
+        }
+
+        // Plaintext: length (2) || credential || zero padding
+        final byte[] plaintext = ws.credentialCipher(Cipher.DECRYPT_MODE, ciphertext.array(), length);
+        final int declared = ((plaintext[0] & 0xff) << 8) | (plaintext[1] & 0xff);
+        if (declared > plaintext.length - 2) {
+            throw new ProtocolException("Credential does not decrypt under the session key");
+        }
+        return Arrays.copyOfRange(plaintext, 2, 2 + declared);
+    }
+
+    /**
+     * Authenticates with AUTH_INIT and AUTH_AND_GET_ID and replaces the card's credential with PUT_CREDENTIAL.
+     *
+     * @param extendedLength send the credential in one extended-length command instead of short chunks
+     */
+    public void writeCredential(CardChannel channel, byte[] credential, boolean extendedLength) throws CardException {
+        // The stream offsets in P1P2 are positive shorts
+        if (credential.length > 0x7fff - 2 - 15 - CredentialMac.LENGTH) {
+            throw new IllegalArgumentException("Credential too large");
+        }
+        final Workspace ws = workspace.get();
+        authenticate(channel, ws, INS_AUTH_AND_GET_ID, 32);
+
+        final byte[] plaintext = new byte[(credential.length + 2 + 15) & ~15];
+        plaintext[0] = (byte) (credential.length >> 8);
+        plaintext[1] = (byte) credential.length;
+        System.arraycopy(credential, 0, plaintext, 2, credential.length);
+        final byte[] ciphertext = Arrays.copyOf(ws.credentialCipher(Cipher.ENCRYPT_MODE, plaintext, plaintext.length),
+                plaintext.length + CredentialMac.LENGTH);
+        final CredentialMac mac = ws.credentialMac();
+        mac.update(ciphertext, 0, plaintext.length);
+        System.arraycopy(mac.doFinal(), 0, ciphertext, plaintext.length, CredentialMac.LENGTH);
+
+        final ByteBuffer command = extendedLength ? ws.bulkCommand() : ws.command;
+        final ByteBuffer response = extendedLength ? ws.bulkResponse() : ws.response;
+        final int chunk = extendedLength ? ciphertext.length : SHORT_CHUNK;
+        for (int offset = 0; offset < ciphertext.length; offset += chunk) {
+            final int length = Math.min(chunk, ciphertext.length - offset);
+            command.clear();
+            command.put(CLA_PROPRIETARY).put(INS_PUT_CREDENTIAL).put((byte) (offset >> 8)).put((byte) offset);
+            if (extendedLength) {
+                command.put((byte) 0x00).put((byte) (length >> 8)).put((byte) length);
+            } else {
+                command.put((byte) length);
+            }
+            command.put(ciphertext, offset, length);
+            final int sw = exchange(channel, command, response, "PUT_CREDENTIAL");
+            if (sw != SW_NO_ERROR) {
+                throw new ProtocolException("PUT_CREDENTIAL failed", sw);
+            }
+        }
+    }
+
+    /**
+     * Authenticates with AUTH_INIT and AUTH_AND_GET_ID under the current PSK, asks the update for the card's new
+     * credentials, and replaces PSK and ID with UPDATE_CREDENTIALS. The card ends the session afterwards, so the new
+     * credentials only take effect with the next AUTH_INIT. Returns the verified (old) ID.
+     */
+    public byte[] updateCredentials(CardChannel channel, CredentialUpdate update) throws CardException {
+        final Workspace ws = workspace.get();
+        authenticate(channel, ws, INS_AUTH_AND_GET_ID, 32);
+        final byte[] id = new byte[16];
+        ws.decryptEphemeral(ws.response.array(), 16, id, 0);
+
+        final byte[] credentials = update.newCredentials(id.clone(), diversified ? ws.diversifier.clone() : null);
+        if (credentials == null) {
+            return id;
+        }
+        if (credentials.length != InstallData.PSK_LENGTH + InstallData.ID_LENGTH) {
+            throw new IllegalArgumentException("New credentials must be PSK (16) || ID (16)");
+        }
+
+        // E_eph(psk') || E_eph(id') || E_eph(AES_psk'(id')), the last block binds the new ID to the new key
+        final byte[] plaintext = Arrays.copyOf(credentials, 48);
+        try {
+            final Cipher check = Cipher.getInstance("AES/ECB/NoPadding");
+            check.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(credentials, 0, 16, "AES"));
+            check.doFinal(credentials, 16, 16, plaintext, 32);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        ws.command.clear();
+        ws.command.put(CLA_PROPRIETARY).put(INS_UPDATE_CREDENTIALS).put((byte) 0x00).put((byte) 0x00).put((byte) 48);
+        ws.command.put(ws.encryptEphemeral(plaintext));
+        Arrays.fill(plaintext, (byte) 0);
+        transmit(channel, ws, "UPDATE_CREDENTIALS", 0);
+        return id;
+    }
+
+    /**
+     * Runs AUTH_INIT and the given authentication instruction, verifies the status block at the start of the
+     * response, and leaves the ephemeral key and the response in the workspace.
+     */
+    private void authenticate(CardChannel channel, Workspace ws, byte ins, int responseLength) throws CardException {
+        // ===== AUTH_INIT: recover rc from AES_psk(rc || 0^64) =====
+        ws.command.clear();
+        ws.command.put(CLA_PROPRIETARY).put(INS_AUTH_INIT).put(diversified ? P1_WITH_DIVERSIFIER : 0x00)
+                .put((byte) 0x00).put((byte) 0x00);
+        transmit(channel, ws, "AUTH_INIT", diversified ? 16 + KeyDiversifier.DIVERSIFIER_LENGTH : 16);
+        if (diversified) {
+            ws.psk = ws.cache.get(ws.response.array(), 16);
+            System.arraycopy(ws.response.array(), 16, ws.diversifier, 0, KeyDiversifier.DIVERSIFIER_LENGTH);
+        }
+        ws.psk.decrypt(ws.response.array(), 0, ws.block, 0);
+        for (int i = 8; i < 16; i++) {
+            if (ws.block[i] != 0) {
+                throw new ProtocolException("AUTH_INIT response does not decrypt under the PSK");
+            }
+        }
+
+        // ===== AUTH: derive k_eph = rc || rt and send AES_psk(rt || rc) =====
+        ws.random.nextBytes(ws.rt);
+        System.arraycopy(ws.block, 0, ws.ephemeralKey, 0, 8);
+        System.arraycopy(ws.rt, 0, ws.ephemeralKey, 8, 8);
+        System.arraycopy(ws.rt, 0, ws.block, 0, 8);
+        System.arraycopy(ws.ephemeralKey, 0, ws.block, 8, 8);
+
+        ws.command.clear();
+        ws.command.put(CLA_PROPRIETARY).put(ins).put((byte) 0x00).put((byte) 0x00).put((byte) 16);
+        ws.psk.encrypt(ws.block, ws.command);
+        ws.command.put((byte) 0x00);
+        ws.initEphemeral();
+        transmit(channel, ws, ins == INS_AUTH ? "AUTH" : "AUTH_AND_GET_ID", -1);
+
+        // The card answers with the status block only if authentication failed
+        final int length = ws.response.position();
+        ws.decryptEphemeral(ws.response.array(), 0, ws.block, 0);
+        if (!MessageDigest.isEqual(ws.block, MSG_SUCCESS)) {
+            throw new ProtocolException("Card rejected authentication");
+        }
+        if (length != responseLength) {
+            throw new ProtocolException("Unexpected response length " + length);
+        }
+    }
+
+    /**
+     * Sends the command in the workspace and checks the status word. The response data (without status word) is left
+     * in the response buffer, with its position set to the data length.
+     *
+     * @param expectedLength expected data length, or -1 to skip the check
+     */
+    private static void transmit(CardChannel channel, Workspace ws, String name, int expectedLength) throws CardException {
+        ws.command.flip();
+        ws.response.clear();
+        final int length = channel.transmit(ws.command, ws.response);
+        if (length < 2) {
+            throw new ProtocolException(name + " returned no status word");
+        }
+        final byte[] response = ws.response.array();
+        final int sw = ((response[length - 2] & 0xff) << 8) | (response[length - 1] & 0xff);
+        if (sw != SW_NO_ERROR) {
+            throw new ProtocolException(name + " failed", sw);
+        }
+        if (expectedLength >= 0 && length - 2 != expectedLength) {
+            throw new ProtocolException(name + " returned " + (length - 2) + " bytes instead of " + expectedLength);
+        }
+        ws.response.position(length - 2);
+    }
+
+    /**
+     * Sends the command and returns the status word. The response data (without status word) is left in the
+     * response buffer, with its position set to the data length.
+     */
+    private static int exchange(CardChannel channel, ByteBuffer command, ByteBuffer response, String name) throws CardException {
+        command.flip();
+        response.clear();
+        final int length = channel.transmit(command, response);
+        if (length < 2) {
+            throw new ProtocolException(name + " returned no status word");
+        }
+        final byte[] data = response.array();
+        response.position(length - 2);
+        return ((data[length - 2] & 0xff) << 8) | (data[length - 1] & 0xff);
+    }
+
+    /**
+     * Per-thread cipher instances and buffers.
+     */
+    private static final class Workspace {
+        final ByteBuffer command = ByteBuffer.allocate(261);
+        final ByteBuffer response = ByteBuffer.allocate(258);
+        final byte[] block = new byte[16];
+        final byte[] rt = new byte[8];
+        final byte[] ephemeralKey = new byte[16];
+        final byte[] diversifier = new byte[KeyDiversifier.DIVERSIFIER_LENGTH];
+        final SecureRandom random = new SecureRandom();
+
+        // PSK ciphers are initialized once (or once per cached card), the ephemeral cipher once per session
+        final PskCipherCache cache;
+        PskCiphers psk;
+        private final Cipher ephemeralDecrypt;
+
+        Workspace(PskCiphers psk, PskCipherCache cache) {
+            this.psk = psk;
+            this.cache = cache;
+            try {
+                ephemeralDecrypt = Cipher.getInstance("AES/ECB/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/ECB/NoPadding not available", e);
+            }
+        }
+
+        void initEphemeral() {
+            try {
+                ephemeralDecrypt.init(Cipher.DECRYPT_MODE, new SecretKeySpec(ephemeralKey, "AES"));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        // Buffers and cipher for credentials, allocated on first use
+        private ByteBuffer bulkCommand;
+        private ByteBuffer bulkResponse;
+        private ByteBuffer bulkData;
+        private Cipher credentialCipher;
+        private CredentialMac credentialMac;
+        private Cipher ephemeralEncrypt;
+
+        ByteBuffer bulkCommand() {
+            if (bulkCommand == null) {
+                bulkCommand = ByteBuffer.allocate(EXTENDED_BUFFER);
+            }
+            return bulkCommand;
+        }
+
+        ByteBuffer bulkResponse() {
+            if (bulkResponse == null) {
+                bulkResponse = ByteBuffer.allocate(EXTENDED_BUFFER);
+            }
+            return bulkResponse;
+        }
+
+        ByteBuffer bulkData() {
+            if (bulkData == null) {
+                bulkData = ByteBuffer.allocate(EXTENDED_BUFFER);
+            }
+            bulkData.clear();
+            return bulkData;
+        }
+
+        /**
+         * AES/CBC under the session key with the credential IV, over the first length bytes of data.
+         */
+        byte[] credentialCipher(int mode, byte[] data, int length) {
+            try {
+                if (credentialCipher == null) {
+                    credentialCipher = Cipher.getInstance("AES/CBC/NoPadding");
+                }
+                credentialCipher.init(mode, new SecretKeySpec(ephemeralKey, "AES"), new IvParameterSpec(LABEL_CREDENTIAL));
+                return credentialCipher.doFinal(data, 0, length);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * AES-CMAC of the credential stream, started under the session key.
+         */
+        CredentialMac credentialMac() {
+            if (credentialMac == null) {
+                credentialMac = new CredentialMac();
+            }
+            credentialMac.init(ephemeralKey);
+            return credentialMac;
+        }
+
+        /**
+         * AES/ECB under the session key, allocated on first use as only credential updates need it.
+         */
+        byte[] encryptEphemeral(byte[] plaintext) {
+            try {
+                if (ephemeralEncrypt == null) {
+                    ephemeralEncrypt = Cipher.getInstance("AES/ECB/NoPadding");
+                }
+                ephemeralEncrypt.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(ephemeralKey, "AES"));
+                return ephemeralEncrypt.doFinal(plaintext);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void decryptEphemeral(byte[] in, int inOffset, byte[] out, int outOffset) {
+            try {
+                ephemeralDecrypt.doFinal(in, inOffset, 16, out, outOffset);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
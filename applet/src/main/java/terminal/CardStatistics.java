@@ -0,0 +1,132 @@
+package terminal;
+
+import java.util.Arrays;
+
+/**
+ * Usage counters returned by GET_STATS: version (1) || counter count (1) || 32-bit big-endian counters, followed by
+ * padding in case of the authenticated applet.
+ * <p>
+ * The authenticated applet reports the counters in the order of the {@code AUTH_INIT} to {@code PERSISTENT_WRITES}
+ * indices, the identification applet only reports {@link #ID_RELEASED} (at index 0).
+ */
+public final class CardStatistics {
+
+    public static final int VERSION = 1;
+
+    // ===== Counter indices of the authenticated applet =====
+    public static final int AUTH_INIT         = 0;
+    public static final int AUTH_ATTEMPT      = 1;
+    public static final int AUTH_SUCCESS      = 2;
+    public static final int ID_REFUSED        = 3;
+    public static final int ID_RELEASED       = 4;
+    public static final int RESUME_ACCEPTED   = 5;
+    public static final int RESUME_REJECTED   = 6;
+    public static final int PERSISTENT_WRITES = 7;
+
+    private static final String[] NAMES = {
+            "auth_init", "auth_attempt", "auth_success", "id_refused",
+            "id_released", "resume_accepted", "resume_rejected", "persistent_writes"
+    };
+
+    private final long[] counters;
+
+    public CardStatistics(long[] counters) {
+        this.counters = counters.clone();
+    }
+
+    /**
+     * Parses a GET_STATS response (decrypted, in case of the authenticated applet).
+     */
+    public static CardStatistics parse(byte[] data, int offset, int length) throws ProtocolException {
+        if (length < 2 || data[offset] != VERSION) {
+            throw new ProtocolException("Unsupported statistics block");
+        }
+        final int count = data[offset + 1] & 0xff;
+        if (length < 2 + 4 * count) {
+            throw new ProtocolException("Statistics block truncated");
+        }
+        final long[] counters = new long[count];
+        for (int i = 0; i < count; i++) {
+            final int at = offset + 2 + 4 * i;
+            counters[i] = ((data[at] & 0xffL) << 24) | ((data[at + 1] & 0xffL) << 16)
+                    | ((data[at + 2] & 0xffL) << 8) | (data[at + 3] & 0xffL);
+        }
+        return new CardStatistics(counters);
+    }
+
+    /**
+     * Parses the response of the identification applet, whose only counter is the number of GET_ID commands.
+     */
+    public static CardStatistics parseIdentification(byte[] data, int offset, int length) throws ProtocolException {
+        final CardStatistics raw = parse(data, offset, length);
+        if (raw.size() != 1) {
+            throw new ProtocolException("Unexpected identification statistics with " + raw.size() + " counters");
+        }
+        final long[] counters = new long[NAMES.length];
+        counters[ID_RELEASED] = raw.get(0);
+        return new CardStatistics(counters);
+    }
+
+    public int size() {
+        return counters.length;
+    }
+
+    /**
+     * Value of the counter with the given index, or 0 if the card does not report it.
+     */
+    public long get(int index) {
+        return index < counters.length ? counters[index] : 0;
+    }
+
+    /**
+     * Authentication attempts in which the terminal did not prove knowledge of the PSK.
+     */
+    public long authFailures() {
+        return get(AUTH_ATTEMPT) - get(AUTH_SUCCESS);
+    }
+
+    /**
+     * AUTH_INIT commands that were not followed by an authentication attempt, e.g. when the card left the field.
+     */
+    public long abandonedSessions() {
+        return Math.max(0, get(AUTH_INIT) - get(AUTH_ATTEMPT));
+    }
+
+    public static int counterCount() {
+        return NAMES.length;
+    }
+
+    public static String name(int index) {
+        return index < NAMES.length ? NAMES[index] : "counter_" + index;
+    }
+
+    /**
+     * Counter increments since an earlier reading of the same card.
+     */
+    public CardStatistics since(CardStatistics earlier) {
+        final long[] delta = new long[Math.max(counters.length, earlier.counters.length)];
+        for (int i = 0; i < delta.length; i++) {
+            delta[i] = get(i) - earlier.get(i);
+        }
+        return new CardStatistics(delta);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CardStatistics && Arrays.equals(counters, ((CardStatistics) o).counters);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(counters);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counters.length; i++) {
+            sb.append(i == 0 ? "" : " ").append(name(i)).append('=').append(counters[i]);
+        }
+        return sb.toString();
+    }
+}
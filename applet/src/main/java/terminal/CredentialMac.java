@@ -0,0 +1,104 @@
+package terminal;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+/**
+ * AES-CMAC (RFC 4493) over the ciphertext of a credential stream, under k_mac = AES_eph(LABEL_CREDENTIAL_MAC). The
+ * JDK has no CMAC, so it is built on AES/ECB; as the stream always consists of whole blocks, only the first subkey
+ * is needed. Not thread-safe.
+ */
+public final class CredentialMac {
+
+    public static final int LENGTH = 16;
+
+    private static final byte[] LABEL_CREDENTIAL_MAC = {'C','R','E','D','E','N','T','I','A','L','_','M','A','C', 0, 0};
+
+    private final Cipher cipher;
+    private final byte[] subkey = new byte[16];
+    private final byte[] state = new byte[16];
+    private final byte[] last = new byte[16];
+    private boolean pending;
+
+    public CredentialMac() {
+        try {
+            cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/ECB/NoPadding not available", e);
+        }
+    }
+
+    /**
+     * Starts a MAC under the key derived from the given session key.
+     */
+    public void init(byte[] ephemeralKey) {
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(ephemeralKey, "AES"));
+            final byte[] macKey = cipher.doFinal(LABEL_CREDENTIAL_MAC);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(macKey, "AES"));
+            Arrays.fill(macKey, (byte) 0);
+
+            // K1 = AES_mac(0^128) doubled in GF(2^128)
+            Arrays.fill(state, (byte) 0);
+            cipher.doFinal(state, 0, 16, subkey, 0);
+            final int carry = (subkey[0] & 0x80) != 0 ? 0x87 : 0;
+            for (int i = 0; i < 15; i++) {
+                subkey[i] = (byte) ((subkey[i] << 1) | ((subkey[i + 1] & 0xff) >>> 7));
+            }
+            subkey[15] = (byte) ((subkey[15] << 1) ^ carry);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        pending = false;
+    }
+
+    /**
+     * Adds whole blocks of ciphertext.
+     */
+    public void update(byte[] data, int offset, int length) {
+        if (length % 16 != 0) {
+            throw new IllegalArgumentException("Credential streams consist of whole blocks");
+        }
+        // The last block is held back, as it is combined with the subkey once the stream ends
+        for (int block = offset; block < offset + length; block += 16) {
+            if (pending) {
+                absorb(last, null);
+            }
+            System.arraycopy(data, block, last, 0, 16);
+            pending = true;
+        }
+    }
+
+    /**
+     * Returns the MAC of the blocks added since {@link #init(byte[])}.
+     */
+    public byte[] doFinal() {
+        if (!pending) {
+            throw new IllegalStateException("Credential streams hold at least one block");
+        }
+        absorb(last, subkey);
+        pending = false;
+        return state.clone();
+    }
+
+    /**
+     * Checks the MAC at the given offset against the blocks added since {@link #init(byte[])}, in constant time.
+     */
+    public boolean verify(byte[] mac, int offset) {
+        return MessageDigest.isEqual(doFinal(), Arrays.copyOfRange(mac, offset, offset + LENGTH));
+    }
+
+    private void absorb(byte[] block, byte[] key) {
+        for (int i = 0; i < 16; i++) {
+            state[i] ^= key == null ? block[i] : (byte) (block[i] ^ key[i]);
+        }
+        try {
+            cipher.doFinal(state, 0, 16, state, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package terminal;
+
+import java.util.Arrays;
+
+/**
+ * Builds and validates the install parameters of the AuthenticatedIdentificationApplet on the host.
+ * <p>
+ * The applet data is the 16-byte pre-shared key, the 16-byte card ID, an optional options byte, and the 8-byte key
+ * diversifier if the options byte contains {@link #OPT_DIVERSIFIER}. The checks
+ * mirror the parsing in the applet constructor, so that a bad parameter set is rejected before a card is touched.
+ */
+public final class InstallData {
+
+    public static final int PSK_LENGTH = 16;
+    public static final int ID_LENGTH = 16;
+    private static final int OPTIONS_OFFSET = PSK_LENGTH + ID_LENGTH;
+
+    // ===== Install options (optional byte following the PSK and the ID) =====
+    public static final byte OPT_CHALLENGE_POOL = (byte) 0x01;
+    public static final byte OPT_RESUMPTION     = (byte) 0x02;
+    public static final byte OPT_DIVERSIFIER    = (byte) 0x04;
+    public static final byte OPT_CREDENTIAL     = (byte) 0x08;
+    public static final byte OPT_STATISTICS     = (byte) 0x10;
+    private static final byte KNOWN_OPTIONS = OPT_CHALLENGE_POOL | OPT_RESUMPTION | OPT_DIVERSIFIER | OPT_CREDENTIAL
+            | OPT_STATISTICS;
+
+    private InstallData() {
+    }
+
+    /**
+     * Returns the applet data psk || id, followed by the options byte if any option is set. This is the value passed
+     * to {@code gp --params}.
+     */
+    public static byte[] appletData(byte[] psk, byte[] id, byte options) {
+        if ((options & OPT_DIVERSIFIER) != 0) {
+            throw new IllegalArgumentException("Diversifier option requires a diversifier");
+        }
+        return appletData(psk, id, options, null);
+    }
+
+    /**
+     * Returns the applet data of a diversified card, psk || id || options || diversifier, with
+     * {@link #OPT_DIVERSIFIER} added to the options. A null diversifier is the same as
+     * {@link #appletData(byte[], byte[], byte)}.
+     */
+    public static byte[] appletData(byte[] psk, byte[] id, byte options, byte[] diversifier) {
+        if (diversifier != null) {
+            options |= OPT_DIVERSIFIER;
+        }
+        final int length = OPTIONS_OFFSET + (options != 0 ? 1 : 0) + (diversifier != null ? diversifier.length : 0);
+        final byte[] data = new byte[length];
+        System.arraycopy(psk, 0, data, 0, Math.min(psk.length, PSK_LENGTH));
+        System.arraycopy(id, 0, data, PSK_LENGTH, Math.min(id.length, ID_LENGTH));
+        if (options != 0) {
+            data[OPTIONS_OFFSET] = options;
+        }
+        if (diversifier != null) {
+            System.arraycopy(diversifier, 0, data, OPTIONS_OFFSET + 1, diversifier.length);
+        }
+        validate(psk, id, options);
+        validate(data);
+        return data;
+    }
+
+    /**
+     * Wraps applet data into the full install parameters as passed to {@code install()} by a simulator: AID length 0,
+     * control info length 0, applet data length, applet data.
+     */
+    public static byte[] installParameters(byte[] appletData) {
+        validate(appletData);
+        final byte[] parameters = new byte[3 + appletData.length];
+        parameters[2] = (byte) appletData.length;
+        System.arraycopy(appletData, 0, parameters, 3, appletData.length);
+        return parameters;
+    }
+
+    /**
+     * Extracts the applet data from install parameters (AID, control info, and applet data, each length-prefixed).
+     */
+    public static byte[] appletDataOf(byte[] installParameters) {
+        final int li = installParameters[0] & 0xff;
+        final int lc = installParameters[li + 1] & 0xff;
+        final int length = installParameters[li + lc + 2] & 0xff;
+        return Arrays.copyOfRange(installParameters, li + lc + 3, li + lc + 3 + length);
+    }
+
+    /**
+     * Checks applet data the way the applet constructor parses it.
+     *
+     * @throws IllegalArgumentException if the card would reject the data or silently misinterpret it
+     */
+    public static void validate(byte[] appletData) {
+        // The constructor requires the PSK and the ID
+        if (appletData.length < OPTIONS_OFFSET) {
+            throw new IllegalArgumentException("Applet data must contain the 16-byte PSK and the 16-byte ID, got "
+                    + appletData.length + " bytes");
+        }
+        final byte options = appletData.length > OPTIONS_OFFSET ? appletData[OPTIONS_OFFSET] : 0;
+        // The diversifier is required by its option, and anything behind the parsed fields would be ignored
+        final int expected = OPTIONS_OFFSET + 1 + ((options & OPT_DIVERSIFIER) != 0 ? KeyDiversifier.DIVERSIFIER_LENGTH : 0);
+        if (appletData.length > OPTIONS_OFFSET && appletData.length != expected) {
+            throw new IllegalArgumentException("Applet data must be " + expected + " bytes for options "
+                    + String.format("0x%02x", options) + ", got " + appletData.length);
+        }
+        validate(Arrays.copyOfRange(appletData, 0, PSK_LENGTH),
+                Arrays.copyOfRange(appletData, PSK_LENGTH, OPTIONS_OFFSET), options);
+    }
+
+    private static void validate(byte[] psk, byte[] id, byte options) {
+        if (psk.length != PSK_LENGTH) {
+            throw new IllegalArgumentException("PSK must be 16 bytes, got " + psk.length);
+        }
+        if (id.length != ID_LENGTH) {
+            throw new IllegalArgumentException("ID must be 16 bytes, got " + id.length);
+        }
+        if ((options & ~KNOWN_OPTIONS) != 0) {
+            throw new IllegalArgumentException(String.format("Unknown install option bits 0x%02x", options & ~KNOWN_OPTIONS));
+        }
+        // The applet accepts these, but they are almost certainly a provisioning mistake
+        if (isConstant(psk)) {
+            throw new IllegalArgumentException("PSK consists of a single repeated byte");
+        }
+        if (Arrays.equals(psk, id)) {
+            throw new IllegalArgumentException("PSK equals the ID");
+        }
+    }
+
+    private static boolean isConstant(byte[] value) {
+        for (byte b : value) {
+            if (b != value[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,64 @@
+package terminal;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+/**
+ * Derives per-card PSKs from a master key, so that a verifier only has to hold the master key instead of a table
+ * with one key per card.
+ * <p>
+ * The PSK of a card is AES_master(diversifier || 0^64), where the diversifier is an 8-byte public value stored on the
+ * card at installation and returned by AUTH_INIT with P1 = 0x01. The card ID itself is not used as the diversifier,
+ * because it must only be released after authentication.
+ */
+public final class KeyDiversifier {
+
+    public static final int DIVERSIFIER_LENGTH = 8;
+
+    private final SecretKeySpec masterKey;
+    private final ThreadLocal<Cipher> cipher;
+
+    public KeyDiversifier(byte[] masterKey) {
+        if (masterKey.length != 16) {
+            throw new IllegalArgumentException("Master key must be 16 bytes");
+        }
+        this.masterKey = new SecretKeySpec(masterKey, "AES");
+        this.cipher = ThreadLocal.withInitial(() -> {
+            try {
+                final Cipher aes = Cipher.getInstance("AES/ECB/NoPadding");
+                aes.init(Cipher.ENCRYPT_MODE, this.masterKey);
+                return aes;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES/ECB/NoPadding not available", e);
+            }
+        });
+    }
+
+    /**
+     * Returns the PSK of the card with the given diversifier.
+     */
+    public byte[] derivePsk(byte[] diversifier) {
+        if (diversifier.length != DIVERSIFIER_LENGTH) {
+            throw new IllegalArgumentException("Diversifier must be 8 bytes");
+        }
+        final byte[] psk = new byte[16];
+        derivePsk(diversifier, 0, psk);
+        return psk;
+    }
+
+    /**
+     * Writes the PSK of the card with the diversifier at the given offset to psk (16 bytes). Safe to call from
+     * several threads.
+     */
+    public void derivePsk(byte[] diversifier, int offset, byte[] psk) {
+        System.arraycopy(diversifier, offset, psk, 0, DIVERSIFIER_LENGTH);
+        Arrays.fill(psk, DIVERSIFIER_LENGTH, 16, (byte) 0);
+        try {
+            cipher.get().doFinal(psk, 0, 16, psk, 0);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
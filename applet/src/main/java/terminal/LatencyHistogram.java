@@ -0,0 +1,126 @@
+package terminal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Thread-safe log-linear latency histogram with a fixed memory footprint.
+ * Values are recorded in nanoseconds with a relative precision of 1/32 (about 3%), recording is lock-free and does
+ * not allocate.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single latency value.
+     *
+     * @param nanos latency in nanoseconds, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketIndex(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Adds all values recorded by another histogram to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            final long c = other.counts.get(i);
+            if (c != 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        max.accumulateAndGet(other.max.get(), Math::max);
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return max.get();
+    }
+
+    public long getTotalNanos() {
+        return sum.get();
+    }
+
+    public double getMeanNanos() {
+        final long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Returns the value at the given percentile, i.e., the upper bound of the bucket that contains it.
+     *
+     * @param percentile percentile in the range [0, 100]
+     */
+    public long getPercentileNanos(double percentile) {
+        final long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        final long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= target) {
+                return i + 1 < BUCKET_COUNT ? Math.min(lowerBound(i + 1) - 1, max.get()) : max.get();
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * One-line summary in microseconds: count, p50, p99, p99.9, and max.
+     */
+    public String summary() {
+        return String.format("n=%d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", getCount(),
+                getPercentileNanos(50) / 1000.0, getPercentileNanos(99) / 1000.0,
+                getPercentileNanos(99.9) / 1000.0, getMaxNanos() / 1000.0);
+    }
+
+    // ===== Bucket layout =====
+    // Values below SUB_BUCKET_COUNT have their own bucket, larger values are split into SUB_BUCKET_COUNT linear
+    // sub-buckets per power of two.
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return (shift + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long lowerBound(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_COUNT - 1;
+        final int subBucket = index % SUB_BUCKET_COUNT;
+        return (long) (SUB_BUCKET_COUNT + subBucket) << shift;
+    }
+}
@@ -0,0 +1,30 @@
+package terminal;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Signals that the card answered, but not as the protocol requires: an unexpected status word, a response of the
+ * wrong length, or a failed authentication.
+ */
+public class ProtocolException extends CardException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int sw;
+
+    public ProtocolException(String message, int sw) {
+        super(sw == 0 ? message : message + " (SW " + String.format("%04X", sw) + ")");
+        this.sw = sw;
+    }
+
+    public ProtocolException(String message) {
+        this(message, 0);
+    }
+
+    /**
+     * Status word returned by the card, or 0 if the status word was not the problem.
+     */
+    public int getSW() {
+        return sw;
+    }
+}
@@ -0,0 +1,65 @@
+package terminal;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of initialized PSK ciphers of recently seen cards, keyed by their diversifier.
+ * <p>
+ * Deriving the PSK and initializing its ciphers costs an AES operation and two key schedules, which is skipped for
+ * cards that come back within the last {@code capacity} distinct cards. The memory use is bounded by the capacity,
+ * independent of the card population. Cipher objects are not thread-safe, so every thread uses its own cache.
+ */
+public final class PskCipherCache {
+
+    private final KeyDiversifier diversifier;
+    private final byte[] psk = new byte[16];
+    private final LinkedHashMap<Long, PskCiphers> entries;
+    private long hits;
+    private long misses;
+
+    public PskCipherCache(KeyDiversifier diversifier, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.diversifier = diversifier;
+        this.entries = new LinkedHashMap<Long, PskCiphers>(capacity * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, PskCiphers> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the ciphers for the card with the 8-byte diversifier at the given offset, deriving them on a miss.
+     */
+    public PskCiphers get(byte[] buffer, int offset) {
+        long key = 0;
+        for (int i = 0; i < KeyDiversifier.DIVERSIFIER_LENGTH; i++) {
+            key = (key << 8) | (buffer[offset + i] & 0xff);
+        }
+        PskCiphers ciphers = entries.get(key);
+        if (ciphers != null) {
+            hits++;
+            return ciphers;
+        }
+        misses++;
+        diversifier.derivePsk(buffer, offset, psk);
+        ciphers = new PskCiphers(psk);
+        entries.put(key, ciphers);
+        return ciphers;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+}
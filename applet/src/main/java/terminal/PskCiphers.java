@@ -0,0 +1,44 @@
+package terminal;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+
+/**
+ * AES/ECB encrypt and decrypt ciphers initialized once with one card's PSK. Not thread-safe.
+ */
+public final class PskCiphers {
+
+    private final Cipher encrypt;
+    private final Cipher decrypt;
+
+    public PskCiphers(byte[] psk) {
+        final SecretKeySpec key = new SecretKeySpec(psk, "AES");
+        try {
+            encrypt = Cipher.getInstance("AES/ECB/NoPadding");
+            encrypt.init(Cipher.ENCRYPT_MODE, key);
+            decrypt = Cipher.getInstance("AES/ECB/NoPadding");
+            decrypt.init(Cipher.DECRYPT_MODE, key);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("AES/ECB/NoPadding not available", e);
+        }
+    }
+
+    void decrypt(byte[] in, int inOffset, byte[] out, int outOffset) {
+        try {
+            decrypt.doFinal(in, inOffset, 16, out, outOffset);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void encrypt(byte[] in, ByteBuffer out) {
+        try {
+            encrypt.doFinal(in, 0, 16, out.array(), out.position());
+            out.position(out.position() + 16);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
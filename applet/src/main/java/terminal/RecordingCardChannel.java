@@ -0,0 +1,64 @@
+package terminal;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link CardChannel} decorator that records every exchange into a {@link TraceWriter.CardRecorder}. Like
+ * {@link TracingCardChannel}, it works the same for simulated cards and PC/SC readers.
+ */
+public final class RecordingCardChannel extends CardChannel {
+
+    private final CardChannel delegate;
+    private final TraceWriter.CardRecorder recorder;
+
+    public RecordingCardChannel(CardChannel delegate, TraceWriter.CardRecorder recorder) {
+        this.delegate = delegate;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public Card getCard() {
+        return delegate.getCard();
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return delegate.getChannelNumber();
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        final ResponseAPDU response = delegate.transmit(command);
+        recorder.apdu(command.getBytes(), response.getBytes());
+        return response;
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        final int commandStart = command.position();
+        final int commandLength = command.remaining();
+        final int responseStart = response.position();
+        final int length = delegate.transmit(command, response);
+        if (command.hasArray() && response.hasArray()) {
+            recorder.apdu(command.array(), command.arrayOffset() + commandStart, commandLength,
+                    response.array(), response.arrayOffset() + responseStart, length);
+        } else {
+            final byte[] commandBytes = new byte[commandLength];
+            final byte[] responseBytes = new byte[length];
+            command.duplicate().position(commandStart).get(commandBytes);
+            response.duplicate().position(responseStart).get(responseBytes);
+            recorder.apdu(commandBytes, responseBytes);
+        }
+        return length;
+    }
+
+    @Override
+    public void close() throws CardException {
+        delegate.close();
+    }
+}
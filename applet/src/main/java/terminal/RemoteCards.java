@@ -0,0 +1,210 @@
+package terminal;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+
+/**
+ * Client of {@code sim.RemoteCardServer}: installs virtual cards and sends APDUs to them, either one card per
+ * {@link CardChannel} (one HTTP round trip per APDU) or in batches for many cards (one round trip per batch).
+ * <p>
+ * All requests share one HTTP/1.1 client, which keeps its connections open. Instances are thread-safe.
+ */
+public final class RemoteCards {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private final URI base;
+    private final HttpClient http = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+    public RemoteCards(String address) {
+        this.base = URI.create(address.endsWith("/") ? address : address + "/");
+    }
+
+    /**
+     * Installs count cards with the given applet class (by name, resolved by the server) and install parameters,
+     * and returns the number of the first card. The cards are numbered consecutively.
+     */
+    public int install(String appletClass, byte[] aid, byte[] installParameters, int count) throws CardException {
+        final String query = "v1/cards?class=" + appletClass + "&count=" + count + (aid == null ? "" : "&aid=" + HEX.formatHex(aid));
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(post(query, installParameters)));
+        try {
+            return in.readInt();
+        } catch (IOException e) {
+            throw new CardException("Malformed install response", e);
+        }
+    }
+
+    /**
+     * Sends one batch: commands[i] goes to cards[i]. Commands for the same card are processed in order, different
+     * cards in parallel. Returns the responses (including SW) in the order of the commands.
+     */
+    public byte[][] transmit(int[] cards, byte[][] commands) throws CardException {
+        if (cards.length != commands.length) {
+            throw new IllegalArgumentException("One card number per command required");
+        }
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(16 * commands.length);
+        final DataOutputStream out = new DataOutputStream(body);
+        try {
+            out.writeInt(commands.length);
+            for (int i = 0; i < commands.length; i++) {
+                out.writeInt(cards[i]);
+                out.writeShort(commands[i].length);
+                out.write(commands[i]);
+            }
+
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(post("v1/transmit", body.toByteArray())));
+            final int count = in.readInt();
+            if (count != commands.length) {
+                throw new CardException("Server returned " + count + " responses for " + commands.length + " commands");
+            }
+            final byte[][] responses = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                final int card = in.readInt();
+                responses[i] = new byte[in.readUnsignedShort()];
+                in.readFully(responses[i]);
+                if (card != cards[i]) {
+                    throw new CardException("Response " + i + " belongs to card " + card);
+                }
+                if (responses[i].length < 2) {
+                    throw new CardException("Unknown remote card " + card);
+                }
+            }
+            return responses;
+        } catch (IOException e) {
+            throw new CardException("Malformed transmit response", e);
+        }
+    }
+
+    /**
+     * Resets the card (transient state is lost) and selects its applet again.
+     */
+    public void reset(int card) throws CardException {
+        post("v1/reset?card=" + card, new byte[0]);
+    }
+
+    public void remove(int card) throws CardException {
+        post("v1/remove?card=" + card, new byte[0]);
+    }
+
+    /**
+     * Returns a channel to one remote card.
+     */
+    public CardChannel channel(int card) {
+        return new RemoteChannel(card);
+    }
+
+    private byte[] post(String path, byte[] body) throws CardException {
+        final HttpRequest request = HttpRequest.newBuilder(base.resolve(path))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .header("Content-Type", "application/octet-stream")
+                .build();
+        try {
+            final HttpResponse<byte[]> response = http.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+                throw new CardException("Remote card server returned " + response.statusCode() + ": "
+                        + new String(response.body(), StandardCharsets.UTF_8));
+            }
+            return response.body();
+        } catch (IOException e) {
+            throw new CardException("Remote card server not reachable", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CardException("Interrupted", e);
+        }
+    }
+
+    private final class RemoteChannel extends CardChannel {
+        private final int card;
+        private final int[] cards;
+
+        RemoteChannel(int card) {
+            this.card = card;
+            this.cards = new int[] {card};
+        }
+
+        @Override
+        public Card getCard() {
+            return new Card() {
+                @Override
+                public ATR getATR() {
+                    return new ATR(new byte[] {0x3B, 0x00});
+                }
+
+                @Override
+                public String getProtocol() {
+                    return "T=1";
+                }
+
+                @Override
+                public CardChannel getBasicChannel() {
+                    return RemoteChannel.this;
+                }
+
+                @Override
+                public CardChannel openLogicalChannel() throws CardException {
+                    throw new CardException("Logical channels are not supported by remote cards");
+                }
+
+                @Override
+                public void beginExclusive() {
+                }
+
+                @Override
+                public void endExclusive() {
+                }
+
+                @Override
+                public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+                    throw new CardException("Control commands are not supported by remote cards");
+                }
+
+                @Override
+                public void disconnect(boolean reset) throws CardException {
+                    if (reset) {
+                        RemoteCards.this.reset(card);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+            return new ResponseAPDU(RemoteCards.this.transmit(cards, new byte[][] {command.getBytes()})[0]);
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+            final byte[] bytes = new byte[command.remaining()];
+            command.get(bytes);
+            final byte[] result = RemoteCards.this.transmit(cards, new byte[][] {bytes})[0];
+            response.put(result);
+            return result.length;
+        }
+
+        @Override
+        public void close() throws CardException {
+            throw new IllegalStateException("Cannot close the basic channel");
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package terminal;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes APDU traces in a compact binary format, for regression and throughput replay with {@code sim.TraceReplayer}.
+ * <p>
+ * File layout (big-endian): magic {@code "OCDT"}, version (1), 3 reserved bytes, followed by records of one type byte
+ * and the type-specific payload:
+ * <ul>
+ *     <li>{@link #RECORD_CARD}: flags (1) || AID length (1) || AID || class name length (1) || applet class name ||
+ *     install parameters length (2) || install parameters. Starts a new card, all following records belong to it.</li>
+ *     <li>{@link #RECORD_APDU}: command length (2) || command || response length (2) || response (including SW).</li>
+ *     <li>{@link #RECORD_RESET}: no payload, the card was reset or left the field.</li>
+ * </ul>
+ * Every card is recorded into its own buffer and appended in one piece when its {@link CardRecorder} is closed, so
+ * that many readers can record into the same file. A file must stay below 2 GiB to be mapped by the replayer.
+ */
+public final class TraceWriter implements Closeable {
+
+    public static final byte[] MAGIC = {'O', 'C', 'D', 'T'};
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 8;
+
+    public static final byte RECORD_CARD  = 0x01;
+    public static final byte RECORD_APDU  = 0x02;
+    public static final byte RECORD_RESET = 0x03;
+
+    /**
+     * Card flag: the card was a simulator with a fixed random seed, so every response can be compared byte by byte.
+     */
+    public static final byte FLAG_EXACT = 0x01;
+
+    private final OutputStream out;
+
+    public TraceWriter(Path file) throws IOException {
+        this(Files.newOutputStream(file));
+    }
+
+    public TraceWriter(OutputStream out) throws IOException {
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.out.write(MAGIC);
+        this.out.write(new byte[] {VERSION, 0, 0, 0});
+    }
+
+    /**
+     * Starts recording a card. The install parameters are the ones passed to {@code install()} (for physical cards,
+     * the ones the card was provisioned with), the class name is the applet class to install on replay.
+     */
+    public CardRecorder card(byte[] aid, String appletClass, byte[] installParameters, byte flags) {
+        return new CardRecorder(aid, appletClass, installParameters, flags);
+    }
+
+    private synchronized void append(ByteArrayOutputStream card) throws IOException {
+        card.writeTo(out);
+    }
+
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Records the exchanges of one card. Not thread-safe, one card is used by one reader at a time.
+     */
+    public final class CardRecorder implements Closeable {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        private final DataOutputStream data = new DataOutputStream(buffer);
+        private boolean closed = false;
+
+        private CardRecorder(byte[] aid, String appletClass, byte[] installParameters, byte flags) {
+            final byte[] className = appletClass.getBytes(StandardCharsets.UTF_8);
+            try {
+                data.writeByte(RECORD_CARD);
+                data.writeByte(flags);
+                data.writeByte(aid.length);
+                data.write(aid);
+                data.writeByte(className.length);
+                data.write(className);
+                data.writeShort(installParameters.length);
+                data.write(installParameters);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void apdu(byte[] command, int commandOffset, int commandLength,
+                         byte[] response, int responseOffset, int responseLength) {
+            try {
+                data.writeByte(RECORD_APDU);
+                data.writeShort(commandLength);
+                data.write(command, commandOffset, commandLength);
+                data.writeShort(responseLength);
+                data.write(response, responseOffset, responseLength);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public void apdu(byte[] command, byte[] response) {
+            apdu(command, 0, command.length, response, 0, response.length);
+        }
+
+        public void reset() {
+            buffer.write(RECORD_RESET);
+        }
+
+        /**
+         * Appends the card to the trace file.
+         */
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                append(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package terminal;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link CardChannel} decorator that measures the duration of every exchange and reports it to an
+ * {@link ApduLatencyRecorder}. Works the same for simulated cards and PC/SC readers, since only the delegate
+ * channel differs.
+ */
+public final class TracingCardChannel extends CardChannel {
+
+    private final CardChannel delegate;
+    private final ApduLatencyRecorder recorder;
+
+    public TracingCardChannel(CardChannel delegate, ApduLatencyRecorder recorder) {
+        this.delegate = delegate;
+        this.recorder = recorder;
+    }
+
+    @Override
+    public Card getCard() {
+        return delegate.getCard();
+    }
+
+    @Override
+    public int getChannelNumber() {
+        return delegate.getChannelNumber();
+    }
+
+    @Override
+    public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+        final long start = System.nanoTime();
+        final ResponseAPDU response = delegate.transmit(command);
+        final long latency = System.nanoTime() - start;
+        final byte[] bytes = command.getBytes();
+        recorder.record(bytes[1], start, latency, bytes.length, response.getBytes().length, response.getSW());
+        return response;
+    }
+
+    @Override
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        final byte ins = command.get(command.position() + 1);
+        final int commandBytes = command.remaining();
+        final int responseStart = response.position();
+        final long start = System.nanoTime();
+        final int length = delegate.transmit(command, response);
+        final long latency = System.nanoTime() - start;
+        final int sw = length >= 2
+                ? ((response.get(responseStart + length - 2) & 0xff) << 8) | (response.get(responseStart + length - 1) & 0xff)
+                : 0;
+        recorder.record(ins, start, latency, commandBytes, length, sw);
+        return length;
+    }
+
+    @Override
+    public void close() throws CardException {
+        delegate.close();
+    }
+}
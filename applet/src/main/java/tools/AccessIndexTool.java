@@ -0,0 +1,78 @@
+package tools;
+
+import controller.AccessIndex;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HexFormat;
+
+/**
+ * Command line maintenance of a door controller's {@link AccessIndex}. ID lists contain one hex ID per line
+ * ({@code -} reads from stdin, {@code #} starts a comment). Usage:
+ * <pre>
+ * ./gradlew accessIndex -Pargs="create ids.idx 500000 10000"
+ * ./gradlew accessIndex -Pargs="allow ids.idx allowed.txt"
+ * ./gradlew accessIndex -Pargs="revoke ids.idx lost-cards.txt"
+ * ./gradlew accessIndex -Pargs="check ids.idx 00000000000000000000000000000001"
+ * </pre>
+ * Other commands are {@code remove}, {@code unrevoke}, and {@code stats}. Updates may run while a controller serves
+ * lookups from the same index; they take the index's file lock, and the controller sees them on its next lookup.
+ */
+public final class AccessIndexTool {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private interface Update {
+        void apply(AccessIndex index, byte[] id) throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: create|allow|remove|revoke|unrevoke|check|stats <index> [arg]");
+        }
+        final Path path = Paths.get(args[1]);
+        if (args[0].equals("create")) {
+            final int expectedIds = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+            final int expectedRevocations = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+            AccessIndex.create(path, expectedIds, expectedRevocations).close();
+            System.out.println("Created " + path);
+            return;
+        }
+
+        try (AccessIndex index = AccessIndex.open(path)) {
+            switch (args[0]) {
+                case "allow": update(index, args[2], AccessIndex::allow); break;
+                case "remove": update(index, args[2], AccessIndex::remove); break;
+                case "revoke": update(index, args[2], AccessIndex::revoke); break;
+                case "unrevoke": update(index, args[2], AccessIndex::unrevoke); break;
+                case "check": System.out.println(index.lookup(HEX.parseHex(args[2]))); break;
+                case "stats": break;
+                default: throw new IllegalArgumentException("Unknown command: " + args[0]);
+            }
+            System.out.println(index.size() + " allowed, " + index.revokedSize() + " revoked, generation " + index.generation());
+        }
+    }
+
+    private static void update(AccessIndex index, String list, Update update) throws IOException {
+        long count = 0;
+        try (BufferedReader in = list.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(list))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String id = line.replaceFirst("#.*", "").trim();
+                if (!id.isEmpty()) {
+                    update.apply(index, HEX.parseHex(id));
+                    count++;
+                }
+            }
+        }
+        index.flush();
+        System.out.println("Applied " + count + " updates");
+    }
+}
@@ -0,0 +1,981 @@
+package tools;
+
+import applet.AuthenticatedIdentificationApplet;
+import applet.IdentificationApplet;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacardx.apdu.ExtendedLength;
+import sim.SimulatorSnapshot;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.InstallData;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Feedback-driven fuzzer for the identification applets in jCardSim. It mutates APDU sequences and install
+ * parameters (including the instance AID, control info, and the offset of the parameters, which the constructors
+ * parse with their own offset arithmetic), runs them against fresh simulated cards on all cores, and collects
+ * findings, deduplicated by signature:
+ * <pre>
+ * ./gradlew fuzz -Pargs="--seconds 3600 --out findings"
+ * ./gradlew fuzz -Pargs="--replay findings/auth-crash-ins-11-sw-6f00.txt"
+ * </pre>
+ * A finding is an uncaught exception in the applet (status word 6Fxx, or a status word outside the ISO ranges, which
+ * jCardSim returns for the reason code of an uncaught {@code CardRuntimeException}), an exception other than
+ * {@link ISOException} from the constructor, an installation that accepts its parameters but does not answer with the
+ * installed ID or PSK, or a response of the authenticated applet that contains its ID or PSK in the clear.
+ * <p>
+ * jCardSim has no coverage hooks, so the feedback is the protocol behaviour instead: an input is kept in the corpus
+ * if it produces a transition (previous command and status word, command, status word, response length) or an
+ * installation outcome that no input produced before. Sequences may contain complete authenticated sessions, run
+ * with the host client and the PSK of the installation, so that the commands behind the authentication are reached.
+ * <p>
+ * Each execution runs on a fork of a snapshot of the installed card ({@link SimulatorSnapshot}), so the cost of an
+ * installation is paid once per distinct set of install parameters. Every worker has its own random generator split
+ * from the seed, but the workers share the corpus, so runs are not reproducible; findings are, by their reproducer.
+ */
+public final class ApduFuzzer {
+
+    private static final HexFormat HEX = HexFormat.of();
+
+    private static final byte[] PLAIN_AID = {(byte) 0xf0, 0x00, 0x00, 0x0c, (byte) 0xdc, 0x00};
+    private static final byte[] CONTROL_AID = {(byte) 0xf0, 0x00, 0x00, 0x0c, (byte) 0xdc, (byte) 0xff};
+    private static final int MAX_STEPS = 12;
+    private static final int SNAPSHOTS_PER_WORKER = 64;
+    /** Data lengths around the block size and the buffer limits of the applets. */
+    private static final int[] LENGTHS = {0, 1, 7, 8, 9, 15, 16, 17, 31, 32, 33, 47, 48, 49, 63, 64, 127, 128, 255, 256, 261, 1024};
+    private static final int[] RESPONSE_LENGTHS = {0, 1, 16, 32, 48, 255, 256, 257, 65536};
+
+    /** Kinds of findings, the first part of their signature. */
+    public static final String CRASH = "crash";
+    public static final String UNEXPECTED_SW = "unexpected-sw";
+    public static final String INSTALL_CRASH = "install-crash";
+    public static final String INSTALL_MISMATCH = "install-mismatch";
+    public static final String LEAK = "leak";
+
+    /**
+     * An applet under test, with the instructions that mutations prefer and the layout of its applet data.
+     */
+    public static final class Target {
+        final String name;
+        final Class<? extends Applet> appletClass;
+        final byte[] aid;
+        final byte[] instructions;
+        final byte[] appletData;
+        final int idOffset;
+        final int pskOffset;
+
+        /**
+         * @param appletData default applet data, from which the install parameters are mutated
+         * @param idOffset   offset of the ID in the applet data, or -1 if the installation is not checked
+         * @param pskOffset  offset of the PSK in the applet data for the authenticated protocol, or -1 if there is none
+         */
+        public Target(String name, Class<? extends Applet> appletClass, byte[] aid, byte[] instructions,
+                      byte[] appletData, int idOffset, int pskOffset) {
+            this.name = name;
+            this.appletClass = appletClass;
+            this.aid = aid.clone();
+            this.instructions = instructions.clone();
+            this.appletData = appletData.clone();
+            this.idOffset = idOffset;
+            this.pskOffset = pskOffset;
+        }
+
+        /**
+         * The plain identification applet with statistics.
+         */
+        public static Target plain() {
+            final byte[] data = new byte[InstallData.ID_LENGTH + 1];
+            for (int i = 0; i < InstallData.ID_LENGTH; i++) {
+                data[i] = (byte) (0xA0 + i);
+            }
+            data[InstallData.ID_LENGTH] = InstallData.OPT_STATISTICS;
+            return new Target("plain", IdentificationApplet.class, PLAIN_AID, new byte[]{0x12, 0x17}, data, 0, -1);
+        }
+
+        /**
+         * The authenticated identification applet with all install options.
+         */
+        public static Target authenticated() {
+            final byte[] psk = new byte[InstallData.PSK_LENGTH];
+            final byte[] id = new byte[InstallData.ID_LENGTH];
+            for (int i = 0; i < psk.length; i++) {
+                psk[i] = (byte) (0x10 + i);
+                id[i] = (byte) (0xA0 + i);
+            }
+            final byte options = InstallData.OPT_CHALLENGE_POOL | InstallData.OPT_RESUMPTION | InstallData.OPT_CREDENTIAL
+                    | InstallData.OPT_STATISTICS;
+            final byte[] data = InstallData.appletData(psk, id, options, new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+            return new Target("auth", AuthenticatedIdentificationApplet.class, AuthenticatedIdentificationClient.APPLET_AID,
+                    new byte[]{0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17, 0x18, (byte) 0xC0}, data,
+                    InstallData.PSK_LENGTH, 0);
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * One step of a sequence: a raw command APDU, a SELECT of the applet, or a complete authenticated session.
+     */
+    public static final class Step {
+        static final byte APDU = 0;
+        static final byte SELECT = 1;
+        static final byte SESSION = 2;
+
+        final byte kind;
+        final byte[] apdu;
+
+        Step(byte kind, byte[] apdu) {
+            this.kind = kind;
+            this.apdu = apdu;
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case SELECT: return "select";
+                case SESSION: return "session";
+                default: return "apdu " + HEX.formatHex(apdu);
+            }
+        }
+    }
+
+    /**
+     * An input: install parameters in the layout the runtime passes to {@code install()}, and a sequence of steps
+     * that follows the implicit selection of the applet.
+     */
+    public static final class Case {
+        final Target target;
+        final int installOffset;
+        final int aidLength;
+        final int controlLength;
+        final byte[] appletData;
+        final List<Step> steps;
+
+        Case(Target target, int installOffset, int aidLength, int controlLength, byte[] appletData, List<Step> steps) {
+            this.target = target;
+            this.installOffset = installOffset;
+            this.aidLength = aidLength;
+            this.controlLength = controlLength;
+            this.appletData = appletData;
+            this.steps = Collections.unmodifiableList(new ArrayList<>(steps));
+        }
+
+        /**
+         * Returns bOffset || li || instance AID || lc || control info || la || applet data, preceded by installOffset
+         * bytes that the applet must not read.
+         */
+        byte[] installParameters() {
+            final byte[] parameters = new byte[installOffset + 3 + aidLength + controlLength + appletData.length];
+            Arrays.fill(parameters, 0, installOffset, (byte) 0xEE);
+            int offset = installOffset;
+            parameters[offset++] = (byte) aidLength;
+            for (int i = 0; i < aidLength; i++) {
+                parameters[offset++] = i < target.aid.length ? target.aid[i] : (byte) i;
+            }
+            parameters[offset++] = (byte) controlLength;
+            offset += controlLength;
+            parameters[offset++] = (byte) appletData.length;
+            System.arraycopy(appletData, 0, parameters, offset, appletData.length);
+            return parameters;
+        }
+
+        Case withSteps(List<Step> steps) {
+            return new Case(target, installOffset, aidLength, controlLength, appletData, steps);
+        }
+
+        /**
+         * Returns the reproducer format read by {@link #parse(List, List)}.
+         */
+        @Override
+        public String toString() {
+            final StringBuilder text = new StringBuilder();
+            text.append("target ").append(target.name).append('\n');
+            text.append("install ").append(installOffset).append(' ').append(aidLength).append(' ')
+                    .append(controlLength).append(' ').append(HEX.formatHex(appletData)).append('\n');
+            for (Step step : steps) {
+                text.append(step).append('\n');
+            }
+            return text.toString();
+        }
+
+        /**
+         * Reads a reproducer. Lines starting with '#' are comments.
+         */
+        public static Case parse(List<Target> targets, List<String> lines) {
+            Target target = null;
+            int[] layout = null;
+            byte[] appletData = null;
+            final List<Step> steps = new ArrayList<>();
+            for (String line : lines) {
+                final String[] fields = line.trim().split("\\s+");
+                if (fields[0].isEmpty() || fields[0].startsWith("#")) {
+                    continue;
+                }
+                switch (fields[0]) {
+                    case "target":
+                        for (Target candidate : targets) {
+                            if (candidate.name.equals(fields[1])) {
+                                target = candidate;
+                            }
+                        }
+                        if (target == null) {
+                            throw new IllegalArgumentException("Unknown target: " + fields[1]);
+                        }
+                        break;
+                    case "install":
+                        layout = new int[]{Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3])};
+                        appletData = fields.length > 4 ? HEX.parseHex(fields[4]) : new byte[0];
+                        break;
+                    case "select": steps.add(new Step(Step.SELECT, null)); break;
+                    case "session": steps.add(new Step(Step.SESSION, null)); break;
+                    case "apdu": steps.add(new Step(Step.APDU, HEX.parseHex(fields[1]))); break;
+                    default: throw new IllegalArgumentException("Unknown reproducer line: " + line);
+                }
+            }
+            if (target == null || layout == null) {
+                throw new IllegalArgumentException("Reproducer needs a target and an install line");
+            }
+            return new Case(target, layout[0], layout[1], layout[2], appletData, steps);
+        }
+    }
+
+    /**
+     * A deduplicated finding with the first input that produced it, minimized to the steps needed.
+     */
+    public static final class Finding {
+        private final String signature;
+        private final String detail;
+        private final LongAdder count = new LongAdder();
+        private volatile Case reproducer;
+
+        Finding(String signature, String detail) {
+            this.signature = signature;
+            this.detail = detail;
+        }
+
+        public String getSignature() {
+            return signature;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public Case getReproducer() {
+            return reproducer;
+        }
+    }
+
+    /**
+     * Applet that rejects every command, to tell status words of the simulator from those of the applet under test:
+     * jCardSim fails some commands before the applet sees them (e.g. a short APDU with 255 bytes of data and Le, or an
+     * extended APDU through the terminal channel), for any applet.
+     */
+    public static class ControlApplet extends Applet {
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new ControlApplet().register();
+        }
+
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+        }
+    }
+
+    /**
+     * {@link ControlApplet} for targets that accept extended APDUs.
+     */
+    public static class ExtendedControlApplet extends ControlApplet implements ExtendedLength {
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new ExtendedControlApplet().register();
+        }
+    }
+
+    private final List<Target> targets;
+    private final long seed;
+    private final int threads;
+    private final List<Case> corpus = new CopyOnWriteArrayList<>();
+    private final Set<Long> coverage = ConcurrentHashMap.newKeySet();
+    private final Map<String, Finding> findings = new ConcurrentHashMap<>();
+    private final LongAdder executions = new LongAdder();
+    private volatile boolean verbose = false;
+
+    public ApduFuzzer(List<Target> targets, long seed, int threads) {
+        this.targets = new ArrayList<>(targets);
+        this.seed = seed;
+        this.threads = threads;
+        for (Target target : targets) {
+            seedCorpus(target);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = 60;
+        long maxExecutions = Long.MAX_VALUE;
+        long seed = System.nanoTime();
+        int threads = Runtime.getRuntime().availableProcessors();
+        Path out = Paths.get("findings");
+        Path replay = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seconds": seconds = Long.parseLong(args[++i]); break;
+                case "--executions": maxExecutions = Long.parseLong(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--out": out = Paths.get(args[++i]); break;
+                case "--replay": replay = Paths.get(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        final ApduFuzzer fuzzer = new ApduFuzzer(Arrays.asList(Target.plain(), Target.authenticated()), seed, threads);
+        if (replay != null) {
+            final Case input = Case.parse(fuzzer.targets, Files.readAllLines(replay));
+            for (String line : fuzzer.trace(input)) {
+                System.out.println(line);
+            }
+            final Set<String> signatures = fuzzer.replay(input);
+            System.out.println(signatures.isEmpty() ? "No findings" : "Findings: " + signatures);
+            System.exit(signatures.isEmpty() ? 0 : 1);
+        }
+
+        fuzzer.verbose = true;
+        System.out.printf("Fuzzing %d targets on %d threads, seed %d%n", fuzzer.targets.size(), threads, seed);
+        final long start = System.nanoTime();
+        fuzzer.run(maxExecutions, seconds * 1000);
+        final double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d executions in %.0f s (%.0f/s, %.1f million/h), %d transitions, corpus %d, %d findings%n",
+                fuzzer.getExecutions(), elapsed, fuzzer.getExecutions() / elapsed,
+                fuzzer.getExecutions() / elapsed * 3600 / 1e6, fuzzer.getCoverage(), fuzzer.getCorpusSize(),
+                fuzzer.getFindings().size());
+        if (!fuzzer.getFindings().isEmpty()) {
+            fuzzer.writeFindings(out);
+            System.out.println("Reproducers written to " + out);
+        }
+    }
+
+    public long getExecutions() {
+        return executions.sum();
+    }
+
+    /**
+     * Returns the number of distinct transitions and installation outcomes seen so far.
+     */
+    public int getCoverage() {
+        return coverage.size();
+    }
+
+    public int getCorpusSize() {
+        return corpus.size();
+    }
+
+    public Collection<Finding> getFindings() {
+        return Collections.unmodifiableCollection(findings.values());
+    }
+
+    /**
+     * Fuzzes on all threads until the given number of executions is reached or the time is up.
+     */
+    public void run(long maxExecutions, long millis) throws InterruptedException {
+        final long deadline = System.nanoTime() + millis * 1_000_000L;
+        final SplittableRandom root = new SplittableRandom(seed);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> workers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final Worker worker = new Worker(root.split());
+                workers.add(executor.submit(() -> {
+                    while (System.nanoTime() < deadline && executions.sum() < maxExecutions) {
+                        worker.fuzzOne();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> worker : workers) {
+                try {
+                    worker.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("Fuzzing worker failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs an input once and returns the signatures of the findings it produces, without recording them.
+     */
+    public Set<String> replay(Case input) {
+        final Set<String> signatures = new LinkedHashSet<>();
+        new Worker(new SplittableRandom(seed)).execute(input, (signature, detail) -> signatures.add(signature), null);
+        return signatures;
+    }
+
+    /**
+     * Runs an input once and returns a line per step with the command and the response.
+     */
+    public List<String> trace(Case input) {
+        final List<String> lines = new ArrayList<>();
+        new Worker(new SplittableRandom(seed)).execute(input, (signature, detail) -> lines.add("! " + signature + ": " + detail), lines);
+        return lines;
+    }
+
+    /**
+     * Writes a reproducer file per finding into the directory.
+     */
+    public void writeFindings(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        for (Finding finding : findings.values()) {
+            final Case reproducer = finding.getReproducer();
+            if (reproducer == null) {
+                continue;
+            }
+            final String text = "# " + finding.getSignature() + "\n# " + finding.getDetail() + "\n# seen "
+                    + finding.getCount() + " times\n" + reproducer;
+            Files.write(directory.resolve(finding.getSignature().replaceAll("[^A-Za-z0-9]+", "-") + ".txt"),
+                    text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    // ===== Corpus =====
+
+    private void seedCorpus(Target target) {
+        final SplittableRandom random = new SplittableRandom(seed ^ target.name.hashCode());
+        final Case base = new Case(target, 0, 0, 0, target.appletData.clone(), Collections.emptyList());
+        corpus.add(base.withSteps(Arrays.asList(new Step(Step.APDU, command(0x80, 0x12, 0, 0, new byte[0], 16)))));
+        for (byte ins : target.instructions) {
+            corpus.add(base.withSteps(Arrays.asList(new Step(Step.APDU, command(0x80, ins & 0xff, 0, 0, new byte[0], 0)))));
+            if (target.pskOffset >= 0) {
+                final byte[] data = new byte[16];
+                random.nextBytes(data);
+                corpus.add(base.withSteps(Arrays.asList(new Step(Step.SESSION, null),
+                        new Step(Step.APDU, command(0x80, ins & 0xff, 0, 0, data, 256)))));
+            }
+        }
+    }
+
+    private static byte[] command(int cla, int ins, int p1, int p2, byte[] data, int ne) {
+        return new CommandAPDU(cla, ins, p1, p2, data, ne).getBytes();
+    }
+
+    private interface Reporter {
+        void report(String signature, String detail);
+    }
+
+    /**
+     * Outcome of an installation, cached per worker with a snapshot of the installed card.
+     */
+    private static final class Installation {
+        boolean installed = false;
+        int rejectedSw = 0;				// ISOException from the constructor
+        String failure;					// Finding signature part, or null
+        String failureDetail;
+        SimulatorSnapshot snapshot;		// Null if not installed or if the simulator cannot be copied
+    }
+
+    private final class Worker {
+        private final SplittableRandom random;
+        private final Map<String, Installation> installations = new LinkedHashMap<String, Installation>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Installation> eldest) {
+                return size() > SNAPSHOTS_PER_WORKER;
+            }
+        };
+
+        private final CardChannel[] controls = new CardChannel[2];	// Without and with extended length support
+
+        Worker(SplittableRandom random) {
+            this.random = random;
+        }
+
+        void fuzzOne() {
+            final Case parent = corpus.get(random.nextInt(corpus.size()));
+            final Case child = mutate(parent);
+            final boolean[] found = {false};
+            final boolean novel = execute(child, (signature, detail) -> found[0] |= record(signature, detail, child), null);
+            executions.increment();
+            if (novel || found[0]) {
+                corpus.add(child);
+            }
+        }
+
+        private boolean record(String signature, String detail, Case input) {
+            final Finding finding = new Finding(signature, detail);
+            final Finding existing = findings.putIfAbsent(signature, finding);
+            if (existing != null) {
+                existing.count.increment();
+                return false;
+            }
+            finding.count.increment();
+            finding.reproducer = minimize(input, signature);
+            if (verbose) {
+                System.out.println("New finding " + signature + ": " + detail);
+            }
+            return true;
+        }
+
+        /**
+         * Drops every step whose removal still reproduces the finding.
+         */
+        private Case minimize(Case input, String signature) {
+            Case current = input;
+            for (int i = current.steps.size() - 1; i >= 0; i--) {
+                final List<Step> steps = new ArrayList<>(current.steps);
+                steps.remove(i);
+                final Case candidate = current.withSteps(steps);
+                final boolean[] reproduced = {false};
+                execute(candidate, (s, detail) -> reproduced[0] |= s.equals(signature), null);
+                if (reproduced[0]) {
+                    current = candidate;
+                }
+            }
+            return current;
+        }
+
+        // ===== Execution =====
+
+        /**
+         * Runs an input on a fresh card and returns whether it covered anything new.
+         *
+         * @param trace receives a line per exchange, or null
+         */
+        boolean execute(Case input, Reporter reporter, List<String> trace) {
+            final Target target = input.target;
+            boolean novel = false;
+            final Installation installation = install(input);
+            if (installation.failure != null) {
+                reporter.report(target.name + " " + installation.failure, installation.failureDetail);
+            }
+            if (installation.rejectedSw != 0) {
+                if (trace != null) {
+                    trace.add(String.format("install rejected: %04X", installation.rejectedSw));
+                }
+                return cover(target, 0xFFFF, installation.rejectedSw, 0, 0, 0);
+            }
+            if (!installation.installed) {
+                return cover(target, 0xFFFE, 0, 0, 0, 0);
+            }
+            novel |= cover(target, 0xFFFD, 0, input.appletData.length > 32 ? input.appletData[32] : 0, 0, 0);
+
+            final CardChannel channel = connect(installation.snapshot != null ? installation.snapshot.fork() : freshCard(input),
+                    target.aid);
+            final byte[] psk = field(input.appletData, target.pskOffset);
+            // The ID and the PSK must never appear in a response of the authenticated applet
+            final byte[] leakPsk = target.pskOffset < 0 ? null : distinctive(psk);
+            final byte[] leakId = target.pskOffset < 0 ? null : distinctive(field(input.appletData, target.idOffset));
+            AuthenticatedIdentificationClient client = null;
+
+            int previousIns = 0xA4;
+            int previousSw = 0x9000;
+            for (int index = 0; index < input.steps.size(); index++) {
+                final Step step = input.steps.get(index);
+                int ins = step.kind == Step.APDU ? step.apdu[1] & 0xff : step.kind == Step.SELECT ? 0xA4 : 0x100;
+                int sw;
+                int responseLength = 0;
+                try {
+                    if (step.kind == Step.SESSION) {
+                        if (psk == null) {
+                            continue;
+                        }
+                        if (client == null) {
+                            client = new AuthenticatedIdentificationClient(psk);
+                        }
+                        try {
+                            client.readIdFast(channel);
+                            sw = 0x9000;
+                        } catch (CardException e) {
+                            sw = 0;
+                        }
+                        if (trace != null) {
+                            trace.add("session: " + (sw == 0 ? "failed" : "ok"));
+                        }
+                    } else {
+                        final byte[] apdu = step.kind == Step.SELECT
+                                ? command(0x00, 0xA4, 0x04, 0x00, target.aid, 0) : step.apdu;
+                        final ResponseAPDU response = channel.transmit(new CommandAPDU(apdu));
+                        sw = response.getSW();
+                        responseLength = response.getNr();
+                        if (trace != null) {
+                            trace.add(HEX.formatHex(apdu) + " -> " + HEX.formatHex(response.getBytes()));
+                        }
+                        final String kind = classify(sw);
+                        if (kind != null && !failsInSimulator(target, apdu, sw)) {
+                            reporter.report(String.format("%s %s ins %02x sw %04x", target.name, kind, ins, sw),
+                                    "step " + index + ", command " + HEX.formatHex(apdu));
+                        }
+                        if (contains(response.getData(), leakPsk) || contains(response.getData(), leakId)) {
+                            reporter.report(String.format("%s %s ins %02x", target.name, LEAK, ins),
+                                    "response contains the ID or PSK: " + HEX.formatHex(response.getBytes()));
+                        }
+                    }
+                } catch (CardException | RuntimeException e) {
+                    // The simulator refuses some commands on the host side (e.g. MANAGE CHANNEL on the basic
+                    // channel), which is not a finding for the applet
+                    sw = 0x10000;
+                    if (trace != null) {
+                        trace.add("refused by the simulator: " + e);
+                    }
+                }
+                // Unsupported instructions all look the same, so random INS bytes do not flood the corpus
+                final int normalizedIns = sw == 0x6D00 || sw == 0x6E00 ? 0x1FF : ins;
+                novel |= cover(target, previousIns, previousSw, normalizedIns, sw, bucket(responseLength));
+                previousIns = normalizedIns;
+                previousSw = sw;
+            }
+            return novel;
+        }
+
+        private boolean cover(Target target, int previousIns, int previousSw, int ins, int sw, int responseBucket) {
+            long feature = target.name.hashCode();
+            feature = feature * 0x100000001B3L + previousIns;
+            feature = feature * 0x100000001B3L + previousSw;
+            feature = feature * 0x100000001B3L + ins;
+            feature = feature * 0x100000001B3L + sw;
+            feature = feature * 0x100000001B3L + responseBucket;
+            return coverage.add(feature);
+        }
+
+        private Installation install(Case input) {
+            final byte[] parameters = input.installParameters();
+            final String key = input.target.name + ":" + input.installOffset + ":" + HEX.formatHex(parameters);
+            Installation installation = installations.get(key);
+            if (installation != null) {
+                return installation;
+            }
+            installation = new Installation();
+            installations.put(key, installation);
+            final CardSimulator simulator;
+            try {
+                simulator = installRaw(input, parameters);
+            } catch (ISOException e) {
+                installation.rejectedSw = e.getReason() & 0xffff;
+                return installation;
+            } catch (RuntimeException e) {
+                installation.failure = INSTALL_CRASH + " " + e.getClass().getSimpleName();
+                installation.failureDetail = e.getMessage() + ", " + input.toString().replace('\n', ' ');
+                return installation;
+            }
+            installation.installed = true;
+            try {
+                installation.snapshot = SimulatorSnapshot.capture(simulator, input.target.aid);
+            } catch (RuntimeException e) {
+                // No copies on this JVM, every execution reinstalls
+            }
+            final String mismatch = checkInstallation(input,
+                    installation.snapshot != null ? installation.snapshot.fork() : freshCard(input));
+            if (mismatch != null) {
+                installation.failure = INSTALL_MISMATCH;
+                installation.failureDetail = mismatch + ", bOffset " + input.installOffset + ", li " + input.aidLength
+                        + ", lc " + input.controlLength;
+            }
+            return installation;
+        }
+
+        private CardSimulator installRaw(Case input, byte[] parameters) {
+            // CardSimulator.installApplet wraps every exception of the constructor into the same SystemException, the
+            // runtime passes an ISOException through and turns anything else into SystemException.ILLEGAL_AID
+            final SimulatorRuntime runtime = new SimulatorRuntime();
+            final CardSimulator simulator = new CardSimulator(runtime);
+            final AID aid = AIDUtil.create(input.target.aid);
+            simulator.loadApplet(aid, input.target.appletClass);
+            runtime.installApplet(aid, parameters, (short) input.installOffset,
+                    (byte) (parameters.length - input.installOffset));
+            return simulator;
+        }
+
+        private CardSimulator freshCard(Case input) {
+            return installRaw(input, input.installParameters());
+        }
+
+        /**
+         * Connects to a simulated card and selects the applet. Connecting resets the card, which deselects the
+         * applet of a snapshot.
+         */
+        private CardChannel connect(CardSimulator simulator, byte[] aid) {
+            try {
+                final CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+                final int sw = channel.transmit(new CommandAPDU(command(0x00, 0xA4, 0x04, 0x00, aid, 0))).getSW();
+                if (sw != 0x9000) {
+                    throw new IllegalStateException(String.format("SELECT failed (SW %04X)", sw));
+                }
+                return channel;
+            } catch (CardException e) {
+                throw new IllegalStateException("Cannot connect to simulated card", e);
+            }
+        }
+
+        /**
+         * Returns whether the command fails the same way for an applet that rejects everything, i.e. in the
+         * simulator rather than in the applet under test.
+         */
+        private boolean failsInSimulator(Target target, byte[] apdu, int sw) {
+            final int variant = ExtendedLength.class.isAssignableFrom(target.appletClass) ? 1 : 0;
+            if (controls[variant] == null) {
+                final CardSimulator simulator = new CardSimulator();
+                simulator.installApplet(AIDUtil.create(CONTROL_AID), variant == 1 ? ExtendedControlApplet.class : ControlApplet.class);
+                controls[variant] = connect(simulator, CONTROL_AID);
+            }
+            try {
+                // Reselect, in case an earlier command selected something else
+                controls[variant].transmit(new CommandAPDU(command(0x00, 0xA4, 0x04, 0x00, CONTROL_AID, 0)));
+                return controls[variant].transmit(new CommandAPDU(apdu)).getSW() == sw;
+            } catch (CardException | RuntimeException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Checks that an accepted installation serves the ID (and PSK) of its applet data.
+         */
+        private String checkInstallation(Case input, CardSimulator simulator) {
+            final Target target = input.target;
+            final byte[] id = field(input.appletData, target.idOffset);
+            if (id == null) {
+                return null;
+            }
+            try {
+                final CardChannel channel = connect(simulator, target.aid);
+                final byte[] actual;
+                if (target.pskOffset >= 0) {
+                    final byte[] psk = field(input.appletData, target.pskOffset);
+                    actual = new AuthenticatedIdentificationClient(psk).readIdFast(channel);
+                } else {
+                    actual = channel.transmit(new CommandAPDU(0x80, 0x12, 0, 0, 16)).getData();
+                }
+                return Arrays.equals(id, actual) ? null : "installed ID " + HEX.formatHex(actual) + " instead of "
+                        + HEX.formatHex(id) + ", applet data " + HEX.formatHex(input.appletData);
+            } catch (CardException e) {
+                return "no session with the installed PSK (" + e.getMessage() + "), applet data "
+                        + HEX.formatHex(input.appletData);
+            }
+        }
+
+        // ===== Mutations =====
+
+        private Case mutate(Case parent) {
+            Case child = parent;
+            final int rounds = 1 + random.nextInt(4);
+            for (int round = 0; round < rounds; round++) {
+                child = random.nextInt(8) == 0 ? mutateInstall(child) : mutateSteps(child);
+            }
+            return child;
+        }
+
+        private Case mutateSteps(Case input) {
+            final List<Step> steps = new ArrayList<>(input.steps);
+            final int operation = steps.isEmpty() ? 0 : random.nextInt(6);
+            final int position = random.nextInt(steps.size() + 1);
+            switch (operation) {
+                case 0:
+                    if (steps.size() < MAX_STEPS) {
+                        steps.add(position, randomStep(input.target));
+                    }
+                    break;
+                case 1:
+                    steps.remove(random.nextInt(steps.size()));
+                    break;
+                case 2:
+                    if (steps.size() < MAX_STEPS) {
+                        steps.add(position, steps.get(random.nextInt(steps.size())));
+                    }
+                    break;
+                case 3:
+                    Collections.swap(steps, random.nextInt(steps.size()), random.nextInt(steps.size()));
+                    break;
+                case 4: {
+                    // Splice the tail of another input of the same applet
+                    final Case other = corpus.get(random.nextInt(corpus.size()));
+                    if (other.target == input.target && !other.steps.isEmpty()) {
+                        final List<Step> tail = other.steps.subList(random.nextInt(other.steps.size()), other.steps.size());
+                        steps.subList(Math.min(position, steps.size()), steps.size()).clear();
+                        steps.addAll(tail.subList(0, Math.min(tail.size(), MAX_STEPS - steps.size())));
+                    }
+                    break;
+                }
+                default: {
+                    final int index = random.nextInt(steps.size());
+                    if (steps.get(index).kind == Step.APDU) {
+                        steps.set(index, new Step(Step.APDU, mutateApdu(steps.get(index).apdu)));
+                    }
+                }
+            }
+            return input.withSteps(steps);
+        }
+
+        private Step randomStep(Target target) {
+            final int choice = random.nextInt(10);
+            if (choice == 0) {
+                return new Step(Step.SELECT, null);
+            }
+            if (choice == 1 && target.pskOffset >= 0) {
+                return new Step(Step.SESSION, null);
+            }
+            final byte[] data = new byte[LENGTHS[random.nextInt(LENGTHS.length)]];
+            random.nextBytes(data);
+            return new Step(Step.APDU, command(randomCla(), randomIns(target), random.nextInt(4) == 0 ? random.nextInt(256) : 0,
+                    0, data, RESPONSE_LENGTHS[random.nextInt(RESPONSE_LENGTHS.length)]));
+        }
+
+        private int randomCla() {
+            final int choice = random.nextInt(16);
+            if (choice == 0) {
+                return 0x00;
+            }
+            if (choice == 1) {
+                // CLA FF is reserved for PPS and never reaches an applet
+                return random.nextInt(255);
+            }
+            // Proprietary class, mostly on the basic channel
+            return 0x80 | (choice == 2 ? random.nextInt(4) : 0);
+        }
+
+        private int randomIns(Target target) {
+            return random.nextInt(16) == 0 ? random.nextInt(256) : target.instructions[random.nextInt(target.instructions.length)] & 0xff;
+        }
+
+        private byte[] mutateApdu(byte[] apdu) {
+            final CommandAPDU command = new CommandAPDU(apdu);
+            int cla = command.getCLA();
+            int ins = command.getINS();
+            int p1 = command.getP1();
+            int p2 = command.getP2();
+            byte[] data = command.getData();
+            int ne = command.getNe();
+            switch (random.nextInt(7)) {
+                case 0: cla = randomCla(); break;
+                case 1: ins = random.nextInt(256); break;
+                case 2: p1 = random.nextInt(3) == 0 ? random.nextInt(256) : random.nextInt(2); break;
+                case 3: p2 = random.nextInt(256); break;
+                case 4: ne = RESPONSE_LENGTHS[random.nextInt(RESPONSE_LENGTHS.length)]; break;
+                case 5: data = Arrays.copyOf(data, LENGTHS[random.nextInt(LENGTHS.length)]); break;
+                default:
+                    if (data.length > 0) {
+                        data[random.nextInt(data.length)] ^= (byte) (1 << random.nextInt(8));
+                    }
+            }
+            return command(cla, ins, p1, p2, data, ne);
+        }
+
+        private Case mutateInstall(Case input) {
+            int installOffset = input.installOffset;
+            int aidLength = input.aidLength;
+            int controlLength = input.controlLength;
+            byte[] appletData = input.appletData.clone();
+            switch (random.nextInt(6)) {
+                case 0: installOffset = random.nextInt(4) == 0 ? random.nextInt(256) : random.nextInt(32); break;
+                case 1: aidLength = 5 + random.nextInt(12); break;
+                case 2: controlLength = random.nextInt(4) == 0 ? random.nextInt(128) : random.nextInt(8); break;
+                case 3:
+                    if (appletData.length > 32) {
+                        appletData[32] = (byte) (1 << random.nextInt(8));
+                    }
+                    break;
+                case 4: appletData = Arrays.copyOf(appletData, Math.min(255, LENGTHS[random.nextInt(LENGTHS.length)])); break;
+                default:
+                    if (appletData.length > 0) {
+                        appletData[random.nextInt(appletData.length)] ^= (byte) (1 << random.nextInt(8));
+                    }
+            }
+            return new Case(input.target, installOffset, aidLength, controlLength, appletData, input.steps);
+        }
+    }
+
+    // ===== Oracles =====
+
+    /**
+     * Returns the kind of finding for a status word, or null if it is one an applet may return.
+     */
+    static String classify(int sw) {
+        if ((sw & 0xff00) == 0x6F00) {
+            return CRASH;
+        }
+        if (sw == 0x9000 || (sw >= 0x6100 && sw < 0x6F00)) {
+            return null;
+        }
+        return UNEXPECTED_SW;
+    }
+
+    private static int bucket(int length) {
+        return length == 0 ? 0 : length <= 16 ? 1 : length <= 48 ? 2 : length <= 256 ? 3 : 4;
+    }
+
+    /**
+     * Returns the 16-byte field at the offset, or null if the applet data is too short.
+     */
+    private static byte[] field(byte[] data, int offset) {
+        if (offset < 0 || data.length < offset + 16) {
+            return null;
+        }
+        return Arrays.copyOfRange(data, offset, offset + 16);
+    }
+
+    /**
+     * Returns the value, or null if it is a repeated byte that could also be padding in a response.
+     */
+    private static byte[] distinctive(byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        for (byte b : value) {
+            if (b != value[0]) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static boolean contains(byte[] data, byte[] value) {
+        if (value == null) {
+            return false;
+        }
+        for (int i = 0; i + value.length <= data.length; i++) {
+            if (Arrays.equals(data, i, i + value.length, value, 0, value.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,361 @@
+package tools;
+
+import applet.AuthenticatedIdentificationApplet;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.InstallData;
+import terminal.KeyDiversifier;
+import terminal.ProtocolException;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rotates PSK and ID of a fleet of cards in place with UPDATE_CREDENTIALS, while the cards are tapped at ordinary door
+ * readers. Each tap authenticates under the old key as usual; if the card is due for rotation, its new credentials
+ * are sent in the same session and verified with a second session under the new key. Cards that were already
+ * rotated authenticate under the new key and are left alone, so readers can run the rotation until the whole fleet
+ * has passed by.
+ * <p>
+ * The plan is streamed line by line ({@code old_id[,new_id[,new_psk]]}, hex values, {@code #} starts a comment).
+ * A missing new ID keeps the old one. A missing new PSK is diversified from the new master key (with the diversifier
+ * the card was installed with) or generated randomly. Without a plan, {@code --all} rotates every card that
+ * authenticates under the old key, keeping its ID. The results file has the columns
+ * {@code old_id,new_id,new_psk,status,reader,millis}; it contains the random PSKs and must be handled like key material.
+ * <pre>
+ * ./gradlew rotateCredentials -Pargs="--plan rotation.csv --psk 0011...EEFF --out rotated.csv --readers all --seconds 86400"
+ * ./gradlew rotateCredentials -Pargs="--all --master-key 0001...0F --new-master-key 1011...1F --out rotated.csv"
+ * </pre>
+ */
+public final class CredentialRotator {
+
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+
+    /** Card got its new credentials and authenticated with them. */
+    public static final String ROTATED = "ROTATED";
+    /** Card authenticates under the new key already. */
+    public static final String ALREADY_ROTATED = "ALREADY_ROTATED";
+    /** Card authenticates under the old key but is not in the plan. */
+    public static final String NOT_PLANNED = "NOT_PLANNED";
+    /** Card authenticates under neither key. */
+    public static final String UNKNOWN_KEY = "UNKNOWN_KEY";
+    /** UPDATE_CREDENTIALS or the verification failed, the card is retried on its next tap. */
+    public static final String FAILED = "FAILED";
+
+    /**
+     * New credentials of one card.
+     */
+    private static final class Target {
+        final byte[] id;
+        final byte[] psk;   // null: diversified from the new master key, or random
+
+        Target(byte[] id, byte[] psk) {
+            this.id = id;
+            this.psk = psk;
+        }
+    }
+
+    private final AuthenticatedIdentificationClient oldClient;
+    private final KeyDiversifier newDiversifier;
+    private final AuthenticatedIdentificationClient newDiversifiedClient;
+    private final Map<String, Target> plan = new ConcurrentHashMap<>();
+    private final Map<String, byte[]> rotatedPsks = new ConcurrentHashMap<>();
+    private final boolean all;
+    private final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+    private final PrintWriter results;
+
+    private final LongAdder rotated = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param oldClient     client for the current credentials (single PSK or diversified)
+     * @param newMasterKey  master key to diversify new PSKs from, or null for PSKs from the plan or random PSKs
+     * @param all           rotate cards that are not in the plan as well, keeping their ID
+     * @param results       receives one line per tap that is not a plain read of an unplanned card
+     */
+    public CredentialRotator(AuthenticatedIdentificationClient oldClient, byte[] newMasterKey, boolean all, PrintWriter results) {
+        this.oldClient = oldClient;
+        this.newDiversifier = newMasterKey == null ? null : new KeyDiversifier(newMasterKey);
+        this.newDiversifiedClient = newMasterKey == null ? null : new AuthenticatedIdentificationClient(newDiversifier, 1024);
+        this.all = all;
+        this.results = results;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String planFile = null;
+        String out = "rotated.csv";
+        String readers = "all";
+        byte[] psk = null;
+        byte[] masterKey = null;
+        byte[] newMasterKey = null;
+        boolean all = false;
+        long seconds = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--plan": planFile = args[++i]; break;
+                case "--out": out = args[++i]; break;
+                case "--readers": readers = args[++i]; break;
+                case "--psk": psk = HEX.parseHex(args[++i]); break;
+                case "--master-key": masterKey = HEX.parseHex(args[++i]); break;
+                case "--new-master-key": newMasterKey = HEX.parseHex(args[++i]); break;
+                case "--all": all = true; break;
+                case "--seconds": seconds = Long.parseLong(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        if ((psk == null) == (masterKey == null)) {
+            throw new IllegalArgumentException("Either --psk or --master-key is required");
+        }
+        if (planFile == null && !all) {
+            throw new IllegalArgumentException("Either --plan or --all is required");
+        }
+
+        final AuthenticatedIdentificationClient oldClient = psk != null
+                ? new AuthenticatedIdentificationClient(psk)
+                : new AuthenticatedIdentificationClient(new KeyDiversifier(masterKey), 1024);
+        final List<CardTerminal> terminals = new ArrayList<>();
+        for (CardTerminal terminal : TerminalFactory.getDefault().terminals().list()) {
+            if (readers.equals("all") || Arrays.asList(readers.split(",")).contains(terminal.getName())) {
+                terminals.add(terminal);
+            }
+        }
+        if (terminals.isEmpty()) {
+            throw new IllegalArgumentException("No matching readers found");
+        }
+
+        try (PrintWriter results = new PrintWriter(Files.newBufferedWriter(Paths.get(out),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+            final CredentialRotator rotator = new CredentialRotator(oldClient, newMasterKey, all, results);
+            if (planFile != null) {
+                try (BufferedReader in = Files.newBufferedReader(Paths.get(planFile))) {
+                    System.out.println("Loaded " + rotator.loadPlan(in) + " planned rotations");
+                }
+            }
+            rotator.watch(terminals, seconds);
+            System.out.printf("Rotated %d, failed %d, %d planned cards left%n", rotator.getRotated(), rotator.getFailed(),
+                    rotator.getPending());
+        }
+    }
+
+    /**
+     * Adds the entries of a plan. Returns the number of entries read.
+     *
+     * @throws IllegalArgumentException on a malformed entry
+     */
+    public int loadPlan(BufferedReader in) throws IOException {
+        int entries = 0;
+        int number = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            number++;
+            final String entry = line.replaceFirst("#.*", "").trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            final String[] fields = entry.split(",", -1);
+            try {
+                final byte[] oldId = parseHex(fields[0], "Old ID", InstallData.ID_LENGTH);
+                final byte[] newId = fields.length > 1 && !fields[1].isBlank()
+                        ? parseHex(fields[1], "New ID", InstallData.ID_LENGTH) : oldId;
+                final byte[] newPsk = fields.length > 2 && !fields[2].isBlank()
+                        ? parseHex(fields[2], "New PSK", InstallData.PSK_LENGTH) : null;
+                if (plan.putIfAbsent(HEX.formatHex(oldId), new Target(newId, newPsk)) != null) {
+                    throw new IllegalArgumentException("Duplicate ID " + HEX.formatHex(oldId));
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + number + ": " + e.getMessage());
+            }
+            entries++;
+        }
+        return entries;
+    }
+
+    /**
+     * Handles one tap: authenticates the card, rotates it if it is due, and returns the status (one of the constants
+     * of this class). A door controller would grant or deny access based on the verified ID as usual.
+     */
+    public String rotate(CardChannel channel, String reader) throws CardException {
+        final long start = System.nanoTime();
+        final byte[][] update = new byte[1][];
+        final byte[] oldId;
+        try {
+            oldClient.select(channel);
+            oldId = oldClient.updateCredentials(channel, (id, diversifier) -> update[0] = newCredentials(id, diversifier));
+        } catch (ProtocolException e) {
+            if (update[0] != null) {
+                // Authenticated under the old key, but the card refused the update
+                return record(update[0], null, FAILED, reader + ": " + e.getMessage(), start);
+            }
+            return record(null, null, rotatedStatus(channel), reader, start);
+        }
+        if (update[0] == null) {
+            return NOT_PLANNED;
+        }
+
+        // Verify with a session under the new key, as the next reader will run it
+        final byte[] newPsk = Arrays.copyOf(update[0], 16);
+        final byte[] newId = Arrays.copyOfRange(update[0], 16, 32);
+        try {
+            final AuthenticatedIdentificationClient verifier = newDiversifiedClient != null
+                    ? newDiversifiedClient : new AuthenticatedIdentificationClient(newPsk);
+            if (!Arrays.equals(newId, verifier.readIdFast(channel))) {
+                throw new ProtocolException("Card returned a wrong ID after the update");
+            }
+        } catch (ProtocolException e) {
+            return record(oldId, update[0], FAILED, reader + ": " + e.getMessage(), start);
+        }
+        plan.remove(HEX.formatHex(oldId));
+        rotatedPsks.put(HEX.formatHex(newId), newPsk);
+        return record(oldId, update[0], ROTATED, reader, start);
+    }
+
+    public long getRotated() {
+        return rotated.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * Returns the number of planned cards that have not been rotated yet.
+     */
+    public int getPending() {
+        return plan.size();
+    }
+
+    /**
+     * Runs the rotation on every card presented to one of the readers, once per presentation, until the time is up
+     * (or, for seconds = 0, on the cards that are present right now).
+     */
+    public void watch(List<CardTerminal> terminals, long seconds) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + seconds * 1000;
+        final List<Thread> threads = new ArrayList<>();
+        for (CardTerminal terminal : terminals) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    do {
+                        if (!terminal.waitForCardPresent(seconds == 0 ? 1 : 500)) {
+                            continue;
+                        }
+                        final Card card = terminal.connect("*");
+                        try {
+                            rotate(card.getBasicChannel(), terminal.getName().replace(',', ' '));
+                        } finally {
+                            card.disconnect(false);
+                        }
+                        while (seconds > 0 && !terminal.waitForCardAbsent(500) && System.currentTimeMillis() < deadline) {
+                            // Wait for the card to leave, so that each presentation is handled once
+                        }
+                    } while (System.currentTimeMillis() < deadline && (all || !plan.isEmpty()));
+                } catch (CardException e) {
+                    System.err.println(terminal.getName() + ": " + e.getMessage());
+                }
+            }, "rotate-" + terminal.getName());
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Returns new PSK || new ID for a card that authenticated under the old key, or null if it is not due.
+     */
+    private byte[] newCredentials(byte[] id, byte[] diversifier) {
+        Target target = plan.get(HEX.formatHex(id));
+        if (target == null) {
+            if (!all) {
+                return null;
+            }
+            target = new Target(id, null);
+        }
+        byte[] psk = target.psk;
+        if (psk == null && newDiversifier != null && diversifier != null) {
+            psk = newDiversifier.derivePsk(diversifier);
+        } else if (psk == null) {
+            psk = new byte[InstallData.PSK_LENGTH];
+            random.get().nextBytes(psk);
+        }
+        final byte[] credentials = new byte[32];
+        System.arraycopy(psk, 0, credentials, 0, 16);
+        System.arraycopy(target.id, 0, credentials, 16, 16);
+        return credentials;
+    }
+
+    /**
+     * Tells a card that was rotated before (by this run, or under the new master key) from one with an unknown key.
+     */
+    private String rotatedStatus(CardChannel channel) throws CardException {
+        if (newDiversifiedClient != null) {
+            try {
+                newDiversifiedClient.readIdFast(channel);
+                return ALREADY_ROTATED;
+            } catch (ProtocolException e) {
+                return UNKNOWN_KEY;
+            }
+        }
+        // Without a master key, the card's new PSK is only known if it was rotated in this run
+        for (byte[] psk : rotatedPsks.values()) {
+            try {
+                final byte[] id = new AuthenticatedIdentificationClient(psk).readIdFast(channel);
+                if (Arrays.equals(psk, rotatedPsks.get(HEX.formatHex(id)))) {
+                    return ALREADY_ROTATED;
+                }
+            } catch (ProtocolException e) {
+                // Next candidate
+            }
+        }
+        return UNKNOWN_KEY;
+    }
+
+    private String record(byte[] oldId, byte[] credentials, String status, String detail, long startNanos) {
+        if (status.equals(ROTATED)) {
+            rotated.increment();
+        } else if (status.equals(FAILED)) {
+            failed.increment();
+        }
+        // Diversified PSKs are not written, they are derived from the new master key again
+        final boolean writePsk = credentials != null && newDiversifier == null;
+        final String line = String.join(",",
+                oldId == null ? "" : HEX.formatHex(oldId),
+                credentials == null ? "" : HEX.formatHex(credentials, 16, 32),
+                writePsk ? HEX.formatHex(credentials, 0, 16) : "",
+                status, detail.replace(',', ';'), Long.toString((System.nanoTime() - startNanos) / 1_000_000));
+        synchronized (results) {
+            results.println(line);
+            results.flush();
+        }
+        return status;
+    }
+
+    private static byte[] parseHex(String value, String name, int length) {
+        final byte[] bytes;
+        try {
+            bytes = HEX.parseHex(value.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name + " is not valid hex");
+        }
+        if (bytes.length != length) {
+            throw new IllegalArgumentException(name + " must be " + length + " bytes, got " + bytes.length);
+        }
+        return bytes;
+    }
+}
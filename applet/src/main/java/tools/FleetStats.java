@@ -0,0 +1,499 @@
+package tools;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.CardStatistics;
+import terminal.InstallData;
+import terminal.KeyDiversifier;
+import terminal.ProtocolException;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import javax.smartcardio.TerminalFactory;
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Collects the GET_STATS counters of cards presented to a fleet of readers and aggregates them, to find worn cards
+ * and unusual failure patterns. Collection appends one CSV line per card read, so the files of several door
+ * controllers can be combined in one report:
+ * <pre>
+ * ./gradlew fleetStats -Pargs="collect --readers all --master-key 000102...0F --out door-1.csv --seconds 3600"
+ * ./gradlew fleetStats -Pargs="report door-1.csv door-2.csv --wear-limit 100000"
+ * ./gradlew fleetStats -Pargs="collect --simulate 200 --out sim.csv"
+ * </pre>
+ * Cards with the authenticated applet are read with {@code --psk} or {@code --master-key} (for diversified cards),
+ * cards with the identification applet without key. Only cards installed with {@link InstallData#OPT_STATISTICS}
+ * answer GET_STATS; all other reads are recorded as failures with their status word.
+ */
+public final class FleetStats {
+
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+    private static final byte[] IDENTIFICATION_AID = {(byte) 0xf0, 0x00, 0x00, 0x0c, (byte) 0xdc, 0x00};
+    private static final String HEADER;
+
+    static {
+        final StringBuilder sb = new StringBuilder("time_ms,reader,applet,id,status,micros");
+        for (int i = 0; i < CardStatistics.counterCount(); i++) {
+            sb.append(',').append(CardStatistics.name(i));
+        }
+        HEADER = sb.toString();
+    }
+
+    /**
+     * One read attempt: the verified card ID and counters on success, the status word or error otherwise.
+     */
+    public static final class Sample {
+        public final long timeMillis;
+        public final String reader;
+        public final String applet;
+        public final String id;
+        public final String status;
+        public final long micros;
+        public final CardStatistics statistics;
+
+        public Sample(long timeMillis, String reader, String applet, String id, String status, long micros,
+                      CardStatistics statistics) {
+            this.timeMillis = timeMillis;
+            this.reader = reader;
+            this.applet = applet;
+            this.id = id;
+            this.status = status;
+            this.micros = micros;
+            this.statistics = statistics;
+        }
+
+        public boolean ok() {
+            return statistics != null;
+        }
+
+        public String toCsv() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(timeMillis).append(',').append(reader).append(',').append(applet).append(',').append(id)
+                    .append(',').append(status).append(',').append(micros);
+            for (int i = 0; i < CardStatistics.counterCount(); i++) {
+                sb.append(',');
+                if (statistics != null) {
+                    sb.append(statistics.get(i));
+                }
+            }
+            return sb.toString();
+        }
+
+        public static Sample parse(String line) {
+            final String[] fields = line.split(",", -1);
+            if (fields.length != 6 + CardStatistics.counterCount()) {
+                throw new IllegalArgumentException("Malformed sample: " + line);
+            }
+            CardStatistics statistics = null;
+            if (!fields[6].isEmpty()) {
+                final long[] counters = new long[CardStatistics.counterCount()];
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] = Long.parseLong(fields[6 + i]);
+                }
+                statistics = new CardStatistics(counters);
+            }
+            return new Sample(Long.parseLong(fields[0]), fields[1], fields[2], fields[3], fields[4],
+                    Long.parseLong(fields[5]), statistics);
+        }
+    }
+
+    /**
+     * Reads the counters of the card on the given channel. The authenticated applet is tried first (if a client is
+     * given), then the identification applet. Card errors are returned as failed samples, only I/O errors of the
+     * reader itself are thrown.
+     */
+    public static Sample read(CardChannel channel, String reader, AuthenticatedIdentificationClient client) throws CardException {
+        final long time = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        String applet = "auth";
+        String id = "";
+        try {
+            if (client != null && select(channel, AuthenticatedIdentificationClient.APPLET_AID)) {
+                final byte[] cardId = new byte[16];
+                try {
+                    final CardStatistics statistics = client.readStatistics(channel, cardId);
+                    return new Sample(time, reader, applet, HEX.formatHex(cardId), "OK", micros(start), statistics);
+                } catch (ProtocolException e) {
+                    // The ID is verified before GET_STATS, so a card without statistics is still attributed
+                    if (e.getSW() == 0x6A81) {
+                        id = HEX.formatHex(cardId);
+                    }
+                    throw e;
+                }
+            }
+            applet = "ident";
+            if (!select(channel, IDENTIFICATION_AID)) {
+                return new Sample(time, reader, "none", id, "NO_APPLET", micros(start), null);
+            }
+            final ResponseAPDU idResponse = channel.transmit(new CommandAPDU(0x80, 0x12, 0x00, 0x00, 16));
+            if (idResponse.getSW() != 0x9000 || idResponse.getData().length != 16) {
+                throw new ProtocolException("GET_ID failed", idResponse.getSW());
+            }
+            id = HEX.formatHex(idResponse.getData());
+            final ResponseAPDU statsResponse = channel.transmit(new CommandAPDU(0x80, 0x17, 0x00, 0x00, 256));
+            if (statsResponse.getSW() != 0x9000) {
+                throw new ProtocolException("GET_STATS failed", statsResponse.getSW());
+            }
+            final byte[] data = statsResponse.getData();
+            return new Sample(time, reader, applet, id, "OK", micros(start),
+                    CardStatistics.parseIdentification(data, 0, data.length));
+        } catch (ProtocolException e) {
+            final String status = e.getSW() != 0 ? String.format("%04X", e.getSW()) : "PROTOCOL";
+            return new Sample(time, reader, applet, id, status, micros(start), null);
+        }
+    }
+
+    private static boolean select(CardChannel channel, byte[] aid) throws CardException {
+        return channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, aid)).getSW() == 0x9000;
+    }
+
+    private static long micros(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000;
+    }
+
+    // ===== Aggregation =====
+
+    /**
+     * Aggregated view of one card (or, for reads that failed before the ID was known, of one reader).
+     */
+    public static final class CardSummary {
+        public final String key;
+        public final String applet;
+        CardStatistics latest;
+        long latestTime = Long.MIN_VALUE;
+        final List<Long> okMicros = new ArrayList<>();
+        final List<Long> failedMicros = new ArrayList<>();
+        final Map<String, Integer> failures = new LinkedHashMap<>();
+        final List<String> flags = new ArrayList<>();
+
+        CardSummary(String key, String applet) {
+            this.key = key;
+            this.applet = applet;
+        }
+
+        public CardStatistics latest() {
+            return latest;
+        }
+
+        public List<String> flags() {
+            return flags;
+        }
+
+        public int reads() {
+            return okMicros.size() + failedMicros.size();
+        }
+
+        public long medianMicros() {
+            return percentile(okMicros, 0.5);
+        }
+
+        public long medianFailedMicros() {
+            return percentile(failedMicros, 0.5);
+        }
+    }
+
+    /**
+     * Aggregates samples per card and flags cards whose counters or timings stand out from the fleet.
+     */
+    public static final class Report {
+        private final long wearLimit;
+        private final double failureRatio;
+        private final Map<String, CardSummary> cards = new LinkedHashMap<>();
+
+        /**
+         * @param wearLimit    persistent writes after which a card is reported as worn
+         * @param failureRatio share of failed authentications or abandoned sessions that is reported as unusual
+         */
+        public Report(long wearLimit, double failureRatio) {
+            this.wearLimit = wearLimit;
+            this.failureRatio = failureRatio;
+        }
+
+        public void add(Sample sample) {
+            final String key = sample.id.isEmpty() ? "reader:" + sample.reader : sample.id;
+            final CardSummary card = cards.computeIfAbsent(key, k -> new CardSummary(k, sample.applet));
+            if (!sample.ok()) {
+                card.failedMicros.add(sample.micros);
+                card.failures.merge(sample.status, 1, Integer::sum);
+                return;
+            }
+            card.okMicros.add(sample.micros);
+            if (sample.timeMillis >= card.latestTime) {
+                card.latest = sample.statistics;
+                card.latestTime = sample.timeMillis;
+            }
+        }
+
+        /**
+         * Evaluates the flags of all cards and returns them, flagged cards first.
+         */
+        public List<CardSummary> evaluate() {
+            final List<Long> fleetOk = new ArrayList<>();
+            for (CardSummary card : cards.values()) {
+                fleetOk.addAll(card.okMicros);
+            }
+            final long fleetMedian = percentile(fleetOk, 0.5);
+            final long fleetP95 = percentile(fleetOk, 0.95);
+
+            final List<CardSummary> result = new ArrayList<>(cards.values());
+            for (CardSummary card : result) {
+                card.flags.clear();
+                final CardStatistics s = card.latest;
+                if (s != null) {
+                    if (s.get(CardStatistics.PERSISTENT_WRITES) >= wearLimit) {
+                        card.flags.add("WORN");
+                    }
+                    if (unusual(s.authFailures(), s.get(CardStatistics.AUTH_ATTEMPT))) {
+                        card.flags.add("AUTH_FAILURES");
+                    }
+                    if (unusual(s.abandonedSessions(), s.get(CardStatistics.AUTH_INIT))) {
+                        // AUTH_INIT without the second command: the card keeps leaving the field (antenna, coupling)
+                        card.flags.add("ABANDONED_SESSIONS");
+                    }
+                    if (unusual(s.get(CardStatistics.RESUME_REJECTED), s.get(CardStatistics.RESUME_ACCEPTED)
+                            + s.get(CardStatistics.RESUME_REJECTED))) {
+                        card.flags.add("RESUME_REJECTIONS");
+                    }
+                }
+                if (!card.okMicros.isEmpty() && fleetMedian > 0 && card.medianMicros() > 2 * fleetMedian) {
+                    card.flags.add("SLOW");
+                }
+                // Failures that take longer than almost all successful reads point at timeouts or retries rather
+                // than clean rejections
+                if (!card.failedMicros.isEmpty() && fleetP95 > 0 && card.medianFailedMicros() > fleetP95) {
+                    card.flags.add("SLOW_FAILURES");
+                }
+            }
+            result.sort(Comparator.comparing(card -> card.flags.isEmpty()));
+            return result;
+        }
+
+        private boolean unusual(long events, long total) {
+            return total >= 20 && events > failureRatio * total;
+        }
+
+        public String format() {
+            final List<CardSummary> evaluated = evaluate();
+            final StringBuilder sb = new StringBuilder();
+            sb.append(String.format("%-34s %-6s %6s %10s %10s %10s %10s  %s%n", "card", "applet", "reads",
+                    "median_us", "auth_fail", "abandoned", "writes", "flags / failures"));
+            int flagged = 0;
+            for (CardSummary card : evaluated) {
+                final CardStatistics s = card.latest;
+                if (!card.flags.isEmpty()) {
+                    flagged++;
+                }
+                sb.append(String.format("%-34s %-6s %6d %10d %10s %10s %10s  %s %s%n", card.key, card.applet,
+                        card.reads(), card.medianMicros(),
+                        s == null ? "-" : Long.toString(s.authFailures()),
+                        s == null ? "-" : Long.toString(s.abandonedSessions()),
+                        s == null ? "-" : Long.toString(s.get(CardStatistics.PERSISTENT_WRITES)),
+                        String.join(",", card.flags), card.failures.isEmpty() ? "" : card.failures));
+            }
+            sb.append(String.format("%d cards, %d flagged%n", evaluated.size(), flagged));
+            return sb.toString();
+        }
+    }
+
+    static long percentile(List<Long> values, double quantile) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        final long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, (int) (quantile * sorted.length))];
+    }
+
+    // ===== Command line =====
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage: collect [options] | report <samples.csv>... [options]");
+        }
+        long wearLimit = 100_000;
+        double failureRatio = 0.05;
+        String readers = "all";
+        String out = "fleet-stats.csv";
+        byte[] psk = null;
+        byte[] masterKey = null;
+        long seconds = 0;
+        int simulate = 0;
+        final List<Path> inputs = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--wear-limit": wearLimit = Long.parseLong(args[++i]); break;
+                case "--failure-ratio": failureRatio = Double.parseDouble(args[++i]); break;
+                case "--readers": readers = args[++i]; break;
+                case "--out": out = args[++i]; break;
+                case "--psk": psk = HEX.parseHex(args[++i]); break;
+                case "--master-key": masterKey = HEX.parseHex(args[++i]); break;
+                case "--seconds": seconds = Long.parseLong(args[++i]); break;
+                case "--simulate": simulate = Integer.parseInt(args[++i]); break;
+                default:
+                    if (args[i].startsWith("--")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    inputs.add(Paths.get(args[i]));
+            }
+        }
+
+        final Report report = new Report(wearLimit, failureRatio);
+        switch (args[0]) {
+            case "report":
+                for (Path input : inputs) {
+                    try (BufferedReader in = Files.newBufferedReader(input)) {
+                        String line;
+                        while ((line = in.readLine()) != null) {
+                            if (!line.isEmpty() && !line.startsWith("time_ms")) {
+                                report.add(Sample.parse(line));
+                            }
+                        }
+                    }
+                }
+                break;
+            case "collect":
+                final AuthenticatedIdentificationClient client = masterKey != null
+                        ? new AuthenticatedIdentificationClient(new KeyDiversifier(masterKey), 1024)
+                        : psk != null ? new AuthenticatedIdentificationClient(psk) : null;
+                final boolean header = !Files.exists(Paths.get(out));
+                try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(out),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND))) {
+                    if (header) {
+                        writer.println(HEADER);
+                    }
+                    final SampleSink sink = sample -> {
+                        synchronized (writer) {
+                            writer.println(sample.toCsv());
+                            report.add(sample);
+                        }
+                    };
+                    if (simulate > 0) {
+                        collectSimulated(simulate, sink);
+                    } else {
+                        collect(selectTerminals(readers), client, seconds, sink);
+                    }
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + args[0]);
+        }
+        System.out.print(report.format());
+    }
+
+    private interface SampleSink {
+        void accept(Sample sample);
+    }
+
+    private static List<CardTerminal> selectTerminals(String readers) throws CardException {
+        final List<CardTerminal> terminals = new ArrayList<>();
+        for (CardTerminal terminal : TerminalFactory.getDefault().terminals().list()) {
+            if (readers.equals("all") || Arrays.asList(readers.split(",")).contains(terminal.getName())) {
+                terminals.add(terminal);
+            }
+        }
+        if (terminals.isEmpty()) {
+            throw new IllegalArgumentException("No matching readers found");
+        }
+        return terminals;
+    }
+
+    /**
+     * Reads every card presented to one of the readers, once per presentation, until the time is up (or, for
+     * seconds = 0, reads the cards that are present right now).
+     */
+    private static void collect(List<CardTerminal> terminals, AuthenticatedIdentificationClient client, long seconds,
+                                SampleSink sink) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + seconds * 1000;
+        final List<Thread> threads = new ArrayList<>();
+        for (CardTerminal terminal : terminals) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    do {
+                        if (!terminal.waitForCardPresent(seconds == 0 ? 1 : 500)) {
+                            continue;
+                        }
+                        final Card card = terminal.connect("*");
+                        try {
+                            sink.accept(read(card.getBasicChannel(), terminal.getName().replace(',', ' '), client));
+                        } finally {
+                            card.disconnect(false);
+                        }
+                        while (seconds > 0 && !terminal.waitForCardAbsent(500) && System.currentTimeMillis() < deadline) {
+                            // Wait for the card to leave, so that each presentation is read once
+                        }
+                    } while (System.currentTimeMillis() < deadline);
+                } catch (CardException e) {
+                    System.err.println(terminal.getName() + ": " + e.getMessage());
+                }
+            }, "stats-" + terminal.getName());
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Installs simulated cards with statistics, replays random field traffic on them (including failed and
+     * abandoned sessions), and reads their counters.
+     */
+    private static void collectSimulated(int cards, SampleSink sink) throws CardException {
+        final Random random = new Random(42);
+        final SecureRandom keys = new SecureRandom();
+        for (int i = 0; i < cards; i++) {
+            final byte[] psk = new byte[16];
+            final byte[] id = new byte[16];
+            keys.nextBytes(psk);
+            keys.nextBytes(id);
+            final byte[] params = InstallData.installParameters(InstallData.appletData(psk, id, InstallData.OPT_STATISTICS));
+            final CardSimulator simulator = new CardSimulator();
+            simulator.installApplet(AIDUtil.create(AuthenticatedIdentificationClient.APPLET_AID),
+                    AuthenticatedIdentificationApplet.class, params, (short) 0, (byte) params.length);
+            final CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+            final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+            client.select(channel);
+
+            final int sessions = random.nextInt(100);
+            // A few cards with a bad antenna or in the hands of someone with the wrong key
+            final double abandon = random.nextInt(20) == 0 ? 0.5 : 0.01;
+            final double reject = random.nextInt(20) == 0 ? 0.5 : 0.01;
+            for (int s = 0; s < sessions; s++) {
+                final double roll = random.nextDouble();
+                if (roll < abandon) {
+                    channel.transmit(new CommandAPDU(0x80, 0x10, 0x00, 0x00, 16));
+                } else if (roll < abandon + reject) {
+                    // A terminal with the wrong key: AUTH with a payload that does not decrypt to the challenge
+                    final byte[] payload = new byte[16];
+                    random.nextBytes(payload);
+                    channel.transmit(new CommandAPDU(0x80, 0x10, 0x00, 0x00, 16));
+                    channel.transmit(new CommandAPDU(0x80, 0x11, 0x00, 0x00, payload, 256));
+                } else {
+                    client.readIdFast(channel);
+                }
+            }
+            sink.accept(read(channel, "sim-" + (i % 4), client));
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package tools;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.InstallData;
+import terminal.KeyDiversifier;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.TerminalFactory;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bulk provisioning of AuthenticatedIdentificationApplet cards.
+ * <p>
+ * The manifest is streamed line by line ({@code label[,id[,psk[,diversifier]]]}, hex values, {@code #} starts a
+ * comment). Missing IDs are generated randomly. Missing PSKs are either diversified from a master key (see
+ * {@link KeyDiversifier}, the diversifier is generated unless given and installed on the card) or generated
+ * randomly. Generation and validation against the applet's install-data parsing run in parallel, and the validated
+ * cards are handed over a bounded work queue to one worker per station (reader), so several readers are written to
+ * at the same time. Every card is verified by a full authenticated GET_ID before it is reported as provisioned.
+ * <p>
+ * The results file has the columns {@code label,id,psk,diversifier,status,station,millis}. It contains the PSKs of
+ * all randomly keyed cards and must be handled like key material. Its first four columns are a valid manifest, so
+ * failed cards can be retried with {@code grep FAILED}. Every manifest entry gets exactly one result line, so the
+ * provisioned, failed, and invalid counts add up to the number of entries. Usage:
+ * <pre>./gradlew provision -Pargs="--manifest cards.csv --out provisioned.csv --readers all --load"</pre>
+ */
+public final class Provisioner {
+
+    private static final String APPLET_ID = "f000000cdc01";
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+
+    /**
+     * A reader (or simulator) that writes one card at a time.
+     */
+    public interface Station {
+        String name();
+
+        /**
+         * Installs the applet with the card's applet data and verifies that the card authenticates with its ID.
+         */
+        void provision(CardRecord card) throws Exception;
+    }
+
+    /**
+     * One validated manifest entry.
+     */
+    public static final class CardRecord {
+        public final String label;
+        public final byte[] id;
+        public final byte[] psk;
+        public final byte[] diversifier;
+        public final byte[] appletData;
+        final AuthenticatedIdentificationClient verifier;   // Client the card has to authenticate to
+
+        CardRecord(String label, byte[] id, byte[] psk, byte[] diversifier, byte options, AuthenticatedIdentificationClient verifier) {
+            this.label = label;
+            this.id = id;
+            this.psk = psk;
+            this.diversifier = diversifier;
+            this.appletData = InstallData.appletData(psk, id, options, diversifier);
+            this.verifier = verifier;
+        }
+
+        // Marks the end of the manifest in the work queue
+        private CardRecord() {
+            this.label = "";
+            this.id = null;
+            this.psk = null;
+            this.diversifier = null;
+            this.appletData = null;
+            this.verifier = null;
+        }
+    }
+
+    private final KeyDiversifier diversifier;
+    private final AuthenticatedIdentificationClient diversifiedClient;
+    private final byte options;
+    private final int threads;
+
+    private final ThreadLocal<SecureRandom> random = ThreadLocal.withInitial(SecureRandom::new);
+    private final Set<String> seenIds = ConcurrentHashMap.newKeySet();
+    private final Set<String> seenDiversifiers = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder provisioned = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder invalid = new LongAdder();
+
+    /**
+     * @param masterKey 16-byte key to diversify missing PSKs from, or null to generate them randomly
+     * @param options   install options byte appended to every card's applet data
+     * @param threads   number of threads that generate and validate manifest entries
+     */
+    public Provisioner(byte[] masterKey, byte options, int threads) {
+        this.diversifier = masterKey == null ? null : new KeyDiversifier(masterKey);
+        // Diversified cards are verified the way a door controller reads them, the cache is of no use here
+        this.diversifiedClient = masterKey == null ? null : new AuthenticatedIdentificationClient(diversifier, 1);
+        this.options = options;
+        this.threads = threads;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String manifest = "-";
+        String out = "provisioned.csv";
+        byte[] masterKey = null;
+        byte options = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String readers = "all";
+        String gp = "gp";
+        String cap = "build/javacard/ocdcpro.cap";
+        boolean load = false;
+        boolean makeDefault = false;
+        int simulate = 0;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--manifest": manifest = args[++i]; break;
+                case "--out": out = args[++i]; break;
+                case "--master-key": masterKey = HEX.parseHex(args[++i]); break;
+                case "--options": options = (byte) Integer.parseInt(args[++i], 16); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--readers": readers = args[++i]; break;
+                case "--gp": gp = args[++i]; break;
+                case "--cap": cap = args[++i]; break;
+                case "--load": load = true; break;
+                case "--default": makeDefault = true; break;
+                case "--simulate": simulate = Integer.parseInt(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        final List<Station> stations = new ArrayList<>();
+        if (simulate > 0) {
+            for (int i = 0; i < simulate; i++) {
+                stations.add(new SimulatorStation("sim-" + i));
+            }
+        } else {
+            for (CardTerminal terminal : TerminalFactory.getDefault().terminals().list()) {
+                if (readers.equals("all") || Arrays.asList(readers.split(",")).contains(terminal.getName())) {
+                    stations.add(new GpStation(terminal, gp, cap, load, makeDefault));
+                }
+            }
+        }
+        if (stations.isEmpty()) {
+            throw new IllegalStateException("No readers found");
+        }
+
+        final Provisioner provisioner = new Provisioner(masterKey, options, threads);
+        System.out.println("Provisioning with " + stations.size() + " station(s)");
+        final long start = System.nanoTime();
+        try (BufferedReader in = manifest.equals("-")
+                     ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                     : Files.newBufferedReader(Paths.get(manifest));
+             PrintWriter results = new PrintWriter(Files.newBufferedWriter(Paths.get(out)))) {
+            provisioner.run(in, stations, results);
+        }
+        System.out.printf("Provisioned %d, failed %d, invalid %d in %.1f s%n", provisioner.getProvisioned(),
+                provisioner.getFailed(), provisioner.getInvalid(), (System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Streams the manifest through generation and validation into the stations and writes one result line per
+     * manifest entry. Returns once every entry has been processed.
+     */
+    public void run(BufferedReader manifest, List<Station> stations, PrintWriter results) throws IOException, InterruptedException {
+        // Bounded, so that a large manifest is never held in memory completely
+        final BlockingQueue<CardRecord> queue = new LinkedBlockingQueue<>(4 * stations.size());
+        final CardRecord endOfManifest = new CardRecord();
+        final ExecutorService generators = Executors.newFixedThreadPool(threads);
+        final Semaphore generating = new Semaphore(4 * threads);
+        final AtomicInteger lineNumber = new AtomicInteger();
+
+        final List<Thread> workers = new ArrayList<>();
+        for (Station station : stations) {
+            final Thread worker = new Thread(() -> runStation(station, queue, endOfManifest, results), "provision-" + station.name());
+            worker.start();
+            workers.add(worker);
+        }
+
+        try {
+            String line;
+            while ((line = manifest.readLine()) != null) {
+                final int number = lineNumber.incrementAndGet();
+                final String entry = line.replaceFirst("#.*", "").trim();
+                if (entry.isEmpty()) {
+                    continue;
+                }
+                generating.acquire();
+                generators.execute(() -> {
+                    try {
+                        queue.put(prepare(entry));
+                    } catch (IllegalArgumentException e) {
+                        invalid.increment();
+                        writeResult(results, entry.split(",")[0].trim(), null, "INVALID", "line " + number + ": " + e.getMessage(), 0);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (RuntimeException e) {
+                        // Anything else (e.g. from the JCE) would be swallowed by the executor, and the entry lost
+                        failed.increment();
+                        writeResult(results, entry.split(",")[0].trim(), null, "FAILED", "line " + number + ": " + e, 0);
+                    } finally {
+                        generating.release();
+                    }
+                });
+            }
+        } finally {
+            generators.shutdown();
+            generators.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            for (int i = 0; i < workers.size(); i++) {
+                queue.put(endOfManifest);
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            results.flush();
+        }
+    }
+
+    /**
+     * Parses one manifest entry, fills in the missing ID and PSK, and validates the resulting applet data.
+     */
+    CardRecord prepare(String entry) {
+        final String[] fields = entry.split(",", -1);
+        final String label = fields[0].trim();
+        if (label.isEmpty()) {
+            throw new IllegalArgumentException("Missing label");
+        }
+
+        byte[] id;
+        if (fields.length > 1 && !fields[1].isBlank()) {
+            id = parseHex(fields[1], "ID");
+        } else {
+            id = new byte[InstallData.ID_LENGTH];
+            random.get().nextBytes(id);
+        }
+
+        final boolean hasPsk = fields.length > 2 && !fields[2].isBlank();
+        final boolean hasDiversifier = fields.length > 3 && !fields[3].isBlank();
+        final byte[] psk;
+        byte[] cardDiversifier = null;
+        if (hasPsk && hasDiversifier) {
+            throw new IllegalArgumentException("PSK and diversifier are mutually exclusive");
+        } else if (hasPsk) {
+            psk = parseHex(fields[2], "PSK");
+        } else if (diversifier != null) {
+            if (hasDiversifier) {
+                cardDiversifier = parseHex(fields[3], "Diversifier");
+                if (cardDiversifier.length != KeyDiversifier.DIVERSIFIER_LENGTH) {
+                    throw new IllegalArgumentException("Diversifier must be 8 bytes, got " + cardDiversifier.length);
+                }
+            } else {
+                cardDiversifier = new byte[KeyDiversifier.DIVERSIFIER_LENGTH];
+                random.get().nextBytes(cardDiversifier);
+            }
+            psk = diversifier.derivePsk(cardDiversifier);
+        } else if (hasDiversifier) {
+            throw new IllegalArgumentException("Diversifier requires a master key");
+        } else {
+            psk = new byte[InstallData.PSK_LENGTH];
+            random.get().nextBytes(psk);
+        }
+
+        final CardRecord card = new CardRecord(label, id, psk, cardDiversifier, options,
+                cardDiversifier != null ? diversifiedClient : new AuthenticatedIdentificationClient(psk));
+        if (!seenIds.add(HEX.formatHex(id))) {
+            throw new IllegalArgumentException("Duplicate ID " + HEX.formatHex(id));
+        }
+        // Two cards with the same diversifier would share their PSK
+        if (cardDiversifier != null && !seenDiversifiers.add(HEX.formatHex(cardDiversifier))) {
+            throw new IllegalArgumentException("Duplicate diversifier " + HEX.formatHex(cardDiversifier));
+        }
+        return card;
+    }
+
+    public long getProvisioned() {
+        return provisioned.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getInvalid() {
+        return invalid.sum();
+    }
+
+    private void runStation(Station station, BlockingQueue<CardRecord> queue, CardRecord endOfManifest, PrintWriter results) {
+        try {
+            CardRecord card;
+            while ((card = queue.take()) != endOfManifest) {
+                final long start = System.nanoTime();
+                try {
+                    station.provision(card);
+                    provisioned.increment();
+                    writeResult(results, card.label, card, "OK", station.name(), System.nanoTime() - start);
+                } catch (Exception e) {
+                    failed.increment();
+                    writeResult(results, card.label, card, "FAILED", station.name() + ": " + e.getMessage(), System.nanoTime() - start);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeResult(PrintWriter results, String label, CardRecord card, String status, String detail, long nanos) {
+        final String id = card == null ? "" : HEX.formatHex(card.id);
+        // Diversified PSKs are not written, the door controller derives them from the master key again
+        final String psk = card == null || card.diversifier != null ? "" : HEX.formatHex(card.psk);
+        final String div = card == null || card.diversifier == null ? "" : HEX.formatHex(card.diversifier);
+        final String line = String.join(",", label, id, psk, div, status, detail.replace(',', ';'), Long.toString(nanos / 1_000_000));
+        synchronized (results) {
+            results.println(line);
+        }
+    }
+
+    private static byte[] parseHex(String value, String name) {
+        try {
+            return HEX.parseHex(value.trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(name + " is not valid hex");
+        }
+    }
+
+    /**
+     * Station for a PC/SC reader that installs the applet with GlobalPlatformPro and verifies it with the terminal
+     * client. The operator is prompted to insert and remove cards.
+     */
+    public static final class GpStation implements Station {
+        private final CardTerminal terminal;
+        private final String gp;
+        private final String cap;
+        private final boolean load;
+        private final boolean makeDefault;
+
+        public GpStation(CardTerminal terminal, String gp, String cap, boolean load, boolean makeDefault) {
+            this.terminal = terminal;
+            this.gp = gp;
+            this.cap = cap;
+            this.load = load;
+            this.makeDefault = makeDefault;
+        }
+
+        @Override
+        public String name() {
+            return terminal.getName();
+        }
+
+        @Override
+        public void provision(CardRecord card) throws Exception {
+            System.out.println("[" + name() + "] Insert card for " + card.label);
+            terminal.waitForCardPresent(0);
+            try {
+                if (load) {
+                    runGp("-load", cap);
+                }
+                final List<String> install = new ArrayList<>(Arrays.asList("-cap", cap, "-create", APPLET_ID,
+                        "--applet", APPLET_ID, "--params", HEX.formatHex(card.appletData)));
+                if (makeDefault) {
+                    install.add("--default");
+                }
+                runGp(install.toArray(new String[0]));
+                verify(card);
+                System.out.println("[" + name() + "] Done with " + card.label + ", remove card");
+            } finally {
+                terminal.waitForCardAbsent(0);
+            }
+        }
+
+        private void runGp(String... args) throws IOException, InterruptedException {
+            final List<String> command = new ArrayList<>(Arrays.asList(gp, "--reader", terminal.getName()));
+            command.addAll(Arrays.asList(args));
+            final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            final String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            if (process.waitFor() != 0) {
+                final String[] lines = output.trim().split("\n");
+                throw new IOException("gp " + args[0] + " failed: " + lines[lines.length - 1]);
+            }
+        }
+
+        private void verify(CardRecord card) throws CardException {
+            final Card connection = terminal.connect("*");
+            try {
+                verifyId(connection.getBasicChannel(), card);
+            } finally {
+                connection.disconnect(false);
+            }
+        }
+    }
+
+    /**
+     * Station that installs each card into a fresh jCardSim instance, for dry runs of a manifest.
+     */
+    public static final class SimulatorStation implements Station {
+        private final String name;
+
+        public SimulatorStation(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public void provision(CardRecord card) throws Exception {
+            final byte[] parameters = InstallData.installParameters(card.appletData);
+            final CardSimulator simulator = new CardSimulator();
+            simulator.installApplet(AIDUtil.create(APPLET_ID), AuthenticatedIdentificationApplet.class,
+                    parameters, (short) 0, (byte) parameters.length);
+            verifyId(CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel(), card);
+        }
+    }
+
+    private static void verifyId(CardChannel channel, CardRecord card) throws CardException {
+        card.verifier.select(channel);
+        if (!Arrays.equals(card.id, card.verifier.readId(channel))) {
+            throw new CardException("Card returned a wrong ID");
+        }
+    }
+}
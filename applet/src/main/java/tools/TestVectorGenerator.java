@@ -0,0 +1,359 @@
+package tools;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.InstallData;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generates test vectors of the three-step protocol (AUTH_INIT, AUTH, GET_ID) for implementations of the card side,
+ * e.g. a door-lock ASIC. Every vector is derived from the seed and its index only, so a run is reproducible
+ * independent of the number of threads, and any slice of a file can be regenerated on its own:
+ * <pre>
+ * ./gradlew testVectors -Pargs="--count 10000000 --seed 42 --out vectors.bin"
+ * ./gradlew testVectors -Pargs="--count 100000 --simulate --out checked.bin"
+ * </pre>
+ * With {@code --simulate}, every vector is additionally run against {@link AuthenticatedIdentificationApplet} in the
+ * simulator. The applet picks its own challenge, so the reference model is checked with the challenge of the card,
+ * while the file keeps the reproducible one.
+ * <p>
+ * File format (big-endian): a header of {@value #HEADER_LENGTH} bytes, "OCDV" || version (1) || reserved (3) ||
+ * seed (8) || count (8), followed by count records of {@value #RECORD_LENGTH} bytes:
+ * <pre>
+ *   0  case (1)          AUTH Lc (1, 0: AUTH not sent)   AUTH SW (2, 0: not sent)   GET_ID SW (2)   reserved (2)
+ *   8  psk (16)          card key
+ *  24  id (16)           card identifier
+ *  40  rc (8)            card challenge, to be forced into the random number generator of the card
+ *  48  rt (8)            terminal challenge
+ *  56  AUTH_INIT (16)    expected response E_psk(rc || 0^8)
+ *  72  AUTH data (16)    command data, only the first Lc bytes are sent
+ *  88  AUTH (16)         expected response E_eph(AUTH_SUCCESS or AUTH_FAILURE), zero on error
+ * 104  GET_ID (16)       expected response E_eph(id), zero on error
+ * 120  reserved (8)
+ * </pre>
+ */
+public final class TestVectorGenerator {
+
+    public static final byte[] MAGIC = {'O', 'C', 'D', 'V'};
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 24;
+    public static final int RECORD_LENGTH = 128;
+
+    /** The terminal knows the PSK and echoes rc: authentication succeeds. */
+    public static final byte CASE_SUCCESS = 0;
+    /** The terminal uses another PSK: AUTH fails, GET_ID is refused. */
+    public static final byte CASE_WRONG_PSK = 1;
+    /** The terminal echoes rc with one bit flipped: AUTH fails, GET_ID is refused. */
+    public static final byte CASE_CORRUPTED_RC = 2;
+    /** AUTH with 1 to 15 bytes of data: 6700, GET_ID is refused. */
+    public static final byte CASE_WRONG_LENGTH = 3;
+    /** GET_ID right after AUTH_INIT: refused. */
+    public static final byte CASE_NO_AUTH = 4;
+    public static final int CASES = 5;
+
+    public static final int OFFSET_CASE = 0;
+    public static final int OFFSET_AUTH_LC = 1;
+    public static final int OFFSET_AUTH_SW = 2;
+    public static final int OFFSET_GET_ID_SW = 4;
+    public static final int OFFSET_PSK = 8;
+    public static final int OFFSET_ID = 24;
+    public static final int OFFSET_RC = 40;
+    public static final int OFFSET_RT = 48;
+    public static final int OFFSET_AUTH_INIT_RESPONSE = 56;
+    public static final int OFFSET_AUTH_DATA = 72;
+    public static final int OFFSET_AUTH_RESPONSE = 88;
+    public static final int OFFSET_GET_ID_RESPONSE = 104;
+
+    private static final int CHUNK = 8192;
+    private static final byte[] MSG_SUCCESS = {'A','U','T','H','_','S','U','C','C','E','S','S', 0, 0, 0, 0};
+    private static final byte[] MSG_FAILURE = {'A','U','T','H','_','F','A','I','L','U','R','E', 0, 0, 0, 0};
+
+    private final long seed;
+    private final int threads;
+    private final boolean simulate;
+    private final LongAdder simulated = new LongAdder();
+
+    public TestVectorGenerator(long seed, int threads, boolean simulate) {
+        this.seed = seed;
+        this.threads = threads;
+        this.simulate = simulate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long count = 1_000_000;
+        long seed = 42;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean simulate = false;
+        Path out = Paths.get("vectors.bin");
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--count": count = Long.parseLong(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--simulate": simulate = true; break;
+                case "--out": out = Paths.get(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+
+        final TestVectorGenerator generator = new TestVectorGenerator(seed, threads, simulate);
+        final long start = System.nanoTime();
+        generator.write(out, count);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d vectors (%d simulated) in %.1f s (%.0f/s) to %s%n",
+                count, generator.getSimulated(), seconds, count / seconds, out);
+    }
+
+    /**
+     * Returns the number of vectors checked against the applet so far.
+     */
+    public long getSimulated() {
+        return simulated.sum();
+    }
+
+    /**
+     * Writes count vectors to the file. Chunks are generated in parallel and written in order, with a bounded number
+     * of chunks in flight.
+     *
+     * @throws IllegalStateException if the applet disagrees with the reference model (only with simulation)
+     */
+    public void write(Path file, long count) throws IOException, InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.put(MAGIC).put((byte) VERSION).put(new byte[3]).putLong(seed).putLong(count).flip();
+            writeFully(channel, header);
+
+            final Deque<Future<ByteBuffer>> pending = new ArrayDeque<>();
+            for (long first = 0; first < count || !pending.isEmpty(); ) {
+                if (first < count && pending.size() < 2 * threads) {
+                    final long from = first;
+                    final int length = (int) Math.min(CHUNK, count - first);
+                    pending.add(executor.submit(() -> generate(from, length)));
+                    first += length;
+                    continue;
+                }
+                writeFully(channel, pending.remove().get());
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Generates the records of vectors [first, first + length).
+     */
+    public ByteBuffer generate(long first, int length) throws GeneralSecurityException {
+        final Model model = new Model();
+        final ByteBuffer records = ByteBuffer.allocate(length * RECORD_LENGTH);
+        for (int i = 0; i < length; i++) {
+            final int offset = i * RECORD_LENGTH;
+            model.vector(seed, first + i, null, records.array(), offset);
+            if (simulate) {
+                model.simulate(seed, first + i);
+                simulated.increment();
+            }
+        }
+        return records;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reference model of the card side. Not thread-safe, one instance per worker.
+     */
+    static final class Model {
+        private final Cipher encrypt = Cipher.getInstance("AES/ECB/NoPadding");
+        private final Cipher decrypt = Cipher.getInstance("AES/ECB/NoPadding");
+        private final byte[] block = new byte[16];
+        private final byte[] key = new byte[16];
+
+        Model() throws GeneralSecurityException {
+        }
+
+        /**
+         * Writes the vector with the given index to record at offset. If rc is given, it replaces the challenge
+         * drawn from the seed (all other values stay the same).
+         */
+        void vector(long seed, long index, byte[] rc, byte[] record, int offset) throws GeneralSecurityException {
+            Arrays.fill(record, offset, offset + RECORD_LENGTH, (byte) 0);
+            final SplittableRandom random = new SplittableRandom(mix(seed ^ mix(index)));
+            final int draw = random.nextInt(10);
+            // Six in ten vectors succeed, the failure cases share the rest
+            final byte testCase = draw < 6 ? CASE_SUCCESS : (byte) (draw - 5);
+            record[offset + OFFSET_CASE] = testCase;
+            nextBytes(random, record, offset + OFFSET_PSK, 16);
+            nextBytes(random, record, offset + OFFSET_ID, 16);
+            nextBytes(random, record, offset + OFFSET_RC, 8);
+            nextBytes(random, record, offset + OFFSET_RT, 8);
+            final byte[] wrongPsk = new byte[16];
+            nextBytes(random, wrongPsk, 0, 16);
+            final int flippedBit = random.nextInt(64);
+            final int shortLength = 1 + random.nextInt(15);
+            if (rc != null) {
+                System.arraycopy(rc, 0, record, offset + OFFSET_RC, 8);
+            }
+
+            // AUTH_INIT: E_psk(rc || 0^8)
+            Arrays.fill(block, (byte) 0);
+            System.arraycopy(record, offset + OFFSET_RC, block, 0, 8);
+            aes(encrypt, record, offset + OFFSET_PSK, block, 0, record, offset + OFFSET_AUTH_INIT_RESPONSE);
+
+            // Terminal side: AUTH data E_k(rt || rc'), with the key and rc' the case calls for
+            if (testCase == CASE_NO_AUTH) {
+                putShort(record, offset + OFFSET_GET_ID_SW, 0x6985);
+                return;
+            }
+            System.arraycopy(record, offset + OFFSET_RT, block, 0, 8);
+            System.arraycopy(record, offset + OFFSET_RC, block, 8, 8);
+            if (testCase == CASE_WRONG_PSK) {
+                // The terminal recovers rc' by decrypting AUTH_INIT with its own key
+                aes(decrypt, wrongPsk, 0, record, offset + OFFSET_AUTH_INIT_RESPONSE, key, 0);
+                System.arraycopy(key, 0, block, 8, 8);
+                aes(encrypt, wrongPsk, 0, block, 0, record, offset + OFFSET_AUTH_DATA);
+            } else {
+                if (testCase == CASE_CORRUPTED_RC) {
+                    block[8 + flippedBit / 8] ^= (byte) (1 << (flippedBit % 8));
+                }
+                aes(encrypt, record, offset + OFFSET_PSK, block, 0, record, offset + OFFSET_AUTH_DATA);
+            }
+            if (testCase == CASE_WRONG_LENGTH) {
+                record[offset + OFFSET_AUTH_LC] = (byte) shortLength;
+                putShort(record, offset + OFFSET_AUTH_SW, 0x6700);
+                putShort(record, offset + OFFSET_GET_ID_SW, 0x6985);
+                return;
+            }
+            record[offset + OFFSET_AUTH_LC] = 16;
+
+            // Card side: decrypt rt' || rc', compare rc', and answer under k_eph = rc || rt'
+            aes(decrypt, record, offset + OFFSET_PSK, record, offset + OFFSET_AUTH_DATA, block, 0);
+            final boolean success = Arrays.equals(block, 8, 16, record, offset + OFFSET_RC, offset + OFFSET_RC + 8);
+            System.arraycopy(record, offset + OFFSET_RC, key, 0, 8);
+            System.arraycopy(block, 0, key, 8, 8);
+            aes(encrypt, key, 0, success ? MSG_SUCCESS : MSG_FAILURE, 0, record, offset + OFFSET_AUTH_RESPONSE);
+            putShort(record, offset + OFFSET_AUTH_SW, 0x9000);
+            if (success) {
+                aes(encrypt, key, 0, record, offset + OFFSET_ID, record, offset + OFFSET_GET_ID_RESPONSE);
+                putShort(record, offset + OFFSET_GET_ID_SW, 0x9000);
+            } else {
+                putShort(record, offset + OFFSET_GET_ID_SW, 0x6985);
+            }
+        }
+
+        /**
+         * Runs the vector with the given index against a freshly installed applet, using the challenge the applet
+         * picks, and compares every response with the model.
+         */
+        void simulate(long seed, long index) throws GeneralSecurityException {
+            final byte[] expected = new byte[RECORD_LENGTH];
+            vector(seed, index, null, expected, 0);
+            final byte[] psk = Arrays.copyOfRange(expected, OFFSET_PSK, OFFSET_PSK + 16);
+            final byte[] id = Arrays.copyOfRange(expected, OFFSET_ID, OFFSET_ID + 16);
+            final byte[] parameters = InstallData.installParameters(InstallData.appletData(psk, id, (byte) 0));
+            final CardSimulator simulator = new CardSimulator();
+            simulator.installApplet(AIDUtil.create(AuthenticatedIdentificationClient.APPLET_AID),
+                    AuthenticatedIdentificationApplet.class, parameters, (short) 0, (byte) parameters.length);
+            simulator.selectApplet(AIDUtil.create(AuthenticatedIdentificationClient.APPLET_AID));
+
+            final byte[] authInit = simulator.transmitCommand(new byte[] {(byte) 0x80, 0x10, 0x00, 0x00, 0x10});
+            check(index, "AUTH_INIT status", authInit.length == 18 && sw(authInit) == 0x9000);
+            final byte[] rc = new byte[16];
+            aes(decrypt, psk, 0, authInit, 0, rc, 0);
+            vector(seed, index, rc, expected, 0);
+            check(index, "AUTH_INIT", Arrays.equals(authInit, 0, 16, expected, OFFSET_AUTH_INIT_RESPONSE, OFFSET_AUTH_INIT_RESPONSE + 16));
+
+            final int lc = expected[OFFSET_AUTH_LC];
+            if (lc != 0) {
+                final byte[] command = new byte[6 + lc];
+                command[0] = (byte) 0x80;
+                command[1] = 0x11;
+                command[4] = (byte) lc;
+                System.arraycopy(expected, OFFSET_AUTH_DATA, command, 5, lc);
+                final byte[] auth = simulator.transmitCommand(command);
+                check(index, "AUTH status", sw(auth) == getShort(expected, OFFSET_AUTH_SW));
+                check(index, "AUTH", auth.length == 2
+                        || Arrays.equals(auth, 0, 16, expected, OFFSET_AUTH_RESPONSE, OFFSET_AUTH_RESPONSE + 16));
+            }
+
+            final byte[] getId = simulator.transmitCommand(new byte[] {(byte) 0x80, 0x12, 0x00, 0x00, 0x10});
+            check(index, "GET_ID status", sw(getId) == getShort(expected, OFFSET_GET_ID_SW));
+            check(index, "GET_ID", getId.length == 2
+                    || Arrays.equals(getId, 0, 16, expected, OFFSET_GET_ID_RESPONSE, OFFSET_GET_ID_RESPONSE + 16));
+        }
+
+        private static void check(long index, String what, boolean ok) {
+            if (!ok) {
+                throw new IllegalStateException("Applet differs from the reference model in vector " + index + ": " + what);
+            }
+        }
+
+        private void aes(Cipher cipher, byte[] key, int keyOffset, byte[] in, int inOffset, byte[] out, int outOffset)
+                throws GeneralSecurityException {
+            cipher.init(cipher == encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(key, keyOffset, 16, "AES"));
+            cipher.doFinal(in, inOffset, 16, out, outOffset);
+        }
+    }
+
+    /**
+     * Stafford's mix13 finalizer: spreads seed and index over the whole state, so that neighbouring vectors do not
+     * share random streams.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void nextBytes(SplittableRandom random, byte[] bytes, int offset, int length) {
+        for (int i = 0; i < length; i += 8) {
+            long value = random.nextLong();
+            for (int j = i; j < Math.min(i + 8, length); j++) {
+                bytes[offset + j] = (byte) value;
+                value >>>= 8;
+            }
+        }
+    }
+
+    private static void putShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >> 8);
+        bytes[offset + 1] = (byte) value;
+    }
+
+    static int getShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff);
+    }
+
+    private static int sw(byte[] response) {
+        return getShort(response, response.length - 2);
+    }
+}
@@ -0,0 +1,205 @@
+package tests;
+
+import controller.AccessIndex;
+import controller.AccessIndex.Decision;
+import org.junit.jupiter.api.*;
+import tools.AccessIndexTool;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lookups, incremental updates, and reopening of the door controller's access index, also with several handles and
+ * processes on the same file.
+ */
+public class AccessIndexTest {
+
+    private static final int ALLOWED = 200_000;
+    private static final int REVOKED = 2_000;
+
+    private Path path;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        path = Files.createTempFile("access", ".idx");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(path);
+        Files.deleteIfExists(path.resolveSibling(path.getFileName() + ".lock"));
+    }
+
+    @Test
+    public void testLookupsAndUpdates() throws Exception {
+        final byte[][] ids = randomIds(ALLOWED, 42);
+
+        // Start small, so that both regions have to grow during the import
+        try (AccessIndex index = AccessIndex.create(path, 1000, 0)) {
+            for (byte[] id : ids) {
+                index.allow(id);
+            }
+            for (int i = 0; i < REVOKED; i++) {
+                index.revoke(ids[i]);
+            }
+            Assertions.assertEquals(ALLOWED, index.size());
+            Assertions.assertEquals(REVOKED, index.revokedSize());
+            Assertions.assertEquals(Decision.REVOKED, index.lookup(ids[0]), "Revocation must take precedence");
+            Assertions.assertEquals(Decision.ALLOWED, index.lookup(ids[REVOKED]));
+        }
+
+        // Reopening maps the file without reading it
+        try (AccessIndex index = AccessIndex.open(path)) {
+            for (int i = 0; i < ALLOWED; i++) {
+                Assertions.assertEquals(i < REVOKED ? Decision.REVOKED : Decision.ALLOWED, index.lookup(ids[i]), "Wrong decision for ID " + i);
+            }
+            for (byte[] unknown : randomIds(1000, 7)) {
+                Assertions.assertEquals(Decision.UNKNOWN, index.lookup(unknown), "Unknown ID was allowed");
+            }
+
+            // Incremental updates are visible immediately
+            final long generation = index.generation();
+            Assertions.assertTrue(index.unrevoke(ids[0]));
+            Assertions.assertEquals(Decision.ALLOWED, index.lookup(ids[0]));
+            Assertions.assertTrue(index.remove(ids[0]));
+            Assertions.assertEquals(Decision.UNKNOWN, index.lookup(ids[0]));
+            Assertions.assertFalse(index.remove(ids[0]));
+            index.revoke(ids[ALLOWED - 1]);
+            Assertions.assertEquals(Decision.REVOKED, index.lookup(ids[ALLOWED - 1]));
+            Assertions.assertEquals(generation + 3, index.generation());
+
+            // Lookups directly from a response buffer at an offset
+            final byte[] response = new byte[32];
+            System.arraycopy(ids[REVOKED + 1], 0, response, 16, 16);
+            Assertions.assertEquals(Decision.ALLOWED, index.lookup(response, 16));
+        }
+    }
+
+    @Test
+    public void testUpdatesThroughAnotherHandle() throws Exception {
+        final byte[][] ids = randomIds(20_000, 44);
+        final byte[][] stable = randomIds(100, 45);
+
+        try (AccessIndex controller = AccessIndex.create(path, 1000, 0); AccessIndex tool = AccessIndex.open(path)) {
+            for (byte[] id : stable) {
+                tool.allow(id);
+            }
+            Assertions.assertEquals(Decision.ALLOWED, controller.lookup(stable[0]), "In-place update not seen");
+
+            // The controller keeps looking up while the tool grows both regions, which rebuilds the file
+            final AtomicBoolean done = new AtomicBoolean();
+            final ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                final Future<Long> lookups = executor.submit(() -> {
+                    long count = 0;
+                    while (!done.get()) {
+                        for (byte[] id : stable) {
+                            Assertions.assertEquals(Decision.ALLOWED, controller.lookup(id), "Wrong decision during an update");
+                            count++;
+                        }
+                    }
+                    return count;
+                });
+                for (byte[] id : ids) {
+                    tool.allow(id);
+                }
+                for (int i = 0; i < 2000; i++) {
+                    tool.revoke(ids[i]);
+                }
+                done.set(true);
+                Assertions.assertTrue(lookups.get() > 0, "No lookups ran");
+            } finally {
+                executor.shutdownNow();
+            }
+
+            Assertions.assertEquals(Decision.REVOKED, controller.lookup(ids[0]), "Revocation after a rebuild not seen");
+            Assertions.assertEquals(Decision.ALLOWED, controller.lookup(ids[2000]), "Allowed ID after a rebuild not seen");
+            Assertions.assertEquals(ids.length + stable.length, controller.size());
+            Assertions.assertEquals(2000, controller.revokedSize());
+            Assertions.assertEquals(tool.generation(), controller.generation());
+
+            // The controller's updates reach the tool just the same
+            Assertions.assertTrue(controller.unrevoke(ids[0]));
+            Assertions.assertEquals(Decision.ALLOWED, tool.lookup(ids[0]));
+        }
+    }
+
+    @Test
+    public void testUpdatesFromAnotherProcess() throws Exception {
+        final byte[][] ids = randomIds(5000, 46);
+        final Path list = Files.createTempFile("ids", ".txt");
+        try (AccessIndex controller = AccessIndex.create(path, 1000, 0)) {
+            final List<String> lines = new ArrayList<>();
+            for (byte[] id : ids) {
+                lines.add(HexFormat.of().formatHex(id));
+            }
+            Files.write(list, lines);
+            // Enough IDs to rebuild the file, then a revocation
+            runTool("allow", path.toString(), list.toString());
+            Files.write(list, lines.subList(0, 1));
+            runTool("revoke", path.toString(), list.toString());
+
+            Assertions.assertEquals(Decision.REVOKED, controller.lookup(ids[0]), "Revocation from the tool not seen");
+            Assertions.assertEquals(Decision.ALLOWED, controller.lookup(ids[1]), "IDs allowed by the tool not seen");
+            Assertions.assertEquals(ids.length, controller.size());
+        } finally {
+            Files.deleteIfExists(list);
+        }
+    }
+
+    @Test
+    public void testLookupLatency() throws Exception {
+        final byte[][] ids = randomIds(ALLOWED, 43);
+        try (AccessIndex index = AccessIndex.create(path, ALLOWED, REVOKED)) {
+            for (byte[] id : ids) {
+                index.allow(id);
+            }
+            for (int i = 0; i < REVOKED; i++) {
+                index.revoke(ids[i]);
+            }
+
+            final SplittableRandom random = new SplittableRandom(1);
+            int allowed = 0;
+            for (int i = 0; i < 100_000; i++) {     // Warm-up
+                allowed += index.lookup(ids[random.nextInt(ALLOWED)]) == Decision.ALLOWED ? 1 : 0;
+            }
+            final int lookups = 1_000_000;
+            final long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                allowed += index.lookup(ids[random.nextInt(ALLOWED)]) == Decision.ALLOWED ? 1 : 0;
+            }
+            final double nanos = (System.nanoTime() - start) / (double) lookups;
+            Assertions.assertTrue(allowed > 0, "No ID allowed");
+            Assertions.assertTrue(nanos < 20_000, String.format("Lookup takes %.0f ns over %d IDs", nanos, ALLOWED));
+        }
+    }
+
+    private static void runTool(String... args) throws Exception {
+        // The tool only needs the classes next to it
+        final Path classes = Paths.get(AccessIndexTool.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        final List<String> command = new ArrayList<>(List.of(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", classes.toString(), AccessIndexTool.class.getName()));
+        command.addAll(List.of(args));
+        final Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        final String output = new String(process.getInputStream().readAllBytes());
+        Assertions.assertEquals(0, process.waitFor(), "AccessIndexTool failed: " + output);
+    }
+
+    private static byte[][] randomIds(int count, long seed) {
+        final SplittableRandom random = new SplittableRandom(seed);
+        final byte[][] ids = new byte[count][16];
+        for (byte[] id : ids) {
+            random.nextBytes(id);
+        }
+        return ids;
+    }
+}
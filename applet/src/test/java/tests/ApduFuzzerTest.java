@@ -0,0 +1,130 @@
+package tests;
+
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.ISO7816;
+import javacard.framework.ISOException;
+import javacard.framework.JCSystem;
+import javacard.framework.Util;
+import org.junit.jupiter.api.*;
+import tools.ApduFuzzer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The fuzzer against an applet with planted bugs, and a short run against the identification applets.
+ */
+public class ApduFuzzerTest {
+
+    private static final byte[] FAULTY_AID = {(byte) 0xf0, 0x00, 0x00, 0x0c, (byte) 0xdc, 0x7f};
+
+    /**
+     * Crashes on INS 0x42 with more than 8 bytes of data, on INS 0x43 after INS 0x41 on the same selection, and
+     * leaks a reason code as status word on INS 0x44.
+     */
+    public static class FaultyApplet extends Applet {
+        private final byte[] scratch = new byte[8];
+        private final boolean[] armed = JCSystem.makeTransientBooleanArray((short) 1, JCSystem.CLEAR_ON_DESELECT);
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            new FaultyApplet().register();
+        }
+
+        public void process(APDU apdu) {
+            if (selectingApplet()) {
+                return;
+            }
+            final byte[] buffer = apdu.getBuffer();
+            switch (buffer[ISO7816.OFFSET_INS]) {
+                case 0x41:
+                    armed[0] = true;
+                    break;
+                case 0x42:
+                    Util.arrayCopyNonAtomic(buffer, ISO7816.OFFSET_CDATA, scratch, (short) 0, apdu.setIncomingAndReceive());
+                    break;
+                case 0x43:
+                    if (armed[0]) {
+                        throw new NullPointerException();
+                    }
+                    break;
+                case 0x44:
+                    ISOException.throwIt((short) 0x1234);
+                    break;
+                default:
+                    ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+            }
+        }
+    }
+
+    @Test
+    public void testFindsPlantedBugs() throws Exception {
+        final ApduFuzzer.Target target = new ApduFuzzer.Target("faulty", FaultyApplet.class, FAULTY_AID,
+                new byte[]{0x41, 0x42, 0x43, 0x44}, new byte[0], -1, -1);
+        final ApduFuzzer fuzzer = new ApduFuzzer(Collections.singletonList(target), 1, 2);
+        final Set<String> expected = new HashSet<>(Arrays.asList("faulty crash ins 42 sw 6f00",
+                "faulty crash ins 43 sw 6f00", "faulty unexpected-sw ins 44 sw 1234"));
+        final long deadline = System.currentTimeMillis() + 60_000;
+        while (signatures(fuzzer).size() < expected.size() && System.currentTimeMillis() < deadline) {
+            fuzzer.run(Long.MAX_VALUE, 1000);
+        }
+        Assertions.assertEquals(expected, signatures(fuzzer), "Findings are not deduplicated by signature");
+
+        for (ApduFuzzer.Finding finding : fuzzer.getFindings()) {
+            Assertions.assertTrue(finding.getCount() >= 1, "Finding without count");
+            Assertions.assertTrue(fuzzer.replay(finding.getReproducer()).contains(finding.getSignature()),
+                    "Reproducer does not reproduce " + finding.getSignature());
+        }
+
+        // The reproducers are minimized and survive the round trip through their files
+        final Path directory = Files.createTempDirectory("findings");
+        try {
+            fuzzer.writeFindings(directory);
+            final List<Path> files;
+            try (Stream<Path> listing = Files.list(directory)) {
+                files = listing.collect(Collectors.toList());
+            }
+            Assertions.assertEquals(expected.size(), files.size(), "One reproducer per finding");
+            for (Path file : files) {
+                final List<String> lines = Files.readAllLines(file);
+                final String signature = lines.get(0).substring(2);
+                final ApduFuzzer.Case reproducer = ApduFuzzer.Case.parse(Collections.singletonList(target), lines);
+                Assertions.assertEquals(Collections.singleton(signature), fuzzer.replay(reproducer),
+                        "Reproducer file of " + signature);
+                final long steps = lines.stream().filter(line -> line.startsWith("apdu") || line.startsWith("select")).count();
+                Assertions.assertEquals(signature.contains("ins 43") ? 2 : 1, steps, "Reproducer not minimized: " + lines);
+            }
+        } finally {
+            try (Stream<Path> listing = Files.list(directory)) {
+                for (Path file : listing.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testIdentificationApplets() throws Exception {
+        final ApduFuzzer fuzzer = new ApduFuzzer(Arrays.asList(ApduFuzzer.Target.plain(), ApduFuzzer.Target.authenticated()),
+                42, Runtime.getRuntime().availableProcessors());
+        final int seeds = fuzzer.getCorpusSize();
+        fuzzer.run(Long.MAX_VALUE, 5_000);
+
+        Assertions.assertTrue(fuzzer.getCorpusSize() > seeds, "No input covered anything new");
+        for (String signature : signatures(fuzzer)) {
+            Assertions.assertFalse(signature.contains(ApduFuzzer.LEAK), "Plaintext leak: " + signature);
+        }
+    }
+
+    private static Set<String> signatures(ApduFuzzer fuzzer) {
+        return fuzzer.getFindings().stream().map(ApduFuzzer.Finding::getSignature).collect(Collectors.toSet());
+    }
+}
@@ -1,18 +1,54 @@
 package tests;
 
 import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.base.ApduCase;
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
 import cz.muni.fi.crocs.rcard.client.CardManager;
 import cz.muni.fi.crocs.rcard.client.CardType;
 import cz.muni.fi.crocs.rcard.client.Util;
+import javacard.framework.AID;
+import javacard.framework.APDU;
+import javacard.framework.Applet;
+import javacard.framework.JCSystem;
+import javacard.framework.MultiSelectable;
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.function.Executable;
+import sim.LatencyModel;
+import sim.OperationCounter;
+import terminal.ApduLatencyRecorder;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.CardStatistics;
+import terminal.InstallData;
+import terminal.KeyDiversifier;
+import terminal.PskCipherCache;
+import terminal.ProtocolException;
+import terminal.TracingCardChannel;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 /**
  * Tests for the authenticated identification applet
@@ -34,6 +70,16 @@ public class AuthenticatedIdentificationAppletTest extends BaseTest {
     private static final byte INS_AUTH_INIT   = (byte) 0x10;
     private static final byte INS_AUTH        = (byte) 0x11;
     private static final byte INS_GET_ID      = (byte) 0x12;
+    private static final byte INS_AUTH_AND_GET_ID = (byte) 0x13;
+    private static final byte INS_RESUME      = (byte) 0x14;
+    private static final byte INS_GET_CREDENTIAL = (byte) 0x15;
+    private static final byte INS_PUT_CREDENTIAL = (byte) 0x16;
+    private static final byte INS_GET_STATS   = (byte) 0x17;
+    private static final byte INS_UPDATE_CREDENTIALS = (byte) 0x18;
+
+    private static final byte[] MSG_SUCCESS = {'A','U','T','H','_','S','U','C','C','E','S','S', 0, 0, 0, 0};
+    private static final byte[] LABEL_TICKET = {'T','I','C','K','E','T', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final byte[] LABEL_RESUME = {'R','E','S','U','M','E', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
 
     public AuthenticatedIdentificationAppletTest() {
         super(APPLET_ID, AuthenticatedIdentificationApplet.class, CARDTYPE);
@@ -100,7 +146,1345 @@ public class AuthenticatedIdentificationAppletTest extends BaseTest {
 
     }
 
+    @Test
+    public void testFastPathMatchesThreeStepFlow() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length) + pskHex + idHex);
+        final CardManager cardManager = connect(installData);
+        final Random random = new Random(42);
+
+        // ===== Three-step flow: AUTH_INIT, AUTH, GET_ID =====
+        byte[] rc = authInit(cardManager, psk);
+        byte[] rt = new byte[8];
+        random.nextBytes(rt);
+        ResponseAPDU authRes = cardManager.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH, 0x00, 0x00, authCommand(psk, rc, rt)));
+        Assertions.assertEquals(0x9000, authRes.getSW(), "AUTH response status unexpected");
+        ResponseAPDU getIdRes = cardManager.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00));
+        Assertions.assertEquals(0x9000, getIdRes.getSW(), "GET_ID response status unexpected");
+        byte[] idThreeStep = aesDec(ephemeralKey(rc, rt), getIdRes.getData());
+
+        // ===== Fast path: AUTH_INIT, AUTH_AND_GET_ID =====
+        rc = authInit(cardManager, psk);
+        random.nextBytes(rt);
+        ResponseAPDU fastRes = cardManager.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_AND_GET_ID, 0x00, 0x00, authCommand(psk, rc, rt)));
+        Assertions.assertEquals(0x9000, fastRes.getSW(), "AUTH_AND_GET_ID response status unexpected");
+        byte[] cFastRes = fastRes.getData();
+        Assertions.assertEquals(32, cFastRes.length, "AUTH_AND_GET_ID response has incorrect length");
+        byte[] ephKey = ephemeralKey(rc, rt);
+        Assertions.assertArrayEquals(MSG_SUCCESS, aesDec(ephKey, Arrays.copyOfRange(cFastRes, 0, 16)),
+                "AUTH_AND_GET_ID status block is incorrect");
+        byte[] idFastPath = aesDec(ephKey, Arrays.copyOfRange(cFastRes, 16, 32));
+
+        Assertions.assertArrayEquals(id, idThreeStep, "GET_ID response is incorrect");
+        Assertions.assertArrayEquals(idThreeStep, idFastPath, "Fast path returned a different ID");
+
+        // A wrong challenge only yields the 16-byte failure block and no ID
+        rc = authInit(cardManager, psk);
+        rc[0] ^= 0x01;
+        ResponseAPDU failRes = cardManager.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_AND_GET_ID, 0x00, 0x00, authCommand(psk, rc, rt)));
+        Assertions.assertEquals(0x9000, failRes.getSW(), "AUTH_AND_GET_ID response status unexpected");
+        Assertions.assertEquals(16, failRes.getData().length, "Failed AUTH_AND_GET_ID must not return the ID");
+    }
+
+    @Test
+    public void testSessionResetOnSelectAndCardReset() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length) + pskHex + idHex);
+
+        // The applet is installed as the default-selected one, card activation selects it without a SELECT command
+        final AID aid = AIDUtil.create(APPLET_ID);
+        final CardSimulator simulator = new CardSimulator(new ImplicitSelectionRuntime(aid));
+        simulator.installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        simulator.reset();
+        final CommandAPDU getIdCmd = new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00);
+
+        // A terminal can start with AUTH_INIT right after activation
+        runSimulatorFlow(simulator, psk, id, new Random(42));
+
+        // An authenticated session does not survive explicit re-selection
+        simulator.selectApplet(aid);
+        Assertions.assertEquals(0x6985, simulator.transmitCommand(getIdCmd).getSW(), "Session survived re-selection");
+
+        // Nor does it survive a card reset, after which the implicitly selected applet only sees select()
+        runSimulatorFlow(simulator, psk, id, new Random(43));
+        simulator.reset();
+        Assertions.assertEquals(0x6985, simulator.transmitCommand(getIdCmd).getSW(), "Session survived card reset");
+        runSimulatorFlow(simulator, psk, id, new Random(44));
+    }
+
+    @Test
+    public void testInstallParametersAtLargeOffset() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] parameters = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length) + pskHex + idHex);
+        final AID aid = AIDUtil.create(APPLET_ID);
+
+        // Offsets that used to be masked to a byte wrapped around beyond an install offset of about 240
+        for (int offset : new int[] {241, 251, 255}) {
+            final byte[] installData = new byte[offset + parameters.length];
+            System.arraycopy(parameters, 0, installData, offset, parameters.length);
+            final CardSimulator simulator = new CardSimulator();
+            simulator.installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) offset, (byte) parameters.length);
+            simulator.selectApplet(aid);
+            runSimulatorFlow(simulator, psk, id, new Random(offset));
+        }
+
+        // Applet data reaching past bLength is rejected, even if the array happens to continue with an ID
+        Assertions.assertThrows(Exception.class, () -> new CardSimulator().installApplet(aid, AuthenticatedIdentificationApplet.class, parameters, (short) 0, (byte) (parameters.length - id.length)));
+    }
+
+    @Test
+    public void testTerminalClient() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length) + pskHex + idHex);
+        final CardManager cardManager = connect(installData);
+
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+        Assertions.assertArrayEquals(id, client.readId(cardManager.getChannel()), "Three-step flow returned a wrong ID");
+        Assertions.assertArrayEquals(id, client.readIdFast(cardManager.getChannel()), "Fast path returned a wrong ID");
+
+        // A terminal with a different PSK must not get an ID
+        final byte[] wrongPsk = psk.clone();
+        wrongPsk[0] ^= 0x01;
+        final AuthenticatedIdentificationClient wrongClient = new AuthenticatedIdentificationClient(wrongPsk);
+        Assertions.assertThrows(ProtocolException.class, () -> wrongClient.readId(cardManager.getChannel()),
+                "Client with wrong PSK was not rejected");
+    }
+
+    @Test
+    public void testApduLatencyTracing() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length) + pskHex + idHex);
+        final CardManager cardManager = connect(installData);
+
+        final ApduLatencyRecorder recorder = new ApduLatencyRecorder();
+        setLatencyRecorder(recorder);
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+        final int sessions = 20;
+        for (int i = 0; i < sessions; i++) {
+            client.select(getChannel(cardManager));
+            Assertions.assertArrayEquals(id, client.readId(getChannel(cardManager)), "GET_ID response is incorrect");
+        }
+        setLatencyRecorder(null);
+
+        for (byte ins : new byte[] {(byte) 0xA4, INS_AUTH_INIT, INS_AUTH, INS_GET_ID}) {
+            Assertions.assertEquals(sessions, recorder.histogram(ins).getCount(),
+                    ApduLatencyRecorder.instructionName(ins) + " not recorded once per session");
+        }
+    }
+
+    @Test
+    public void testPredictedTransactionTime() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] installData = InstallData.installParameters(InstallData.appletData(psk, id, InstallData.OPT_STATISTICS));
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+
+        final ApduLatencyRecorder threeStep = new ApduLatencyRecorder();
+        setLatencyModel(LatencyModel.defaults(), threeStep, false);
+        CardChannel channel = connectFork(installData);
+        threeStep.reset();
+        client.select(channel);
+        Assertions.assertArrayEquals(id, client.readId(channel), "Three-step flow returned a wrong ID");
+
+        final ApduLatencyRecorder fastPath = new ApduLatencyRecorder();
+        setLatencyModel(LatencyModel.defaults(), fastPath, false);
+        channel = connectFork(installData);
+        fastPath.reset();
+        client.select(channel);
+        Assertions.assertArrayEquals(id, client.readIdFast(channel), "Fast path returned a wrong ID");
+
+        // The same three steps on a card where persistent writes take no time
+        final ApduLatencyRecorder withoutWrites = new ApduLatencyRecorder();
+        setLatencyModel(LatencyModel.defaults().setPersistentWriteMicros(0), withoutWrites, false);
+        channel = connectFork(installData);
+        withoutWrites.reset();
+        client.select(channel);
+        client.readId(channel);
+        setLatencyModel(null, null, false);
+
+        Assertions.assertTrue(fastPath.totalNanos() < threeStep.totalNanos(), "Fast path should be predicted faster");
+        // AUTH_INIT, the authentication attempt and its success, and the released ID each increment a counter
+        Assertions.assertEquals(4 * 2_500_000L, threeStep.totalNanos() - withoutWrites.totalNanos(),
+                "Statistics updates should be predicted as persistent writes");
+    }
+
+    @Test
+    public void testProtocolFlowLeavesPersistentStateUnchanged() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length) + pskHex + idHex);
+
+        // Install directly into jCardSim to get hold of the applet instance
+        final CardSimulator simulator = new CardSimulator();
+        final AID aid = AIDUtil.create(APPLET_ID);
+        simulator.installApplet(aid, InstanceCapturingApplet.class, installData, (short) 0, (byte) installData.length);
+        final AuthenticatedIdentificationApplet applet = InstanceCapturingApplet.instance;
+        final OperationCounter crypto = OperationCounter.attach(applet);
+        simulator.selectApplet(aid);
+
+        final Map<String, Object> before = persistentState(applet);
+
+        // ===== Full AUTH_INIT / AUTH / GET_ID sequence =====
+        runSimulatorFlow(simulator, psk, id, new Random(42));
+
+        // The snapshots only show bytes that differ afterwards: a byte rewritten with its old value, or changed and
+        // restored, goes unnoticed. Keys are the exception, every setKey on a persistent key is counted.
+        final int changedBytes = countChangedPersistentBytes(before, persistentState(applet));
+        Assertions.assertEquals(0, changedBytes, "Protocol flow changed persistent applet state");
+        final OperationCounter.Operations operations = crypto.read();
+        Assertions.assertEquals(0, operations.persistentKeySetups, "Protocol flow wrote a persistent key");
+        Assertions.assertTrue(operations.keySetups > 0, "setKey calls of the protocol flow not counted");
+    }
+
+    @Test
+    public void testChallengePool() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        // Applet data: psk || id || options (0x01 = challenge pool)
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length + 1) + pskHex + idHex + "01");
+
+        final CardSimulator simulator = new CardSimulator();
+        final AID aid = AIDUtil.create(APPLET_ID);
+        simulator.installApplet(aid, InstanceCapturingApplet.class, installData, (short) 0, (byte) installData.length);
+        final AuthenticatedIdentificationApplet applet = InstanceCapturingApplet.instance;
+        simulator.selectApplet(aid);
+
+        // The pool is empty after installation, the first challenge comes from the TRNG
+        Assertions.assertEquals(0, validPoolEntries(applet), "Pool should be empty after installation");
+        final Random random = new Random(42);
+        final byte[] rcFirst = Arrays.copyOfRange(runSimulatorFlow(simulator, psk, id, random), 0, 8);
+        final int filled = validPoolEntries(applet);
+        Assertions.assertTrue(filled > 0, "Pool should be filled after a completed GET_ID");
+
+        // Subsequent sessions consume one entry per AUTH_INIT and never reuse a challenge
+        final byte[] rcSecond = Arrays.copyOfRange(runSimulatorFlow(simulator, psk, id, random), 0, 8);
+        Assertions.assertFalse(Arrays.equals(rcFirst, rcSecond), "Challenge was reused");
+        ResponseAPDU authInitRes = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00));
+        Assertions.assertEquals(0x9000, authInitRes.getSW(), "AUTH_INIT response status unexpected");
+        Assertions.assertEquals(filled - 1, validPoolEntries(applet), "AUTH_INIT should consume exactly one pool entry");
+        final byte[] rcThird = Arrays.copyOfRange(aesDec(psk, authInitRes.getData()), 0, 8);
+        Assertions.assertFalse(Arrays.equals(rcSecond, rcThird), "Challenge was reused");
+    }
+
+    @Test
+    public void testKeyDiversification() throws Exception {
+        final byte[] masterKey = Util.hexStringToByteArray("000102030405060708090A0B0C0D0E0F");
+        final KeyDiversifier diversifier = new KeyDiversifier(masterKey);
+        final AID aid = AIDUtil.create(APPLET_ID);
+
+        // Three cards with diversified PSKs
+        final CardSimulator[] cards = new CardSimulator[3];
+        final byte[][] ids = new byte[cards.length][];
+        for (int i = 0; i < cards.length; i++) {
+            final byte[] cardDiversifier = {0, 0, 0, 0, 0, 0, 0, (byte) (i + 1)};
+            ids[i] = Util.hexStringToByteArray("000000000000000000000000000000" + String.format("%02X", i + 1));
+            final byte[] installData = InstallData.installParameters(
+                    InstallData.appletData(diversifier.derivePsk(cardDiversifier), ids[i], (byte) 0, cardDiversifier));
+            cards[i] = new CardSimulator();
+            cards[i].installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+            cards[i].selectApplet(aid);
+        }
+
+        // AUTH_INIT with P1 = 0x01 appends the diversifier to the challenge
+        ResponseAPDU authInitRes = cards[1].transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x01, 0x00, 256));
+        Assertions.assertEquals(0x9000, authInitRes.getSW(), "AUTH_INIT response status unexpected");
+        Assertions.assertEquals(24, authInitRes.getData().length, "AUTH_INIT response length unexpected");
+        Assertions.assertArrayEquals(new byte[] {0, 0, 0, 0, 0, 0, 0, 2}, Arrays.copyOfRange(authInitRes.getData(), 16, 24));
+
+        // A client holding only the master key reads all cards; the cache keeps the two most recent ones
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(diversifier, 2);
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < cards.length; i++) {
+                final CardChannel channel = CardTerminalSimulator.terminal(cards[i]).connect("T=1").getBasicChannel();
+                client.select(channel);
+                Assertions.assertArrayEquals(ids[i], client.readIdFast(channel), "Diversified card returned a wrong ID");
+            }
+        }
+        final PskCipherCache cache = client.getCipherCache();
+        Assertions.assertEquals(2, cache.size(), "Cache exceeded its capacity");
+        Assertions.assertEquals(6, cache.getMisses(), "Cycling three cards through two entries should always miss");
+        final CardChannel channel = CardTerminalSimulator.terminal(cards[2]).connect("T=1").getBasicChannel();
+        client.select(channel);
+        Assertions.assertArrayEquals(ids[2], client.readId(channel), "Diversified card returned a wrong ID");
+        Assertions.assertEquals(1, cache.getHits(), "Recently seen card should be served from the cache");
+
+        // Cards installed without diversifier reject the request
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final CardSimulator plain = new CardSimulator();
+        final byte[] installData = InstallData.installParameters(InstallData.appletData(psk, id, (byte) 0));
+        plain.installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        plain.selectApplet(aid);
+        authInitRes = plain.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x01, 0x00, 256));
+        Assertions.assertEquals(0x6A81, authInitRes.getSW(), "AUTH_INIT with diversifier should not be supported");
+    }
+
+    @Test
+    public void testCredentialStore() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final AID aid = AIDUtil.create(APPLET_ID);
+        final byte[] installData = InstallData.installParameters(InstallData.appletData(psk, id, InstallData.OPT_CREDENTIAL));
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        simulator.selectApplet(aid);
+
+        // Credential access requires an authenticated session and a stored credential
+        ResponseAPDU res = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_GET_CREDENTIAL, 0x00, 0x00, 256));
+        Assertions.assertEquals(0x6985, res.getSW(), "GET_CREDENTIAL without authentication should fail");
+        final ApduLatencyRecorder recorder = new ApduLatencyRecorder();
+        final CardChannel channel = new TracingCardChannel(CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel(), recorder);
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+        client.select(channel);
+        final ProtocolException missing = Assertions.assertThrows(ProtocolException.class,
+                () -> client.readCredential(channel, null, false));
+        Assertions.assertEquals(0x6A83, missing.getSW(), "GET_CREDENTIAL without credential should fail");
+
+        // Multi-zone access rights and validity windows, larger than one short response
+        final byte[] credential = new byte[1000];
+        new Random(42).nextBytes(credential);
+        client.writeCredential(channel, credential, false);
+        final byte[] readId = new byte[16];
+        Assertions.assertArrayEquals(credential, client.readCredential(channel, readId, false), "Chained read returned a wrong credential");
+        Assertions.assertArrayEquals(id, readId, "Credential read returned a wrong ID");
+        Assertions.assertArrayEquals(credential, client.readCredential(channel, null, true), "Extended read returned a wrong credential");
+
+        // Extended writes replace the credential just the same
+        final byte[] smaller = Arrays.copyOf(credential, 100);
+        client.writeCredential(channel, smaller, true);
+        Assertions.assertArrayEquals(smaller, client.readCredential(channel, null, false), "Credential was not replaced");
+        client.writeCredential(channel, credential, true);
+
+        // Exchanges per session of both transfer modes, including the authentication exchanges
+        final int sessions = 50;
+        for (boolean extended : new boolean[] {false, true}) {
+            recorder.reset();
+            for (int i = 0; i < sessions; i++) {
+                client.readCredential(channel, null, extended);
+            }
+            final long exchanges = recorder.histogram(INS_AUTH_INIT).getCount() + recorder.histogram(INS_AUTH_AND_GET_ID).getCount()
+                    + recorder.histogram(INS_GET_CREDENTIAL).getCount() + recorder.histogram((byte) 0xC0).getCount();
+            Assertions.assertEquals(extended ? 3 : 6, exchanges / sessions, "Unexpected number of exchanges");
+        }
+
+        // Cards installed without the credential store reject the commands
+        final byte[] plainData = InstallData.installParameters(InstallData.appletData(psk, id, (byte) 0));
+        final CardSimulator plain = new CardSimulator();
+        plain.installApplet(aid, AuthenticatedIdentificationApplet.class, plainData, (short) 0, (byte) plainData.length);
+        plain.selectApplet(aid);
+        res = plain.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_GET_CREDENTIAL, 0x00, 0x00, 256));
+        Assertions.assertEquals(0x6A81, res.getSW(), "GET_CREDENTIAL should not be supported");
+    }
+
+    @Test
+    public void testCredentialIntegrity() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] installData = InstallData.installParameters(InstallData.appletData(psk, id, InstallData.OPT_CREDENTIAL));
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(AIDUtil.create(APPLET_ID), AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        final CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+        client.select(channel);
+        final byte[] credential = new byte[600];
+        new Random(42).nextBytes(credential);
+
+        // A modified write stream fails the MAC, and the card does not publish the credential
+        for (boolean extended : new boolean[] {false, true}) {
+            client.writeCredential(channel, credential, extended);
+            final ProtocolException tampered = Assertions.assertThrows(ProtocolException.class,
+                    () -> client.writeCredential(new TamperingChannel(channel, INS_PUT_CREDENTIAL), credential, extended));
+            Assertions.assertEquals(0x6982, tampered.getSW(), "Modified PUT_CREDENTIAL stream accepted");
+            final ProtocolException missing = Assertions.assertThrows(ProtocolException.class,
+                    () -> client.readCredential(channel, null, extended));
+            Assertions.assertEquals(0x6A83, missing.getSW(), "Credential of a modified stream was published");
+        }
+
+        // A modified read stream is rejected by the terminal before it decrypts anything
+        client.writeCredential(channel, credential, false);
+        for (boolean extended : new boolean[] {false, true}) {
+            final ProtocolException tampered = Assertions.assertThrows(ProtocolException.class,
+                    () -> client.readCredential(new TamperingChannel(channel, INS_GET_CREDENTIAL), null, extended));
+            Assertions.assertTrue(tampered.getMessage().contains("MAC"), "Modified GET_CREDENTIAL stream accepted: " + tampered.getMessage());
+            Assertions.assertArrayEquals(credential, client.readCredential(channel, null, extended), "Credential changed");
+        }
+    }
+
+    @Test
+    public void testUsageStatistics() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final AID aid = AIDUtil.create(APPLET_ID);
+        final byte[] installData = InstallData.installParameters(InstallData.appletData(psk, id, InstallData.OPT_STATISTICS));
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        simulator.selectApplet(aid);
+        final CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+        client.select(channel);
+
+        // Refused GET_ID, abandoned sessions (more than 256, so that the counter carries), successful sessions,
+        // and one AUTH with a payload that does not decrypt to the challenge
+        Assertions.assertEquals(0x6985, simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00, 16)).getSW());
+        for (int i = 0; i < 300; i++) {
+            simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00, 16));
+        }
+        for (int i = 0; i < 5; i++) {
+            client.readIdFast(channel);
+        }
+        for (int i = 0; i < 2; i++) {
+            client.readId(channel);
+        }
+        simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00, 16));
+        simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH, 0x00, 0x00, new byte[16], 256));
+
+        // The counters are only released to an authenticated terminal
+        ResponseAPDU res = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_GET_STATS, 0x00, 0x00, 256));
+        Assertions.assertEquals(0x6985, res.getSW(), "GET_STATS without authentication should fail");
+
+        // Reading the statistics is a session of its own, so it is included in the counters
+        final byte[] readId = new byte[16];
+        final CardStatistics statistics = client.readStatistics(channel, readId);
+        Assertions.assertArrayEquals(id, readId, "Statistics read returned a wrong ID");
+        Assertions.assertEquals(309, statistics.get(CardStatistics.AUTH_INIT), "AUTH_INIT count");
+        Assertions.assertEquals(9, statistics.get(CardStatistics.AUTH_ATTEMPT), "Authentication attempt count");
+        Assertions.assertEquals(8, statistics.get(CardStatistics.AUTH_SUCCESS), "Authentication success count");
+        Assertions.assertEquals(1, statistics.get(CardStatistics.ID_REFUSED), "Refused GET_ID count");
+        Assertions.assertEquals(8, statistics.get(CardStatistics.ID_RELEASED), "Released ID count");
+        Assertions.assertEquals(1, statistics.authFailures(), "Authentication failures");
+        Assertions.assertEquals(300, statistics.abandonedSessions(), "Abandoned sessions");
+        Assertions.assertEquals(0, statistics.get(CardStatistics.PERSISTENT_WRITES), "No feature writes persistent state");
+
+        // Cards installed without statistics reject the command
+        final byte[] plainData = InstallData.installParameters(InstallData.appletData(psk, id, (byte) 0));
+        final CardSimulator plain = new CardSimulator();
+        plain.installApplet(aid, AuthenticatedIdentificationApplet.class, plainData, (short) 0, (byte) plainData.length);
+        plain.selectApplet(aid);
+        final CardChannel plainChannel = CardTerminalSimulator.terminal(plain).connect("T=1").getBasicChannel();
+        client.select(plainChannel);
+        final ProtocolException unsupported = Assertions.assertThrows(ProtocolException.class,
+                () -> client.readStatistics(plainChannel, null));
+        Assertions.assertEquals(0x6A81, unsupported.getSW(), "GET_STATS should not be supported");
+    }
+
+    @Test
+    public void testPersistentWriteCounter() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] newPsk = Util.hexStringToByteArray("0F0E0D0C0B0A09080706050403020100");
+        final byte[] newId = Util.hexStringToByteArray("00000000000000000000000000000002");
+        final AID aid = AIDUtil.create(APPLET_ID);
+        final byte[] installData = InstallData.installParameters(InstallData.appletData(psk, id,
+                (byte) (InstallData.OPT_CHALLENGE_POOL | InstallData.OPT_RESUMPTION | InstallData.OPT_STATISTICS)));
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(aid, InstanceCapturingApplet.class, installData, (short) 0, (byte) installData.length);
+        final AuthenticatedIdentificationApplet applet = InstanceCapturingApplet.instance;
+        simulator.selectApplet(aid);
+        final Random random = new Random(42);
+
+        // Every write is counted once: the ticket takes four (invalidate, key, counter, validate), a pool entry three
+        // (nonce, ciphertext, valid flag) to fill and one to take, and the first session fills all four entries
+        runSimulatorFlow(simulator, psk, id, random);
+        Assertions.assertEquals(4 + 4 * 3, persistentWrites(applet), "First session with empty pool");
+        runSimulatorFlow(simulator, psk, id, random);
+        Assertions.assertEquals(16 + 1 + 4 + 3, persistentWrites(applet), "Session taking and refilling one entry");
+
+        // RESUME only consumes the counter
+        final byte[] resumptionKey = aesEnc(runSimulatorFlow(simulator, psk, id, random), LABEL_TICKET);
+        Assertions.assertEquals(0x9000, simulator.transmitCommand(resumeCommand(resumptionKey, 1)).getSW(), "RESUME response status unexpected");
+        Assertions.assertEquals(32 + 1, persistentWrites(applet), "RESUME");
+
+        // Rotation writes key, ID and ticket flag, and clears the valid pool entries one by one
+        final byte[] sessionKey = runSimulatorFlow(simulator, psk, id, random);
+        Assertions.assertEquals(4, validPoolEntries(applet), "Pool should be full");
+        Assertions.assertEquals(0x9000, simulator.transmitCommand(updateCommand(sessionKey, newPsk, newId)).getSW(), "UPDATE_CREDENTIALS response status unexpected");
+        Assertions.assertEquals(41 + 3 + 4, persistentWrites(applet), "UPDATE_CREDENTIALS");
+
+        // A credential write clears the stored length, decrypts each run of blocks into the store, and publishes the
+        // length once the MAC verifies. A two-block stream arrives in one APDU, but its first block is taken alone.
+        final byte[] credentialData = InstallData.installParameters(InstallData.appletData(psk, id,
+                (byte) (InstallData.OPT_CREDENTIAL | InstallData.OPT_STATISTICS)));
+        final CardSimulator credentialCard = new CardSimulator();
+        credentialCard.installApplet(aid, InstanceCapturingApplet.class, credentialData, (short) 0, (byte) credentialData.length);
+        final AuthenticatedIdentificationApplet credentialApplet = InstanceCapturingApplet.instance;
+        credentialCard.selectApplet(aid);
+        final CardChannel channel = CardTerminalSimulator.terminal(credentialCard).connect("T=1").getBasicChannel();
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+        client.select(channel);
+        client.writeCredential(channel, new byte[30], false);
+        Assertions.assertEquals(1 + 2 + 1, persistentWrites(credentialApplet), "PUT_CREDENTIAL");
+    }
+
+    @Test
+    public void testSessionResumption() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        // Applet data: psk || id || options (0x02 = resumption tickets)
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length + 1) + pskHex + idHex + "02");
+
+        final CountingSimulator simulator = new CountingSimulator();
+        final AID aid = AIDUtil.create(APPLET_ID);
+        simulator.installApplet(aid, InstanceCapturingApplet.class, installData, (short) 0, (byte) installData.length);
+        final OperationCounter crypto = OperationCounter.attach(InstanceCapturingApplet.instance);
+        simulator.selectApplet(aid);
+        final Random random = new Random(42);
+
+        // No ticket exists before the first full session
+        ResponseAPDU noTicketRes = simulator.transmitCommand(resumeCommand(new byte[16], 1));
+        Assertions.assertEquals(0x6982, noTicketRes.getSW(), "RESUME without ticket must be rejected");
+
+        // A full session issues the ticket k_res = AES_eph(LABEL_TICKET)
+        byte[] resumptionKey = aesEnc(runSimulatorFlow(simulator, psk, id, random), LABEL_TICKET);
+
+        // The ticket survives re-selection and can be used with increasing counters
+        simulator.selectApplet(aid);
+        for (int counter : new int[] {1, 2, 5}) {
+            ResponseAPDU resumeRes = simulator.transmitCommand(resumeCommand(resumptionKey, counter));
+            Assertions.assertEquals(0x9000, resumeRes.getSW(), "RESUME response status unexpected");
+            Assertions.assertArrayEquals(id, aesDec(counterKey(resumptionKey, counter), resumeRes.getData()),
+                    "RESUME response is incorrect");
+        }
+
+        // Replayed or stale counters, counters beyond the ticket lifetime, and wrong tickets are rejected
+        Assertions.assertEquals(0x6982, simulator.transmitCommand(resumeCommand(resumptionKey, 5)).getSW(), "Replayed counter accepted");
+        Assertions.assertEquals(0x6982, simulator.transmitCommand(resumeCommand(resumptionKey, 3)).getSW(), "Stale counter accepted");
+        Assertions.assertEquals(0x6982, simulator.transmitCommand(resumeCommand(resumptionKey, 9)).getSW(), "Expired counter accepted");
+        Assertions.assertEquals(0x6982, simulator.transmitCommand(resumeCommand(psk, 6)).getSW(), "Wrong ticket accepted");
+
+        // A new full session replaces the ticket
+        final byte[] oldResumptionKey = resumptionKey;
+        resumptionKey = aesEnc(runSimulatorFlow(simulator, psk, id, random), LABEL_TICKET);
+        Assertions.assertEquals(0x6982, simulator.transmitCommand(resumeCommand(oldResumptionKey, 6)).getSW(), "Replaced ticket accepted");
+        Assertions.assertEquals(0x9000, simulator.transmitCommand(resumeCommand(resumptionKey, 1)).getSW(), "New ticket rejected");
+
+        // ===== Cost comparison: full handshake vs. resumption =====
+        final int rounds = 50;
+        int fullApdus = 0, fullBytes = 0, resumeApdus = 0, resumeBytes = 0;
+        OperationCounter.Operations full = OperationCounter.Operations.NONE, resumed = OperationCounter.Operations.NONE;
+        for (int i = 0; i < rounds; i++) {
+            simulator.resetCounters();
+            OperationCounter.Operations before = crypto.read();
+            resumptionKey = aesEnc(runSimulatorFlow(simulator, psk, id, random), LABEL_TICKET);
+            fullApdus += simulator.apdus;
+            fullBytes += simulator.bytes;
+            full = full.plus(crypto.read().minus(before));
+
+            simulator.resetCounters();
+            before = crypto.read();
+            ResponseAPDU resumeRes = simulator.transmitCommand(resumeCommand(resumptionKey, 1));
+            resumeApdus += simulator.apdus;
+            resumeBytes += simulator.bytes;
+            resumed = resumed.plus(crypto.read().minus(before));
+            Assertions.assertEquals(0x9000, resumeRes.getSW(), "RESUME response status unexpected");
+        }
+        Assertions.assertEquals(3 * rounds, fullApdus, "Full handshake should take three exchanges");
+        Assertions.assertEquals(rounds, resumeApdus, "Resumption should take a single exchange");
+        Assertions.assertTrue(resumeBytes < fullBytes, "Resumption should transfer fewer bytes");
+
+        // The card skips the random number generator and the ticket derivation, and the AUTH round trip with its
+        // PSK operations
+        Assertions.assertEquals(0, resumed.randomBytes, "Resumption should not draw random numbers");
+        Assertions.assertTrue(full.randomBytes > 0, "Random numbers of the full handshake not counted");
+        Assertions.assertTrue(resumed.cipherInits < full.cipherInits, "Resumption should initialize the cipher less often: " + resumed + " vs. " + full);
+        Assertions.assertTrue(resumed.cipherBlocks < full.cipherBlocks, "Resumption should encrypt fewer blocks: " + resumed + " vs. " + full);
+        Assertions.assertTrue(resumed.keySetups < full.keySetups, "Resumption should set fewer keys: " + resumed + " vs. " + full);
+    }
+
+    @Test
+    public void testCredentialRotation() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] newPsk = Util.hexStringToByteArray("0F0E0D0C0B0A09080706050403020100");
+        final byte[] newId = Util.hexStringToByteArray("00000000000000000000000000000002");
+        // Applet data: psk || id || options (0x03 = challenge pool and resumption tickets)
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length + 1) + pskHex + idHex + "03");
+
+        final CardSimulator simulator = new CardSimulator();
+        final AID aid = AIDUtil.create(APPLET_ID);
+        simulator.installApplet(aid, InstanceCapturingApplet.class, installData, (short) 0, (byte) installData.length);
+        final AuthenticatedIdentificationApplet applet = InstanceCapturingApplet.instance;
+        simulator.selectApplet(aid);
+        final Random random = new Random(42);
+
+        // Rotation requires an authenticated session
+        Assertions.assertEquals(0x6985, simulator.transmitCommand(updateCommand(new byte[16], newPsk, newId)).getSW(),
+                "UPDATE_CREDENTIALS without authentication must be rejected");
+
+        // Wrong length, and a payload that does not decrypt to a consistent update, leave the card unchanged
+        byte[] sessionKey = runSimulatorFlow(simulator, psk, id, random);
+        Assertions.assertEquals(0x6700, simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_UPDATE_CREDENTIALS,
+                0x00, 0x00, new byte[32])).getSW(), "UPDATE_CREDENTIALS with wrong length must be rejected");
+        final byte[] garbled = updateCommand(sessionKey, newPsk, newId).getData();
+        garbled[20] ^= 0x01;
+        Assertions.assertEquals(0x6982, simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_UPDATE_CREDENTIALS,
+                0x00, 0x00, garbled)).getSW(), "Garbled UPDATE_CREDENTIALS must be rejected");
+        Assertions.assertEquals(0x6985, simulator.transmitCommand(updateCommand(sessionKey, newPsk, newId)).getSW(),
+                "The session must end after a rejected update");
+        final byte[] resumptionKey = aesEnc(runSimulatorFlow(simulator, psk, id, random), LABEL_TICKET);
+
+        // A resumed session is not enough to rotate
+        final ResponseAPDU resumeRes = simulator.transmitCommand(resumeCommand(resumptionKey, 1));
+        Assertions.assertEquals(0x9000, resumeRes.getSW(), "RESUME response status unexpected");
+        Assertions.assertEquals(0x6985, simulator.transmitCommand(updateCommand(counterKey(resumptionKey, 1), newPsk, newId)).getSW(),
+                "UPDATE_CREDENTIALS in a resumed session must be rejected");
+
+        // Rotate in a full session
+        sessionKey = runSimulatorFlow(simulator, psk, id, random);
+        Assertions.assertTrue(validPoolEntries(applet) > 0, "Pool should be filled after a completed GET_ID");
+        final ResponseAPDU updateRes = simulator.transmitCommand(updateCommand(sessionKey, newPsk, newId));
+        Assertions.assertEquals(0x9000, updateRes.getSW(), "UPDATE_CREDENTIALS response status unexpected");
+        Assertions.assertEquals(0, updateRes.getData().length, "UPDATE_CREDENTIALS must not return data");
+
+        // Everything derived from the old key is gone
+        Assertions.assertEquals(0, validPoolEntries(applet), "Pool entries under the old key must be invalidated");
+        Assertions.assertEquals(0x6982, simulator.transmitCommand(resumeCommand(resumptionKey, 2)).getSW(),
+                "Ticket of the old key must be invalidated");
+        final ResponseAPDU authInitRes = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00));
+        final byte[] rc = Arrays.copyOfRange(aesDec(psk, authInitRes.getData()), 0, 8);
+        final byte[] rt = new byte[8];
+        ResponseAPDU authRes = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH, 0x00, 0x00, authCommand(psk, rc, rt)));
+        Assertions.assertFalse(Arrays.equals(MSG_SUCCESS, aesDec(ephemeralKey(rc, rt), authRes.getData())), "Old PSK accepted");
+        Assertions.assertEquals(0x6985, simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00)).getSW(),
+                "GET_ID must be refused after authenticating with the old PSK");
+
+        // The new credentials work, also after a reset and for the terminal client
+        runSimulatorFlow(simulator, newPsk, newId, random);
+        simulator.reset();
+        simulator.selectApplet(aid);
+        final CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(newPsk);
+        client.select(channel);
+        Assertions.assertArrayEquals(newId, client.readIdFast(channel), "Terminal client should read the new ID");
+    }
+
+    @Test
+    public void testExtendedLengthCommands() throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] newPsk = Util.hexStringToByteArray("0F0E0D0C0B0A09080706050403020100");
+        final byte[] newId = Util.hexStringToByteArray("00000000000000000000000000000002");
+        // Applet data: psk || id || options (0x02 = resumption tickets)
+        final byte[] installData = Util.hexStringToByteArray("0000" + Integer.toHexString(psk.length + id.length + 1) + pskHex + idHex + "02");
+
+        final CardSimulator simulator = new CardSimulator();
+        final AID aid = AIDUtil.create(APPLET_ID);
+        simulator.installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        simulator.selectApplet(aid);
+        final Random random = new Random(42);
+
+        // The applet accepts extended length, where the command data starts two bytes later behind a three-byte Lc
+        byte[] rc = Arrays.copyOfRange(aesDec(psk, simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00)).getData()), 0, 8);
+        final byte[] rt = new byte[8];
+        random.nextBytes(rt);
+        ResponseAPDU authRes = simulator.transmitCommand(extended(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH, 0x00, 0x00, authCommand(psk, rc, rt))));
+        Assertions.assertEquals(0x9000, authRes.getSW(), "Extended AUTH response status unexpected");
+        Assertions.assertArrayEquals(MSG_SUCCESS, aesDec(ephemeralKey(rc, rt), authRes.getData()), "Extended AUTH response plaintext is incorrect");
+        ResponseAPDU getIdRes = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00));
+        Assertions.assertArrayEquals(id, aesDec(ephemeralKey(rc, rt), getIdRes.getData()), "GET_ID after extended AUTH is incorrect");
+        final byte[] resumptionKey = aesEnc(ephemeralKey(rc, rt), LABEL_TICKET);
+
+        rc = Arrays.copyOfRange(aesDec(psk, simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00)).getData()), 0, 8);
+        ResponseAPDU fastRes = simulator.transmitCommand(extended(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_AND_GET_ID, 0x00, 0x00, authCommand(psk, rc, rt))));
+        Assertions.assertEquals(0x9000, fastRes.getSW(), "Extended AUTH_AND_GET_ID response status unexpected");
+        Assertions.assertArrayEquals(id, aesDec(ephemeralKey(rc, rt), Arrays.copyOfRange(fastRes.getData(), 16, 32)),
+                "Extended AUTH_AND_GET_ID response is incorrect");
+
+        // The ticket was replaced by the fast path session, which is the one to resume
+        final byte[] fastResumptionKey = aesEnc(ephemeralKey(rc, rt), LABEL_TICKET);
+        Assertions.assertEquals(0x6982, simulator.transmitCommand(extended(resumeCommand(resumptionKey, 1))).getSW(), "Replaced ticket accepted");
+        ResponseAPDU resumeRes = simulator.transmitCommand(extended(resumeCommand(fastResumptionKey, 1)));
+        Assertions.assertEquals(0x9000, resumeRes.getSW(), "Extended RESUME response status unexpected");
+        Assertions.assertArrayEquals(id, aesDec(counterKey(fastResumptionKey, 1), resumeRes.getData()), "Extended RESUME response is incorrect");
+
+        final byte[] sessionKey = runSimulatorFlow(simulator, psk, id, random);
+        Assertions.assertEquals(0x9000, simulator.transmitCommand(extended(updateCommand(sessionKey, newPsk, newId))).getSW(),
+                "Extended UPDATE_CREDENTIALS response status unexpected");
+        runSimulatorFlow(simulator, newPsk, newId, random);
+
+        // The length is still checked in the extended format
+        Assertions.assertEquals(0x6700, simulator.transmitCommand(extended(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH, 0x00, 0x00, new byte[17]))).getSW(),
+                "Extended AUTH with wrong length must be rejected");
+    }
+
+    @Test
+    public void testLogicalChannels() throws Exception {
+        // The channels are opened with MANAGE CHANNEL by the card, which sets the channel number in the CLA of every
+        // command sent over them. Cards and simulators without logical channels skip the test instead of passing it.
+        final CardSimulator simulator = new CardSimulator();
+        installBothApplets(simulator, (byte) 0);
+        final CardChannel basic = connectSimulator(simulator);
+        runLogicalChannels(basic, () -> openLogicalChannel(basic.getCard()));
+    }
+
+    @Test
+    public void testLogicalChannelsInSimulator() throws Exception {
+        // jCardSim has no logical channels, the runtime below adds them, so that the per-channel state is exercised
+        final LogicalChannelRuntime runtime = new LogicalChannelRuntime();
+        final CardSimulator simulator = new CardSimulator(runtime);
+        installBothApplets(simulator, InstallData.OPT_CREDENTIAL);
+        final CardChannel basic = SimulatedChannel.basic(simulator);
+        Assertions.assertEquals(0x9000, basic.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00,
+                Util.hexStringToByteArray(APPLET_ID))).getSW(), "SELECT on the basic channel failed");
+        runLogicalChannels(basic, () -> SimulatedChannel.open(simulator));
+        Assertions.assertEquals(2, runtime.multiSelections, "select(true) for SELECT and re-SELECT on the second channel");
+        Assertions.assertEquals(2, runtime.multiDeselections, "deselect(true) for re-SELECT and closing the second channel");
+
+        // A credential written on one channel is read on another, each stream with its own cipher, MAC, and key
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final CardChannel second = SimulatedChannel.open(simulator);
+        Assertions.assertEquals(0x9000, second.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00,
+                Util.hexStringToByteArray(APPLET_ID))).getSW(), "SELECT on the reopened channel failed");
+        Assertions.assertEquals(0x6985, second.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00)).getSW(),
+                "Reopened channel inherited the session of the closed one");
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(psk);
+        final byte[] credential = new byte[300];
+        new Random(42).nextBytes(credential);
+        client.writeCredential(second, credential, false);
+        Assertions.assertArrayEquals(credential, client.readCredential(basic, null, false), "Credential written on another channel");
+
+        // A complete read on the second channel between the chunks of a chained read on the basic channel
+        final AuthenticatedIdentificationClient otherClient = new AuthenticatedIdentificationClient(psk);
+        final CardChannel interleaved = new InterleavingChannel(basic, (byte) 0xC0,
+                () -> Assertions.assertArrayEquals(credential, otherClient.readCredential(second, null, false), "Interleaved read"));
+        Assertions.assertArrayEquals(credential, client.readCredential(interleaved, null, false), "Read interrupted by another channel");
+
+        // Rotating the credentials on the basic channel ends the session on the second one
+        final Random random = new Random(43);
+        final byte[] rc = Arrays.copyOfRange(aesDec(psk, transmit(second, INS_AUTH_INIT, null)), 0, 8);
+        final byte[] rt = new byte[8];
+        random.nextBytes(rt);
+        transmit(second, INS_AUTH, authCommand(psk, rc, rt));
+        final byte[] rcBasic = Arrays.copyOfRange(aesDec(psk, transmit(basic, INS_AUTH_INIT, null)), 0, 8);
+        transmit(basic, INS_AUTH, authCommand(psk, rcBasic, rt));
+        Assertions.assertEquals(0x9000, basic.transmit(updateCommand(ephemeralKey(rcBasic, rt), psk, id)).getSW(),
+                "UPDATE_CREDENTIALS response status unexpected");
+        Assertions.assertEquals(0x6985, second.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00)).getSW(),
+                "Session on the second channel survived the rotation");
+
+        // Channels beyond the applet's session slots cannot select it, the other ones stay usable
+        final CardChannel[] channels = new CardChannel[3];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = SimulatedChannel.open(simulator);
+        }
+        Assertions.assertEquals(4, channels[2].getChannelNumber(), "Channels are numbered from the lowest free one");
+        Assertions.assertEquals(0x6999, channels[2].transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00,
+                Util.hexStringToByteArray(APPLET_ID))).getSW(), "SELECT beyond the session slots must fail");
+        Assertions.assertArrayEquals(id, client.readIdFast(second), "Second channel unusable after the failed SELECT");
+    }
+
+    private void installBothApplets(CardSimulator simulator, byte options) {
+        // Both applets on one card, the authenticated one is selected on the basic channel by the caller
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] installData = InstallData.installParameters(InstallData.appletData(psk, id, options));
+        final byte[] plainInstallData = Util.hexStringToByteArray("0000" + Integer.toHexString(id.length) + idHex);
+        simulator.installApplet(AIDUtil.create(APPLET_ID), AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        simulator.installApplet(AIDUtil.create("f000000cdc00"), applet.IdentificationApplet.class, plainInstallData, (short) 0, (byte) plainInstallData.length);
+    }
+
+    /**
+     * Interleaves sessions on the basic channel and on logical channels opened by opener, with the authenticated
+     * applet selected on the basic channel.
+     */
+    private void runLogicalChannels(CardChannel basic, Callable<CardChannel> opener) throws Exception {
+        final byte[] psk = Util.hexStringToByteArray(pskHex);
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final CardChannel second = opener.call();
+        Assertions.assertEquals(0x9000, second.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00,
+                Util.hexStringToByteArray(APPLET_ID))).getSW(), "SELECT on the second channel failed");
+
+        // Interleave two sessions: AUTH_INIT on both channels, then AUTH and GET_ID in crossed order
+        final Random random = new Random(42);
+        final byte[] rc0 = Arrays.copyOfRange(aesDec(psk, transmit(basic, INS_AUTH_INIT, null)), 0, 8);
+        final byte[] rc1 = Arrays.copyOfRange(aesDec(psk, transmit(second, INS_AUTH_INIT, null)), 0, 8);
+        Assertions.assertFalse(Arrays.equals(rc0, rc1), "Channels share the card nonce");
+        final byte[] rt0 = new byte[8], rt1 = new byte[8];
+        random.nextBytes(rt0);
+        random.nextBytes(rt1);
+        Assertions.assertArrayEquals(MSG_SUCCESS, aesDec(ephemeralKey(rc1, rt1),
+                transmit(second, INS_AUTH, authCommand(psk, rc1, rt1))), "AUTH on the second channel failed");
+        Assertions.assertArrayEquals(MSG_SUCCESS, aesDec(ephemeralKey(rc0, rt0),
+                transmit(basic, INS_AUTH, authCommand(psk, rc0, rt0))), "AUTH on the basic channel failed");
+        Assertions.assertArrayEquals(id, aesDec(ephemeralKey(rc1, rt1), transmit(second, INS_GET_ID, null)),
+                "GET_ID on the second channel is encrypted under the wrong key");
+        Assertions.assertArrayEquals(id, aesDec(ephemeralKey(rc0, rt0), transmit(basic, INS_GET_ID, null)),
+                "GET_ID on the basic channel is encrypted under the wrong key");
+
+        // A failed authentication on one channel leaves the session on the other one intact
+        transmit(second, INS_AUTH_INIT, null);
+        transmit(second, INS_AUTH, authCommand(psk, rc1, rt1));
+        Assertions.assertEquals(0x6985, second.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00)).getSW(),
+                "GET_ID after failed AUTH must be refused");
+        Assertions.assertArrayEquals(id, aesDec(ephemeralKey(rc0, rt0), transmit(basic, INS_GET_ID, null)),
+                "Session on the basic channel was affected by the second channel");
+
+        // Re-selecting on the second channel resets its session only
+        Assertions.assertEquals(0x9000, second.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00,
+                Util.hexStringToByteArray(APPLET_ID))).getSW(), "Re-SELECT on the second channel failed");
+        Assertions.assertArrayEquals(id, aesDec(ephemeralKey(rc0, rt0), transmit(basic, INS_GET_ID, null)),
+                "Session on the basic channel was affected by re-selection on the second channel");
+
+        // The identification applet can be active on a third channel at the same time
+        final CardChannel third = opener.call();
+        Assertions.assertEquals(0x9000, third.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00,
+                Util.hexStringToByteArray("f000000cdc00"))).getSW(), "SELECT of the identification applet failed");
+        Assertions.assertArrayEquals(id, transmit(third, INS_GET_ID, null), "Identification applet returned a wrong ID");
+
+        // Closing the second channel resets only its session
+        second.close();
+        Assertions.assertArrayEquals(id, aesDec(ephemeralKey(rc0, rt0), transmit(basic, INS_GET_ID, null)),
+                "Session on the basic channel was affected by closing the second channel");
+        third.close();
+    }
+
+    /**
+     * Opens a logical channel, or aborts the test if the card does not support logical channels.
+     */
+    private static CardChannel openLogicalChannel(Card card) {
+        CardChannel channel = null;
+        String reason = null;
+        try {
+            channel = card.openLogicalChannel();
+        } catch (CardException e) {
+            reason = e.getMessage();
+        }
+        Assumptions.assumeTrue(channel != null, "Logical channels not supported: " + reason);
+        return channel;
+    }
+
+    /**
+     * Sends a proprietary command over the given channel and returns the response data, which must come with 9000.
+     */
+    private static byte[] transmit(CardChannel channel, byte ins, byte[] data) throws CardException {
+        final CommandAPDU command = data == null
+                ? new CommandAPDU(CLA_PROPRIETARY, ins, 0x00, 0x00, 256)
+                : new CommandAPDU(CLA_PROPRIETARY, ins, 0x00, 0x00, data);
+        final ResponseAPDU response = channel.transmit(command);
+        Assertions.assertEquals(0x9000, response.getSW(),
+                String.format("INS %02X on channel %d failed", ins, channel.getChannelNumber()));
+        return response.getData();
+    }
+
+    /**
+     * Runs an action once, right before the first command with the given INS goes through the wrapped channel.
+     */
+    private static final class InterleavingChannel extends CardChannel {
+        private final CardChannel channel;
+        private final byte ins;
+        private Executable action;
+
+        InterleavingChannel(CardChannel channel, byte ins, Executable action) {
+            this.channel = channel;
+            this.ins = ins;
+            this.action = action;
+        }
+
+        @Override
+        public Card getCard() {
+            return channel.getCard();
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return channel.getChannelNumber();
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+            final ByteBuffer response = ByteBuffer.allocate(65538);
+            final int length = transmit(ByteBuffer.wrap(command.getBytes()), response);
+            return new ResponseAPDU(Arrays.copyOf(response.array(), length));
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+            if (action != null && command.remaining() > 1 && command.get(command.position() + 1) == ins) {
+                final Executable pending = action;
+                action = null;
+                try {
+                    pending.execute();
+                } catch (Throwable e) {
+                    throw new CardException("Interleaved action failed", e);
+                }
+            }
+            return channel.transmit(command, response);
+        }
+
+        @Override
+        public void close() throws CardException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Flips the last data byte of every command with the given INS, or the first data byte of its first response.
+     */
+    private static final class TamperingChannel extends CardChannel {
+        private final CardChannel channel;
+        private final byte ins;
+
+        TamperingChannel(CardChannel channel, byte ins) {
+            this.channel = channel;
+            this.ins = ins;
+        }
+
+        @Override
+        public Card getCard() {
+            return channel.getCard();
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return channel.getChannelNumber();
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+            final ByteBuffer response = ByteBuffer.allocate(65538);
+            final int length = transmit(ByteBuffer.wrap(command.getBytes()), response);
+            return new ResponseAPDU(Arrays.copyOf(response.array(), length));
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+            final byte[] apdu = new byte[command.remaining()];
+            command.get(apdu);
+            final boolean target = apdu.length > 1 && apdu[1] == ins;
+            if (target && ins == INS_PUT_CREDENTIAL) {
+                apdu[apdu.length - 1] ^= 0x01;
+            }
+            final int start = response.position();
+            final int length = channel.transmit(ByteBuffer.wrap(apdu), response);
+            if (target && ins == INS_GET_CREDENTIAL && length > 2) {
+                response.put(start, (byte) (response.get(start) ^ 0x01));
+            }
+            return length;
+        }
+
+        @Override
+        public void close() throws CardException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Simulator that counts the exchanged APDUs and bytes (command and response, including the status word).
+     */
+    public static class CountingSimulator extends CardSimulator {
+        int apdus = 0;
+        int bytes = 0;
+
+        @Override
+        public ResponseAPDU transmitCommand(CommandAPDU command) {
+            final ResponseAPDU response = super.transmitCommand(command);
+            apdus++;
+            bytes += command.getBytes().length + response.getBytes().length;
+            return response;
+        }
+
+        void resetCounters() {
+            apdus = 0;
+            bytes = 0;
+        }
+    }
+
+    /**
+     * Selects a default applet on every card reset like a card manager with the Default Selected privilege: the
+     * applet's select() is called, but no SELECT command reaches its process(). jCardSim itself leaves the card
+     * without selected applet after a reset.
+     */
+    public static class ImplicitSelectionRuntime extends SimulatorRuntime {
+        private final AID defaultAid;
+
+        public ImplicitSelectionRuntime(AID defaultAid) {
+            this.defaultAid = defaultAid;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            if (defaultAid == null || getApplet(defaultAid) == null) {
+                return;
+            }
+            activateSimulatorRuntimeInstance();
+            if (getApplet(defaultAid).select()) {
+                currentAID = defaultAid;
+            }
+        }
+    }
+
+    /**
+     * Adds logical channels to jCardSim, which only has the basic one: MANAGE CHANNEL opens and closes channels, each
+     * channel keeps its own selected applet, and the channel of the current command is reported through
+     * {@link APDU#getCLAChannel()} and {@link JCSystem#getAssignedChannel()}. A MultiSelectable applet that is active
+     * on another channel is selected with select(true) and deselected with deselect(true). Transient memory is only
+     * cleared once no channel has an applet selected, as jCardSim keeps the memory of all packages together.
+     */
+    public static class LogicalChannelRuntime extends SimulatorRuntime {
+        private static final int MAX_LOGICAL_CHANNELS = 20;
+        private final Map<Integer, AID> selected = new TreeMap<>();
+        private final TreeSet<Integer> open = new TreeSet<>(List.of(0));
+        private int channel = 0;
+        int multiSelections = 0;
+        int multiDeselections = 0;
+
+        @Override
+        public byte[] transmitCommand(byte[] command) {
+            activateSimulatorRuntimeInstance();
+            channel = (command[0] & 0x40) == 0 ? command[0] & 0x03 : 4 + (command[0] & 0x0F);
+            if (!open.contains(channel)) {
+                return status(0x6881);
+            }
+            if ((command[0] & 0x80) == 0 && command[1] == 0x70) {
+                return manageChannel(command[2], command[3]);
+            }
+
+            // The applet selected on the channel processes the command, jCardSim only knows the current one
+            currentAID = selected.get(channel);
+            if ((command[0] & 0x40) != 0 && command[1] == (byte) 0xA4) {
+                // jCardSim only recognizes SELECT in the first interindustry class
+                command = command.clone();
+                command[0] &= (byte) 0xB0;
+            }
+            final AID target = isAppletSelectionApdu(command) ? findAppletForSelectApdu(command, ApduCase.getCase(command)) : null;
+            if (target != null && getApplet(target) instanceof MultiSelectable && activeElsewhere(getApplet(target))) {
+                // Neither applet does anything in process() when selected, so the SELECT is answered here
+                if (currentAID != null) {
+                    deselect(lookupApplet(currentAID));
+                    selected.remove(channel);
+                }
+                multiSelections++;
+                if (!((MultiSelectable) getApplet(target)).select(true)) {
+                    return status(0x6999);
+                }
+                selected.put(channel, target);
+                return status(0x9000);
+            }
+            final byte[] response = super.transmitCommand(command);
+            final int sw = (response[response.length - 2] & 0xff) << 8 | response[response.length - 1] & 0xff;
+            if (currentAID == null || (target != null && sw == 0x6999)) {
+                selected.remove(channel);
+            } else {
+                selected.put(channel, currentAID);
+            }
+            return response;
+        }
+
+        @Override
+        protected void deselect(ApplicationInstance instance) {
+            boolean anyElsewhere = false, appletElsewhere = false;
+            for (Map.Entry<Integer, AID> entry : selected.entrySet()) {
+                if (entry.getKey() != channel) {
+                    anyElsewhere = true;
+                    appletElsewhere |= instance != null && getApplet(entry.getValue()) == instance.getApplet();
+                }
+            }
+            if (!anyElsewhere) {
+                super.deselect(instance);
+                return;
+            }
+            if (instance == null) {
+                return;
+            }
+            activateSimulatorRuntimeInstance();
+            if (appletElsewhere && instance.getApplet() instanceof MultiSelectable) {
+                multiDeselections++;
+                ((MultiSelectable) instance.getApplet()).deselect(true);
+            } else {
+                instance.getApplet().deselect();
+            }
+        }
+
+        @Override
+        protected void resetAPDU(APDU apdu, ApduCase apduCase, byte[] command) {
+            super.resetAPDU(apdu, apduCase, command);
+            try {
+                // jCardSim never sets the channel slot of the APDU, which getCLAChannel() reads
+                final Field ramVars = APDU.class.getDeclaredField("ramVars");
+                ramVars.setAccessible(true);
+                ((short[]) ramVars.get(apdu))[6] = (short) channel;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public byte getAssignedChannel() {
+            return (byte) channel;
+        }
+
+        @Override
+        public void reset() {
+            super.reset();
+            selected.clear();
+            open.retainAll(List.of(0));
+            channel = 0;
+        }
+
+        private byte[] manageChannel(byte p1, byte p2) {
+            if (p1 == 0x00) {
+                for (int candidate = 1; candidate < MAX_LOGICAL_CHANNELS; candidate++) {
+                    if (open.add(candidate)) {
+                        return new byte[] {(byte) candidate, (byte) 0x90, 0x00};
+                    }
+                }
+                return status(0x6A81);
+            }
+            if (p1 != (byte) 0x80 || p2 == 0 || !open.contains((int) p2)) {
+                return status(0x6A86);
+            }
+            channel = p2;
+            final AID aid = selected.get(channel);
+            if (aid != null) {
+                deselect(lookupApplet(aid));
+                selected.remove(channel);
+            }
+            open.remove(channel);
+            return status(0x9000);
+        }
+
+        private boolean activeElsewhere(Applet applet) {
+            for (Map.Entry<Integer, AID> entry : selected.entrySet()) {
+                if (entry.getKey() != channel && getApplet(entry.getValue()) == applet) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static byte[] status(int sw) {
+            return new byte[] {(byte) (sw >> 8), (byte) sw};
+        }
+    }
+
+    /**
+     * A channel of a {@link LogicalChannelRuntime} card, which sets its number in the CLA of every command like
+     * a PC/SC stack does.
+     */
+    static class SimulatedChannel extends CardChannel {
+        private final CardSimulator simulator;
+        private final int number;
+
+        private SimulatedChannel(CardSimulator simulator, int number) {
+            this.simulator = simulator;
+            this.number = number;
+        }
+
+        static SimulatedChannel basic(CardSimulator simulator) {
+            return new SimulatedChannel(simulator, 0);
+        }
+
+        static SimulatedChannel open(CardSimulator simulator) {
+            final ResponseAPDU response = simulator.transmitCommand(new CommandAPDU(0x00, 0x70, 0x00, 0x00, 1));
+            Assertions.assertEquals(0x9000, response.getSW(), "MANAGE CHANNEL open failed");
+            return new SimulatedChannel(simulator, response.getData()[0]);
+        }
+
+        @Override
+        public Card getCard() {
+            throw new UnsupportedOperationException("Simulated channels have no card");
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return number;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) {
+            final byte[] bytes = command.getBytes();
+            bytes[0] = number < 4 ? (byte) ((bytes[0] & 0xFC) | number) : (byte) ((bytes[0] & 0xB0) | 0x40 | (number - 4));
+            return new ResponseAPDU(simulator.transmitCommand(bytes));
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) {
+            final byte[] bytes = new byte[command.remaining()];
+            command.get(bytes);
+            final byte[] result = transmit(new CommandAPDU(bytes)).getBytes();
+            response.put(result);
+            return result.length;
+        }
+
+        @Override
+        public void close() {
+            Assertions.assertEquals(0x9000, simulator.transmitCommand(new CommandAPDU(0x00, 0x70, 0x80, number)).getSW(),
+                    "MANAGE CHANNEL close failed");
+        }
+    }
+
+    /**
+     * Installs like {@link AuthenticatedIdentificationApplet} but keeps a reference to the created instance,
+     * so that its fields can be inspected after running commands in the simulator.
+     */
+    public static class InstanceCapturingApplet extends AuthenticatedIdentificationApplet {
+        static AuthenticatedIdentificationApplet instance;
+
+        public InstanceCapturingApplet(byte[] bArray, short bOffset, byte bLength) {
+            super(bArray, bOffset, bLength);
+        }
+
+        public static void install(byte[] bArray, short bOffset, byte bLength) {
+            instance = new InstanceCapturingApplet(bArray, bOffset, bLength);
+        }
+    }
+
     // ===== Helper functions =====
+    /**
+     * Runs AUTH_INIT, AUTH, and GET_ID against the simulator, checks the returned ID, and returns the ephemeral key
+     * k_eph = rc || rt.
+     */
+    private byte[] runSimulatorFlow(CardSimulator simulator, byte[] psk, byte[] id, Random random) throws GeneralSecurityException {
+        ResponseAPDU authInitRes = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00));
+        Assertions.assertEquals(0x9000, authInitRes.getSW(), "AUTH_INIT response status unexpected");
+        byte[] rc = Arrays.copyOfRange(aesDec(psk, authInitRes.getData()), 0, 8);
+        byte[] rt = new byte[8];
+        random.nextBytes(rt);
+        ResponseAPDU authRes = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH, 0x00, 0x00, authCommand(psk, rc, rt)));
+        Assertions.assertEquals(0x9000, authRes.getSW(), "AUTH response status unexpected");
+        Assertions.assertArrayEquals(MSG_SUCCESS, aesDec(ephemeralKey(rc, rt), authRes.getData()), "AUTH response plaintext is incorrect");
+        ResponseAPDU getIdRes = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00));
+        Assertions.assertEquals(0x9000, getIdRes.getSW(), "GET_ID response status unexpected");
+        Assertions.assertArrayEquals(id, aesDec(ephemeralKey(rc, rt), getIdRes.getData()), "GET_ID response is incorrect");
+        return ephemeralKey(rc, rt);
+    }
+
+    private static CommandAPDU extended(CommandAPDU command) {
+        // Same command with a three-byte Lc (0x00 followed by the 16-bit length) and no Le
+        final byte[] data = command.getData();
+        final byte[] encoded = new byte[7 + data.length];
+        encoded[0] = (byte) command.getCLA();
+        encoded[1] = (byte) command.getINS();
+        encoded[2] = (byte) command.getP1();
+        encoded[3] = (byte) command.getP2();
+        encoded[5] = (byte) (data.length >> 8);
+        encoded[6] = (byte) data.length;
+        System.arraycopy(data, 0, encoded, 7, data.length);
+        return new CommandAPDU(encoded);
+    }
+
+    private CommandAPDU resumeCommand(byte[] resumptionKey, int counter) throws GeneralSecurityException {
+        return new CommandAPDU(CLA_PROPRIETARY, INS_RESUME, (counter >> 8) & 0xff, counter & 0xff,
+                aesEnc(counterKey(resumptionKey, counter), LABEL_RESUME));
+    }
+
+    private byte[] counterKey(byte[] resumptionKey, int counter) throws GeneralSecurityException {
+        // k_c = AES_res(counter || 0^112)
+        byte[] block = new byte[16];
+        block[0] = (byte) (counter >> 8);
+        block[1] = (byte) counter;
+        return aesEnc(resumptionKey, block);
+    }
+
+    private CommandAPDU updateCommand(byte[] sessionKey, byte[] newPsk, byte[] newId) throws GeneralSecurityException {
+        // E_eph(psk' || id' || AES_psk'(id'))
+        final byte[] payload = new byte[48];
+        System.arraycopy(newPsk, 0, payload, 0, 16);
+        System.arraycopy(newId, 0, payload, 16, 16);
+        System.arraycopy(aesEnc(newPsk, newId), 0, payload, 32, 16);
+        return new CommandAPDU(CLA_PROPRIETARY, INS_UPDATE_CREDENTIALS, 0x00, 0x00, aesEnc(sessionKey, payload));
+    }
+
+    private long persistentWrites(AuthenticatedIdentificationApplet applet) throws ReflectiveOperationException {
+        final Field field = AuthenticatedIdentificationApplet.class.getDeclaredField("stats");
+        field.setAccessible(true);
+        return new BigInteger(1, Arrays.copyOfRange((byte[]) field.get(applet), 4 * CardStatistics.PERSISTENT_WRITES,
+                4 * CardStatistics.PERSISTENT_WRITES + 4)).longValue();
+    }
+
+    private int validPoolEntries(AuthenticatedIdentificationApplet applet) throws ReflectiveOperationException {
+        final Field field = AuthenticatedIdentificationApplet.class.getDeclaredField("poolValid");
+        field.setAccessible(true);
+        int valid = 0;
+        for (byte entry : (byte[]) field.get(applet)) {
+            valid += entry != 0 ? 1 : 0;
+        }
+        return valid;
+    }
+
+    /**
+     * Snapshot of all applet fields that live in persistent memory (non-transient arrays, persistent keys, and
+     * primitive fields). Transient arrays and transient keys are skipped, as writing them does not touch EEPROM.
+     */
+    private Map<String, Object> persistentState(AuthenticatedIdentificationApplet applet) throws IllegalAccessException {
+        final Map<String, Object> state = new HashMap<>();
+        for (Field field : AuthenticatedIdentificationApplet.class.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+            field.setAccessible(true);
+            final Object value = field.get(applet);
+            if (value instanceof byte[] || value instanceof boolean[]) {
+                if (JCSystem.isTransient(value) == JCSystem.NOT_A_TRANSIENT_OBJECT) {
+                    state.put(field.getName(), value instanceof byte[] ? ((byte[]) value).clone() : ((boolean[]) value).clone());
+                }
+            } else if (value instanceof AESKey) {
+                final AESKey key = (AESKey) value;
+                if (key.getType() == KeyBuilder.TYPE_AES) {
+                    final byte[] keyData = new byte[16];
+                    if (key.isInitialized()) {
+                        key.getKey(keyData, (short) 0);
+                    }
+                    state.put(field.getName(), keyData);
+                }
+            } else if (field.getType().isPrimitive()) {
+                state.put(field.getName(), value);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Counts the persistent bytes (or primitive fields) that differ between two snapshots.
+     */
+    private int countChangedPersistentBytes(Map<String, Object> before, Map<String, Object> after) {
+        int writes = 0;
+        for (Map.Entry<String, Object> entry : before.entrySet()) {
+            final Object oldValue = entry.getValue();
+            final Object newValue = after.get(entry.getKey());
+            if (oldValue instanceof byte[]) {
+                final byte[] a = (byte[]) oldValue, b = (byte[]) newValue;
+                for (int i = 0; i < a.length; i++) {
+                    writes += a[i] != b[i] ? 1 : 0;
+                }
+            } else if (oldValue instanceof boolean[]) {
+                final boolean[] a = (boolean[]) oldValue, b = (boolean[]) newValue;
+                for (int i = 0; i < a.length; i++) {
+                    writes += a[i] != b[i] ? 1 : 0;
+                }
+            } else if (!oldValue.equals(newValue)) {
+                writes++;
+            }
+        }
+        return writes;
+    }
+
+    private byte[] authInit(CardManager cardManager, byte[] psk) throws Exception {
+        ResponseAPDU authInitRes = cardManager.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00));
+        Assertions.assertEquals(0x9000, authInitRes.getSW(), "AUTH_INIT response status unexpected");
+        return Arrays.copyOfRange(aesDec(psk, authInitRes.getData()), 0, 8);
+    }
+
+    private byte[] authCommand(byte[] psk, byte[] rc, byte[] rt) throws GeneralSecurityException {
+        byte[] mAuthCmd = new byte[16];
+        System.arraycopy(rt, 0, mAuthCmd, 0, 8);
+        System.arraycopy(rc, 0, mAuthCmd, 8, 8);
+        return aesEnc(psk, mAuthCmd);
+    }
+
+    private byte[] ephemeralKey(byte[] rc, byte[] rt) {
+        byte[] ephKey = new byte[16];
+        System.arraycopy(rc, 0, ephKey, 0, 8);
+        System.arraycopy(rt, 0, ephKey, 8, 8);
+        return ephKey;
+    }
+
     private byte[] aesEnc(byte[] key, byte[] plaintext) throws GeneralSecurityException {
         Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
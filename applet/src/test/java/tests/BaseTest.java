@@ -1,15 +1,27 @@
 package tests;
 
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
 import cz.muni.fi.crocs.rcard.client.CardManager;
 import cz.muni.fi.crocs.rcard.client.CardType;
 import cz.muni.fi.crocs.rcard.client.RunConfig;
 import cz.muni.fi.crocs.rcard.client.Util;
 import javacard.framework.Applet;
+import sim.LatencyModel;
+import sim.LatencyModelChannel;
+import sim.OperationCounter;
+import sim.SimulatorSnapshot;
+import terminal.ApduLatencyRecorder;
+import terminal.RemoteCards;
+import terminal.TracingCardChannel;
 
+import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base Test class.
@@ -18,6 +30,12 @@ import java.util.ArrayList;
  * @author Petr Svenda, Dusan Klinec (ph4r05), Niklas Höher
  */
 public class BaseTest {
+    // Snapshots of installed applets, shared by all tests of a run
+    private static final Map<String, SimulatorSnapshot> SNAPSHOTS = new ConcurrentHashMap<>();
+
+    // Address of sim.RemoteCardServer for CardType.REMOTE, unless set by the remote.address property
+    private static final String REMOTE_ADDRESS = "http://127.0.0.1:9901";
+
     // Configurable options
     private String APPLET_AID;
     private Class<? extends Applet> appletClass;
@@ -26,6 +44,10 @@ public class BaseTest {
     // Other required fields
     private boolean simulateStateful;
     protected CardManager statefulCard = null;
+    private ApduLatencyRecorder latencyRecorder = null;
+    private LatencyModel latencyModel = null;
+    private ApduLatencyRecorder predictedLatency = null;
+    private boolean injectLatency = false;
 
     public BaseTest(String appletId, Class<? extends Applet> appletClass, CardType cardType) {
         this.APPLET_AID = appletId;
@@ -62,16 +84,17 @@ public class BaseTest {
         System.setProperty("com.licel.jcardsim.sign.dsasigner.computedhash", "1");
         System.setProperty("com.licel.jcardsim.randomdata.seed", "42");
 
-        runCfg.setTestCardType(cardType);
         if (cardType == CardType.REMOTE){
-            runCfg.setRemoteAddress("http://127.0.0.1:9901");
-
-            runCfg.setRemoteCardType(CardType.PHYSICAL);
-            // runCfg.setRemoteCardType(CardType.JCARDSIMLOCAL);
-
-            runCfg.setAid(APPLET_AID_BYTE);  // performs select after connect
+            // sim.RemoteCardServer does not speak the javacard-tools remote protocol, so its own client is used
+            final RemoteCardManager remoteMngr = new RemoteCardManager(APPLET_AID_BYTE, appletClass, installData);
+            if (!remoteMngr.connect(System.getProperty("remote.address", REMOTE_ADDRESS))) {
+                throw new RuntimeException("Connection failed");
+            }
+            return remoteMngr;
+        }
 
-        } else if (cardType != CardType.PHYSICAL && cardType != CardType.PHYSICAL_JAVAX) {
+        runCfg.setTestCardType(cardType);
+        if (cardType != CardType.PHYSICAL && cardType != CardType.PHYSICAL_JAVAX) {
             // Running in the simulator
             runCfg.setAppletToSimulate(appletClass)
                     .setTestCardType(CardType.JCARDSIMLOCAL)
@@ -86,6 +109,72 @@ public class BaseTest {
         return cardMngr;
     }
 
+    /**
+     * Returns a fresh simulated card with the applet installed with the given install data. The applet is installed
+     * once per install data and applet class; later calls fork the snapshot taken after installation.
+     *
+     * @param installData
+     * @return
+     */
+    public CardSimulator fork(byte[] installData) {
+        return snapshot(installData).fork();
+    }
+
+    /**
+     * Returns the snapshot that {@link #fork(byte[])} forks for the given install data.
+     *
+     * @param installData
+     * @return
+     */
+    public SimulatorSnapshot snapshot(byte[] installData) {
+        final byte[] data = installData == null ? new byte[] {0, 0, 0} : installData;
+        return SNAPSHOTS.computeIfAbsent(appletClass.getName() + ":" + APPLET_AID + ":" + Util.bytesToHex(data),
+                key -> SimulatorSnapshot.install(appletClass, Util.hexStringToByteArray(APPLET_AID), data));
+    }
+
+    /**
+     * Returns the basic channel of a fresh simulated card, see {@link #fork(byte[])}.
+     *
+     * @param installData
+     * @return
+     * @throws CardException
+     */
+    public CardChannel connectFork(byte[] installData) throws CardException {
+        return connectSimulator(fork(installData));
+    }
+
+    /**
+     * Connects to a simulated card and selects the applet. Connecting resets the simulated card, which deselects the
+     * applet selected before. If a latency model is set, the channel predicts the latencies of all later exchanges.
+     *
+     * @param simulator
+     * @return
+     * @throws CardException
+     */
+    public CardChannel connectSimulator(CardSimulator simulator) throws CardException {
+        CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+        if (latencyModel != null) {
+            final OperationCounter operations = OperationCounter.attach(simulator, Util.hexStringToByteArray(APPLET_AID));
+            channel = new LatencyModelChannel(channel, latencyModel, operations, predictedLatency, injectLatency);
+        }
+        final ResponseAPDU response = channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, Util.hexStringToByteArray(APPLET_AID)));
+        if (response.getSW() != 0x9000) {
+            throw new CardException("SELECT failed (SW " + Integer.toHexString(response.getSW()) + ")");
+        }
+        return channel;
+    }
+
+    /**
+     * Returns the channel of the card manager, wrapped for latency recording if a recorder is set.
+     *
+     * @param cardMngr
+     * @return
+     */
+    public CardChannel getChannel(CardManager cardMngr) {
+        final CardChannel channel = cardMngr.getChannel();
+        return latencyRecorder == null ? channel : new TracingCardChannel(channel, latencyRecorder);
+    }
+
     /**
      * Convenience method for connecting and sending
      * @param cmd
@@ -135,14 +224,59 @@ public class BaseTest {
     public ResponseAPDU sendCommandWithInitSequence(CardManager cardMngr, String command, ArrayList<String> initCommands) throws CardException {
         if (initCommands != null) {
             for (String cmd : initCommands) {
-                cardMngr.getChannel().transmit(buildApdu(cmd));
+                getChannel(cardMngr).transmit(buildApdu(cmd));
             }
         }
 
-        final ResponseAPDU resp = cardMngr.getChannel().transmit(buildApdu(command));
+        final ResponseAPDU resp = getChannel(cardMngr).transmit(buildApdu(command));
         return resp;
     }
 
+    /**
+     * Card manager for a card installed on {@code sim.RemoteCardServer}. The card is removed from the server on
+     * disconnect.
+     */
+    private static class RemoteCardManager extends CardManager {
+        private final byte[] aid;
+        private final Class<? extends Applet> appletClass;
+        private final byte[] installData;
+        private RemoteCards remote;
+        private int card;
+        private CardChannel channel;
+
+        RemoteCardManager(byte[] aid, Class<? extends Applet> appletClass, byte[] installData) {
+            super(true, aid);
+            this.aid = aid;
+            this.appletClass = appletClass;
+            this.installData = installData == null ? new byte[] {0, 0, 0} : installData;
+        }
+
+        boolean connect(String address) throws CardException {
+            remote = new RemoteCards(address);
+            card = remote.install(appletClass.getName(), aid, installData, 1);
+            channel = remote.channel(card);
+            return channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, aid)).getSW() == 0x9000;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU cmd) throws CardException {
+            return channel.transmit(cmd);
+        }
+
+        @Override
+        public CardChannel getChannel() {
+            return channel;
+        }
+
+        @Override
+        public void disconnect(boolean bReset) throws CardException {
+            if (remote != null) {
+                remote.remove(card);
+                remote = null;
+            }
+        }
+    }
+
     public CardType getCardType() {
         return cardType;
     }
@@ -155,6 +289,25 @@ public class BaseTest {
         this.simulateStateful = simulateStateful;
     }
 
+    public ApduLatencyRecorder getLatencyRecorder() {
+        return latencyRecorder;
+    }
+
+    public void setLatencyRecorder(ApduLatencyRecorder latencyRecorder) {
+        this.latencyRecorder = latencyRecorder;
+    }
+
+    /**
+     * Predicts field latencies for simulated cards: every exchange over a channel from {@link #connectSimulator} or
+     * {@link #connectFork} records the time predicted by the model into the given recorder, and with inject also takes
+     * that long. The on-card time is predicted from the operations that the applet performs.
+     */
+    public void setLatencyModel(LatencyModel latencyModel, ApduLatencyRecorder predictedLatency, boolean inject) {
+        this.latencyModel = latencyModel;
+        this.predictedLatency = predictedLatency;
+        this.injectLatency = inject;
+    }
+
     public boolean isPhysical() {
         return cardType == CardType.PHYSICAL || cardType == CardType.PHYSICAL_JAVAX;
     }
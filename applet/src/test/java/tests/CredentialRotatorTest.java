@@ -0,0 +1,137 @@
+package tests;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import org.junit.jupiter.api.*;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.InstallData;
+import terminal.KeyDiversifier;
+import terminal.ProtocolException;
+import tools.CredentialRotator;
+
+import javax.smartcardio.CardChannel;
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.HexFormat;
+
+/**
+ * In-place rotation of PSK and ID on simulated cards, as a door reader would run it on each tap.
+ */
+public class CredentialRotatorTest {
+
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+    private static final byte[] PSK = HEX.parseHex("00112233445566778899AABBCCDDEEFF");
+    private static final byte[] NEW_PSK = HEX.parseHex("0F0E0D0C0B0A09080706050403020100");
+
+    @Test
+    public void testRotationPlan() throws Exception {
+        final StringWriter results = new StringWriter();
+        final CredentialRotator rotator = new CredentialRotator(new AuthenticatedIdentificationClient(PSK), null, false,
+                new PrintWriter(results));
+        // Card 1 keeps its ID, card 2 gets a new ID, card 3 gets a given PSK, card 4 is not in the plan
+        final int entries = rotator.loadPlan(new BufferedReader(new StringReader(
+                "# old_id,new_id,new_psk\n"
+                        + id(1) + "\n"
+                        + id(2) + "," + id(12) + "\n"
+                        + "\n"
+                        + id(3) + ",," + HEX.formatHex(NEW_PSK) + "\n")));
+        Assertions.assertEquals(3, entries, "Plan entries");
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> rotator.loadPlan(new BufferedReader(new StringReader(id(1) + "\n"))), "Duplicate entry accepted");
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> rotator.loadPlan(new BufferedReader(new StringReader("0011\n"))), "Short ID accepted");
+
+        final CardChannel[] cards = new CardChannel[4];
+        for (int i = 0; i < cards.length; i++) {
+            cards[i] = install(PSK, idBytes(i + 1), InstallData.OPT_CHALLENGE_POOL, null);
+        }
+        for (int i = 0; i < cards.length; i++) {
+            Assertions.assertEquals(i == 3 ? CredentialRotator.NOT_PLANNED : CredentialRotator.ROTATED,
+                    rotator.rotate(cards[i], "reader"), "First tap of card " + (i + 1));
+        }
+        // The next tap finds the new key, the card is left alone
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(CredentialRotator.ALREADY_ROTATED, rotator.rotate(cards[i], "reader"),
+                    "Second tap of card " + (i + 1));
+        }
+        Assertions.assertEquals(CredentialRotator.NOT_PLANNED, rotator.rotate(cards[3], "reader"), "Unplanned card");
+        Assertions.assertEquals(3, rotator.getRotated(), "Rotated cards");
+        Assertions.assertEquals(0, rotator.getFailed(), "Failed rotations");
+        Assertions.assertEquals(0, rotator.getPending(), "Pending rotations");
+
+        // The results file holds the new credentials, the cards accept them and reject the old PSK
+        final String[] lines = results.toString().split("\n");
+        Assertions.assertEquals(6, lines.length, "One line per rotation and per recognized rotated card");
+        for (int i = 0; i < 3; i++) {
+            final CardChannel card = cards[i];
+            final String[] fields = lines[i].split(",");
+            Assertions.assertEquals(id(i + 1), fields[0], "Old ID");
+            Assertions.assertEquals(CredentialRotator.ROTATED, fields[3], "Status");
+            final byte[] newPsk = HEX.parseHex(fields[2]);
+            Assertions.assertArrayEquals(HEX.parseHex(fields[1]),
+                    new AuthenticatedIdentificationClient(newPsk).readIdFast(card), "New credentials of card " + (i + 1));
+            Assertions.assertThrows(ProtocolException.class,
+                    () -> new AuthenticatedIdentificationClient(PSK).readIdFast(card), "Old PSK accepted");
+        }
+        Assertions.assertEquals(id(12), lines[1].split(",")[1], "New ID from the plan");
+        Assertions.assertEquals(HEX.formatHex(NEW_PSK), lines[2].split(",")[2], "New PSK from the plan");
+        Assertions.assertArrayEquals(idBytes(4), new AuthenticatedIdentificationClient(PSK).readIdFast(cards[3]),
+                "Unplanned card must keep its credentials");
+    }
+
+    @Test
+    public void testDiversifiedRotation() throws Exception {
+        final KeyDiversifier oldMaster = new KeyDiversifier(HEX.parseHex("000102030405060708090A0B0C0D0E0F"));
+        final byte[] newMasterKey = HEX.parseHex("101112131415161718191A1B1C1D1E1F");
+        final CredentialRotator rotator = new CredentialRotator(new AuthenticatedIdentificationClient(oldMaster, 16),
+                newMasterKey, true, new PrintWriter(new StringWriter()));
+
+        final CardChannel[] cards = new CardChannel[3];
+        for (int i = 0; i < cards.length; i++) {
+            final byte[] diversifier = new byte[KeyDiversifier.DIVERSIFIER_LENGTH];
+            diversifier[7] = (byte) (i + 1);
+            cards[i] = install(oldMaster.derivePsk(diversifier), idBytes(i + 1), InstallData.OPT_DIVERSIFIER, diversifier);
+        }
+        // A card that was never provisioned under the old master key
+        final CardChannel foreign = install(PSK, idBytes(9), (byte) 0, null);
+
+        for (CardChannel card : cards) {
+            Assertions.assertEquals(CredentialRotator.ROTATED, rotator.rotate(card, "reader"), "First tap");
+            Assertions.assertEquals(CredentialRotator.ALREADY_ROTATED, rotator.rotate(card, "reader"), "Second tap");
+        }
+        Assertions.assertEquals(CredentialRotator.UNKNOWN_KEY, rotator.rotate(foreign, "reader"), "Foreign card");
+
+        // The cards keep their diversifier and IDs, their PSKs now derive from the new master key
+        final AuthenticatedIdentificationClient newClient = new AuthenticatedIdentificationClient(new KeyDiversifier(newMasterKey), 16);
+        for (int i = 0; i < cards.length; i++) {
+            Assertions.assertArrayEquals(idBytes(i + 1), newClient.readIdFast(cards[i]), "ID after rotation");
+        }
+    }
+
+    private static String id(int number) {
+        return HEX.formatHex(idBytes(number));
+    }
+
+    private static byte[] idBytes(int number) {
+        final byte[] id = new byte[InstallData.ID_LENGTH];
+        id[15] = (byte) number;
+        return id;
+    }
+
+    private static CardChannel install(byte[] psk, byte[] id, byte options, byte[] diversifier) throws Exception {
+        final byte[] appletData = diversifier == null
+                ? InstallData.appletData(psk, id, options)
+                : InstallData.appletData(psk, id, options, diversifier);
+        final byte[] params = InstallData.installParameters(appletData);
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(AIDUtil.create(AuthenticatedIdentificationClient.APPLET_AID),
+                AuthenticatedIdentificationApplet.class, params, (short) 0, (byte) params.length);
+        final CardChannel channel = CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+        new AuthenticatedIdentificationClient(psk).select(channel);
+        return channel;
+    }
+}
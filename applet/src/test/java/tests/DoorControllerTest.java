@@ -0,0 +1,217 @@
+package tests;
+
+import controller.AccessIndex;
+import controller.DoorController;
+import controller.DoorController.Outcome;
+import org.junit.jupiter.api.*;
+import sim.SimulatedReader;
+import terminal.AuthenticatedIdentificationClient;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The door controller serving many simulated readers at once, with decisions from the access index.
+ */
+public class DoorControllerTest {
+
+    private static final byte[] PSK = {0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77,
+            (byte) 0x88, (byte) 0x99, (byte) 0xAA, (byte) 0xBB, (byte) 0xCC, (byte) 0xDD, (byte) 0xEE, (byte) 0xFF};
+    private static final int READERS = 8;
+    private static final int CARDS_PER_READER = 4;
+    private static final int WARM_UP = 10;
+
+    private Path path;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        path = Files.createTempFile("access", ".idx");
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void testConcurrentReaders() throws Exception {
+        // Cards 1-24 are allowed, except for the revoked card 5; cards 25-32 are unknown
+        try (AccessIndex index = AccessIndex.create(path, 100, 10)) {
+            for (int card = 1; card <= 24; card++) {
+                index.allow(id(card));
+            }
+            index.revoke(id(5));
+
+            final Map<Integer, Outcome> decisions = new ConcurrentHashMap<>();
+            final AtomicReference<String> inconsistent = new AtomicReference<>();
+            final DoorController controller = new DoorController(new AuthenticatedIdentificationClient(PSK), index,
+                    (reader, id, outcome, nanos) -> {
+                        final int card = id == null ? 0 : id[15] & 0xff;
+                        if (decisions.merge(card, outcome, (a, b) -> a == b ? a : null) == null) {
+                            inconsistent.set("Card " + card + " got different decisions");
+                        }
+                    });
+            final Map<String, AtomicInteger> errors = new ConcurrentHashMap<>();
+            controller.setWarmUp(() -> SimulatedReader.card(PSK, new byte[16], null), WARM_UP)
+                    .setErrorHandler((reader, context, error) -> errors.computeIfAbsent(context, c -> new AtomicInteger()).incrementAndGet());
+
+            // Every reader has its own cards, the last one also a card with another PSK
+            final List<SimulatedReader> readers = new ArrayList<>();
+            for (int r = 0; r < READERS; r++) {
+                final List<CardChannel> cards = new ArrayList<>();
+                for (int c = 0; c < CARDS_PER_READER; c++) {
+                    cards.add(SimulatedReader.card(PSK, id(r * CARDS_PER_READER + c + 1), null));
+                }
+                if (r == READERS - 1) {
+                    final byte[] otherPsk = PSK.clone();
+                    otherPsk[0] ^= 1;
+                    cards.add(SimulatedReader.card(otherPsk, id(99), null));
+                }
+                readers.add(new SimulatedReader("reader-" + r, cards, 0, r));
+            }
+
+            try {
+                controller.start(readers);
+                Assertions.assertEquals(READERS * WARM_UP, controller.getWarmUpLatency().getCount(),
+                        "Every reader warms up before it accepts taps");
+                // Readers pick their cards at random, so wait until every card has been decided on at least once
+                final Set<Integer> expectedCards = new HashSet<>();
+                for (int card = 0; card <= READERS * CARDS_PER_READER; card++) {
+                    expectedCards.add(card);
+                }
+                final long deadline = System.currentTimeMillis() + 60_000;
+                while ((controller.getTaps() < 2000 || !decisions.keySet().containsAll(expectedCards))
+                        && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(50);
+                }
+                controller.stop();
+            } finally {
+                controller.close();
+            }
+
+            Assertions.assertNull(inconsistent.get(), inconsistent.get());
+            Assertions.assertTrue(controller.getTaps() >= 2000, "Not enough taps: " + controller.getTaps());
+            Assertions.assertEquals(controller.getTaps(), controller.getLatency().getCount(), "Every tap is timed");
+            Assertions.assertEquals(0, controller.getCount(Outcome.ERROR), "No exchange may break off");
+            Assertions.assertEquals(Map.of(), errors, "Failures reported");
+            Assertions.assertEquals(0, controller.getActiveTaps(), "Taps left running after stop");
+
+            for (int card = 1; card <= READERS * CARDS_PER_READER; card++) {
+                final Outcome expected = card == 5 ? Outcome.REVOKED : card <= 24 ? Outcome.GRANTED : Outcome.UNKNOWN;
+                Assertions.assertEquals(expected, decisions.get(card), "Decision for card " + card);
+            }
+            Assertions.assertEquals(Outcome.AUTH_FAILED, decisions.get(0), "Card with another PSK");
+            Assertions.assertFalse(decisions.containsKey(99), "Card with another PSK must not be identified");
+        }
+    }
+
+    @Test
+    public void testFailsClosedAndSurvivesExceptions() throws Exception {
+        final Map<Outcome, AtomicInteger> decisions = new ConcurrentHashMap<>();
+        final DoorController controller = new DoorController(new AuthenticatedIdentificationClient(PSK), null,
+                (reader, id, outcome, nanos) -> {
+                    // Every other decision breaks the listener, which must not stop the reader
+                    if (decisions.computeIfAbsent(outcome, o -> new AtomicInteger()).incrementAndGet() % 2 == 0) {
+                        throw new IllegalStateException("Relay failed");
+                    }
+                });
+        final Map<String, AtomicInteger> errors = new ConcurrentHashMap<>();
+        controller.setErrorHandler((reader, context, error) -> {
+            errors.computeIfAbsent(context, c -> new AtomicInteger()).incrementAndGet();
+            // The handler may fail as well
+            throw new IllegalStateException("Handler failed");
+        });
+        final List<CardChannel> cards = new ArrayList<>();
+        cards.add(SimulatedReader.card(PSK, id(1), null));
+        cards.add(new BrokenChannel());
+        try {
+            controller.start(List.of(new SimulatedReader("reader", cards, 0, 1)));
+            final long deadline = System.currentTimeMillis() + 60_000;
+            while (controller.getTaps() < 200 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            controller.stop();
+        } finally {
+            controller.close();
+        }
+
+        Assertions.assertTrue(controller.getTaps() >= 200, "Reader stopped after " + controller.getTaps() + " taps");
+        Assertions.assertEquals(0, controller.getCount(Outcome.GRANTED), "Card granted without an index");
+        Assertions.assertTrue(controller.getCount(Outcome.UNKNOWN) > 0, "Card not denied as unknown");
+        Assertions.assertTrue(controller.getCount(Outcome.ERROR) > 0, "Broken card not counted as error");
+        Assertions.assertEquals(controller.getTaps(), controller.getCount(Outcome.UNKNOWN) + controller.getCount(Outcome.ERROR),
+                "Unexpected decisions");
+
+        // Every broken exchange and every failed listener call is reported once, nothing else fails
+        Assertions.assertEquals(Set.of("exchange failed", "listener failed"), errors.keySet(), "Unexpected failures");
+        Assertions.assertEquals(controller.getCount(Outcome.ERROR), errors.get("exchange failed").get(), "Broken exchanges reported");
+        Assertions.assertEquals(controller.getCount(Outcome.UNKNOWN) / 2 + controller.getCount(Outcome.ERROR) / 2,
+                errors.get("listener failed").get(), "Listener failures reported");
+    }
+
+    @Test
+    public void testGrantAuthenticatedWithoutIndex() throws Exception {
+        final DoorController controller = new DoorController(new AuthenticatedIdentificationClient(PSK), null,
+                (reader, id, outcome, nanos) -> { })
+                .setGrantAuthenticated(true);
+        try {
+            controller.start(List.of(new SimulatedReader("reader", List.of(SimulatedReader.card(PSK, id(1), null)), 0, 1)));
+            final long deadline = System.currentTimeMillis() + 60_000;
+            while (controller.getTaps() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            controller.stop();
+        } finally {
+            controller.close();
+        }
+        Assertions.assertEquals(controller.getTaps(), controller.getCount(Outcome.GRANTED), "Authenticated card not granted");
+    }
+
+    /**
+     * A card whose driver fails with an unchecked exception on every exchange.
+     */
+    private static final class BrokenChannel extends CardChannel {
+        @Override
+        public Card getCard() {
+            return null;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) {
+            throw new IllegalStateException("Driver failed");
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) {
+            throw new IllegalStateException("Driver failed");
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static byte[] id(int number) {
+        final byte[] id = new byte[16];
+        id[15] = (byte) number;
+        return id;
+    }
+}
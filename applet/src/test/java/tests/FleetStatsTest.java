@@ -0,0 +1,80 @@
+package tests;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import org.junit.jupiter.api.*;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.CardStatistics;
+import terminal.InstallData;
+import tools.FleetStats;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+import java.util.List;
+
+/**
+ * Collection of GET_STATS counters from simulated cards and aggregation of the fleet report.
+ */
+public class FleetStatsTest {
+
+    private static final byte[] PSK = {0x00, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77,
+            (byte) 0x88, (byte) 0x99, (byte) 0xAA, (byte) 0xBB, (byte) 0xCC, (byte) 0xDD, (byte) 0xEE, (byte) 0xFF};
+
+    @Test
+    public void testCollectAndReport() throws Exception {
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(PSK);
+        final FleetStats.Report report = new FleetStats.Report(100_000, 0.05);
+
+        // Ten healthy cards, one that keeps leaving the field after AUTH_INIT, one without statistics
+        for (int card = 0; card < 12; card++) {
+            final byte[] id = new byte[16];
+            id[15] = (byte) (card + 1);
+            final byte options = card == 11 ? 0 : InstallData.OPT_STATISTICS;
+            final CardChannel channel = install(id, options);
+            client.select(channel);
+            for (int i = 0; i < 30; i++) {
+                client.readIdFast(channel);
+                if (card == 10) {
+                    channel.transmit(new CommandAPDU(0x80, 0x10, 0x00, 0x00, 16));
+                    channel.transmit(new CommandAPDU(0x80, 0x10, 0x00, 0x00, 16));
+                }
+            }
+            final FleetStats.Sample sample = FleetStats.read(channel, "reader-" + (card % 3), client);
+            // Samples survive the round trip through the CSV format
+            report.add(FleetStats.Sample.parse(sample.toCsv()));
+        }
+
+        final List<FleetStats.CardSummary> cards = report.evaluate();
+        Assertions.assertEquals(12, cards.size(), "One summary per card");
+        final long flagged = cards.stream().filter(card -> !card.flags().isEmpty()).count();
+        Assertions.assertTrue(report.format().endsWith(String.format("12 cards, %d flagged%n", flagged)), "Report summary line");
+        Assertions.assertFalse(cards.get(0).flags().isEmpty(), "Flagged cards should come first");
+        final FleetStats.CardSummary abandoning = find(cards, "0000000000000000000000000000000B");
+        Assertions.assertTrue(abandoning.flags().contains("ABANDONED_SESSIONS"), "Abandoned sessions not flagged");
+        Assertions.assertEquals(60, abandoning.latest().abandonedSessions(), "Abandoned session count");
+
+        // The card without statistics is still identified, its read is recorded as unsupported
+        final FleetStats.CardSummary plain = find(cards, "0000000000000000000000000000000C");
+        Assertions.assertNull(plain.latest(), "Card without statistics has no counters");
+        Assertions.assertEquals(1, plain.reads(), "Failed read not recorded");
+
+        final FleetStats.CardSummary healthy = find(cards, "00000000000000000000000000000001");
+        Assertions.assertEquals(31, healthy.latest().get(CardStatistics.AUTH_SUCCESS), "Sessions including the statistics read");
+        Assertions.assertFalse(healthy.flags().contains("ABANDONED_SESSIONS"), "Healthy card flagged");
+        Assertions.assertFalse(healthy.flags().contains("WORN"), "Healthy card flagged as worn");
+    }
+
+    private static FleetStats.CardSummary find(List<FleetStats.CardSummary> cards, String key) {
+        return cards.stream().filter(card -> card.key.equals(key)).findFirst().orElseThrow();
+    }
+
+    private static CardChannel install(byte[] id, byte options) throws Exception {
+        final byte[] params = InstallData.installParameters(InstallData.appletData(PSK, id, options));
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(AIDUtil.create(AuthenticatedIdentificationClient.APPLET_AID),
+                AuthenticatedIdentificationApplet.class, params, (short) 0, (byte) params.length);
+        return CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel();
+    }
+}
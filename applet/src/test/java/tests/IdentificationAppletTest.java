@@ -1,11 +1,17 @@
 package tests;
 
 import applet.IdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
 import cz.muni.fi.crocs.rcard.client.CardManager;
 import cz.muni.fi.crocs.rcard.client.CardType;
 import cz.muni.fi.crocs.rcard.client.Util;
 import org.junit.jupiter.api.*;
+import sim.LatencyModel;
+import sim.OperationCounter;
+import terminal.ApduLatencyRecorder;
 
+import javax.smartcardio.CardChannel;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 
@@ -26,6 +32,7 @@ public class IdentificationAppletTest extends BaseTest {
     // ===== APDU constants =====
     private static final byte CLA_PROPRIETARY = (byte) 0x80;
     private static final byte INS_GET_ID      = (byte) 0x12;
+    private static final byte INS_GET_STATS   = (byte) 0x17;
 
     public IdentificationAppletTest() {
         super(APPLET_ID, IdentificationApplet.class, CARDTYPE);
@@ -47,4 +54,72 @@ public class IdentificationAppletTest extends BaseTest {
         Assertions.assertEquals(16, mGetIdRes.length, "GET_ID response has incorrect length");
         Assertions.assertArrayEquals(id, mGetIdRes, "GET_ID response is incorrect");
     }
+
+    @Test
+    public void testUsageStatistics() throws Exception {
+        // Applet data: id || options (0x10 = statistics)
+        final byte[] installData = Util.hexStringToByteArray("000011" + idHex + "10");
+        final CardManager cardManager = connect(installData);
+
+        CommandAPDU getIdCmd = new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertEquals(0x9000, cardManager.transmit(getIdCmd).getSW(), "GET_ID response status unexpected");
+        }
+
+        // version || counter count || GET_ID count (32 bit)
+        ResponseAPDU getStatsRes = cardManager.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_GET_STATS, 0x00, 0x00, 256));
+        Assertions.assertEquals(0x9000, getStatsRes.getSW(), "GET_STATS response status unexpected");
+        Assertions.assertArrayEquals(Util.hexStringToByteArray("010100000003"), getStatsRes.getData(), "GET_STATS response is incorrect");
+    }
+
+    @Test
+    public void testStatisticsDisabledByDefault() throws Exception {
+        final CardManager cardManager = connect(Util.hexStringToByteArray("000010" + idHex));
+        ResponseAPDU getStatsRes = cardManager.transmit(new CommandAPDU(CLA_PROPRIETARY, INS_GET_STATS, 0x00, 0x00, 256));
+        Assertions.assertEquals(0x6A81, getStatsRes.getSW(), "GET_STATS should not be supported");
+    }
+
+    @Test
+    public void testPredictedLatency() throws Exception {
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final LatencyModel model = LatencyModel.defaults().setPersistentWriteMicros(2_500);
+        final ApduLatencyRecorder predicted = new ApduLatencyRecorder();
+        final CommandAPDU getIdCmd = new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00);
+        setLatencyModel(model, predicted, true);
+
+        // GET_ID only copies the ID, so it costs transport and dispatch, but no cryptography
+        CardChannel channel = connectFork(Util.hexStringToByteArray("000010" + idHex));
+        predicted.reset();
+        final long start = System.nanoTime();
+        Assertions.assertArrayEquals(id, channel.transmit(getIdCmd).getData(), "GET_ID response is incorrect");
+        final long elapsed = System.nanoTime() - start;
+        final long expected = model.predictNanos(getIdCmd.getBytes().length, id.length + 2, OperationCounter.Operations.NONE);
+        Assertions.assertEquals(expected, predicted.totalNanos(), "GET_ID should only cost transport and dispatch");
+        Assertions.assertTrue(elapsed >= expected, "Predicted latency was not injected");
+
+        // With statistics, counting the released ID writes to persistent memory
+        channel = connectFork(Util.hexStringToByteArray("000011" + idHex + "10"));
+        predicted.reset();
+        channel.transmit(getIdCmd);
+        setLatencyModel(null, null, false);
+        Assertions.assertEquals(expected + 2_500_000, predicted.totalNanos(), "Statistics update should cost one persistent write");
+    }
+
+    @Test
+    public void testInstallParametersAtLargeOffset() throws Exception {
+        final byte[] id = Util.hexStringToByteArray(idHex);
+        final byte[] parameters = Util.hexStringToByteArray("0000" + Integer.toHexString(id.length) + idHex);
+
+        // Offsets that used to be masked to a byte wrapped around beyond an install offset of about 240
+        for (int offset : new int[] {241, 251, 255}) {
+            final byte[] installData = new byte[offset + parameters.length];
+            System.arraycopy(parameters, 0, installData, offset, parameters.length);
+            final CardSimulator simulator = new CardSimulator();
+            simulator.installApplet(AIDUtil.create(APPLET_ID), IdentificationApplet.class, installData, (short) offset, (byte) parameters.length);
+            simulator.selectApplet(AIDUtil.create(APPLET_ID));
+            ResponseAPDU getIdRes = simulator.transmitCommand(new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00));
+            Assertions.assertEquals(0x9000, getIdRes.getSW(), "GET_ID response status unexpected");
+            Assertions.assertArrayEquals(id, getIdRes.getData(), "ID read from the wrong offset at " + offset);
+        }
+    }
 }
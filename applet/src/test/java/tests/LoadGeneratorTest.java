@@ -0,0 +1,22 @@
+package tests;
+
+import org.junit.jupiter.api.*;
+import sim.LoadGenerator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Short smoke run of the load generator: many simulated cards on several threads must not produce failures.
+ */
+public class LoadGeneratorTest {
+
+    @Test
+    public void testShortLoadRun() throws Exception {
+        final LoadGenerator generator = new LoadGenerator(50, 4, 42).reportTo(null);
+        generator.run(2, TimeUnit.SECONDS, 1);
+
+        Assertions.assertTrue(generator.getSessions() > 0, "No sessions completed");
+        Assertions.assertEquals(0, generator.getFailures(), "Sessions failed under load");
+        Assertions.assertEquals(generator.getSessions(), generator.getLatency().getCount(), "Latency not recorded for every session");
+    }
+}
@@ -0,0 +1,118 @@
+package tests;
+
+import applet.BenchmarkApplet;
+import cz.muni.fi.crocs.rcard.client.CardManager;
+import cz.muni.fi.crocs.rcard.client.CardType;
+import org.junit.jupiter.api.*;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Host harness measuring the on-card cost of the cryptographic primitives used by the protocol.
+ * For every primitive, the BenchmarkApplet runs it N times within one APDU. The per-operation cost is the slope of
+ * the APDU duration over N, which removes the constant transport and dispatch overhead.
+ * <p>
+ * Requires a physical card with the BenchmarkApplet installed, hence tagged as manual test:
+ * <pre>./gradlew manualTests</pre>
+ * The card type can be overridden with -Dbenchmark.cardType=JCARDSIMLOCAL to check the harness in the simulator.
+ */
+@Tag("manual")
+public class PrimitiveTimingTest extends BaseTest {
+
+    // ===== Configuration options =====
+    private final static CardType CARDTYPE = CardType.valueOf(System.getProperty("benchmark.cardType", "PHYSICAL"));
+
+    private final static String APPLET_ID = "f000000cdc02";
+    private final static int[] ITERATIONS = {0, 5, 10, 20, 40, 80};
+    private final static int REPETITIONS = 7;
+    private final static Path REPORT = Paths.get("build", "reports", "primitive-latency.md");
+
+    // ===== APDU constants =====
+    private static final byte CLA_PROPRIETARY = (byte) 0x80;
+    private static final byte INS_RUN         = (byte) 0x20;
+
+    private static final String[] PRIMITIVES = {
+            "Loop overhead",
+            "AES init (Cipher.init)",
+            "AES block (Cipher.doFinal, 16 bytes)",
+            "TRNG (RandomData.nextBytes, 8 bytes)",
+            "AESKey.setKey (transient)",
+            "AESKey.setKey (persistent)",
+            "Persistent write (16 bytes)",
+    };
+
+    public PrimitiveTimingTest() {
+        super(APPLET_ID, BenchmarkApplet.class, CARDTYPE);
+    }
+
+    @Test
+    public void measurePrimitiveLatencies() throws Exception {
+        // Installation data is ignored by the BenchmarkApplet
+        final CardManager cardManager = connect(new byte[] {0, 0, 0});
+
+        Files.createDirectories(REPORT.getParent());
+        try (PrintWriter report = new PrintWriter(Files.newBufferedWriter(REPORT))) {
+            report.println("Card type: " + CARDTYPE + ", iterations: " + Arrays.toString(ITERATIONS)
+                    + ", median of " + REPETITIONS + " repetitions");
+            report.println();
+            report.println("| Primitive | Per operation (us) | Fixed APDU cost (us) |");
+            report.println("|-----------|-------------------:|---------------------:|");
+
+            for (int primitive = 0; primitive < PRIMITIVES.length; primitive++) {
+                final double[] micros = new double[ITERATIONS.length];
+                for (int i = 0; i < ITERATIONS.length; i++) {
+                    micros[i] = medianMicros(cardManager, primitive, ITERATIONS[i]);
+                }
+
+                // Least-squares fit: duration = fixed + n * perOperation
+                final double[] fit = linearFit(ITERATIONS, micros);
+                final String row = String.format("| %s | %.1f | %.1f |", PRIMITIVES[primitive], fit[1], fit[0]);
+                report.println(row);
+                System.out.println(row);
+            }
+        }
+        System.out.println("Latency table written to " + REPORT.toAbsolutePath());
+    }
+
+    // ===== Helper functions =====
+    private double medianMicros(CardManager cardManager, int primitive, int iterations) throws Exception {
+        final CommandAPDU cmd = new CommandAPDU(CLA_PROPRIETARY, INS_RUN, primitive, 0x00,
+                new byte[] {(byte) (iterations >> 8), (byte) iterations}, 2);
+        final double[] samples = new double[REPETITIONS];
+        for (int r = 0; r < REPETITIONS; r++) {
+            final long start = System.nanoTime();
+            final ResponseAPDU res = cardManager.transmit(cmd);
+            samples[r] = (System.nanoTime() - start) / 1000.0;
+            Assertions.assertEquals(0x9000, res.getSW(), "RUN response status unexpected");
+        }
+        Arrays.sort(samples);
+        return samples[REPETITIONS / 2];
+    }
+
+    /**
+     * Returns {intercept, slope} of the least-squares line through (x[i], y[i]).
+     */
+    private static double[] linearFit(int[] x, double[] y) {
+        double meanX = 0, meanY = 0;
+        for (int i = 0; i < x.length; i++) {
+            meanX += x[i];
+            meanY += y[i];
+        }
+        meanX /= x.length;
+        meanY /= y.length;
+
+        double covariance = 0, variance = 0;
+        for (int i = 0; i < x.length; i++) {
+            covariance += (x[i] - meanX) * (y[i] - meanY);
+            variance += (x[i] - meanX) * (x[i] - meanX);
+        }
+        final double slope = covariance / variance;
+        return new double[] {meanY - slope * meanX, slope};
+    }
+}
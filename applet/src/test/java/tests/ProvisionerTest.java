@@ -0,0 +1,90 @@
+package tests;
+
+import org.junit.jupiter.api.*;
+import terminal.InstallData;
+import tools.Provisioner;
+
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Provisioning pipeline against simulated stations and validation of install data.
+ */
+public class ProvisionerTest {
+
+    private static final HexFormat HEX = HexFormat.of().withUpperCase();
+    private static final String MASTER_KEY = "000102030405060708090A0B0C0D0E0F";
+
+    @Test
+    public void testProvisionManifest() throws Exception {
+        final StringBuilder manifest = new StringBuilder("# label,id,psk,diversifier\n");
+        for (int i = 0; i < 40; i++) {
+            manifest.append("door-").append(i).append('\n');                                   // Generated ID, diversified PSK
+        }
+        manifest.append("fixed,000000000000000000000000000000AA,,0102030405060708\n");           // Given ID and diversifier
+        manifest.append("keyed,000000000000000000000000000000BB,00112233445566778899AABBCCDDEEFF\n");
+        manifest.append("short-id,0011\n");                                                       // Invalid
+        manifest.append("duplicate,000000000000000000000000000000AA\n");                         // Invalid
+        manifest.append("both,,00112233445566778899AABBCCDDEEFF,0102030405060708\n");             // Invalid
+
+        final List<Provisioner.Station> stations = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            stations.add(new Provisioner.SimulatorStation("sim-" + i));
+        }
+        final Provisioner provisioner = new Provisioner(HEX.parseHex(MASTER_KEY), (byte) 0, 4);
+        final StringWriter results = new StringWriter();
+        provisioner.run(new BufferedReader(new StringReader(manifest.toString())), stations, new PrintWriter(results));
+
+        Assertions.assertEquals(42, provisioner.getProvisioned(), "Not all valid cards were provisioned");
+        Assertions.assertEquals(0, provisioner.getFailed(), "Provisioning failed");
+        Assertions.assertEquals(3, provisioner.getInvalid(), "Invalid entries were not rejected");
+
+        final List<String[]> lines = Arrays.stream(results.toString().split("\\R"))
+                .map(line -> line.split(",", -1)).collect(Collectors.toList());
+        Assertions.assertEquals(45, lines.size(), "Expected one result per manifest entry");
+        for (String[] line : lines) {
+            if (line[0].equals("keyed")) {
+                Assertions.assertEquals("00112233445566778899AABBCCDDEEFF", line[2], "Given PSK not reported");
+                Assertions.assertEquals("", line[3], "Randomly keyed card has a diversifier");
+            } else if (line[4].equals("OK")) {
+                // Diversified PSKs are not written to the results
+                Assertions.assertEquals("", line[2], "Diversified PSK leaked into results for " + line[0]);
+                Assertions.assertEquals(16, line[3].length(), "Missing diversifier for " + line[0]);
+            }
+        }
+        Assertions.assertEquals(3, lines.stream().filter(line -> line[4].equals("INVALID")).count());
+        Assertions.assertEquals(42, lines.stream().filter(line -> line[4].equals("OK")).map(line -> line[1]).distinct().count(),
+                "Provisioned IDs are not unique");
+    }
+
+    @Test
+    public void testInstallDataValidation() {
+        final byte[] psk = HEX.parseHex("00112233445566778899AABBCCDDEEFF");
+        final byte[] id = HEX.parseHex("00000000000000000000000000000001");
+
+        Assertions.assertEquals(32, InstallData.appletData(psk, id, (byte) 0).length);
+        Assertions.assertEquals(33, InstallData.appletData(psk, id, InstallData.OPT_RESUMPTION).length);
+        Assertions.assertEquals(35, InstallData.installParameters(InstallData.appletData(psk, id, (byte) 0)).length);
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> InstallData.validate(new byte[31]), "Too short");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> InstallData.validate(new byte[34]), "Trailing bytes");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> InstallData.appletData(psk, id, (byte) 0x80), "Unknown option");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> InstallData.appletData(new byte[16], id, (byte) 0), "Constant PSK");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> InstallData.appletData(psk, psk, (byte) 0), "PSK equals ID");
+
+        final byte[] diversifier = HEX.parseHex("0102030405060708");
+        final byte[] diversified = InstallData.appletData(psk, id, (byte) 0, diversifier);
+        Assertions.assertEquals(41, diversified.length);
+        Assertions.assertEquals(InstallData.OPT_DIVERSIFIER, diversified[32]);
+        InstallData.validate(diversified);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> InstallData.validate(Arrays.copyOf(diversified, 33)), "Missing diversifier");
+        Assertions.assertThrows(IllegalArgumentException.class, () -> InstallData.appletData(psk, id, InstallData.OPT_DIVERSIFIER), "Option without diversifier");
+    }
+}
@@ -0,0 +1,160 @@
+package tests;
+
+import applet.AuthenticatedIdentificationApplet;
+import cz.muni.fi.crocs.rcard.client.CardManager;
+import cz.muni.fi.crocs.rcard.client.CardType;
+import org.junit.jupiter.api.*;
+import sim.RemoteCardServer;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.CardStatistics;
+import terminal.InstallData;
+import terminal.RemoteCards;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+/**
+ * Batched exchanges with many virtual cards hosted by the local remote-card server.
+ */
+public class RemoteCardServerTest {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final byte[] PSK = HEX.parseHex("00112233445566778899aabbccddeeff");
+    private static final int CARDS = 32;
+
+    private static RemoteCardServer server;
+    private static RemoteCards remote;
+    private static int first;
+
+    @BeforeAll
+    public static void start() throws Exception {
+        server = new RemoteCardServer("127.0.0.1", 0, 4);
+        remote = new RemoteCards("http://127.0.0.1:" + server.getPort());
+        first = -1;
+        // One more card for the channel test, so the batches do not touch its counters
+        for (int i = 0; i <= CARDS; i++) {
+            final byte[] parameters = InstallData.installParameters(InstallData.appletData(PSK, id(i), InstallData.OPT_STATISTICS));
+            final int card = remote.install(AuthenticatedIdentificationApplet.class.getName(),
+                    AuthenticatedIdentificationClient.APPLET_AID, parameters, 1);
+            first = first < 0 ? card : first;
+        }
+    }
+
+    @AfterAll
+    public static void stop() {
+        server.close();
+    }
+
+    @Test
+    public void testClientOverRemoteChannel() throws Exception {
+        final CardChannel channel = remote.channel(first + CARDS);
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(PSK);
+        client.select(channel);
+        Assertions.assertArrayEquals(id(CARDS), client.readId(channel), "Three-step session returned the wrong ID");
+        Assertions.assertArrayEquals(id(CARDS), client.readIdFast(channel), "Combined session returned the wrong ID");
+        final byte[] id = new byte[16];
+        final CardStatistics statistics = client.readStatistics(channel, id);
+        Assertions.assertArrayEquals(id(CARDS), id, "Statistics session returned the wrong ID");
+        Assertions.assertEquals(3, statistics.get(CardStatistics.ID_RELEASED), "Released IDs not counted");
+
+        remote.reset(first + CARDS);
+        Assertions.assertArrayEquals(id(CARDS), client.readIdFast(channel), "Card not selected again after reset");
+    }
+
+    @Test
+    public void testBaseTestOverRemoteServer() throws Exception {
+        final byte[] id = id(CARDS + 1);
+        final byte[] installData = InstallData.installParameters(InstallData.appletData(PSK, id, (byte) 0));
+        final BaseTest base = new BaseTest(HEX.formatHex(AuthenticatedIdentificationClient.APPLET_AID),
+                AuthenticatedIdentificationApplet.class, CardType.REMOTE);
+        final String address = System.getProperty("remote.address");
+        System.setProperty("remote.address", "http://127.0.0.1:" + server.getPort());
+        try {
+            final CardManager cardManager = base.connect(installData);
+            final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(PSK);
+            Assertions.assertArrayEquals(id, client.readIdFast(base.getChannel(cardManager)),
+                    "Card installed through BaseTest returned the wrong ID");
+            cardManager.disconnect(true);
+        } finally {
+            if (address == null) {
+                System.clearProperty("remote.address");
+            } else {
+                System.setProperty("remote.address", address);
+            }
+        }
+    }
+
+    @Test
+    public void testBatchedSessions() throws Exception {
+        final int[] cards = new int[CARDS];
+        final byte[][] commands = new byte[CARDS][];
+        for (int i = 0; i < CARDS; i++) {
+            cards[i] = first + i;
+            commands[i] = HEX.parseHex("8010000010");
+        }
+        // AUTH_INIT on all cards in one round trip
+        final byte[][] challenges = remote.transmit(cards, commands);
+
+        final byte[] rt = HEX.parseHex("0102030405060708");
+        final byte[][] keys = new byte[CARDS][];
+        for (int i = 0; i < CARDS; i++) {
+            Assertions.assertEquals(0x9000, sw(challenges[i]), "AUTH_INIT failed on card " + i);
+            final byte[] rc = aes(Cipher.DECRYPT_MODE, PSK, challenges[i]);
+            keys[i] = new byte[16];
+            System.arraycopy(rc, 0, keys[i], 0, 8);
+            System.arraycopy(rt, 0, keys[i], 8, 8);
+            final byte[] auth = new byte[16];
+            System.arraycopy(rt, 0, auth, 0, 8);
+            System.arraycopy(rc, 0, auth, 8, 8);
+            commands[i] = new byte[22];
+            System.arraycopy(HEX.parseHex("8013000010"), 0, commands[i], 0, 5);
+            System.arraycopy(aes(Cipher.ENCRYPT_MODE, PSK, auth), 0, commands[i], 5, 16);
+        }
+        // AUTH_AND_GET_ID on all cards in the second round trip
+        final byte[][] responses = remote.transmit(cards, commands);
+        for (int i = 0; i < CARDS; i++) {
+            Assertions.assertEquals(0x9000, sw(responses[i]), "AUTH_AND_GET_ID failed on card " + i);
+            Assertions.assertEquals(34, responses[i].length, "Authentication failed on card " + i);
+            Assertions.assertArrayEquals(id(i), aes(Cipher.DECRYPT_MODE, keys[i], Arrays.copyOfRange(responses[i], 16, 32)),
+                    "Card " + i + " returned the wrong ID");
+        }
+    }
+
+    @Test
+    public void testSameCardTwiceInOneBatch() throws Exception {
+        // Exchanges with one card have to stay in order: AUTH_INIT, then GET_ID without authentication
+        final byte[][] responses = remote.transmit(new int[] {first, first + 1, first},
+                new byte[][] {HEX.parseHex("8010000010"), HEX.parseHex("8010000010"), HEX.parseHex("8012000010")});
+        Assertions.assertEquals(0x9000, sw(responses[0]), "AUTH_INIT failed");
+        Assertions.assertEquals(0x9000, sw(responses[1]), "AUTH_INIT failed");
+        Assertions.assertEquals(0x6985, sw(responses[2]), "GET_ID before AUTH should be refused");
+    }
+
+    @Test
+    public void testUnknownCard() {
+        Assertions.assertThrows(CardException.class, () -> remote.transmit(new int[] {Integer.MAX_VALUE},
+                new byte[][] {HEX.parseHex("8010000010")}), "Unknown cards should be reported");
+        Assertions.assertThrows(CardException.class, () -> remote.reset(Integer.MAX_VALUE), "Unknown cards should be reported");
+    }
+
+    private static byte[] id(int card) {
+        final byte[] id = new byte[16];
+        id[14] = (byte) (card >> 8);
+        id[15] = (byte) (card + 1);
+        return id;
+    }
+
+    private static int sw(byte[] response) {
+        return ((response[response.length - 2] & 0xff) << 8) | (response[response.length - 1] & 0xff);
+    }
+
+    private static byte[] aes(int mode, byte[] key, byte[] block) throws Exception {
+        final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"));
+        return cipher.doFinal(block, 0, 16);
+    }
+}
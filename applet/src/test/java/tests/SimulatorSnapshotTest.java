@@ -0,0 +1,104 @@
+package tests;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import cz.muni.fi.crocs.rcard.client.CardType;
+import org.junit.jupiter.api.*;
+import sim.SimulatorSnapshot;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.CardStatistics;
+import terminal.InstallData;
+import terminal.ProtocolException;
+
+import javax.smartcardio.CardChannel;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Forking simulated cards from a snapshot taken after installation.
+ */
+public class SimulatorSnapshotTest extends BaseTest {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final byte[] PSK = HEX.parseHex("00112233445566778899aabbccddeeff");
+    private static final byte[] ID = HEX.parseHex("00000000000000000000000000000001");
+    private static final byte[] INSTALL_DATA = InstallData.installParameters(
+            InstallData.appletData(PSK, ID, (byte) (InstallData.OPT_CREDENTIAL | InstallData.OPT_STATISTICS)));
+
+    public SimulatorSnapshotTest() {
+        super("f000000cdc01", AuthenticatedIdentificationApplet.class, CardType.JCARDSIMLOCAL);
+    }
+
+    @Test
+    public void testForksAreIndependent() throws Exception {
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(PSK);
+        final CardChannel first = connectFork(INSTALL_DATA);
+        final CardChannel second = connectFork(INSTALL_DATA);
+        Assertions.assertTrue(snapshot(INSTALL_DATA).isCopying(), "Forks fell back to reinstalling");
+
+        client.writeCredential(first, HEX.parseHex("0102030405"), false);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertArrayEquals(ID, client.readIdFast(first), "Fork returned the wrong ID");
+        }
+
+        // The second fork neither sees the sessions nor the credential of the first one
+        Assertions.assertEquals(1, client.readStatistics(second, null).get(CardStatistics.ID_RELEASED),
+                "Sessions leaked into another fork");
+        final ProtocolException noCredential = Assertions.assertThrows(ProtocolException.class,
+                () -> client.readCredential(second, null, false), "Credential leaked into another fork");
+        Assertions.assertEquals(0x6A83, noCredential.getSW(), "GET_CREDENTIAL status unexpected");
+        Assertions.assertArrayEquals(HEX.parseHex("0102030405"), client.readCredential(first, null, false),
+                "Credential lost on the first fork");
+        Assertions.assertEquals(6, client.readStatistics(first, null).get(CardStatistics.ID_RELEASED),
+                "Sessions of the first fork not counted");
+
+        // A new fork still starts from the installed state
+        Assertions.assertEquals(1, client.readStatistics(connectFork(INSTALL_DATA), null).get(CardStatistics.ID_RELEASED),
+                "Snapshot changed by its forks");
+    }
+
+    @Test
+    public void testCaptureAfterSetup() throws Exception {
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(PSK);
+        final CardSimulator simulator = fork(INSTALL_DATA);
+        final byte[] credential = new byte[600];
+        new Random(42).nextBytes(credential);
+        client.writeCredential(connectSimulator(simulator), credential, true);
+
+        // Capturing is only impossible where forks fall back to reinstalling, which cannot restore the credential
+        Assumptions.assumeTrue(snapshot(INSTALL_DATA).isCopying(), "Simulator cannot be copied on this JVM");
+        final SimulatorSnapshot snapshot = SimulatorSnapshot.capture(simulator, AuthenticatedIdentificationClient.APPLET_AID);
+        for (int i = 0; i < 4; i++) {
+            final CardChannel channel = connectSimulator(snapshot.fork());
+            Assertions.assertArrayEquals(credential, client.readCredential(channel, null, false), "Credential not in fork " + i);
+            client.writeCredential(channel, new byte[] {(byte) i}, false);
+        }
+    }
+
+    @Test
+    public void testParallelForks() throws Exception {
+        final int cards = 256;
+        final byte[] aid = AuthenticatedIdentificationClient.APPLET_AID;
+
+        final SimulatorSnapshot snapshot = SimulatorSnapshot.install(AuthenticatedIdentificationApplet.class, aid, INSTALL_DATA);
+        Assertions.assertTrue(snapshot.isCopying(), "Forks fell back to reinstalling");
+        final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(PSK);
+        final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            final List<Future<byte[]>> ids = new ArrayList<>();
+            for (int i = 0; i < cards; i++) {
+                ids.add(executor.submit(() -> client.readIdFast(connectSimulator(snapshot.fork()))));
+            }
+            for (Future<byte[]> id : ids) {
+                Assertions.assertArrayEquals(ID, id.get(), "Fork returned the wrong ID");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package tests;
+
+import org.junit.jupiter.api.*;
+import tools.TestVectorGenerator;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reproducibility of the protocol test vectors and their agreement with the applet.
+ */
+public class TestVectorGeneratorTest {
+
+    private static final byte[] MSG_SUCCESS = {'A','U','T','H','_','S','U','C','C','E','S','S', 0, 0, 0, 0};
+
+    @Test
+    public void testReproducibleAcrossThreadCounts() throws Exception {
+        final Path single = Files.createTempFile("vectors", ".bin");
+        final Path parallel = Files.createTempFile("vectors", ".bin");
+        try {
+            new TestVectorGenerator(42, 1, false).write(single, 50_000);
+            new TestVectorGenerator(42, Runtime.getRuntime().availableProcessors(), false).write(parallel, 50_000);
+            final byte[] expected = Files.readAllBytes(single);
+            Assertions.assertEquals(TestVectorGenerator.HEADER_LENGTH + 50_000 * TestVectorGenerator.RECORD_LENGTH,
+                    expected.length, "Unexpected file size");
+            Assertions.assertArrayEquals(expected, Files.readAllBytes(parallel), "Output depends on the thread count");
+
+            // Any slice can be regenerated on its own
+            final ByteBuffer slice = new TestVectorGenerator(42, 1, false).generate(20_000, 100);
+            Assertions.assertArrayEquals(Arrays.copyOfRange(expected, offset(20_000), offset(20_100)), slice.array(),
+                    "Slice differs from the file");
+
+            new TestVectorGenerator(43, 1, false).write(parallel, 50_000);
+            Assertions.assertFalse(Arrays.equals(expected, Files.readAllBytes(parallel)), "Seed is ignored");
+        } finally {
+            Files.deleteIfExists(single);
+            Files.deleteIfExists(parallel);
+        }
+    }
+
+    @Test
+    public void testVectorsFollowProtocol() throws Exception {
+        final byte[] records = new TestVectorGenerator(7, 1, false).generate(0, 10_000).array();
+        final int[] cases = new int[TestVectorGenerator.CASES];
+        for (int offset = 0; offset < records.length; offset += TestVectorGenerator.RECORD_LENGTH) {
+            final byte testCase = records[offset + TestVectorGenerator.OFFSET_CASE];
+            cases[testCase]++;
+            if (testCase != TestVectorGenerator.CASE_SUCCESS) {
+                Assertions.assertEquals(0x6985, sw(records, offset + TestVectorGenerator.OFFSET_GET_ID_SW),
+                        "GET_ID should be refused in failure cases");
+                continue;
+            }
+
+            // Recompute the successful flow independently of the generator
+            final byte[] psk = field(records, offset + TestVectorGenerator.OFFSET_PSK, 16);
+            final byte[] rc = field(records, offset + TestVectorGenerator.OFFSET_RC, 8);
+            final byte[] rt = field(records, offset + TestVectorGenerator.OFFSET_RT, 8);
+            Assertions.assertArrayEquals(Arrays.copyOf(rc, 16),
+                    aes(Cipher.DECRYPT_MODE, psk, field(records, offset + TestVectorGenerator.OFFSET_AUTH_INIT_RESPONSE, 16)),
+                    "AUTH_INIT response is not E_psk(rc || 0)");
+            final byte[] auth = new byte[16];
+            System.arraycopy(rt, 0, auth, 0, 8);
+            System.arraycopy(rc, 0, auth, 8, 8);
+            Assertions.assertArrayEquals(aes(Cipher.ENCRYPT_MODE, psk, auth),
+                    field(records, offset + TestVectorGenerator.OFFSET_AUTH_DATA, 16), "AUTH data is not E_psk(rt || rc)");
+            final byte[] ephemeralKey = new byte[16];
+            System.arraycopy(rc, 0, ephemeralKey, 0, 8);
+            System.arraycopy(rt, 0, ephemeralKey, 8, 8);
+            Assertions.assertArrayEquals(MSG_SUCCESS, aes(Cipher.DECRYPT_MODE, ephemeralKey,
+                    field(records, offset + TestVectorGenerator.OFFSET_AUTH_RESPONSE, 16)), "AUTH response is incorrect");
+            Assertions.assertArrayEquals(field(records, offset + TestVectorGenerator.OFFSET_ID, 16), aes(Cipher.DECRYPT_MODE,
+                    ephemeralKey, field(records, offset + TestVectorGenerator.OFFSET_GET_ID_RESPONSE, 16)), "GET_ID response is incorrect");
+            Assertions.assertEquals(0x9000, sw(records, offset + TestVectorGenerator.OFFSET_GET_ID_SW), "GET_ID status unexpected");
+        }
+        for (int i = 0; i < cases.length; i++) {
+            Assertions.assertTrue(cases[i] > 500, "Case " + i + " is underrepresented: " + cases[i]);
+        }
+    }
+
+    @Test
+    public void testSimulatedVectorsMatchApplet() throws Exception {
+        final Path file = Files.createTempFile("vectors", ".bin");
+        try {
+            final TestVectorGenerator generator = new TestVectorGenerator(42, Runtime.getRuntime().availableProcessors(), true);
+            generator.write(file, 2_000);
+            Assertions.assertEquals(2_000, generator.getSimulated(), "Not every vector was simulated");
+
+            // Simulation only checks, the file stays the same as without it
+            final byte[] simulated = Files.readAllBytes(file);
+            new TestVectorGenerator(42, 1, false).write(file, 2_000);
+            Assertions.assertArrayEquals(Files.readAllBytes(file), simulated, "Simulation changed the vectors");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static int offset(int index) {
+        return TestVectorGenerator.HEADER_LENGTH + index * TestVectorGenerator.RECORD_LENGTH;
+    }
+
+    private static byte[] field(byte[] records, int offset, int length) {
+        return Arrays.copyOfRange(records, offset, offset + length);
+    }
+
+    private static int sw(byte[] records, int offset) {
+        return ((records[offset] & 0xff) << 8) | (records[offset + 1] & 0xff);
+    }
+
+    private static byte[] aes(int mode, byte[] key, byte[] block) throws Exception {
+        final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"));
+        return cipher.doFinal(block, 0, 16);
+    }
+}
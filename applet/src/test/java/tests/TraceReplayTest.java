@@ -0,0 +1,216 @@
+package tests;
+
+import applet.AuthenticatedIdentificationApplet;
+import applet.IdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import org.junit.jupiter.api.*;
+import sim.LoadGenerator;
+import sim.TraceReplayer;
+import terminal.ApduLatencyRecorder;
+import terminal.AuthenticatedIdentificationClient;
+import terminal.InstallData;
+import terminal.RecordingCardChannel;
+import terminal.TraceWriter;
+import terminal.TracingCardChannel;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recording of APDU traces and their replay against fresh simulators.
+ */
+public class TraceReplayTest {
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static final byte[] PSK = HEX.parseHex("00112233445566778899aabbccddeeff");
+    private static final byte[] ID = HEX.parseHex("00000000000000000000000000000001");
+    private static final byte[] IDENTIFICATION_AID = HEX.parseHex("f000000cdc00");
+    private static final byte[] LABEL_TICKET = {'T','I','C','K','E','T', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+    private static final String SECURE_RANDOM = "com.licel.jcardsim.randomdata.secure";
+    private static final byte[] LABEL_RESUME = {'R','E','S','U','M','E', 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    @Test
+    public void testRecordAndReplay() throws Exception {
+        final Path file = Files.createTempFile("apdu", ".trace");
+        final ApduLatencyRecorder exchanges = new ApduLatencyRecorder();
+        try {
+            // The recorded card draws other challenges than the replayed one, so that every encrypted payload, the MACs
+            // of the credential streams included, has to be translated to the replayed session keys
+            final String secure = System.getProperty(SECURE_RANDOM);
+            System.setProperty(SECURE_RANDOM, "1");
+            try (TraceWriter writer = new TraceWriter(file)) {
+                final byte options = InstallData.OPT_RESUMPTION | InstallData.OPT_CREDENTIAL | InstallData.OPT_STATISTICS;
+                final byte[] parameters = InstallData.installParameters(InstallData.appletData(PSK, ID, options));
+                recordAuthenticatedCard(writer, parameters, parameters, exchanges);
+                recordIdentificationCard(writer, exchanges);
+            } finally {
+                if (secure == null) {
+                    System.clearProperty(SECURE_RANDOM);
+                } else {
+                    System.setProperty(SECURE_RANDOM, secure);
+                }
+            }
+
+            final TraceReplayer.Result result = new TraceReplayer(2, 10).replay(List.of(file));
+            Assertions.assertEquals(2, result.cards, "Both cards should be replayed");
+            Assertions.assertEquals(countExchanges(exchanges), result.exchanges, "All exchanges should be replayed");
+            Assertions.assertEquals(0, result.mismatches, "Replay against the same build should not differ: " + result.samples);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testReplayFlagsDifferentResponses() throws Exception {
+        final Path file = Files.createTempFile("apdu", ".trace");
+        try {
+            try (TraceWriter writer = new TraceWriter(file)) {
+                // Record one card, but claim it was installed with another ID: every released ID has to differ
+                final byte[] otherId = HEX.parseHex("00000000000000000000000000000002");
+                final byte[] recorded = InstallData.installParameters(InstallData.appletData(PSK, ID, InstallData.OPT_RESUMPTION));
+                final byte[] claimed = InstallData.installParameters(InstallData.appletData(PSK, otherId, InstallData.OPT_RESUMPTION));
+                recordAuthenticatedCard(writer, recorded, claimed, new ApduLatencyRecorder());
+
+                // An unauthenticated card with a recorded response that no build would give
+                try (TraceWriter.CardRecorder card = writer.card(IDENTIFICATION_AID, IdentificationApplet.class.getName(),
+                        HEX.parseHex("000010" + HEX.formatHex(ID)), (byte) 0)) {
+                    card.apdu(HEX.parseHex("8012000010"), HEX.parseHex("000000000000000000000000000000029000"));
+                    card.reset();
+                    card.apdu(HEX.parseHex("8012000010"), HEX.parseHex("000000000000000000000000000000019000"));
+                }
+            }
+
+            final TraceReplayer.Result result = new TraceReplayer(2, 100).replay(List.of(file));
+            // AUTH_AND_GET_ID, GET_ID, and both RESUMEs of the authenticated card, the first GET_ID of the other one
+            Assertions.assertEquals(5, result.mismatches, "Unexpected number of mismatches: " + result.samples);
+            for (TraceReplayer.Mismatch mismatch : result.samples) {
+                Assertions.assertTrue(mismatch.command[1] == 0x12 || mismatch.command[1] == 0x13 || mismatch.command[1] == 0x14,
+                        "Only released IDs should differ: " + mismatch);
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testReplayThroughput() throws Exception {
+        final Path file = Files.createTempFile("load", ".trace");
+        try {
+            final LoadGenerator generator = new LoadGenerator(64, 2, 42).reportTo(null);
+            try (TraceWriter writer = new TraceWriter(file)) {
+                generator.recordTo(writer).run(2, TimeUnit.SECONDS, 1);
+            }
+
+            final TraceReplayer.Result result = new TraceReplayer(Runtime.getRuntime().availableProcessors(), 10)
+                    .replay(List.of(file));
+            Assertions.assertEquals(64, result.cards, "All cards should be replayed");
+            Assertions.assertTrue(result.exchanges >= 3 * generator.getSessions(), "Sessions missing from the trace");
+            Assertions.assertEquals(0, result.mismatches, "Replay of a load run should not differ: " + result.samples);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Records full sessions, a failed authentication, credential transfers, statistics, and resumption on a card
+     * installed with the recorded parameters, but writes the claimed parameters into the trace.
+     */
+    private static void recordAuthenticatedCard(TraceWriter writer, byte[] recorded, byte[] claimed,
+                                                ApduLatencyRecorder exchanges) throws Exception {
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(AIDUtil.create(AuthenticatedIdentificationClient.APPLET_AID),
+                AuthenticatedIdentificationApplet.class, recorded, (short) 0, (byte) recorded.length);
+        final boolean credential = (InstallData.appletDataOf(recorded)[32] & InstallData.OPT_CREDENTIAL) != 0;
+        try (TraceWriter.CardRecorder card = writer.card(AuthenticatedIdentificationClient.APPLET_AID,
+                AuthenticatedIdentificationApplet.class.getName(), claimed, (byte) 0)) {
+            final CardChannel channel = new TracingCardChannel(new RecordingCardChannel(
+                    CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel(), card), exchanges);
+            final AuthenticatedIdentificationClient client = new AuthenticatedIdentificationClient(PSK);
+            client.select(channel);
+            client.readIdFast(channel);
+
+            // A terminal with the wrong key
+            channel.transmit(new CommandAPDU(0x80, 0x10, 0x00, 0x00, 16));
+            channel.transmit(new CommandAPDU(0x80, 0x11, 0x00, 0x00, new byte[16], 256));
+
+            if (credential) {
+                final byte[] data = new byte[600];
+                new Random(42).nextBytes(data);
+                client.writeCredential(channel, data, false);
+                client.readCredential(channel, null, false);
+                client.writeCredential(channel, Arrays.copyOf(data, 300), true);
+                client.readCredential(channel, null, true);
+                client.readStatistics(channel, null);
+            }
+
+            // Full three-step session, then resumption with the ticket it issued
+            final byte[] rc = aes(Cipher.DECRYPT_MODE, PSK, channel.transmit(new CommandAPDU(0x80, 0x10, 0x00, 0x00, 16)).getData());
+            final byte[] rt = HEX.parseHex("0102030405060708");
+            final byte[] key = new byte[16];
+            System.arraycopy(rc, 0, key, 0, 8);
+            System.arraycopy(rt, 0, key, 8, 8);
+            final byte[] auth = new byte[16];
+            System.arraycopy(rt, 0, auth, 0, 8);
+            System.arraycopy(rc, 0, auth, 8, 8);
+            channel.transmit(new CommandAPDU(0x80, 0x11, 0x00, 0x00, aes(Cipher.ENCRYPT_MODE, PSK, auth), 256));
+            final ResponseAPDU getId = channel.transmit(new CommandAPDU(0x80, 0x12, 0x00, 0x00, 16));
+            Assertions.assertEquals(0x9000, getId.getSW(), "GET_ID response status unexpected");
+
+            final byte[] ticket = aes(Cipher.ENCRYPT_MODE, key, LABEL_TICKET);
+            card.reset();
+            simulator.reset();
+            client.select(channel);
+            for (int counter = 1; counter <= 2; counter++) {
+                final byte[] counterBlock = new byte[16];
+                counterBlock[1] = (byte) counter;
+                final byte[] counterKey = aes(Cipher.ENCRYPT_MODE, ticket, counterBlock);
+                final ResponseAPDU resume = channel.transmit(new CommandAPDU(0x80, 0x14, 0x00, counter,
+                        aes(Cipher.ENCRYPT_MODE, counterKey, LABEL_RESUME), 256));
+                Assertions.assertEquals(0x9000, resume.getSW(), "RESUME response status unexpected");
+            }
+        }
+    }
+
+    private static void recordIdentificationCard(TraceWriter writer, ApduLatencyRecorder exchanges) throws Exception {
+        final byte[] parameters = HEX.parseHex("000011" + HEX.formatHex(ID) + "10");
+        final CardSimulator simulator = new CardSimulator();
+        simulator.installApplet(AIDUtil.create(IDENTIFICATION_AID), IdentificationApplet.class, parameters,
+                (short) 0, (byte) parameters.length);
+        try (TraceWriter.CardRecorder card = writer.card(IDENTIFICATION_AID, IdentificationApplet.class.getName(),
+                parameters, (byte) 0)) {
+            final CardChannel channel = new TracingCardChannel(new RecordingCardChannel(
+                    CardTerminalSimulator.terminal(simulator).connect("T=1").getBasicChannel(), card), exchanges);
+            channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, IDENTIFICATION_AID));
+            for (int i = 0; i < 3; i++) {
+                channel.transmit(new CommandAPDU(0x80, 0x12, 0x00, 0x00, 16));
+            }
+            channel.transmit(new CommandAPDU(0x80, 0x17, 0x00, 0x00, 256));
+        }
+    }
+
+    private static long countExchanges(ApduLatencyRecorder recorder) {
+        long count = 0;
+        for (int ins = 0; ins < 256; ins++) {
+            count += recorder.histogram((byte) ins).getCount();
+        }
+        return count;
+    }
+
+    private static byte[] aes(int mode, byte[] key, byte[] block) throws Exception {
+        final Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(mode, new SecretKeySpec(key, "AES"));
+        return cipher.doFinal(block, 0, 16);
+    }
+}
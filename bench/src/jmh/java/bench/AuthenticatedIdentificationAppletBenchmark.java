@@ -0,0 +1,124 @@
+package bench;
+
+import applet.AuthenticatedIdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import org.openjdk.jmh.annotations.*;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.security.GeneralSecurityException;
+
+/**
+ * Per-APDU cost of the authenticated identification applet in jCardSim.
+ * <p>
+ * Single-instruction benchmarks that depend on a preceding AUTH_INIT receive it through {@link PendingAuth}, so that
+ * only the measured instruction is timed. GET_ID is repeated within the session established during setup. The flow benchmarks include the
+ * terminal-side AES operations.
+ * <p>
+ * Only GET_ID and AUTH_AND_GET_ID refill the challenge pool, so with options 01 AUTH_INIT and AUTH get a full pool
+ * from an untimed session before each invocation ({@link FullPool}); otherwise they would measure the fallback to
+ * the random number generator after the first four invocations.
+ */
+@State(Scope.Thread)
+public class AuthenticatedIdentificationAppletBenchmark {
+
+    private static final String APPLET_ID = "f000000cdc01";
+    private static final String PSK_HEX = "00112233445566778899AABBCCDDEEFF";
+    private static final String ID_HEX = "00000000000000000000000000000001";
+
+    private static final CommandAPDU SELECT = new CommandAPDU(AIDUtil.select(APPLET_ID));
+
+    /**
+     * Install options byte, see the README (00 = default, 01 = challenge pool).
+     */
+    @Param({"00", "01"})
+    public String options;
+
+    private CardSimulator simulator;
+    private Protocol protocol;
+
+    /**
+     * Refills the challenge pool (if enabled) before each invocation, by completing a session.
+     */
+    @State(Scope.Thread)
+    public static class FullPool {
+        @Setup(Level.Invocation)
+        public void refill(AuthenticatedIdentificationAppletBenchmark card) throws GeneralSecurityException {
+            card.refillPool();
+        }
+    }
+
+    /**
+     * Runs AUTH_INIT before each invocation, for benchmarks that measure the instruction following it.
+     */
+    @State(Scope.Thread)
+    public static class PendingAuth {
+        CommandAPDU command;
+
+        @Setup(Level.Invocation)
+        public void prepare(AuthenticatedIdentificationAppletBenchmark card) throws GeneralSecurityException {
+            card.refillPool();
+            command = card.protocol.authCommand(card.simulator.transmitCommand(Protocol.AUTH_INIT));
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws GeneralSecurityException {
+        simulator = new CardSimulator();
+        final AID aid = AIDUtil.create(APPLET_ID);
+        final String appletData = PSK_HEX + ID_HEX + options;
+        final byte[] installData = Protocol.hex("0000" + Integer.toHexString(appletData.length() / 2) + appletData);
+        simulator.installApplet(aid, AuthenticatedIdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        simulator.selectApplet(aid);
+        protocol = new Protocol(Protocol.hex(PSK_HEX));
+
+        // Establish one session, so that the pool (if enabled) is filled and GET_ID can be repeated
+        protocol.fullFlow(simulator);
+    }
+
+    private void refillPool() throws GeneralSecurityException {
+        if ((Integer.parseInt(options, 16) & 0x01) != 0) {
+            protocol.fullFlow(simulator);
+        }
+    }
+
+    @Benchmark
+    public ResponseAPDU select() {
+        return simulator.transmitCommand(SELECT);
+    }
+
+    @Benchmark
+    public ResponseAPDU authInit(FullPool pool) {
+        return simulator.transmitCommand(Protocol.AUTH_INIT);
+    }
+
+    @Benchmark
+    public ResponseAPDU auth(PendingAuth pending) {
+        return simulator.transmitCommand(pending.command);
+    }
+
+    @Benchmark
+    public ResponseAPDU authAndGetId(PendingAuth pending) {
+        return simulator.transmitCommand(new CommandAPDU(Protocol.CLA_PROPRIETARY, Protocol.INS_AUTH_AND_GET_ID, 0x00, 0x00, pending.command.getData()));
+    }
+
+    @Benchmark
+    public ResponseAPDU getId() {
+        // The session prepared in setup stays authenticated, GET_ID can be repeated
+        return simulator.transmitCommand(Protocol.GET_ID);
+    }
+
+    @Benchmark
+    public byte[] fullFlow() throws GeneralSecurityException {
+        simulator.transmitCommand(SELECT);
+        return protocol.fullFlow(simulator);
+    }
+
+    @Benchmark
+    public byte[] fastFlow() throws GeneralSecurityException {
+        simulator.transmitCommand(SELECT);
+        return protocol.fastFlow(simulator);
+    }
+}
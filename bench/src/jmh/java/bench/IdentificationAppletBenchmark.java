@@ -0,0 +1,50 @@
+package bench;
+
+import applet.IdentificationApplet;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.utils.AIDUtil;
+import javacard.framework.AID;
+import org.openjdk.jmh.annotations.*;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Per-APDU cost of the unauthenticated identification applet in jCardSim.
+ */
+@State(Scope.Thread)
+public class IdentificationAppletBenchmark {
+
+    private static final String APPLET_ID = "f000000cdc00";
+    private static final String ID_HEX = "00000000000000000000000000000001";
+
+    private static final CommandAPDU SELECT = new CommandAPDU(AIDUtil.select(APPLET_ID));
+    private static final CommandAPDU GET_ID = new CommandAPDU(0x80, 0x12, 0x00, 0x00);
+
+    private CardSimulator simulator;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        simulator = new CardSimulator();
+        final AID aid = AIDUtil.create(APPLET_ID);
+        final byte[] installData = Protocol.hex("0000" + Integer.toHexString(ID_HEX.length() / 2) + ID_HEX);
+        simulator.installApplet(aid, IdentificationApplet.class, installData, (short) 0, (byte) installData.length);
+        simulator.selectApplet(aid);
+    }
+
+    @Benchmark
+    public ResponseAPDU select() {
+        return simulator.transmitCommand(SELECT);
+    }
+
+    @Benchmark
+    public ResponseAPDU getId() {
+        return simulator.transmitCommand(GET_ID);
+    }
+
+    @Benchmark
+    public ResponseAPDU fullFlow() {
+        simulator.transmitCommand(SELECT);
+        return simulator.transmitCommand(GET_ID);
+    }
+}
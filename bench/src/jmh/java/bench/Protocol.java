@@ -0,0 +1,82 @@
+package bench;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Terminal side of the authenticated identification protocol, as used by the benchmarks.
+ * Instances are not thread-safe, every benchmark state owns its own.
+ */
+final class Protocol {
+
+    // ===== APDU constants =====
+    static final byte CLA_PROPRIETARY = (byte) 0x80;
+    static final byte INS_AUTH_INIT   = (byte) 0x10;
+    static final byte INS_AUTH        = (byte) 0x11;
+    static final byte INS_GET_ID      = (byte) 0x12;
+    static final byte INS_AUTH_AND_GET_ID = (byte) 0x13;
+
+    static final CommandAPDU AUTH_INIT = new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_INIT, 0x00, 0x00);
+    static final CommandAPDU GET_ID = new CommandAPDU(CLA_PROPRIETARY, INS_GET_ID, 0x00, 0x00);
+
+    private final SecretKeySpec psk;
+    private final Cipher cipher;
+    private final Random random = new Random(42);
+    private final byte[] rc = new byte[8];
+    private final byte[] rt = new byte[8];
+
+    Protocol(byte[] psk) throws GeneralSecurityException {
+        this.psk = new SecretKeySpec(psk, "AES");
+        this.cipher = Cipher.getInstance("AES/ECB/NoPadding");
+    }
+
+    /**
+     * Builds the AUTH command for an AUTH_INIT response and remembers rc and rt for the ephemeral key.
+     */
+    CommandAPDU authCommand(ResponseAPDU authInitResponse) throws GeneralSecurityException {
+        cipher.init(Cipher.DECRYPT_MODE, psk);
+        System.arraycopy(cipher.doFinal(authInitResponse.getData()), 0, rc, 0, 8);
+        random.nextBytes(rt);
+
+        final byte[] m = new byte[16];
+        System.arraycopy(rt, 0, m, 0, 8);
+        System.arraycopy(rc, 0, m, 8, 8);
+        cipher.init(Cipher.ENCRYPT_MODE, psk);
+        return new CommandAPDU(CLA_PROPRIETARY, INS_AUTH, 0x00, 0x00, cipher.doFinal(m));
+    }
+
+    byte[] fullFlow(CardSimulator simulator) throws GeneralSecurityException {
+        simulator.transmitCommand(authCommand(simulator.transmitCommand(AUTH_INIT)));
+        return decryptWithEphemeralKey(simulator.transmitCommand(GET_ID).getData(), 0);
+    }
+
+    byte[] fastFlow(CardSimulator simulator) throws GeneralSecurityException {
+        final CommandAPDU auth = authCommand(simulator.transmitCommand(AUTH_INIT));
+        final ResponseAPDU response = simulator.transmitCommand(
+                new CommandAPDU(CLA_PROPRIETARY, INS_AUTH_AND_GET_ID, 0x00, 0x00, auth.getData()));
+        return decryptWithEphemeralKey(response.getData(), 16);
+    }
+
+    private byte[] decryptWithEphemeralKey(byte[] data, int offset) throws GeneralSecurityException {
+        final byte[] ephKey = new byte[16];
+        System.arraycopy(rc, 0, ephKey, 0, 8);
+        System.arraycopy(rt, 0, ephKey, 8, 8);
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(ephKey, "AES"));
+        return cipher.doFinal(Arrays.copyOfRange(data, offset, offset + 16));
+    }
+
+    static byte[] hex(String hex) {
+        final byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+}